@@ -0,0 +1,153 @@
+package com.example;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+
+import com.google.common.collect.Iterables;
+
+/**
+ * Secondary index of the messages of a single in-memory queue on some of their
+ * attributes, so a pull with a selector only walks the messages holding one of
+ * the selected values instead of the whole queue. Every message is indexed
+ * from its push until its deletion whatever its delivery state, in push order
+ * per value, and the puller skips the ones that are in flight or delayed. The
+ * values of an attribute are kept sorted so a prefix selector reads a range
+ * of them
+ */
+public class AttributeIndex {
+	// Messages per text value of each indexed attribute, a value is only
+	// added or removed while holding the monitor of its attribute map
+	private final Map<String, TreeMap<String, Bucket>> attributes = new HashMap<String, TreeMap<String, Bucket>>();
+
+	/**
+	 * Create an empty index
+	 * 
+	 * @param names
+	 *            the indexed attribute names
+	 */
+	public AttributeIndex(Collection<String> names) {
+		for (String name : names)
+			attributes.put(name, new TreeMap<String, Bucket>());
+	}
+
+	/**
+	 * @return the indexed attribute names
+	 */
+	public Set<String> getAttributeNames() {
+		return Collections.unmodifiableSet(attributes.keySet());
+	}
+
+	/**
+	 * Index a pushed message under each indexed attribute it has
+	 * 
+	 * @param message
+	 *            the message
+	 */
+	public void add(Message message) {
+		for (Map.Entry<String, TreeMap<String, Bucket>> attribute : attributes.entrySet()) {
+			String value = message.getAttributeText(attribute.getKey());
+			if (value == null)
+				continue;
+			TreeMap<String, Bucket> values = attribute.getValue();
+			synchronized (values) {
+				Bucket bucket = values.get(value);
+				if (bucket == null) {
+					bucket = new Bucket();
+					values.put(value, bucket);
+				}
+				bucket.messages.add(message);
+				bucket.size++;
+			}
+		}
+	}
+
+	/**
+	 * Remove a deleted message from the index
+	 * 
+	 * @param message
+	 *            the message
+	 */
+	public void remove(Message message) {
+		for (Map.Entry<String, TreeMap<String, Bucket>> attribute : attributes.entrySet()) {
+			String value = message.getAttributeText(attribute.getKey());
+			if (value == null)
+				continue;
+			TreeMap<String, Bucket> values = attribute.getValue();
+			synchronized (values) {
+				Bucket bucket = values.get(value);
+				if (bucket == null || !bucket.messages.remove(message))
+					continue;
+				if (--bucket.size == 0)
+					values.remove(value);
+			}
+		}
+	}
+
+	/**
+	 * Get the messages that may match a selector, taken from its term on an
+	 * indexed attribute that holds the fewest messages. The other terms are
+	 * not checked, the caller still has to test every candidate
+	 * 
+	 * @param selector
+	 *            the selector
+	 * @return the candidates in push order per value, null if no term of the
+	 *         selector is on an indexed attribute
+	 */
+	public Iterable<Message> getCandidates(MessageFilter selector) {
+		List<Deque<Message>> best = null;
+		int bestSize = Integer.MAX_VALUE;
+		for (MessageFilter.Term term : selector.getTerms()) {
+			TreeMap<String, Bucket> values = (term.attribute != null) ? attributes.get(term.attribute) : null;
+			if (values == null)
+				continue;
+			List<Deque<Message>> buckets = new ArrayList<Deque<Message>>();
+			int size = 0;
+			synchronized (values) {
+				for (String value : term.values) {
+					Collection<Bucket> matched = term.prefix
+							? values.subMap(value, value + Character.MAX_VALUE).values()
+							: Collections.singleton(values.get(value));
+					for (Bucket bucket : matched) {
+						if (bucket == null)
+							continue;
+						buckets.add(bucket.messages);
+						size += bucket.size;
+					}
+				}
+			}
+			if (size < bestSize) {
+				best = buckets;
+				bestSize = size;
+			}
+		}
+		return (best != null) ? Iterables.concat(best) : null;
+	}
+
+	/**
+	 * Remove every message from the index
+	 */
+	public void clear() {
+		for (TreeMap<String, Bucket> values : attributes.values())
+			synchronized (values) {
+				values.clear();
+			}
+	}
+
+	/**
+	 * Messages holding a single value, walked by pulls without holding the
+	 * attribute monitor
+	 */
+	private static class Bucket {
+		private final Deque<Message> messages = new ConcurrentLinkedDeque<Message>();
+		// Number of messages, as counting the deque means walking it
+		private int size;
+	}
+}
@@ -0,0 +1,124 @@
+package com.example;
+
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.PriorityQueue;
+
+/**
+ * Items ordered by the time they are due, shared by visibility timeouts and
+ * delayed delivery. There is no timer thread, due items are only collected
+ * when the owner polls with the current time, so scheduled items cost nothing
+ * but their heap entry until they are due. Rescheduling or cancelling an item
+ * only marks its old entry as dead, which is then discarded when it reaches
+ * the top of the heap
+ * 
+ * @param <T>
+ *            the item type, compared by identity
+ */
+public class DeadlineQueue<T> {
+	private final PriorityQueue<Entry<T>> heap = new PriorityQueue<Entry<T>>();
+	// Live entry of each scheduled item
+	private final Map<T, Entry<T>> entries = new IdentityHashMap<T, Entry<T>>();
+	// Tie breaker so that items due at the same time keep scheduling order
+	private long sequence;
+
+	/**
+	 * Schedule an item, replacing its previous deadline if there is one
+	 * 
+	 * @param item
+	 *            the item
+	 * @param deadline
+	 *            the time in milliseconds at which the item is due
+	 */
+	public synchronized void schedule(T item, long deadline) {
+		Entry<T> entry = new Entry<T>(item, deadline, sequence++);
+		Entry<T> previous = entries.put(item, entry);
+		if (previous != null)
+			previous.cancelled = true;
+		heap.add(entry);
+	}
+
+	/**
+	 * Cancel the deadline of an item
+	 * 
+	 * @param item
+	 *            the item
+	 * @return true if the item was scheduled
+	 */
+	public synchronized boolean cancel(T item) {
+		Entry<T> entry = entries.remove(item);
+		if (entry == null)
+			return false;
+		entry.cancelled = true;
+		return true;
+	}
+
+	/**
+	 * Take the earliest item that is due
+	 * 
+	 * @param now
+	 *            the current time in milliseconds
+	 * @return the item, null if no item is due yet
+	 */
+	public synchronized T pollDue(long now) {
+		Entry<T> entry;
+		while ((entry = heap.peek()) != null) {
+			if (entry.cancelled) {
+				heap.poll();
+				continue;
+			}
+			if (entry.deadline > now)
+				return null;
+			heap.poll();
+			entries.remove(entry.item);
+			return entry.item;
+		}
+		return null;
+	}
+
+	/**
+	 * Check whether an item is currently scheduled
+	 * 
+	 * @param item
+	 *            the item
+	 * @return true if scheduled
+	 */
+	public synchronized boolean contains(T item) {
+		return entries.containsKey(item);
+	}
+
+	/**
+	 * @return number of scheduled items
+	 */
+	public synchronized int size() {
+		return entries.size();
+	}
+
+	/**
+	 * Remove all scheduled items
+	 */
+	public synchronized void clear() {
+		heap.clear();
+		entries.clear();
+	}
+
+	private static class Entry<T> implements Comparable<Entry<T>> {
+		private final T item;
+		private final long deadline;
+		private final long sequence;
+		private boolean cancelled;
+
+		private Entry(T item, long deadline, long sequence) {
+			this.item = item;
+			this.deadline = deadline;
+			this.sequence = sequence;
+		}
+
+		@Override
+		public int compareTo(Entry<T> other) {
+			if (deadline != other.deadline)
+				return deadline < other.deadline ? -1 : 1;
+			return sequence < other.sequence ? -1 : (sequence == other.sequence ? 0 : 1);
+		}
+	}
+}
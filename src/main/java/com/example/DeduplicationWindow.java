@@ -0,0 +1,253 @@
+package com.example;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+
+/**
+ * Set of message fingerprints seen during the last deduplication window. The
+ * window is split into time buckets, each being a compact open addressing set
+ * of 64 bit fingerprints, and a bucket is dropped as a whole once it falls out
+ * of the window. Memory is therefore bounded by the number of messages pushed
+ * within one window plus one bucket, at 8 bytes per message at full load. A 64
+ * bit murmur3 fingerprint makes a false duplicate practically impossible even
+ * with millions of ids per window, so no exact confirmation is kept
+ */
+public class DeduplicationWindow {
+	// Number of buckets covering the window
+	private static final int BUCKETS = 10;
+	private static final HashFunction HASH = Hashing.murmur3_128();
+
+	private final long windowMillis;
+	private final long bucketMillis;
+	// Whether message without deduplication id is identified by its content
+	private final boolean contentBased;
+	// Ring of buckets, slot i holds the bucket whose index modulo the ring
+	// size is i, including one extra bucket for the partially expired one
+	private final long[] bucketIndex = new long[BUCKETS + 1];
+	private final FingerprintSet[] buckets = new FingerprintSet[BUCKETS + 1];
+
+	/**
+	 * Create empty window
+	 * 
+	 * @param windowMillis
+	 *            the duration in milliseconds a fingerprint is remembered
+	 * @param contentBased
+	 *            true to identify message without deduplication id by its
+	 *            content
+	 */
+	public DeduplicationWindow(long windowMillis, boolean contentBased) {
+		if (windowMillis <= 0)
+			throw new IllegalArgumentException("Deduplication window has to be positive");
+		this.windowMillis = windowMillis;
+		this.contentBased = contentBased;
+		this.bucketMillis = (windowMillis + BUCKETS - 1) / BUCKETS;
+		for (int i = 0; i < buckets.length; i++) {
+			bucketIndex[i] = -1;
+			buckets[i] = new FingerprintSet();
+		}
+	}
+
+	/**
+	 * Compute the fingerprint of a message, using its deduplication id if it
+	 * has one, or its content if content based deduplication is enabled
+	 * 
+	 * @param message
+	 *            the message
+	 * @return the fingerprint, 0 if the message is not subject to
+	 *         deduplication
+	 */
+	public long fingerprint(Message message) {
+		// Id and content are prefixed differently so they can never match
+		// each other. Text is hashed as its UTF-8 bytes, so text and binary
+		// message with the same bytes have the same fingerprint
+		Hasher hasher = HASH.newHasher();
+		if (message.getDeduplicationId() != null)
+			hasher.putByte((byte) 'I').putString(message.getDeduplicationId(), StandardCharsets.UTF_8);
+		else if (!contentBased)
+			return 0;
+		else if (message.isBinary()) {
+			ByteBuffer payload = message.getPayload();
+			hasher.putByte((byte) 'C');
+			if (payload.hasArray())
+				hasher.putBytes(payload.array(), payload.arrayOffset() + payload.position(), payload.remaining());
+			else
+				hasher.putBytes(PayloadCodec.toArray(payload));
+		} else
+			hasher.putByte((byte) 'C').putString(message.getContent(), StandardCharsets.UTF_8);
+		long fingerprint = hasher.hash().asLong();
+		return (fingerprint != 0) ? fingerprint : 1;
+	}
+
+	/**
+	 * @return the window duration in milliseconds
+	 */
+	public long getWindowMillis() {
+		return windowMillis;
+	}
+
+	/**
+	 * @return true if message without deduplication id is identified by its
+	 *         content
+	 */
+	public boolean isContentBased() {
+		return contentBased;
+	}
+
+	/**
+	 * Get the bucket a time belongs to
+	 * 
+	 * @param time
+	 *            the time in milliseconds
+	 * @return the bucket index
+	 */
+	public long getBucket(long time) {
+		return time / bucketMillis;
+	}
+
+	/**
+	 * Check whether a bucket still overlaps the window ending at a given time
+	 * 
+	 * @param bucket
+	 *            the bucket index
+	 * @param now
+	 *            the current time in milliseconds
+	 * @return true if the bucket is part of the window
+	 */
+	public boolean isLive(long bucket, long now) {
+		return bucket <= getBucket(now) && bucket >= getOldestBucket(now);
+	}
+
+	/**
+	 * Get the oldest bucket that still overlaps the window ending at a given
+	 * time
+	 * 
+	 * @param now
+	 *            the current time in milliseconds
+	 * @return the bucket index
+	 */
+	public long getOldestBucket(long now) {
+		return getBucket(now) - BUCKETS;
+	}
+
+	/**
+	 * Record a fingerprint unless it has been seen within the window
+	 * 
+	 * @param fingerprint
+	 *            the fingerprint, 0 is never a duplicate
+	 * @param now
+	 *            the current time in milliseconds
+	 * @return true if the fingerprint is new, false if it is a duplicate
+	 */
+	public synchronized boolean add(long fingerprint, long now) {
+		if (fingerprint == 0)
+			return true;
+		if (contains(fingerprint, now))
+			return false;
+		record(fingerprint, getBucket(now));
+		return true;
+	}
+
+	/**
+	 * Check whether a fingerprint has been seen within the window
+	 * 
+	 * @param fingerprint
+	 *            the fingerprint
+	 * @param now
+	 *            the current time in milliseconds
+	 * @return true if seen
+	 */
+	public synchronized boolean contains(long fingerprint, long now) {
+		for (int i = 0; i < buckets.length; i++) {
+			if (isLive(bucketIndex[i], now) && buckets[i].contains(fingerprint))
+				return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Record a fingerprint into a specific bucket, used to replay fingerprints
+	 * recorded by another process
+	 * 
+	 * @param fingerprint
+	 *            the fingerprint
+	 * @param bucket
+	 *            the bucket index
+	 */
+	public synchronized void record(long fingerprint, long bucket) {
+		int slot = (int) (bucket % buckets.length);
+		if (bucketIndex[slot] != bucket) {
+			// Bucket is already older than the whole window
+			if (bucketIndex[slot] > bucket)
+				return;
+			// Slot holds an expired bucket, reuse it
+			bucketIndex[slot] = bucket;
+			buckets[slot] = new FingerprintSet();
+		}
+		buckets[slot].add(fingerprint);
+	}
+
+	/**
+	 * @return number of fingerprints currently kept, expired buckets included
+	 *         until their slot is reused
+	 */
+	public synchronized int size() {
+		int size = 0;
+		for (FingerprintSet bucket : buckets)
+			size += bucket.size;
+		return size;
+	}
+
+	/**
+	 * Open addressing set of non zero longs with linear probing
+	 */
+	private static class FingerprintSet {
+		private long[] table = new long[16];
+		private int size;
+
+		private boolean contains(long fingerprint) {
+			int mask = table.length - 1;
+			for (int i = mix(fingerprint) & mask;; i = (i + 1) & mask) {
+				if (table[i] == 0)
+					return false;
+				if (table[i] == fingerprint)
+					return true;
+			}
+		}
+
+		private void add(long fingerprint) {
+			// Keep load factor under 3/4
+			if ((size + 1) * 4 > table.length * 3)
+				grow();
+			if (insert(table, fingerprint))
+				size++;
+		}
+
+		private void grow() {
+			long[] larger = new long[table.length * 2];
+			for (long fingerprint : table)
+				if (fingerprint != 0)
+					insert(larger, fingerprint);
+			table = larger;
+		}
+
+		private static boolean insert(long[] table, long fingerprint) {
+			int mask = table.length - 1;
+			for (int i = mix(fingerprint) & mask;; i = (i + 1) & mask) {
+				if (table[i] == fingerprint)
+					return false;
+				if (table[i] == 0) {
+					table[i] = fingerprint;
+					return true;
+				}
+			}
+		}
+
+		private static int mix(long fingerprint) {
+			return (int) (fingerprint ^ (fingerprint >>> 32));
+		}
+	}
+}
@@ -0,0 +1,135 @@
+package com.example;
+
+/**
+ * Index of deliverable messages of a single in-memory queue. The queue itself
+ * keeps every message until it is deleted, the index only decides which
+ * message is handed out next and keeps track of leased and delayed messages
+ * until their deadline
+ */
+public interface DeliveryIndex {
+
+	/**
+	 * Add a newly visible message
+	 * 
+	 * @param message
+	 *            the message
+	 */
+	public void offer(Message message);
+
+	/**
+	 * Add a message that becomes visible again after being received, it should
+	 * be delivered before the messages that have never been received
+	 * 
+	 * @param message
+	 *            the message
+	 */
+	public void offerFirst(Message message);
+
+	/**
+	 * Keep a received message invisible until its visibility timeout
+	 * 
+	 * @param message
+	 *            the received message
+	 * @param deadline
+	 *            the time in milliseconds at which the lease expires
+	 */
+	public void lease(Message message, long deadline);
+
+	/**
+	 * Add a message that was in flight when its queue was recovered, it stays
+	 * invisible until its lease expires
+	 * 
+	 * @param message
+	 *            the message, already invisible
+	 * @param deadline
+	 *            the time in milliseconds at which the lease expires
+	 */
+	public void offerLeased(Message message, long deadline);
+
+	/**
+	 * Keep a pushed message invisible until its delivery delay is over
+	 * 
+	 * @param message
+	 *            the delayed message
+	 * @param deadline
+	 *            the time in milliseconds at which the message is delivered
+	 */
+	public void delay(Message message, long deadline);
+
+	/**
+	 * Cancel the pending lease or delay of a message
+	 * 
+	 * @param message
+	 *            the message
+	 */
+	public void cancel(Message message);
+
+	/**
+	 * Make every message whose lease or delay is due at the given time
+	 * deliverable again
+	 * 
+	 * @param now
+	 *            the current time in milliseconds
+	 */
+	public void release(long now);
+
+	/**
+	 * Take the next message to deliver, after handling every lease and delay
+	 * that is due at the given time
+	 * 
+	 * @param now
+	 *            the current time in milliseconds
+	 * @return the message, null if there is nothing to deliver
+	 */
+	public Message poll(long now);
+
+	/**
+	 * Check if an available message may be handed out ahead of its turn, as
+	 * a pull with a selector does
+	 * 
+	 * @param message
+	 *            the message
+	 * @return true if it can be delivered now
+	 */
+	public boolean canDeliver(Message message);
+
+	/**
+	 * Take a message handed out ahead of its turn out of line, once it has
+	 * been leased, so it is not waiting for delivery while in flight
+	 * 
+	 * @param message
+	 *            the leased message
+	 */
+	public void take(Message message);
+
+	/**
+	 * Remove a deleted message from the index
+	 * 
+	 * @param message
+	 *            the message
+	 * @return true if the message was waiting for delivery
+	 */
+	public boolean remove(Message message);
+
+	/**
+	 * @return number of messages that can be delivered, as of the last
+	 *         release()
+	 */
+	public int visibleSize();
+
+	/**
+	 * @return number of messages received and waiting for their lease to
+	 *         expire
+	 */
+	public int leasedSize();
+
+	/**
+	 * @return number of messages waiting for their delivery delay
+	 */
+	public int delayedSize();
+
+	/**
+	 * Remove every message from the index
+	 */
+	public void clear();
+}
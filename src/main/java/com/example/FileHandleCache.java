@@ -0,0 +1,333 @@
+package com.example;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.OpenOption;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+
+/**
+ * Bounded cache of the files a file queue touches on every operation, the
+ * channels of the lane and counter files and the parsed config and
+ * subscription files, so an operation does not pay for opening, reading and
+ * closing them each time. Another process may replace or remove any of these
+ * files, so every use first reads the attributes of the path, a single
+ * syscall, and the cached channel or content is only used if the path still
+ * names the same file. A replaced file always has another file key, as the
+ * cached channel keeps the old one from being reused. The least recently used
+ * entries are closed once the cache is full
+ */
+public class FileHandleCache implements Closeable {
+	private static final OpenOption[] APPEND = { StandardOpenOption.WRITE, StandardOpenOption.APPEND };
+	private static final OpenOption[] READ_WRITE = { StandardOpenOption.READ, StandardOpenOption.WRITE,
+			StandardOpenOption.CREATE };
+
+	private final int capacity;
+	// Entries by absolute path in access order
+	private final LinkedHashMap<String, Handle> handles = new LinkedHashMap<String, Handle>(16, 0.75f, true);
+
+	/**
+	 * Create an empty cache
+	 * 
+	 * @param capacity
+	 *            the maximum number of files kept open or parsed
+	 */
+	public FileHandleCache(int capacity) {
+		if (capacity <= 0)
+			throw new IllegalArgumentException("Capacity must be positive: " + capacity);
+		this.capacity = capacity;
+	}
+
+	/**
+	 * Append bytes to an existing file
+	 * 
+	 * @param file
+	 *            the file
+	 * @param data
+	 *            the bytes
+	 * @throws NoSuchFileException
+	 *             if the file does not exist
+	 * @throws IOException
+	 */
+	public void append(File file, byte[] data) throws IOException {
+		Handle handle = get(file);
+		synchronized (handle) {
+			try {
+				ByteBuffer buffer = ByteBuffer.wrap(data);
+				FileChannel channel = handle.open(APPEND);
+				while (buffer.hasRemaining())
+					channel.write(buffer);
+			} finally {
+				handle.release();
+			}
+		}
+	}
+
+	/**
+	 * Read bytes at a position of a file
+	 * 
+	 * @param file
+	 *            the file
+	 * @param buffer
+	 *            the buffer filled up to its limit or the end of the file
+	 * @param position
+	 *            the file position
+	 * @return false if the file does not exist
+	 * @throws IOException
+	 */
+	public boolean read(File file, ByteBuffer buffer, long position) throws IOException {
+		Handle handle = get(file);
+		synchronized (handle) {
+			try {
+				FileChannel channel = handle.openExisting(READ_WRITE);
+				if (channel == null)
+					return false;
+				int read;
+				while (buffer.hasRemaining() && (read = channel.read(buffer, position)) >= 0)
+					position += read;
+				return true;
+			} finally {
+				handle.release();
+			}
+		}
+	}
+
+	/**
+	 * Write bytes at a position of a file, creating the file if needed
+	 * 
+	 * @param file
+	 *            the file
+	 * @param data
+	 *            the bytes
+	 * @param position
+	 *            the file position
+	 * @throws IOException
+	 */
+	public void write(File file, byte[] data, long position) throws IOException {
+		Handle handle = get(file);
+		synchronized (handle) {
+			try {
+				ByteBuffer buffer = ByteBuffer.wrap(data);
+				FileChannel channel = handle.open(READ_WRITE);
+				while (buffer.hasRemaining())
+					position += channel.write(buffer, position);
+			} finally {
+				handle.release();
+			}
+		}
+	}
+
+	/**
+	 * Get the properties stored in a file, parsed again only when the file has
+	 * been replaced or modified. The returned properties are shared and must
+	 * not be modified
+	 * 
+	 * @param file
+	 *            the properties file
+	 * @return the properties, null if the file does not exist
+	 * @throws IOException
+	 */
+	public Properties getProperties(File file) throws IOException {
+		Handle handle = get(file);
+		synchronized (handle) {
+			try {
+				BasicFileAttributes attributes = handle.stat();
+				if (attributes == null) {
+					handle.properties = null;
+					return null;
+				}
+				Object version = attributes.fileKey();
+				if (handle.properties == null || version == null || !version.equals(handle.version)
+						|| attributes.lastModifiedTime().toMillis() != handle.modified
+						|| attributes.size() != handle.size) {
+					Properties properties = new Properties();
+					FileChannel channel = FileChannel.open(handle.path, StandardOpenOption.READ);
+					try {
+						Reader reader = Channels.newReader(channel, Charset.defaultCharset().newDecoder(), -1);
+						properties.load(reader);
+					} finally {
+						channel.close();
+					}
+					handle.properties = properties;
+					handle.version = version;
+					handle.modified = attributes.lastModifiedTime().toMillis();
+					handle.size = attributes.size();
+				}
+				return handle.properties;
+			} finally {
+				handle.release();
+			}
+		}
+	}
+
+	/**
+	 * Close and drop the entries of a file or of every file under a directory,
+	 * called before they are deleted
+	 * 
+	 * @param file
+	 *            the file or directory
+	 */
+	public void invalidate(File file) {
+		String path = file.getAbsolutePath();
+		List<Handle> removed = new ArrayList<Handle>();
+		synchronized (handles) {
+			Iterator<Map.Entry<String, Handle>> entries = handles.entrySet().iterator();
+			while (entries.hasNext()) {
+				Map.Entry<String, Handle> entry = entries.next();
+				if (entry.getKey().equals(path) || entry.getKey().startsWith(path + File.separator)) {
+					removed.add(entry.getValue());
+					entries.remove();
+				}
+			}
+		}
+		for (Handle handle : removed)
+			handle.evict();
+	}
+
+	/**
+	 * @return the number of cached files
+	 */
+	public int size() {
+		synchronized (handles) {
+			return handles.size();
+		}
+	}
+
+	/**
+	 * Close every cached file, the cache can still be used afterwards
+	 */
+	@Override
+	public void close() {
+		List<Handle> removed;
+		synchronized (handles) {
+			removed = new ArrayList<Handle>(handles.values());
+			handles.clear();
+		}
+		for (Handle handle : removed)
+			handle.evict();
+	}
+
+	/**
+	 * Get the entry of a file, evicting the least recently used one if the
+	 * cache is full. The evicted entry is closed outside the cache monitor,
+	 * once no other thread is using it
+	 */
+	private Handle get(File file) {
+		String path = file.getAbsolutePath();
+		Handle evicted = null;
+		Handle handle;
+		synchronized (handles) {
+			handle = handles.get(path);
+			if (handle == null) {
+				handle = new Handle(file.toPath());
+				handles.put(path, handle);
+				if (handles.size() > capacity) {
+					Iterator<Handle> eldest = handles.values().iterator();
+					evicted = eldest.next();
+					eldest.remove();
+				}
+			}
+		}
+		if (evicted != null)
+			evicted.evict();
+		return handle;
+	}
+
+	/**
+	 * Cached state of a single file, only used while holding its monitor
+	 */
+	private static class Handle {
+		private final Path path;
+		private FileChannel channel;
+		// File key of the file the channel or the properties were read from
+		private Object version;
+		private long modified;
+		private long size;
+		private Properties properties;
+		// Dropped from the cache, so nothing is kept open after a use
+		private boolean evicted;
+
+		private Handle(Path path) {
+			this.path = path;
+		}
+
+		/**
+		 * @return the attributes of the file the path names now, null if it
+		 *         does not exist
+		 */
+		private BasicFileAttributes stat() throws IOException {
+			try {
+				return Files.readAttributes(path, BasicFileAttributes.class);
+			} catch (NoSuchFileException e) {
+				return null;
+			}
+		}
+
+		/**
+		 * @return the channel of the file the path names now, null if it does
+		 *         not exist
+		 */
+		private FileChannel openExisting(OpenOption[] options) throws IOException {
+			BasicFileAttributes attributes = stat();
+			if (attributes == null) {
+				closeChannel();
+				return null;
+			}
+			Object key = attributes.fileKey();
+			if (channel == null || key == null || !key.equals(version)) {
+				closeChannel();
+				channel = FileChannel.open(path, options);
+				version = key;
+			}
+			return channel;
+		}
+
+		private FileChannel open(OpenOption[] options) throws IOException {
+			FileChannel existing = openExisting(options);
+			if (existing != null)
+				return existing;
+			// Fails on a missing file unless the options create it
+			channel = FileChannel.open(path, options);
+			version = Files.readAttributes(path, BasicFileAttributes.class).fileKey();
+			return channel;
+		}
+
+		private void release() throws IOException {
+			if (evicted)
+				closeChannel();
+		}
+
+		private synchronized void evict() {
+			evicted = true;
+			properties = null;
+			try {
+				closeChannel();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+
+		private void closeChannel() throws IOException {
+			FileChannel closed = channel;
+			channel = null;
+			version = null;
+			if (closed != null)
+				closed.close();
+		}
+	}
+}
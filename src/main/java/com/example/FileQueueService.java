@@ -2,11 +2,39 @@ package com.example;
 
 import java.io.BufferedReader;
 import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.DataOutputStream;
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.FileReader;
 import java.io.FileWriter;
 import java.io.IOException;
-import java.io.PrintWriter;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Clock;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Properties;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
 
 /**
  * File based implementation of message queue service Using written time record
@@ -17,37 +45,226 @@ import java.io.PrintWriter;
  * @author Rudi Purnomo
  *
  */
-public class FileQueueService implements QueueService {
+public class FileQueueService implements QueueService, Closeable {
 
-	private static String QUEUE_DIRECTORY = "file";
+	// Default root directory of every queue, relative to the working directory
+	private static final String QUEUE_DIRECTORY = "file";
 	// Path for default queue
 	private static final String DEFAULT_QUEUE = "DEFAULT";
 	private static final String LOCK_FILE = ".lock";
 	private static final String MESSAGE_FILE = "message";
+	// Queue settings shared by every JVM using the queue
+	private static final String CONFIG_FILE = "config";
+	private static final String DELAY_SECONDS = "DelaySeconds";
+	private static final String FIFO_QUEUE = "FifoQueue";
+	private static final String DEDUPLICATION_WINDOW = "DeduplicationWindowSeconds";
+	private static final String CONTENT_BASED_DEDUPLICATION = "ContentBasedDeduplication";
+	// Prefix of the files holding the fingerprints of each deduplication bucket
+	private static final String DEDUPLICATION_FILE = "dedup_";
+	private static final String COMPRESSION_THRESHOLD = "CompressionThreshold";
+	private static final String OFFLOAD_THRESHOLD = "OffloadThreshold";
+	// Prefix of the files holding offloaded message content
+	private static final String BLOB_FILE = "blob_";
+	// Subscriber queues of a topic with their filter, only present in a topic
+	// directory
+	private static final String SUBSCRIPTION_FILE = "subscriptions";
+	// Prefix of the payload files of a topic and of their reference counts
+	private static final String SHARED_PAYLOAD_FILE = "payload_";
+	private static final String REFERENCE_COUNT_FILE = "refs_";
+	// Published content up to this size in bytes is kept in every record, as
+	// a reference to a payload file would not be much smaller
+	private static final int SHARED_PAYLOAD_THRESHOLD = 128;
+	// Directory of the commit records of batches being applied
+	private static final String BATCH_DIRECTORY = ".batches";
+	// Suffix of the record listing the queues a batch locks, until it ends
+	private static final String PENDING_RECORD = "_pending";
 	private static final long DEFAULT_VISIBILITY_TIMEOUT = 3000;
+	// Lease a record of a lease block must have left when it is handed out,
+	// with less it could be visible again before its consumer is done
+	private static final long MIN_BLOCK_LEASE = DEFAULT_VISIBILITY_TIMEOUT / 2;
+	// Lane, counter and config files kept open or parsed by a single service
+	private static final int OPEN_FILE_HANDLES = 256;
+	// Counters of every lane, a fixed slot of longs per lane so that a single
+	// lane is updated with one positioned write
+	private static final String STATS_FILE = "stats";
+	private static final int STAT_MESSAGES = 0;
+	private static final int STAT_IN_FLIGHT = 1;
+	private static final int STAT_DELAYED = 2;
+	// Latest lease and delay deadline, all counted messages are visible again
+	// once it has passed
+	private static final int STAT_LEASE_DEADLINE = 3;
+	private static final int STAT_DELAY_DEADLINE = 4;
+	private static final int STAT_OLDEST_ENQUEUE_TIME = 5;
+	private static final int STATS_PER_LANE = 6;
+
+	// Weighted round robin state of priority lanes per queue, only shared
+	// between threads of this JVM
+	private final Map<String, LaneScheduler> schedulers = new ConcurrentHashMap<String, LaneScheduler>();
+	// Source of current time for visibility timeout and delivery delay
+	private final Clock clock;
+	// Root directory holding the directory of every queue
+	private final String directory;
+	// Deduplication fingerprints of each queue replayed from its bucket files,
+	// only accessed while holding the queue lock
+	private final Map<String, DeduplicationState> deduplications = new ConcurrentHashMap<String, DeduplicationState>();
+	// Number of records claimed by a single rewrite of a lane file
+	private volatile int leaseBlockSize = 1;
+	// Records claimed by this JVM and not handed out yet, per queue
+	private final Map<String, LeaseBlock> leaseBlocks = new ConcurrentHashMap<String, LeaseBlock>();
+	// Replica every change to the queue files is streamed to, null if none
+	private volatile QueueReplicator replicator;
+	// Open channels and parsed settings of the files touched by every call
+	private final FileHandleCache handles = new FileHandleCache(OPEN_FILE_HANDLES);
 
 	/**
 	 * Create default queue if it does not exist at the moment TODO : Add other
 	 * variable/functionality bonded to specific instance of the service
 	 */
 	public FileQueueService() {
+		this(Clock.systemUTC());
+	}
+
+	/**
+	 * Create the service with specific clock, mainly used to control time in
+	 * testing
+	 * 
+	 * @param clock
+	 *            the clock
+	 */
+	public FileQueueService(Clock clock) {
+		this(clock, QUEUE_DIRECTORY);
+	}
+
+	/**
+	 * Create the service on a specific root directory, so that queues can be
+	 * placed on any disk
+	 * 
+	 * @param directory
+	 *            the root directory of the queues
+	 */
+	public FileQueueService(String directory) {
+		this(Clock.systemUTC(), directory);
+	}
+
+	/**
+	 * Create the service with specific clock and root directory
+	 * 
+	 * @param clock
+	 *            the clock
+	 * @param directory
+	 *            the root directory of the queues
+	 */
+	public FileQueueService(Clock clock, String directory) {
+		this.clock = clock;
+		this.directory = directory;
+		migrateLegacyQueues();
 		if (!isQueueExist(DEFAULT_QUEUE))
 			createQueue(DEFAULT_QUEUE);
 	}
 
+	/**
+	 * Move the single message file of every queue written before priority
+	 * lanes into the lane of normal priority, creating the other lanes. Its
+	 * records are kept ahead of any record already in that lane
+	 */
+	private void migrateLegacyQueues() {
+		File[] queues = new File(directory).listFiles();
+		if (queues == null)
+			return;
+		for (File queueDirectory : queues) {
+			if (!new File(queueDirectory, MESSAGE_FILE).isFile())
+				continue;
+			String queue = queueDirectory.getName();
+			File lock = getQueueLock(queue);
+			try {
+				lock(lock);
+				File legacyFile = new File(queueDirectory, MESSAGE_FILE);
+				// Already moved by another process
+				if (!legacyFile.isFile())
+					continue;
+				int lane = Message.NORMAL_PRIORITY;
+				File messageFile = new File(queueDirectory, MESSAGE_FILE + "_" + lane);
+				File tempFile = createTemporaryMessageFile(queue, lane);
+				BufferedWriter bw = new BufferedWriter(new FileWriter(tempFile));
+				long now = clock.millis();
+				long[] stats = new long[STATS_PER_LANE];
+				for (File source : new File[] { legacyFile, messageFile }) {
+					if (!source.isFile())
+						continue;
+					BufferedReader br = new BufferedReader(new FileReader(source));
+					String line;
+					while ((line = br.readLine()) != null) {
+						if (line.trim().isEmpty())
+							continue;
+						countRecord(stats, Message.createMessageFromRecord(line.trim(), lane, now), now);
+						bw.write(line + System.getProperty("line.separator"));
+					}
+					br.close();
+				}
+				bw.close();
+				messageFile.delete();
+				tempFile.renameTo(messageFile);
+				legacyFile.delete();
+				for (int other = 0; other < Message.PRIORITY_LANES; other++)
+					new File(queueDirectory, MESSAGE_FILE + "_" + other).createNewFile();
+				writeStats(queue, lane, stats);
+			} catch (InterruptedException e) {
+				e.printStackTrace();
+			} catch (IOException e) {
+				e.printStackTrace();
+			} finally {
+				unlock(lock);
+			}
+		}
+	}
+
 	/**
 	 * Push method for file based queue service. Works by appending the message
-	 * in record format to the end of message file in the queue directory
+	 * in record format to the end of the message file of its priority lane in
+	 * the queue directory. Delayed message is written with the time it becomes
+	 * visible, the same way a pulled message records its visibility timeout, so
+	 * delays survive a restart of any JVM using the queue. On a queue with
+	 * deduplication window, a duplicate push is dropped but still reported as
+	 * successful, as the message is already in the queue. Large content is
+	 * compressed or offloaded to a blob file according to the queue thresholds.
+	 * The lane counters are updated in place, without reading the lane file
 	 */
 	@Override
 	public boolean push(String queue, Message message) {
-		File messageFile = getMessageFile(queue);
+		Properties config = getQueueConfig(queue);
+		int lane = getLane(config, message);
+		long delay = message.getEffectiveDelay(getQueueDelay(config));
 		File lock = getQueueLock(queue);
 		try {
 			lock(lock);
-			PrintWriter pw = new PrintWriter(new FileWriter(messageFile, true));
-			pw.println(message.createVisibleRecord());
-			pw.close();
+			// Only looked up under the lock, as pull() and delete() replace it
+			File messageFile = getMessageFile(queue, lane);
+			if (messageFile == null)
+				return false;
+			long now = clock.millis();
+			DeduplicationState deduplication = getDeduplicationState(queue, config);
+			long fingerprint = (deduplication != null) ? deduplication.window.fingerprint(message) : 0;
+			if (fingerprint != 0) {
+				syncDeduplication(queue, deduplication, now);
+				if (deduplication.window.contains(fingerprint, now))
+					return true;
+			}
+			Message pushed = message.toPush();
+			pushed.setEnqueueTime(now);
+			Message stored = encodeContent(queue, lane, pushed, getPayloadCodec(config), true);
+			String record = (delay > 0) ? stored.createRecord(now + delay) : stored.createVisibleRecord();
+			handles.append(messageFile,
+					(record + System.getProperty("line.separator")).getBytes(Charset.defaultCharset()));
+			QueueReplicator replica = replicator;
+			if (replica != null)
+				replica.appendLine(getPath(queue, messageFile), record);
+			if (fingerprint != 0)
+				recordFingerprint(queue, deduplication, fingerprint, now);
+			long[] stats = readStats(queue)[lane];
+			if (stats[STAT_MESSAGES] == 0)
+				stats[STAT_OLDEST_ENQUEUE_TIME] = now;
+			countRecord(stats, (delay > 0) ? now + delay : 0, false, now, now);
+			writeStats(queue, lane, stats);
 		} catch (InterruptedException e) {
 			e.printStackTrace();
 			return false;
@@ -73,44 +290,212 @@ public class FileQueueService implements QueueService {
 	}
 
 	/**
-	 * Pull method for file based queue service. Works by creating temporary
-	 * duplicate message file which will overwrite the original one at the end
-	 * of the function. Duplicate file will have exactly the same content as the
-	 * original one beside the first visible message line which now will be set
-	 * as invisible
+	 * Push a batch of messages while holding the queue lock once. The records
+	 * of each lane are appended with a single write and the lane counters are
+	 * updated once, so a batch costs about as much as a single push.
+	 * Duplicates are dropped like in push(), including duplicates within the
+	 * batch
+	 * 
+	 * @param queue
+	 *            the queue name
+	 * @param messages
+	 *            the messages in push order
+	 * @return true if every message was pushed or dropped as duplicate, false
+	 *         otherwise
 	 */
-	@Override
-	public Message pull(String queue) {
-		Message ret = null;
+	public boolean push(String queue, List<Message> messages) {
+		Properties config = getQueueConfig(queue);
+		int queueDelay = getQueueDelay(config);
+		PayloadCodec codec = getPayloadCodec(config);
 		File lock = getQueueLock(queue);
 		try {
 			lock(lock);
-			File messageFile = getMessageFile(queue);
-			if (messageFile == null) {
-				unlock(lock);
-				return ret;
+			if (!isQueueExist(queue))
+				return false;
+			long now = clock.millis();
+			DeduplicationState deduplication = getDeduplicationState(queue, config);
+			if (deduplication != null)
+				syncDeduplication(queue, deduplication, now);
+			List<Long> fingerprints = new ArrayList<Long>();
+			List<List<String>> records = new ArrayList<List<String>>();
+			for (int lane = 0; lane < Message.PRIORITY_LANES; lane++)
+				records.add(new ArrayList<String>());
+			long[][] stats = readStats(queue);
+			for (Message message : messages) {
+				int lane = getLane(config, message);
+				long fingerprint = (deduplication != null) ? deduplication.window.fingerprint(message) : 0;
+				if (fingerprint != 0) {
+					if (deduplication.window.contains(fingerprint, now) || fingerprints.contains(fingerprint))
+						continue;
+					fingerprints.add(fingerprint);
+				}
+				long delay = message.getEffectiveDelay(queueDelay);
+				Message pushed = message.toPush();
+				pushed.setEnqueueTime(now);
+				Message stored = encodeContent(queue, lane, pushed, codec, true);
+				records.get(lane).add((delay > 0) ? stored.createRecord(now + delay) : stored.createVisibleRecord());
+				if (stats[lane][STAT_MESSAGES] == 0)
+					stats[lane][STAT_OLDEST_ENQUEUE_TIME] = now;
+				countRecord(stats[lane], (delay > 0) ? now + delay : 0, false, now, now);
 			}
-			File tempFile = createTemporaryMessageFile(queue);
-			BufferedReader br = new BufferedReader(new FileReader(messageFile));
-			BufferedWriter bw = new BufferedWriter(new FileWriter(tempFile));
-			String line;
-			boolean found = false;
-			while ((line = br.readLine()) != null) {
-				Message curMessage = Message.createMessageFromRecord(line.trim());
-				if (!found && curMessage.getVisiblility()) {
-					curMessage.setInvisible();
-					ret = curMessage;
-					bw.write(curMessage.createInvisibleRecord(DEFAULT_VISIBILITY_TIMEOUT)
-							+ System.getProperty("line.separator"));
-					found = true;
+			QueueReplicator replica = replicator;
+			for (int lane = 0; lane < Message.PRIORITY_LANES; lane++) {
+				if (records.get(lane).isEmpty())
+					continue;
+				File messageFile = getMessageFile(queue, lane);
+				if (messageFile == null)
+					return false;
+				StringBuilder lines = new StringBuilder();
+				for (String record : records.get(lane))
+					lines.append(record).append(System.getProperty("line.separator"));
+				handles.append(messageFile, lines.toString().getBytes(Charset.defaultCharset()));
+				for (int i = 0; replica != null && i < records.get(lane).size(); i++)
+					replica.appendLine(getPath(queue, messageFile), records.get(lane).get(i));
+				writeStats(queue, lane, stats[lane]);
+			}
+			// Recorded once the records are written, like in push()
+			for (long fingerprint : fingerprints)
+				recordFingerprint(queue, deduplication, fingerprint, now);
+		} catch (InterruptedException e) {
+			e.printStackTrace();
+			return false;
+		} catch (IOException e) {
+			e.printStackTrace();
+			return false;
+		} finally {
+			unlock(lock);
+		}
+		return true;
+	}
+
+	/**
+	 * Move every visible message of a queue to an archive, reading each lane
+	 * file once while holding the queue lock. Visible records are decoded and
+	 * appended to the archive, the others are copied to a temporary lane file
+	 * which replaces the lane file once the archive is synced, so a failure
+	 * leaves the queue as it was. In a FIFO queue, the messages behind a
+	 * message in flight or delayed stay with it, so the group is still
+	 * delivered in order
+	 * 
+	 * @param queue
+	 *            the queue name
+	 * @param archive
+	 *            the archive writer
+	 * @return the number of messages moved, -1 if the queue does not exist or
+	 *         draining failed
+	 */
+	public long drainTo(String queue, QueueArchive.Writer archive) {
+		File lock = getQueueLock(queue);
+		File[] tempFiles = new File[Message.PRIORITY_LANES];
+		try {
+			lock(lock);
+			if (!isQueueExist(queue))
+				return -1;
+			boolean fifo = isFifoQueue(getQueueConfig(queue));
+			long now = clock.millis();
+			long drained = 0;
+			long[][] stats = new long[Message.PRIORITY_LANES][STATS_PER_LANE];
+			Set<File> removedBlobs = new HashSet<File>();
+			Set<File> keptBlobs = new HashSet<File>();
+			Map<String, Integer> releasedPayloads = new HashMap<String, Integer>();
+			for (int lane = 0; lane < Message.PRIORITY_LANES; lane++) {
+				File messageFile = getMessageFile(queue, lane);
+				if (messageFile == null || messageFile.length() == 0)
 					continue;
+				tempFiles[lane] = createTemporaryMessageFile(queue, lane);
+				BufferedReader br = new BufferedReader(new FileReader(messageFile));
+				BufferedWriter bw = new BufferedWriter(new FileWriter(tempFiles[lane]));
+				Set<String> blockedGroups = new HashSet<String>();
+				String line;
+				while ((line = br.readLine()) != null) {
+					Message curMessage = Message.createMessageFromRecord(line.trim(), lane, now);
+					String group = (curMessage.getGroupId() != null) ? curMessage.getGroupId()
+							: MessageGroups.DEFAULT_GROUP;
+					File blobFile = PayloadCodec.isBlob(curMessage.getEncoding())
+							? getBlobFile(queue, lane, curMessage.getContent()) : null;
+					if (curMessage.getVisiblility() && !(fifo && blockedGroups.contains(group))) {
+						if (archive.append(decodeContent(queue, lane, curMessage)))
+							archive.sync();
+						if (blobFile != null)
+							removedBlobs.add(blobFile);
+						if (PayloadCodec.isShared(curMessage.getEncoding()))
+							releasedPayloads.merge(curMessage.getContent(), 1, Integer::sum);
+						drained++;
+						continue;
+					}
+					if (fifo)
+						blockedGroups.add(group);
+					if (blobFile != null)
+						keptBlobs.add(blobFile);
+					countRecord(stats[lane], curMessage, now);
+					bw.write(line + System.getProperty("line.separator"));
 				}
-				bw.write(line + System.getProperty("line.separator"));
+				bw.close();
+				br.close();
 			}
-			bw.close();
-			br.close();
-			messageFile.delete();
-			tempFile.renameTo(messageFile);
+			archive.sync();
+			QueueReplicator replica = replicator;
+			for (int lane = 0; lane < Message.PRIORITY_LANES; lane++) {
+				if (tempFiles[lane] == null)
+					continue;
+				File messageFile = getMessageFile(queue, lane);
+				messageFile.delete();
+				tempFiles[lane].renameTo(messageFile);
+				tempFiles[lane] = null;
+				writeStats(queue, lane, stats[lane]);
+				if (replica != null)
+					replica.writeFile(getPath(queue, messageFile), Files.readAllBytes(messageFile.toPath()));
+			}
+			removedBlobs.removeAll(keptBlobs);
+			for (File blobFile : removedBlobs) {
+				blobFile.delete();
+				if (replica != null)
+					replica.delete(getPath(queue, blobFile));
+			}
+			releaseSharedPayloads(releasedPayloads);
+			return drained;
+		} catch (InterruptedException e) {
+			e.printStackTrace();
+			return -1;
+		} catch (IOException e) {
+			e.printStackTrace();
+			return -1;
+		} finally {
+			for (File tempFile : tempFiles)
+				if (tempFile != null)
+					tempFile.delete();
+			unlock(lock);
+		}
+	}
+
+	/**
+	 * Pull method for file based queue service. The priority lane is picked by
+	 * weighted round robin among the non empty lane files, falling back to the
+	 * other lanes in priority order if the chosen one has no visible message.
+	 * Only the chosen lane file is rewritten, see pullFromLane(). FIFO queue
+	 * only uses a single lane. With a lease block size above one, a single
+	 * rewrite claims a block of records, and the following pulls hand them out
+	 * from memory without taking the queue lock, see setLeaseBlockSize()
+	 */
+	@Override
+	public Message pull(String queue) {
+		Message ret = pollLeaseBlock(queue);
+		if (ret != null)
+			return ret;
+		File lock = getQueueLock(queue);
+		try {
+			lock(lock);
+			if (!isQueueExist(queue))
+				return ret;
+			// Another thread may have claimed a block while this one waited
+			ret = pollLeaseBlock(queue);
+			if (ret != null)
+				return ret;
+			long now = clock.millis();
+			List<Message> claimed = claim(queue, leaseBlockSize, now, null);
+			ret = first(claimed);
+			if (!claimed.isEmpty())
+				leaseBlocks.put(queue, new LeaseBlock(claimed, now + DEFAULT_VISIBILITY_TIMEOUT));
 		} catch (InterruptedException e) {
 			e.printStackTrace();
 			return ret;
@@ -123,6 +508,212 @@ public class FileQueueService implements QueueService {
 		return ret;
 	}
 
+	/**
+	 * Pull the first visible message accepted by a selector, leaving the
+	 * others in place. Any pull reads the whole lane file anyway, so the
+	 * selector is tested on each record during that same pass rather than
+	 * through an index, and records are only decoded when the selector looks
+	 * at the content. Lease blocks are not used, and a FIFO queue only hands
+	 * out the head of a group
+	 * 
+	 * @param queue
+	 *            the queue name
+	 * @param selector
+	 *            the selector, null to pull like pull(queue)
+	 * @return the message, null if no visible message is accepted
+	 */
+	public Message pull(String queue, MessageFilter selector) {
+		if (selector == null || selector.isEmpty())
+			return pull(queue);
+		File lock = getQueueLock(queue);
+		try {
+			lock(lock);
+			if (!isQueueExist(queue))
+				return null;
+			return first(claim(queue, 1, clock.millis(), selector));
+		} catch (InterruptedException e) {
+			e.printStackTrace();
+			return null;
+		} catch (IOException e) {
+			e.printStackTrace();
+			return null;
+		} finally {
+			unlock(lock);
+		}
+	}
+
+	/**
+	 * Claim visible records from the lane picked by weighted round robin among
+	 * the non empty lane files, falling back to the other lanes in priority
+	 * order if the chosen one has none. FIFO queue only uses a single lane.
+	 * Queue lock must be held by the caller
+	 * 
+	 * @param limit
+	 *            the maximum number of records to claim
+	 * @param selector
+	 *            the selector of the records, null for any record
+	 * @return the claimed messages, empty if there is none
+	 * @throws IOException
+	 */
+	private List<Message> claim(String queue, int limit, long now, MessageFilter selector) throws IOException {
+		if (isFifoQueue(getQueueConfig(queue)))
+			return pullFromLane(queue, Message.NORMAL_PRIORITY, true, 1, now, selector);
+		boolean[] eligible = new boolean[Message.PRIORITY_LANES];
+		for (int lane = 0; lane < eligible.length; lane++) {
+			File messageFile = getMessageFile(queue, lane);
+			eligible[lane] = messageFile != null && messageFile.length() > 0;
+		}
+		int chosen = getScheduler(queue).next(eligible);
+		if (chosen < 0)
+			return new ArrayList<Message>();
+		List<Message> claimed = pullFromLane(queue, chosen, false, limit, now, selector);
+		for (int lane = 0; claimed.isEmpty() && lane < eligible.length; lane++) {
+			if (lane != chosen && eligible[lane])
+				claimed = pullFromLane(queue, lane, false, limit, now, selector);
+		}
+		return claimed;
+	}
+
+	private static Message first(List<Message> claimed) {
+		return claimed.isEmpty() ? null : claimed.remove(0);
+	}
+
+	/**
+	 * Hand out the next record of the lease block claimed by this JVM, without
+	 * taking the queue lock. Once the block lease has expired its records are
+	 * visible again in the lane file and may be claimed by another consumer,
+	 * so what is left of the block is dropped, as soon as less than
+	 * MIN_BLOCK_LEASE is left so a record is never handed out about to expire
+	 * 
+	 * @param queue
+	 *            the queue name
+	 * @return the message, null if there is no live block or it is empty
+	 */
+	private Message pollLeaseBlock(String queue) {
+		LeaseBlock block = leaseBlocks.get(queue);
+		if (block == null)
+			return null;
+		if (block.deadline - clock.millis() < MIN_BLOCK_LEASE) {
+			leaseBlocks.remove(queue, block);
+			return null;
+		}
+		return block.messages.pollFirst();
+	}
+
+	/**
+	 * Claim the first visible records of a priority lane. Works by creating
+	 * temporary duplicate message file which will overwrite the original one at
+	 * the end of the function. Duplicate file will have exactly the same
+	 * content as the original one beside the claimed message lines which now
+	 * will be set as invisible. Queue lock must be held by the caller. In FIFO
+	 * mode an invisible record blocks every later record of its message group,
+	 * so a group never has more than one message in flight and is delivered
+	 * strictly in order
+	 * 
+	 * @param queue
+	 *            the queue name
+	 * @param lane
+	 *            the priority lane
+	 * @param fifo
+	 *            true to respect message group ordering
+	 * @param limit
+	 *            the maximum number of records to claim
+	 * @param now
+	 *            the current time in milliseconds
+	 * @param selector
+	 *            the selector of the records, null for any record
+	 * @return the claimed messages in lane order, empty if there is none
+	 * @throws IOException
+	 */
+	private List<Message> pullFromLane(String queue, int lane, boolean fifo, int limit, long now,
+			MessageFilter selector) throws IOException {
+		List<Message> claimed = new ArrayList<Message>();
+		File messageFile = getMessageFile(queue, lane);
+		if (messageFile == null)
+			return claimed;
+		File tempFile = createTemporaryMessageFile(queue, lane);
+		BufferedReader br = new BufferedReader(new FileReader(messageFile));
+		BufferedWriter bw = new BufferedWriter(new FileWriter(tempFile));
+		String line;
+		Set<String> blockedGroups = new HashSet<String>();
+		long[] stats = new long[STATS_PER_LANE];
+		List<String> claimedLines = new ArrayList<String>();
+		List<String> claimedRecords = new ArrayList<String>();
+		while ((line = br.readLine()) != null) {
+			Message curMessage = Message.createMessageFromRecord(line.trim(), lane, now);
+			String group = (curMessage.getGroupId() != null) ? curMessage.getGroupId() : MessageGroups.DEFAULT_GROUP;
+			if (fifo && (!claimed.isEmpty() || blockedGroups.contains(group))) {
+				countRecord(stats, curMessage, now);
+				bw.write(line + System.getProperty("line.separator"));
+				continue;
+			}
+			boolean selected = claimed.size() < limit && curMessage.getVisiblility()
+					&& (selector == null || selector.testsContent() || selector.test(curMessage));
+			// Decoded before the lane file is rewritten, so a record whose
+			// content cannot be read stays visible instead of being claimed
+			// with no message handed out
+			Message decoded = selected ? decodeRecord(queue, lane, curMessage) : null;
+			selected = decoded != null && (selector == null || !selector.testsContent() || selector.test(decoded));
+			// A head in flight, left out by the selector or unreadable holds
+			// its group
+			if (fifo && !selected)
+				blockedGroups.add(group);
+			if (selected) {
+				curMessage.setInvisible();
+				curMessage.incrementReceiveCount();
+				curMessage.markReceived(now);
+				// Copy of the record taken before it was claimed
+				if (decoded != curMessage) {
+					decoded.setInvisible();
+					decoded.incrementReceiveCount();
+					decoded.markReceived(now);
+				}
+				claimed.add(decoded);
+				claimedLines.add(line);
+				claimedRecords.add(curMessage.createRecord(now + DEFAULT_VISIBILITY_TIMEOUT));
+				countRecord(stats, now + DEFAULT_VISIBILITY_TIMEOUT, true, curMessage.getEnqueueTime(), now);
+				bw.write(claimedRecords.get(claimedRecords.size() - 1) + System.getProperty("line.separator"));
+				continue;
+			}
+			countRecord(stats, curMessage, now);
+			bw.write(line + System.getProperty("line.separator"));
+		}
+		bw.close();
+		br.close();
+		// The whole lane has been read anyway, so its counters are refreshed
+		writeStats(queue, lane, stats);
+		if (claimed.isEmpty()) {
+			// Nothing changed, keep the original file
+			tempFile.delete();
+			return claimed;
+		}
+		messageFile.delete();
+		tempFile.renameTo(messageFile);
+		QueueReplicator replica = replicator;
+		for (int i = 0; replica != null && i < claimed.size(); i++)
+			replica.replaceLine(getPath(queue, messageFile), claimedLines.get(i), claimedRecords.get(i));
+		return claimed;
+	}
+
+	/**
+	 * Decode a record about to be claimed or matched. Only the claimed records
+	 * are decoded, the others are copied as they are
+	 * 
+	 * @return the message holding the original content, null if the content
+	 *         cannot be read
+	 */
+	private Message decodeRecord(String queue, int lane, Message record) {
+		try {
+			return decodeContent(queue, lane, record);
+		} catch (IOException e) {
+			e.printStackTrace();
+			return null;
+		} catch (IllegalArgumentException e) {
+			e.printStackTrace();
+			return null;
+		}
+	}
+
 	/**
 	 * Pull method without queue argument, this will pull message from default
 	 * queue if it exists
@@ -138,33 +729,63 @@ public class FileQueueService implements QueueService {
 	 * duplicate message file which will overwrite the original one at the end
 	 * of the function. Duplicate file will have exactly the same content as the
 	 * original one minus the message line which contains the record of input
-	 * message
+	 * message. Only the lane file of the message priority is rewritten. Records
+	 * are matched on their stored form, so encoded content is only decoded when
+	 * it was written with different thresholds. A single record is deleted,
+	 * picked like a batch deletion does, see findRecord()
 	 */
 	@Override
 	public boolean delete(String queue, Message message) {
 		File lock = getQueueLock(queue);
 		try {
 			lock(lock);
-			File messageFile = getMessageFile(queue);
+			Properties config = getQueueConfig(queue);
+			int lane = getLane(config, message);
+			File messageFile = getMessageFile(queue, lane);
 			if (messageFile == null) {
-				unlock(lock);
 				return false;
 			}
-			File tempFile = createTemporaryMessageFile(queue);
+			Message stored = encodeContent(queue, lane, message, getPayloadCodec(config), false);
+			List<String> lines = new ArrayList<String>();
 			BufferedReader br = new BufferedReader(new FileReader(messageFile));
-			BufferedWriter bw = new BufferedWriter(new FileWriter(tempFile));
 			String line;
-			while ((line = br.readLine()) != null) {
-				Message curMessage = Message.createMessageFromRecord(line.trim());
-				if (curMessage.getContent().equals(message.getContent())) {
-					continue;
-				}
-				bw.write(line + System.getProperty("line.separator"));
+			while ((line = br.readLine()) != null)
+				lines.add(line);
+			br.close();
+			long now = clock.millis();
+			int match = findRecord(queue, lane, lines, lines.size(), stored, message, now);
+			if (match < 0)
+				return true;
+			String removedLine = lines.remove(match);
+			Message removed = Message.createMessageFromRecord(removedLine.trim(), lane, now);
+			File tempFile = createTemporaryMessageFile(queue, lane);
+			BufferedWriter bw = new BufferedWriter(new FileWriter(tempFile));
+			// Same content in a lane shares its blob, which is only deleted
+			// once no record refers to it
+			boolean blobKept = false;
+			long[] stats = new long[STATS_PER_LANE];
+			for (String kept : lines) {
+				Message curMessage = Message.createMessageFromRecord(kept.trim(), lane, now);
+				blobKept |= PayloadCodec.isBlob(curMessage.getEncoding())
+						&& curMessage.getContent().equals(removed.getContent());
+				countRecord(stats, curMessage, now);
+				bw.write(kept + System.getProperty("line.separator"));
 			}
 			bw.close();
-			br.close();
 			messageFile.delete();
 			tempFile.renameTo(messageFile);
+			writeStats(queue, lane, stats);
+			QueueReplicator replica = replicator;
+			if (replica != null)
+				replica.replaceLine(getPath(queue, messageFile), removedLine, null);
+			if (PayloadCodec.isBlob(removed.getEncoding()) && !blobKept) {
+				File blobFile = getBlobFile(queue, lane, removed.getContent());
+				blobFile.delete();
+				if (replica != null)
+					replica.delete(getPath(queue, blobFile));
+			}
+			if (PayloadCodec.isShared(removed.getEncoding()))
+				releaseSharedPayloads(Collections.singletonMap(removed.getContent(), 1));
 		} catch (InterruptedException e) {
 			e.printStackTrace();
 			return false;
@@ -177,6 +798,67 @@ public class FileQueueService implements QueueService {
 		return true;
 	}
 
+	/**
+	 * Find the record of a message to delete among the first records of a
+	 * lane: the record the message was pulled from if it is still in flight,
+	 * otherwise any record of the message in flight, otherwise any other, so
+	 * a duplicate of the message is left to its own consumer
+	 * 
+	 * @param lines
+	 *            the records of the lane
+	 * @param count
+	 *            the number of leading records to look at
+	 * @param stored
+	 *            the message encoded with the current thresholds
+	 * @param message
+	 *            the message
+	 * @return the index of the record, -1 if there is none
+	 * @throws IOException
+	 */
+	private int findRecord(String queue, int lane, List<String> lines, int count, Message stored, Message message,
+			long now) throws IOException {
+		int match = -1;
+		int matchRank = -1;
+		for (int i = count; i-- > 0;) {
+			Message record = Message.createMessageFromRecord(lines.get(i).trim(), lane, now);
+			if (!isRecordOf(queue, lane, record, stored, message))
+				continue;
+			int rank = 0;
+			if (!record.getVisiblility() && record.getReceiveCount() > 0)
+				rank = (record.getEnqueueTime() == message.getEnqueueTime()
+						&& record.getReceiveCount() == message.getReceiveCount()) ? 2 : 1;
+			if (rank > matchRank) {
+				match = i;
+				matchRank = rank;
+			}
+			if (rank == 2)
+				break;
+		}
+		return match;
+	}
+
+	/**
+	 * Check if a record holds the content of a message. Records are matched
+	 * on their stored form, so encoded content is only decoded when it was
+	 * written with different thresholds. A record whose content cannot be
+	 * read only matches on its stored form
+	 * 
+	 * @param record
+	 *            the record read from the lane file
+	 * @param stored
+	 *            the message encoded with the current thresholds, without
+	 *            writing any blob
+	 * @param message
+	 *            the message
+	 * @return true if the record is one of the message
+	 */
+	private boolean isRecordOf(String queue, int lane, Message record, Message stored, Message message) {
+		if (Objects.equals(record.getEncoding(), stored.getEncoding()))
+			return record.getContent().equals(stored.getContent());
+		Message decoded = decodeRecord(queue, lane, record);
+		return decoded != null && decoded.getPayload().equals(message.getPayload());
+	}
+
 	/**
 	 * Delete function without queue argument, this will delete message from
 	 * default queue if it exists
@@ -189,51 +871,387 @@ public class FileQueueService implements QueueService {
 		return delete(DEFAULT_QUEUE, message);
 	}
 
-	// --------------------------------------------------------------------------------------
-	// Queue related method
+	/**
+	 * Stream every change made to the queue files from now on to a replica
+	 * directory, which a standby service can take over. Changes are recorded
+	 * while the queue lock is held, so the replica sees them in the order the
+	 * queues went through them. The replica should be a copy of the queue
+	 * directories, or empty before any queue is created. Operations still
+	 * report their local result once a replica fails to apply a change, see
+	 * hasReplicationFailed()
+	 * 
+	 * @param replicator
+	 *            the replicator, null to stop replicating
+	 */
+	public void setReplicator(QueueReplicator replicator) {
+		this.replicator = replicator;
+	}
 
 	/**
-	 * Create a queue directory with specified name if any part of this function
-	 * fail, previously created file/directory will be deleted
+	 * Check if the replica missed a change. Operations report their local
+	 * result, as a change is applied to the queue files before it is
+	 * replicated, so a caller that needs the change on the replica as well
+	 * checks this after the operation returns, and must not retry the
+	 * operation itself, which would apply it twice
+	 * 
+	 * @return true if the replica failed to apply a change and is out of date
+	 */
+	public boolean hasReplicationFailed() {
+		QueueReplicator replica = replicator;
+		return replica != null && replica.hasFailed();
+	}
+
+	/**
+	 * Close the files kept open by this service. The service can still be
+	 * used afterwards, the files are opened again on demand
+	 */
+	@Override
+	public void close() {
+		handles.close();
+	}
+
+	/**
+	 * Get the path of a queue file relative to the root directory, as used
+	 * in the replication change log
+	 */
+	private static String getPath(String queue, File file) {
+		return queue + "/" + file.getName();
+	}
+
+	/**
+	 * Set the number of records a pull claims at once. A block is claimed with
+	 * a single rewrite of the lane file under the queue lock, then handed out
+	 * one record per pull from memory, so consumers in different JVMs only
+	 * meet on the queue lock once per block. Every record of a block shares
+	 * the visibility timeout started by the claim, so records are only handed
+	 * out during the first half of it, and the rest of the block is reclaimed
+	 * by whoever pulls once it expires. FIFO queue always claims a single
+	 * record
+	 * 
+	 * @param leaseBlockSize
+	 *            the number of records per block, 1 to claim a single record
+	 *            per pull
+	 */
+	public void setLeaseBlockSize(int leaseBlockSize) {
+		this.leaseBlockSize = Math.max(leaseBlockSize, 1);
+	}
+
+	/**
+	 * Make the records of the lease block of a queue that have not been
+	 * handed out visible again right away, instead of waiting for the block
+	 * to expire. Meant to be called by a consumer that stops pulling
 	 * 
 	 * @param queue
 	 *            the queue name
-	 * @return true if directory is successfully created, false otherwise
+	 * @return true if released, false otherwise
 	 */
-	public boolean createQueue(String queue) {
-		if (!isQueueExist(queue)) {
-			if (new File(QUEUE_DIRECTORY + "/" + queue).mkdirs()) {
-				try {
-					if (createMessageFile(queue))
-						return true;
-					else {
-						removeQueue(queue);
-						return false;
-					}
-				} catch (IOException e) {
-					e.printStackTrace();
-					removeQueue(queue);
-					return false;
-				}
-			} else {
-				return false;
+	public boolean releaseLeaseBlock(String queue) {
+		LeaseBlock block = leaseBlocks.remove(queue);
+		if (block == null || block.messages.isEmpty())
+			return true;
+		File lock = getQueueLock(queue);
+		try {
+			lock(lock);
+			if (clock.millis() >= block.deadline)
+				return true;
+			Properties config = getQueueConfig(queue);
+			PayloadCodec codec = getPayloadCodec(config);
+			for (int lane = 0; lane < Message.PRIORITY_LANES; lane++) {
+				Set<String> released = new HashSet<String>();
+				for (Message message : block.messages)
+					if (getLane(config, message) == lane)
+						released.add(encodeContent(queue, lane, message, codec, false).getContent());
+				if (!released.isEmpty())
+					releaseRecords(queue, lane, released, block.deadline, 0);
 			}
-		} else {
+		} catch (InterruptedException e) {
+			e.printStackTrace();
+			return false;
+		} catch (IOException e) {
+			e.printStackTrace();
 			return false;
+		} finally {
+			unlock(lock);
 		}
+		return true;
 	}
 
 	/**
-	 * Remove a queue directory with specified name, DEFAULT queue cannot be
-	 * removed this way
+	 * Move the deadline of the records of a lane that are in flight and hold
+	 * one of the given stored contents, each content being matched once. Queue
+	 * lock must be held by the caller
 	 * 
-	 * @param queue
-	 *            the queue directory name
-	 * @return true if successfully removed, false otherwise
+	 * @param deadline
+	 *            the current deadline of the records, -1 for any record in
+	 *            flight
+	 * @param newDeadline
+	 *            the new deadline, 0 to make the records visible
+	 * @return the number of records changed
+	 * @throws IOException
 	 */
-	public boolean removeQueue(String queue) {
-		// Cannot remove DEFAULT queue
-		if (queue.equals(DEFAULT_QUEUE))
+	private int releaseRecords(String queue, int lane, Set<String> released, long deadline, long newDeadline)
+			throws IOException {
+		File messageFile = getMessageFile(queue, lane);
+		if (messageFile == null)
+			return 0;
+		File tempFile = createTemporaryMessageFile(queue, lane);
+		BufferedReader br = new BufferedReader(new FileReader(messageFile));
+		BufferedWriter bw = new BufferedWriter(new FileWriter(tempFile));
+		String line;
+		long now = clock.millis();
+		long[] stats = new long[STATS_PER_LANE];
+		QueueReplicator replica = replicator;
+		int changed = 0;
+		while ((line = br.readLine()) != null) {
+			Message curMessage = Message.createMessageFromRecord(line.trim(), lane, now);
+			boolean inFlight = curMessage.getInvisibleUntil() > now && curMessage.getReceiveCount() > 0;
+			if (inFlight && (deadline < 0 || curMessage.getInvisibleUntil() == deadline)
+					&& released.remove(curMessage.getContent())) {
+				countRecord(stats, newDeadline, true, curMessage.getEnqueueTime(), now);
+				bw.write(curMessage.createRecord(newDeadline) + System.getProperty("line.separator"));
+				if (replica != null)
+					replica.replaceLine(getPath(queue, messageFile), line, curMessage.createRecord(newDeadline));
+				changed++;
+				continue;
+			}
+			countRecord(stats, curMessage, now);
+			bw.write(line + System.getProperty("line.separator"));
+		}
+		bw.close();
+		br.close();
+		messageFile.delete();
+		tempFile.renameTo(messageFile);
+		writeStats(queue, lane, stats);
+		return changed;
+	}
+
+	/**
+	 * Change the visibility timeout of a received message, counted from now.
+	 * A timeout of zero makes the message visible again right away. Message
+	 * that is not in flight anymore is left as it is
+	 * 
+	 * @param queue
+	 *            the queue name
+	 * @param message
+	 *            the received message
+	 * @param visibilityTimeout
+	 *            the new visibility timeout in seconds
+	 * @return true if the message was in flight, false otherwise
+	 */
+	public boolean changeVisibility(String queue, Message message, int visibilityTimeout) {
+		File lock = getQueueLock(queue);
+		try {
+			lock(lock);
+			if (!isQueueExist(queue))
+				return false;
+			Properties config = getQueueConfig(queue);
+			int lane = getLane(config, message);
+			Set<String> changed = new HashSet<String>();
+			changed.add(encodeContent(queue, lane, message, getPayloadCodec(config), false).getContent());
+			long deadline = (visibilityTimeout > 0) ? clock.millis() + visibilityTimeout * 1000L : 0;
+			return releaseRecords(queue, lane, changed, -1, deadline) > 0;
+		} catch (InterruptedException e) {
+			e.printStackTrace();
+			return false;
+		} catch (IOException e) {
+			e.printStackTrace();
+			return false;
+		} finally {
+			unlock(lock);
+		}
+	}
+
+	/**
+	 * Get the attributes of a queue from the counters in its stats file, so
+	 * any JVM can read them without touching the lane files. Push updates the
+	 * counters of its lane, while pull and delete recount the lane they
+	 * rewrite. Messages counted in flight or delayed are reported visible
+	 * once the latest deadline of their lane has passed, so the counts stay
+	 * approximate between two rewrites of a lane
+	 */
+	@Override
+	public QueueAttributes getQueueAttributes(String queue) {
+		if (!isQueueExist(queue))
+			return null;
+		long[][] stats;
+		try {
+			stats = readStats(queue);
+		} catch (IOException e) {
+			e.printStackTrace();
+			return null;
+		}
+		long now = clock.millis();
+		long visible = 0;
+		long inFlight = 0;
+		long delayed = 0;
+		long oldest = 0;
+		boolean unknownAge = false;
+		for (long[] lane : stats) {
+			long laneInFlight = (lane[STAT_LEASE_DEADLINE] > now) ? lane[STAT_IN_FLIGHT] : 0;
+			long laneDelayed = (lane[STAT_DELAY_DEADLINE] > now) ? lane[STAT_DELAYED] : 0;
+			visible += lane[STAT_MESSAGES] - laneInFlight - laneDelayed;
+			inFlight += laneInFlight;
+			delayed += laneDelayed;
+			if (lane[STAT_MESSAGES] > 0 && lane[STAT_OLDEST_ENQUEUE_TIME] == 0)
+				unknownAge = true;
+			else if (lane[STAT_MESSAGES] > 0 && (oldest == 0 || lane[STAT_OLDEST_ENQUEUE_TIME] < oldest))
+				oldest = lane[STAT_OLDEST_ENQUEUE_TIME];
+		}
+		long age = (oldest != 0) ? now - oldest : (unknownAge ? QueueAttributes.UNKNOWN_AGE : 0);
+		return new QueueAttributes(visible, inFlight, delayed, age);
+	}
+
+	/**
+	 * Attributes of default queue
+	 * 
+	 * @return the attributes
+	 */
+	public QueueAttributes getQueueAttributes() {
+		return getQueueAttributes(DEFAULT_QUEUE);
+	}
+
+	/**
+	 * Add a record read from a lane file to the counters of the lane
+	 */
+	private static void countRecord(long[] stats, Message record, long now) {
+		countRecord(stats, record.getInvisibleUntil(), record.getReceiveCount() > 0, record.getEnqueueTime(), now);
+	}
+
+	/**
+	 * Add a record to the counters of its lane. Invisible record that has
+	 * been received is in flight, otherwise it is waiting for its delay
+	 * 
+	 * @param stats
+	 *            the lane counters
+	 * @param invisibleUntil
+	 *            the time until which the record is invisible
+	 * @param received
+	 *            true if the record has been pulled before
+	 * @param enqueueTime
+	 *            the push time of the record, 0 if unknown
+	 * @param now
+	 *            the current time in milliseconds
+	 */
+	private static void countRecord(long[] stats, long invisibleUntil, boolean received, long enqueueTime,
+			long now) {
+		stats[STAT_MESSAGES]++;
+		if (invisibleUntil > now && received) {
+			stats[STAT_IN_FLIGHT]++;
+			stats[STAT_LEASE_DEADLINE] = Math.max(stats[STAT_LEASE_DEADLINE], invisibleUntil);
+		} else if (invisibleUntil > now) {
+			stats[STAT_DELAYED]++;
+			stats[STAT_DELAY_DEADLINE] = Math.max(stats[STAT_DELAY_DEADLINE], invisibleUntil);
+		}
+		long oldest = stats[STAT_OLDEST_ENQUEUE_TIME];
+		if (enqueueTime != 0 && (oldest == 0 || enqueueTime < oldest))
+			stats[STAT_OLDEST_ENQUEUE_TIME] = enqueueTime;
+	}
+
+	/**
+	 * Read the counters of every lane of a queue
+	 * 
+	 * @param queue
+	 *            the queue name
+	 * @return the counters indexed by lane, zero for a queue without stats
+	 *         file
+	 * @throws IOException
+	 */
+	private long[][] readStats(String queue) throws IOException {
+		long[][] stats = new long[Message.PRIORITY_LANES][STATS_PER_LANE];
+		ByteBuffer counters = ByteBuffer.allocate(Message.PRIORITY_LANES * STATS_PER_LANE * 8);
+		if (!handles.read(new File(directory + "/" + queue + "/" + STATS_FILE), counters, 0))
+			return stats;
+		counters.flip();
+		for (int lane = 0; lane < stats.length && counters.remaining() >= STATS_PER_LANE * 8; lane++)
+			for (int i = 0; i < STATS_PER_LANE; i++)
+				stats[lane][i] = counters.getLong();
+		return stats;
+	}
+
+	/**
+	 * Overwrite the counters of a single lane. Queue lock must be held by the
+	 * caller
+	 * 
+	 * @throws IOException
+	 */
+	private void writeStats(String queue, int lane, long[] stats) throws IOException {
+		ByteBuffer counters = ByteBuffer.allocate(STATS_PER_LANE * 8);
+		for (long counter : stats)
+			counters.putLong(counter);
+		handles.write(new File(directory + "/" + queue + "/" + STATS_FILE), counters.array(),
+				(long) lane * STATS_PER_LANE * 8);
+		QueueReplicator replica = replicator;
+		if (replica != null)
+			replica.writeAt(queue + "/" + STATS_FILE, (long) lane * STATS_PER_LANE * 8, counters.array());
+	}
+
+	// --------------------------------------------------------------------------------------
+	// Queue related method
+
+	/**
+	 * Create a queue directory with specified name if any part of this function
+	 * fail, previously created file/directory will be deleted
+	 * 
+	 * @param queue
+	 *            the queue name
+	 * @return true if directory is successfully created, false otherwise
+	 */
+	public boolean createQueue(String queue) {
+		if (!isQueueExist(queue)) {
+			if (new File(directory + "/" + queue).mkdirs()) {
+				QueueReplicator replica = replicator;
+				if (replica != null)
+					replica.createDirectory(queue);
+				try {
+					if (createMessageFile(queue))
+						return true;
+					else {
+						removeQueue(queue);
+						return false;
+					}
+				} catch (IOException e) {
+					e.printStackTrace();
+					removeQueue(queue);
+					return false;
+				}
+			} else {
+				return false;
+			}
+		} else {
+			return false;
+		}
+	}
+
+	/**
+	 * Create a FIFO queue directory with specified name. Messages of the same
+	 * message group are delivered strictly in push order with at most one of
+	 * them in flight, while different groups can be pulled in parallel
+	 * 
+	 * @param queue
+	 *            the queue name
+	 * @return true if directory is successfully created, false otherwise
+	 */
+	public boolean createFifoQueue(String queue) {
+		if (!createQueue(queue))
+			return false;
+		if (!setQueueConfig(queue, FIFO_QUEUE, Boolean.TRUE.toString())) {
+			removeQueue(queue);
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Remove a queue directory with specified name, DEFAULT queue cannot be
+	 * removed this way
+	 * 
+	 * @param queue
+	 *            the queue directory name
+	 * @return true if successfully removed, false otherwise
+	 */
+	public boolean removeQueue(String queue) {
+		// Cannot remove DEFAULT queue, nor a topic this way
+		if (queue.equals(DEFAULT_QUEUE) || isTopicExist(queue))
 			return false;
 
 		// Target must exist and cannot be non-directory
@@ -242,9 +1260,11 @@ public class FileQueueService implements QueueService {
 			File lock = getQueueLock(queue);
 			try {
 				lock(lock);
+				Map<String, Integer> releasedPayloads = getSharedPayloads(queue);
 				// Delete all the files in the directory then the directory
 				// itself
 				File f = getQueue(queue);
+				handles.invalidate(f);
 				if (f.isDirectory()) {
 					for (File c : f.listFiles())
 						if (!c.delete())
@@ -253,8 +1273,17 @@ public class FileQueueService implements QueueService {
 				if (!f.delete()) {
 					return false;
 				}
+				QueueReplicator replica = replicator;
+				if (replica != null)
+					replica.delete(queue);
+				schedulers.remove(queue);
+				deduplications.remove(queue);
+				leaseBlocks.remove(queue);
+				releaseSharedPayloads(releasedPayloads);
 			} catch (InterruptedException e) {
 				e.printStackTrace();
+			} catch (IOException e) {
+				e.printStackTrace();
 			} finally {
 				unlock(lock);
 			}
@@ -272,8 +1301,7 @@ public class FileQueueService implements QueueService {
 	 * @return true if exist and is directory false otherwise
 	 */
 	public boolean isQueueExist(String queue) {
-		File file = new File(QUEUE_DIRECTORY + "/" + queue);
-		return (file.exists() && file.isDirectory());
+		return new File(directory + "/" + queue).isDirectory();
 	}
 
 	/**
@@ -284,8 +1312,8 @@ public class FileQueueService implements QueueService {
 	 * @return the directory file if it exist, null otherwise
 	 */
 	private File getQueue(String queue) {
-		File file = new File(QUEUE_DIRECTORY + "/" + queue);
-		if (file.exists() && file.isDirectory()) {
+		File file = new File(directory + "/" + queue);
+		if (file.isDirectory()) {
 			return file;
 		} else {
 			return null;
@@ -301,26 +1329,39 @@ public class FileQueueService implements QueueService {
 		return DEFAULT_QUEUE;
 	}
 
+	/**
+	 * Create the message file of every priority lane of a queue
+	 * 
+	 * @param queue
+	 *            the queue name
+	 * @return true if all lane files are created, false otherwise
+	 * @throws IOException
+	 */
 	private boolean createMessageFile(String queue) throws IOException {
-		File file = new File(QUEUE_DIRECTORY + "/" + queue + "/" + MESSAGE_FILE);
-		if (!file.exists() || file.isDirectory()) {
-			return file.createNewFile();
-		} else {
-			return false;
+		for (int lane = 0; lane < Message.PRIORITY_LANES; lane++) {
+			File file = new File(directory + "/" + queue + "/" + MESSAGE_FILE + "_" + lane);
+			if (file.exists() || !file.createNewFile())
+				return false;
+			QueueReplicator replica = replicator;
+			if (replica != null)
+				replica.writeFile(getPath(queue, file), new byte[0]);
 		}
+		return true;
 	}
 
 	/**
-	 * Get the message file from a queue directory File should be exist by
-	 * default the directory is created
+	 * Get the message file of a priority lane from a queue directory File
+	 * should be exist by default the directory is created
 	 * 
 	 * @param queue
 	 *            the name of the queue directory
+	 * @param lane
+	 *            the priority lane
 	 * @return the message file if exist, null otherwise
 	 */
-	private File getMessageFile(String queue) {
-		File file = new File(QUEUE_DIRECTORY + "/" + queue + "/" + MESSAGE_FILE);
-		if (file.exists() && file.isFile()) {
+	private File getMessageFile(String queue, int lane) {
+		File file = new File(directory + "/" + queue + "/" + MESSAGE_FILE + "_" + lane);
+		if (file.isFile()) {
 			return file;
 		} else {
 			return null;
@@ -328,55 +1369,1350 @@ public class FileQueueService implements QueueService {
 	}
 
 	/**
-	 * Creating temporary message file to replace original one in pull() and
-	 * delete()
+	 * Creating temporary message file to replace original lane file in pull()
+	 * and delete()
 	 * 
 	 * @param queue
 	 *            the queue name
+	 * @param lane
+	 *            the priority lane
 	 * @return the temporary message file
 	 * @throws IOException
 	 */
-	private File createTemporaryMessageFile(String queue) throws IOException {
-		File file = new File(QUEUE_DIRECTORY + "/" + queue + "/" + MESSAGE_FILE + "_temp");
+	private File createTemporaryMessageFile(String queue, int lane) throws IOException {
+		File file = new File(directory + "/" + queue + "/" + MESSAGE_FILE + "_" + lane + "_temp");
 		file.createNewFile();
 		return file;
 	}
 
-	// --------------------------------------------------------------------------------------
-	// Lock related method
+	/**
+	 * Get the lane scheduler of a queue, creating it on first use
+	 * 
+	 * @param queue
+	 *            the queue name
+	 * @return the lane scheduler
+	 */
+	private LaneScheduler getScheduler(String queue) {
+		LaneScheduler scheduler = schedulers.get(queue);
+		if (scheduler == null) {
+			schedulers.putIfAbsent(queue, new LaneScheduler());
+			scheduler = schedulers.get(queue);
+		}
+		return scheduler;
+	}
 
 	/**
-	 * Get the lock of a queue directory
+	 * Set the delivery delay of a queue, applied to every pushed message that
+	 * does not have its own delay. Saved in the queue config file so every JVM
+	 * using the queue applies the same delay
 	 * 
 	 * @param queue
-	 *            the queue directory name
-	 * @return the lock file
+	 *            the queue name
+	 * @param delaySeconds
+	 *            the delay in seconds
+	 * @return true if the delay is saved, false otherwise
 	 */
-	private File getQueueLock(String queue) {
-		File lock = new File(QUEUE_DIRECTORY + "/" + queue + "/" + LOCK_FILE);
-		return lock;
+	public boolean setQueueDelay(String queue, int delaySeconds) {
+		return setQueueConfig(queue, DELAY_SECONDS, Integer.toString(Math.max(delaySeconds, 0)));
 	}
 
 	/**
-	 * Lock a queue directory
+	 * Get the delivery delay of a queue
 	 * 
-	 * @param lock
-	 *            the lock file
+	 * @param queue
+	 *            the queue name
+	 * @return the delay in seconds, 0 if not set
+	 */
+	public int getQueueDelay(String queue) {
+		return getQueueDelay(getQueueConfig(queue));
+	}
+
+	private int getQueueDelay(Properties config) {
+		try {
+			return Integer.parseInt(config.getProperty(DELAY_SECONDS, "0"));
+		} catch (NumberFormatException e) {
+			e.printStackTrace();
+			return 0;
+		}
+	}
+
+	/**
+	 * Enable the deduplication window of a queue, dropping any push whose
+	 * deduplication id, or content if content based, was already pushed
+	 * within the window by any JVM using the queue. Saved in the queue config
+	 * file
+	 * 
+	 * @param queue
+	 *            the queue name
+	 * @param windowSeconds
+	 *            the window in seconds, 0 to disable deduplication
+	 * @param contentBased
+	 *            true to identify message without deduplication id by its
+	 *            content
+	 * @return true if saved, false otherwise
+	 */
+	public boolean setDeduplicationWindow(String queue, int windowSeconds, boolean contentBased) {
+		return setQueueConfig(queue, CONTENT_BASED_DEDUPLICATION, Boolean.toString(contentBased))
+				&& setQueueConfig(queue, DEDUPLICATION_WINDOW, Integer.toString(Math.max(windowSeconds, 0)));
+	}
+
+	/**
+	 * Get the local deduplication state of a queue, replacing it when the
+	 * window in the config file has changed. Queue lock must be held by the
+	 * caller
+	 * 
+	 * @return the state, null if the queue has no deduplication window
+	 */
+	private DeduplicationState getDeduplicationState(String queue, Properties config) {
+		long windowMillis;
+		try {
+			windowMillis = Integer.parseInt(config.getProperty(DEDUPLICATION_WINDOW, "0")) * 1000L;
+		} catch (NumberFormatException e) {
+			e.printStackTrace();
+			windowMillis = 0;
+		}
+		if (windowMillis <= 0) {
+			deduplications.remove(queue);
+			return null;
+		}
+		boolean contentBased = Boolean.parseBoolean(config.getProperty(CONTENT_BASED_DEDUPLICATION));
+		DeduplicationState state = deduplications.get(queue);
+		if (state == null || state.window.getWindowMillis() != windowMillis
+				|| state.window.isContentBased() != contentBased) {
+			state = new DeduplicationState(new DeduplicationWindow(windowMillis, contentBased));
+			deduplications.put(queue, state);
+		}
+		return state;
+	}
+
+	/**
+	 * Replay the fingerprints appended to the live bucket files since the last
+	 * call, by this or any other JVM. Only the buckets that may have grown are
+	 * read, and only from where the previous read stopped. Bucket files that
+	 * have fallen out of the window are deleted once the current bucket moves.
+	 * Queue lock must be held by the caller
+	 * 
+	 * @throws IOException
+	 */
+	private void syncDeduplication(String queue, DeduplicationState state, long now) throws IOException {
+		DeduplicationWindow window = state.window;
+		long current = window.getBucket(now);
+		long oldest = window.getOldestBucket(now);
+		for (long bucket = Math.max(state.syncedBucket, oldest); bucket <= current; bucket++) {
+			File bucketFile = new File(directory + "/" + queue + "/" + DEDUPLICATION_FILE + bucket);
+			if (!bucketFile.isFile())
+				continue;
+			Long offset = state.offsets.get(bucket);
+			long start = (offset != null) ? offset : 0;
+			// Only whole fingerprints, a partially written one is read later
+			int length = (int) ((bucketFile.length() - start) & ~7L);
+			if (length <= 0)
+				continue;
+			byte[] buffer = new byte[length];
+			RandomAccessFile raf = new RandomAccessFile(bucketFile, "r");
+			raf.seek(start);
+			raf.readFully(buffer);
+			raf.close();
+			ByteBuffer fingerprints = ByteBuffer.wrap(buffer);
+			while (fingerprints.hasRemaining())
+				window.record(fingerprints.getLong(), bucket);
+			state.offsets.put(bucket, start + length);
+		}
+		if (state.syncedBucket < current) {
+			state.offsets.keySet().removeIf(bucket -> bucket < oldest);
+			File[] files = getQueue(queue).listFiles();
+			for (File file : (files != null) ? files : new File[0]) {
+				if (!file.getName().startsWith(DEDUPLICATION_FILE))
+					continue;
+				try {
+					if (Long.parseLong(file.getName().substring(DEDUPLICATION_FILE.length())) < oldest) {
+						file.delete();
+						QueueReplicator replica = replicator;
+						if (replica != null)
+							replica.delete(getPath(queue, file));
+					}
+				} catch (NumberFormatException e) {
+					e.printStackTrace();
+				}
+			}
+		}
+		state.syncedBucket = current;
+	}
+
+	/**
+	 * Append a fingerprint to the current bucket file and to the local window.
+	 * Queue lock must be held by the caller, right after syncDeduplication()
+	 * 
+	 * @throws IOException
+	 */
+	private void recordFingerprint(String queue, DeduplicationState state, long fingerprint, long now)
+			throws IOException {
+		long bucket = state.window.getBucket(now);
+		File bucketFile = new File(directory + "/" + queue + "/" + DEDUPLICATION_FILE + bucket);
+		DataOutputStream out = new DataOutputStream(new FileOutputStream(bucketFile, true));
+		out.writeLong(fingerprint);
+		out.close();
+		QueueReplicator replica = replicator;
+		if (replica != null)
+			replica.writeAt(getPath(queue, bucketFile), -1, ByteBuffer.allocate(8).putLong(fingerprint).array());
+		Long offset = state.offsets.get(bucket);
+		state.offsets.put(bucket, ((offset != null) ? offset : 0) + 8);
+		state.window.record(fingerprint, bucket);
+	}
+
+	/**
+	 * Set the payload thresholds of a queue, saved in the queue config file.
+	 * Content larger than the compression threshold is deflated, content
+	 * larger than the offload threshold is written to its own blob file and
+	 * the record only keeps a reference, so scanning the lane file stays cheap
+	 * regardless of the payload size
+	 * 
+	 * @param queue
+	 *            the queue name
+	 * @param compressionThreshold
+	 *            size in UTF-8 bytes, 0 to never compress
+	 * @param offloadThreshold
+	 *            size in UTF-8 bytes, 0 to never offload
+	 * @return true if saved, false otherwise
+	 */
+	public boolean setPayloadThresholds(String queue, int compressionThreshold, int offloadThreshold) {
+		return setQueueConfig(queue, COMPRESSION_THRESHOLD, Integer.toString(Math.max(compressionThreshold, 0)))
+				&& setQueueConfig(queue, OFFLOAD_THRESHOLD, Integer.toString(Math.max(offloadThreshold, 0)));
+	}
+
+	private PayloadCodec getPayloadCodec(Properties config) {
+		try {
+			return new PayloadCodec(Integer.parseInt(config.getProperty(COMPRESSION_THRESHOLD, "0")),
+					Integer.parseInt(config.getProperty(OFFLOAD_THRESHOLD, "0")));
+		} catch (NumberFormatException e) {
+			e.printStackTrace();
+			return new PayloadCodec(0, 0);
+		}
+	}
+
+	/**
+	 * Convert a message into the form its content is stored in a record
+	 * 
+	 * @param queue
+	 *            the queue name
+	 * @param lane
+	 *            the lane the record belongs to
+	 * @param message
+	 *            the message
+	 * @param codec
+	 *            the payload codec of the queue
+	 * @param writeBlob
+	 *            true to write the blob file of offloaded content, or take a
+	 *            reference on the topic payload it shares, false to only
+	 *            compute the reference
+	 * @return the message holding the stored content
+	 * @throws IOException
 	 * @throws InterruptedException
 	 */
-	private void lock(File lock) throws InterruptedException {
-		while (!lock.mkdir()) {
-			Thread.sleep(50);
+	private Message encodeContent(String queue, int lane, Message message, PayloadCodec codec, boolean writeBlob)
+			throws IOException, InterruptedException {
+		return encodeContent(queue, lane, message, codec, writeBlob, null);
+	}
+
+	/**
+	 * Convert a message into the form its content is stored in a record,
+	 * collecting the references of the blob files written on the way
+	 * 
+	 * @param writtenBlobs
+	 *            the references of the blob files written, null if not needed
+	 * @throws IOException
+	 * @throws InterruptedException
+	 */
+	private Message encodeContent(String queue, int lane, Message message, PayloadCodec codec, boolean writeBlob,
+			Set<String> writtenBlobs) throws IOException, InterruptedException {
+		String sharedReference = message.getSharedReference();
+		if (sharedReference != null) {
+			if (writeBlob)
+				acquireSharedPayload(sharedReference, message.getPayload());
+			return message.copyWithContent(sharedReference,
+					message.isBinary() ? PayloadCodec.BINARY + PayloadCodec.SHARED : PayloadCodec.SHARED);
 		}
+		if (codec.isIdentity() && !message.isBinary())
+			return message;
+		ByteBuffer payload = message.getPayload();
+		String encoding = codec.getEncoding(payload.remaining(), message.isBinary());
+		if (encoding == null)
+			return message;
+		if (!PayloadCodec.isBlob(encoding))
+			return message.copyWithContent(PayloadCodec.toText(PayloadCodec.toArray(payload), encoding), encoding);
+		String reference = PayloadCodec.getBlobReference(payload, encoding);
+		File blobFile = getBlobFile(queue, lane, reference);
+		// Same content in the same lane and format shares its blob
+		if (writeBlob && !blobFile.isFile()) {
+			File tempFile = new File(blobFile.getPath() + "_temp");
+			FileOutputStream out = new FileOutputStream(tempFile);
+			byte[] deflated = PayloadCodec.isDeflated(encoding) ? PayloadCodec.compress(PayloadCodec.toArray(payload))
+					: null;
+			if (deflated != null)
+				out.write(deflated);
+			else
+				out.getChannel().write(payload.duplicate());
+			out.close();
+			tempFile.renameTo(blobFile);
+			QueueReplicator replica = replicator;
+			if (replica != null)
+				replica.writeFile(getPath(queue, blobFile),
+						(deflated != null) ? deflated : PayloadCodec.toArray(payload));
+			if (writtenBlobs != null)
+				writtenBlobs.add(reference);
+		}
+		return message.copyWithContent(reference, encoding);
 	}
 
 	/**
-	 * Unlock a queue directory
+	 * Restore the original content of a message read from a record. Blob that
+	 * is not deflated is memory mapped, so its bytes are handed out straight
+	 * from the file without being copied, and only decoded to string if the
+	 * receiver asks for it. Topic payload is mapped the same way, and the
+	 * message keeps pointing to it
 	 * 
-	 * @param lock
-	 *            the lock file
+	 * @param queue
+	 *            the queue name
+	 * @param lane
+	 *            the lane the record was read from
+	 * @param stored
+	 *            the message holding the stored content
+	 * @return the message holding the original content
+	 * @throws IOException
 	 */
-	private void unlock(File lock) {
-		lock.delete();
+	private Message decodeContent(String queue, int lane, Message stored) throws IOException {
+		String encoding = stored.getEncoding();
+		if (encoding == null)
+			return stored;
+		boolean binary = PayloadCodec.isBinary(encoding);
+		if (PayloadCodec.isShared(encoding)) {
+			Message shared = stored.copyWithPayload(map(getSharedPayloadFile(stored.getContent())), binary);
+			shared.setSharedReference(stored.getContent());
+			return shared;
+		}
+		if (!PayloadCodec.isBlob(encoding))
+			return stored.copyWithPayload(ByteBuffer.wrap(PayloadCodec.fromText(stored.getContent(), encoding)),
+					binary);
+		File blobFile = getBlobFile(queue, lane, stored.getContent());
+		if (PayloadCodec.isDeflated(encoding)) {
+			byte[] content = PayloadCodec.decompress(Files.readAllBytes(blobFile.toPath()));
+			return stored.copyWithPayload(ByteBuffer.wrap(content), binary);
+		}
+		return stored.copyWithPayload(map(blobFile), binary);
+	}
+
+	private static ByteBuffer map(File file) throws IOException {
+		// Mapping stays valid after the channel is closed or the file deleted
+		FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+		try {
+			return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+		} finally {
+			channel.close();
+		}
+	}
+
+	private File getBlobFile(String queue, int lane, String reference) {
+		return new File(directory + "/" + queue + "/" + BLOB_FILE + lane + "_" + reference);
+	}
+
+	/**
+	 * Check if a queue is a FIFO queue
+	 * 
+	 * @param queue
+	 *            the queue name
+	 * @return true if FIFO queue, false otherwise
+	 */
+	public boolean isFifoQueue(String queue) {
+		return isFifoQueue(getQueueConfig(queue));
+	}
+
+	private boolean isFifoQueue(Properties config) {
+		return Boolean.parseBoolean(config.getProperty(FIFO_QUEUE));
+	}
+
+	/**
+	 * Get the lane file a message belongs to, FIFO queue keeps every message in
+	 * a single lane to preserve the push order
+	 */
+	private int getLane(Properties config, Message message) {
+		return isFifoQueue(config) ? Message.NORMAL_PRIORITY : message.getPriority();
+	}
+
+	/**
+	 * Read the config file of a queue, only parsed again once another call or
+	 * process has replaced it
+	 * 
+	 * @param queue
+	 *            the queue name
+	 * @return the queue settings shared by every caller, empty if the queue
+	 *         has no config file
+	 */
+	private Properties getQueueConfig(String queue) {
+		try {
+			Properties config = handles.getProperties(new File(directory + "/" + queue + "/" + CONFIG_FILE));
+			if (config != null)
+				return config;
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+		return new Properties();
+	}
+
+	/**
+	 * Update a single setting in the config file of a queue. The file is
+	 * written to a temporary file first and renamed over the old one, so
+	 * readers never see a partially written config
+	 * 
+	 * @param queue
+	 *            the queue name
+	 * @param key
+	 *            the setting name
+	 * @param value
+	 *            the setting value
+	 * @return true if saved, false otherwise
+	 */
+	private boolean setQueueConfig(String queue, String key, String value) {
+		if (!isQueueExist(queue))
+			return false;
+		File lock = getQueueLock(queue);
+		try {
+			lock(lock);
+			Properties config = new Properties();
+			config.putAll(getQueueConfig(queue));
+			config.setProperty(key, value);
+			File tempFile = new File(directory + "/" + queue + "/" + CONFIG_FILE + "_temp");
+			FileWriter writer = new FileWriter(tempFile);
+			config.store(writer, null);
+			writer.close();
+			File configFile = new File(directory + "/" + queue + "/" + CONFIG_FILE);
+			tempFile.renameTo(configFile);
+			QueueReplicator replica = replicator;
+			if (replica != null)
+				replica.writeFile(getPath(queue, configFile), Files.readAllBytes(configFile.toPath()));
+		} catch (InterruptedException e) {
+			e.printStackTrace();
+			return false;
+		} catch (IOException e) {
+			e.printStackTrace();
+			return false;
+		} finally {
+			unlock(lock);
+		}
+		return true;
+	}
+
+	// --------------------------------------------------------------------------------------
+	// Topic related method
+
+	/**
+	 * Create a topic directory with specified name. A topic holds no message
+	 * of its own, it keeps its subscriber queues and the payload files shared
+	 * by the messages published to them
+	 * 
+	 * @param topic
+	 *            the topic name
+	 * @return true if created, false if the name is taken by a queue or topic
+	 */
+	public boolean createTopic(String topic) {
+		if (isTopicExist(topic) || getMessageFile(topic, 0) != null)
+			return false;
+		File topicDirectory = new File(directory + "/" + topic);
+		QueueReplicator replica = replicator;
+		if (!topicDirectory.isDirectory()) {
+			if (!topicDirectory.mkdirs())
+				return false;
+			if (replica != null)
+				replica.createDirectory(topic);
+		}
+		return updateSubscription(topic, null, null, true);
+	}
+
+	/**
+	 * Remove a topic and its subscriptions. Payload files still pointed to by
+	 * messages of the subscriber queues stay until the last of those messages
+	 * is deleted, the topic directory itself goes with them
+	 * 
+	 * @param topic
+	 *            the topic name
+	 * @return true if removed, false if the topic does not exist
+	 */
+	public boolean removeTopic(String topic) {
+		if (!isTopicExist(topic))
+			return false;
+		File lock = getQueueLock(topic);
+		try {
+			lock(lock);
+			File subscriptionFile = new File(directory + "/" + topic + "/" + SUBSCRIPTION_FILE);
+			if (!subscriptionFile.delete())
+				return false;
+			QueueReplicator replica = replicator;
+			if (replica != null)
+				replica.delete(getPath(topic, subscriptionFile));
+			removeUnusedTopic(topic);
+		} catch (InterruptedException e) {
+			e.printStackTrace();
+			return false;
+		} finally {
+			unlock(lock);
+		}
+		return true;
+	}
+
+	/**
+	 * Check if a topic with given name exists
+	 * 
+	 * @param topic
+	 *            the topic name
+	 * @return true if the topic exists, false otherwise
+	 */
+	public boolean isTopicExist(String topic) {
+		return new File(directory + "/" + topic + "/" + SUBSCRIPTION_FILE).isFile();
+	}
+
+	/**
+	 * Subscribe a queue to a topic, replacing its filter if it is already
+	 * subscribed. Saved in the subscription file of the topic, so every JVM
+	 * publishing to the topic delivers to the queue
+	 * 
+	 * @param topic
+	 *            the topic name
+	 * @param queue
+	 *            the subscriber queue name
+	 * @param filter
+	 *            the filter of the published messages, null to receive every
+	 *            message
+	 * @return true if subscribed, false if the topic or queue does not exist
+	 */
+	public boolean subscribe(String topic, String queue, MessageFilter filter) {
+		if (!isQueueExist(queue) || !isTopicExist(topic))
+			return false;
+		return updateSubscription(topic, queue, (filter != null) ? filter.toString() : "", false);
+	}
+
+	/**
+	 * Unsubscribe a queue from a topic. Messages already published to the
+	 * queue stay in it
+	 * 
+	 * @param topic
+	 *            the topic name
+	 * @param queue
+	 *            the subscriber queue name
+	 * @return true if the queue was subscribed, false otherwise
+	 */
+	public boolean unsubscribe(String topic, String queue) {
+		if (!isTopicExist(topic))
+			return false;
+		return updateSubscription(topic, queue, null, false);
+	}
+
+	/**
+	 * Get the subscriber queues of a topic
+	 * 
+	 * @param topic
+	 *            the topic name
+	 * @return the filter of each subscriber queue, null if the topic does not
+	 *         exist
+	 */
+	public Map<String, MessageFilter> getSubscriptions(String topic) {
+		Properties subscriptions;
+		try {
+			subscriptions = handles.getProperties(new File(directory + "/" + topic + "/" + SUBSCRIPTION_FILE));
+		} catch (IOException e) {
+			e.printStackTrace();
+			return null;
+		}
+		if (subscriptions == null)
+			return null;
+		Map<String, MessageFilter> filters = new TreeMap<String, MessageFilter>();
+		for (String queue : subscriptions.stringPropertyNames())
+			filters.put(queue, MessageFilter.parse(subscriptions.getProperty(queue)));
+		return filters;
+	}
+
+	/**
+	 * Publish a message to every subscriber queue of a topic whose filter
+	 * accepts it. Content larger than a reference is written once to a
+	 * payload file of the topic, and each subscriber queue only gets a record
+	 * pointing to it, so a publish costs one small record per subscriber
+	 * rather than a copy of the payload. The payload file counts the records
+	 * pointing to it and is deleted along with the last one. Every push
+	 * follows the settings of its queue, delay and deduplication included
+	 * 
+	 * @param topic
+	 *            the topic name
+	 * @param message
+	 *            the message
+	 * @return the number of subscriber queues the message was pushed to, -1
+	 *         if the topic does not exist
+	 */
+	public int publish(String topic, Message message) {
+		Map<String, MessageFilter> subscriptions = getSubscriptions(topic);
+		if (subscriptions == null)
+			return -1;
+		ByteBuffer payload = message.getPayload();
+		Message shared = message.copyShared((payload.remaining() > SHARED_PAYLOAD_THRESHOLD)
+				? topic + "/" + PayloadCodec.getBlobReference(payload) : null);
+		int published = 0;
+		for (Map.Entry<String, MessageFilter> subscription : subscriptions.entrySet())
+			if (subscription.getValue().test(message) && push(subscription.getKey(), shared))
+				published++;
+		return published;
+	}
+
+	/**
+	 * Add or remove a subscription in the subscription file of a topic. The
+	 * file is written to a temporary file first and renamed over the old one,
+	 * like the queue config file
+	 * 
+	 * @param queue
+	 *            the subscriber queue, null to only write the file
+	 * @param filter
+	 *            the filter text, null to remove the subscription
+	 * @param create
+	 *            true to start from an empty subscription file
+	 * @return true if saved, false if there was nothing to remove or saving
+	 *         failed
+	 */
+	private boolean updateSubscription(String topic, String queue, String filter, boolean create) {
+		File lock = getQueueLock(topic);
+		try {
+			lock(lock);
+			File subscriptionFile = new File(directory + "/" + topic + "/" + SUBSCRIPTION_FILE);
+			Properties subscriptions = new Properties();
+			if (!create) {
+				Properties current = handles.getProperties(subscriptionFile);
+				if (current == null)
+					return false;
+				subscriptions.putAll(current);
+			}
+			if (queue != null && filter != null)
+				subscriptions.setProperty(queue, filter);
+			else if (queue != null && subscriptions.remove(queue) == null)
+				return false;
+			File tempFile = new File(directory + "/" + topic + "/" + SUBSCRIPTION_FILE + "_temp");
+			FileWriter writer = new FileWriter(tempFile);
+			subscriptions.store(writer, null);
+			writer.close();
+			tempFile.renameTo(subscriptionFile);
+			QueueReplicator replica = replicator;
+			if (replica != null)
+				replica.writeFile(getPath(topic, subscriptionFile), Files.readAllBytes(subscriptionFile.toPath()));
+		} catch (InterruptedException e) {
+			e.printStackTrace();
+			return false;
+		} catch (IOException e) {
+			e.printStackTrace();
+			return false;
+		} finally {
+			unlock(lock);
+		}
+		return true;
+	}
+
+	/**
+	 * Take a reference on the payload file a message shares, writing the file
+	 * again if the topic has dropped it meanwhile, as happens when a pulled
+	 * message is pushed to another queue after the last of its copies was
+	 * deleted. Called under the lock of the queue the record is written to,
+	 * the topic lock is always taken after the queue lock
+	 * 
+	 * @param reference
+	 *            the topic and payload reference
+	 * @param payload
+	 *            the content bytes
+	 * @throws IOException
+	 * @throws InterruptedException
+	 */
+	private void acquireSharedPayload(String reference, ByteBuffer payload) throws IOException, InterruptedException {
+		String topic = getTopic(reference);
+		File topicDirectory = new File(directory + "/" + topic);
+		QueueReplicator replica = replicator;
+		if (!topicDirectory.isDirectory() && topicDirectory.mkdirs() && replica != null)
+			replica.createDirectory(topic);
+		File lock = getQueueLock(topic);
+		lock(lock);
+		try {
+			File payloadFile = getSharedPayloadFile(reference);
+			if (!payloadFile.isFile()) {
+				File tempFile = new File(payloadFile.getPath() + "_temp");
+				FileOutputStream out = new FileOutputStream(tempFile);
+				out.getChannel().write(payload.duplicate());
+				out.close();
+				tempFile.renameTo(payloadFile);
+				if (replica != null)
+					replica.writeFile(getPath(topic, payloadFile), PayloadCodec.toArray(payload));
+			}
+			writeReferenceCount(reference, readReferenceCount(reference) + 1);
+		} finally {
+			unlock(lock);
+		}
+	}
+
+	/**
+	 * Drop references on topic payload files, deleting the files nothing
+	 * points to anymore
+	 * 
+	 * @param references
+	 *            the number of records removed for each topic and payload
+	 *            reference
+	 * @throws IOException
+	 * @throws InterruptedException
+	 */
+	private void releaseSharedPayloads(Map<String, Integer> references) throws IOException, InterruptedException {
+		QueueReplicator replica = replicator;
+		for (Map.Entry<String, Integer> reference : references.entrySet()) {
+			String topic = getTopic(reference.getKey());
+			if (!new File(directory + "/" + topic).isDirectory())
+				continue;
+			File lock = getQueueLock(topic);
+			lock(lock);
+			try {
+				long count = readReferenceCount(reference.getKey()) - reference.getValue();
+				if (count > 0) {
+					writeReferenceCount(reference.getKey(), count);
+					continue;
+				}
+				File payloadFile = getSharedPayloadFile(reference.getKey());
+				File countFile = getReferenceCountFile(reference.getKey());
+				payloadFile.delete();
+				countFile.delete();
+				if (replica != null) {
+					replica.delete(getPath(topic, payloadFile));
+					replica.delete(getPath(topic, countFile));
+				}
+				removeUnusedTopic(topic);
+			} finally {
+				unlock(lock);
+			}
+		}
+	}
+
+	/**
+	 * Remove the directory of a removed topic once its last payload file is
+	 * gone. Topic lock must be held by the caller
+	 */
+	private void removeUnusedTopic(String topic) {
+		File topicDirectory = new File(directory + "/" + topic);
+		if (new File(topicDirectory, SUBSCRIPTION_FILE).isFile()
+				|| topicDirectory.list((dir, name) -> name.startsWith(SHARED_PAYLOAD_FILE)).length > 0)
+			return;
+		handles.invalidate(topicDirectory);
+		for (File c : topicDirectory.listFiles())
+			c.delete();
+		topicDirectory.delete();
+		QueueReplicator replica = replicator;
+		if (replica != null)
+			replica.delete(topic);
+	}
+
+	/**
+	 * Count the records of a queue pointing to each topic payload file, read
+	 * before the queue is removed. Queue lock must be held by the caller
+	 * 
+	 * @return the number of records for each topic and payload reference
+	 */
+	private Map<String, Integer> getSharedPayloads(String queue) {
+		Map<String, Integer> references = new HashMap<String, Integer>();
+		for (int lane = 0; lane < Message.PRIORITY_LANES; lane++) {
+			File messageFile = getMessageFile(queue, lane);
+			if (messageFile == null)
+				continue;
+			try {
+				BufferedReader br = new BufferedReader(new FileReader(messageFile));
+				String line;
+				while ((line = br.readLine()) != null) {
+					Message record = Message.createMessageFromRecord(line.trim(), lane, 0);
+					if (PayloadCodec.isShared(record.getEncoding()))
+						references.merge(record.getContent(), 1, Integer::sum);
+				}
+				br.close();
+			} catch (IOException e) {
+				// The payload files are then kept rather than lost
+				e.printStackTrace();
+			}
+		}
+		return references;
+	}
+
+	private long readReferenceCount(String reference) throws IOException {
+		File countFile = getReferenceCountFile(reference);
+		if (countFile.length() < 8)
+			return 0;
+		RandomAccessFile raf = new RandomAccessFile(countFile, "r");
+		try {
+			return raf.readLong();
+		} finally {
+			raf.close();
+		}
+	}
+
+	private void writeReferenceCount(String reference, long count) throws IOException {
+		File countFile = getReferenceCountFile(reference);
+		byte[] counter = ByteBuffer.allocate(8).putLong(count).array();
+		RandomAccessFile raf = new RandomAccessFile(countFile, "rw");
+		raf.write(counter);
+		raf.close();
+		QueueReplicator replica = replicator;
+		if (replica != null)
+			replica.writeFile(getPath(getTopic(reference), countFile), counter);
+	}
+
+	private static String getTopic(String reference) {
+		return reference.substring(0, reference.lastIndexOf('/'));
+	}
+
+	private File getSharedPayloadFile(String reference) {
+		return new File(directory + "/" + getTopic(reference) + "/" + SHARED_PAYLOAD_FILE
+				+ reference.substring(reference.lastIndexOf('/') + 1));
+	}
+
+	private File getReferenceCountFile(String reference) {
+		return new File(directory + "/" + getTopic(reference) + "/" + REFERENCE_COUNT_FILE
+				+ reference.substring(reference.lastIndexOf('/') + 1));
+	}
+
+	// --------------------------------------------------------------------------------------
+	// Batch related method
+
+	/**
+	 * Start a batch of pushes and deletions over any number of queues, applied
+	 * all together or not at all by Batch.commit()
+	 * 
+	 * @return the empty batch
+	 */
+	public Batch newBatch() {
+		return new Batch();
+	}
+
+	/**
+	 * Move a received message from one queue to another as a single batch, so
+	 * a pipeline stage hands its message over to the next exactly once: the
+	 * message is pushed to the destination only if its record is still in the
+	 * source queue, and a crash leaves it in one of the two queues
+	 * 
+	 * @param source
+	 *            the queue the message was pulled from
+	 * @param message
+	 *            the message
+	 * @param destination
+	 *            the queue to push the message to
+	 * @return true if moved, false if the message is not in the source queue
+	 *         anymore or a queue does not exist
+	 */
+	public boolean move(String source, Message message, String destination) {
+		return newBatch().delete(source, message).push(destination, message).commit();
+	}
+
+	/**
+	 * Finish the batches whose commit record was written by a process that
+	 * died before renaming every lane file, and release the queue locks that
+	 * process held. Batches that did not reach their commit record are
+	 * dropped, leaving their queues as they were: their lane files and the
+	 * blob files no record refers to are deleted and their queues unlocked.
+	 * Only call it while no other service is using the queues in the same
+	 * root directory, for instance before the queues are used after a restart
+	 * 
+	 * @return the number of batches finished, -1 if recovery failed
+	 */
+	public int recoverBatches() {
+		File batchDirectory = new File(directory + "/" + BATCH_DIRECTORY);
+		File[] records = batchDirectory.listFiles();
+		if (records == null)
+			return 0;
+		int recovered = 0;
+		List<File> pending = new ArrayList<File>();
+		try {
+			for (File record : records) {
+				String id = record.getName();
+				if (id.endsWith("_temp")) {
+					record.delete();
+					continue;
+				}
+				if (id.endsWith(PENDING_RECORD)) {
+					pending.add(record);
+					continue;
+				}
+				Set<String> queues = new HashSet<String>();
+				for (String line : Files.readAllLines(record.toPath(), StandardCharsets.UTF_8)) {
+					int separator = line.lastIndexOf('\t');
+					String queue = line.substring(0, separator);
+					int lane = Integer.parseInt(line.substring(separator + 1));
+					File tempFile = getBatchFile(queue, lane, id);
+					// Missing once renamed before the crash
+					if (tempFile.isFile())
+						Files.move(tempFile.toPath(), new File(getLaneFilePath(queue, lane)).toPath(),
+								StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+					queues.add(queue);
+				}
+				record.delete();
+				for (String queue : queues)
+					unlock(getQueueLock(queue));
+				recovered++;
+			}
+			// Left by batches that ended without reaching or after finishing
+			// their commit record
+			for (File record : pending) {
+				String id = record.getName().substring(0, record.getName().length() - PENDING_RECORD.length());
+				for (String queue : Files.readAllLines(record.toPath(), StandardCharsets.UTF_8))
+					dropBatch(queue, id);
+				record.delete();
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+			return -1;
+		}
+		return recovered;
+	}
+
+	/**
+	 * Delete the lane files a batch that never committed wrote in a queue and
+	 * the blob files no record of the queue refers to, then unlock the queue
+	 * 
+	 * @throws IOException
+	 */
+	private void dropBatch(String queue, String id) throws IOException {
+		File[] files = new File(directory + "/" + queue).listFiles();
+		if (files == null)
+			return;
+		Set<String> referenced = new HashSet<String>();
+		for (int lane = 0; lane < Message.PRIORITY_LANES; lane++) {
+			File messageFile = new File(getLaneFilePath(queue, lane));
+			if (!messageFile.isFile())
+				continue;
+			for (String line : Files.readAllLines(messageFile.toPath(), Charset.defaultCharset())) {
+				Message record = Message.createMessageFromRecord(line.trim(), lane, 0);
+				if (PayloadCodec.isBlob(record.getEncoding()))
+					referenced.add(getBlobFile(queue, lane, record.getContent()).getName());
+			}
+		}
+		for (File file : files) {
+			String name = file.getName();
+			if ((name.startsWith(MESSAGE_FILE + "_") && name.endsWith("_" + id))
+					|| (name.startsWith(BLOB_FILE) && !referenced.contains(name)))
+				file.delete();
+		}
+		unlock(getQueueLock(queue));
+	}
+
+	/**
+	 * Apply the operations of a batch while holding the lock of every queue
+	 * involved, taken in name order so concurrent batches cannot deadlock.
+	 * Each lane file changed is written once to a file next to it and synced,
+	 * then a commit record listing these files is synced, which is the single
+	 * point the batch is committed at, and the files are renamed over the lane
+	 * files. The queues are listed in a pending record before they are locked,
+	 * and recoverBatches() finishes the renames or drops the batch after a
+	 * crash. A failure after the commit point finishes the renames before the
+	 * queues are unlocked
+	 * 
+	 * @return true if committed, false otherwise
+	 */
+	private boolean commit(List<BatchOperation> operations) {
+		Set<String> queues = new TreeSet<String>();
+		for (BatchOperation operation : operations)
+			queues.add(operation.queue);
+		List<File> locks = new ArrayList<File>();
+		// Changed lanes in the order they are first touched
+		Map<String, LaneChange> changes = new LinkedHashMap<String, LaneChange>();
+		// Shared payload references taken by pushes, given back on failure
+		Map<String, Integer> acquiredPayloads = new HashMap<String, Integer>();
+		String id = UUID.randomUUID().toString();
+		File batchDirectory = new File(directory + "/" + BATCH_DIRECTORY);
+		File pendingFile = new File(batchDirectory, id + PENDING_RECORD);
+		File commitFile = null;
+		boolean committed = false;
+		try {
+			batchDirectory.mkdirs();
+			StringBuilder pending = new StringBuilder();
+			for (String queue : queues)
+				pending.append(queue).append('\n');
+			Files.write(pendingFile.toPath(), pending.toString().getBytes(StandardCharsets.UTF_8));
+			for (String queue : queues) {
+				if (!isQueueExist(queue))
+					return false;
+				File lock = getQueueLock(queue);
+				lock(lock);
+				locks.add(lock);
+			}
+			long now = clock.millis();
+			Map<String, List<Long>> fingerprints = new HashMap<String, List<Long>>();
+			for (BatchOperation operation : operations) {
+				Properties config = getQueueConfig(operation.queue);
+				int lane = getLane(config, operation.message);
+				String key = operation.queue + "/" + lane;
+				LaneChange change = changes.get(key);
+				if (change == null) {
+					change = new LaneChange(operation.queue, lane);
+					if (!readLane(change))
+						return false;
+					changes.put(key, change);
+				}
+				if (operation.delete) {
+					// Only a record already in the queue can be deleted
+					Message stored = encodeContent(operation.queue, lane, operation.message, getPayloadCodec(config),
+							false);
+					int match = findRecord(operation.queue, lane, change.lines, change.kept, stored, operation.message,
+							now);
+					if (match < 0)
+						return false;
+					Message matched = Message.createMessageFromRecord(change.lines.get(match).trim(), lane, now);
+					if (PayloadCodec.isBlob(matched.getEncoding()))
+						change.removedBlobs.add(matched.getContent());
+					if (PayloadCodec.isShared(matched.getEncoding()))
+						change.releasedPayloads.merge(matched.getContent(), 1, Integer::sum);
+					change.lines.remove(match);
+					change.kept--;
+					continue;
+				}
+				DeduplicationState deduplication = getDeduplicationState(operation.queue, config);
+				long fingerprint = (deduplication != null) ? deduplication.window.fingerprint(operation.message) : 0;
+				if (fingerprint != 0) {
+					List<Long> pushed = fingerprints.get(operation.queue);
+					if (pushed == null) {
+						pushed = new ArrayList<Long>();
+						fingerprints.put(operation.queue, pushed);
+						syncDeduplication(operation.queue, deduplication, now);
+					}
+					if (deduplication.window.contains(fingerprint, now) || pushed.contains(fingerprint))
+						continue;
+					pushed.add(fingerprint);
+				}
+				long delay = operation.message.getEffectiveDelay(getQueueDelay(config));
+				Message pushed = operation.message.toPush();
+				pushed.setEnqueueTime(now);
+				Message stored = encodeContent(operation.queue, lane, pushed, getPayloadCodec(config), true,
+						change.writtenBlobs);
+				if (PayloadCodec.isShared(stored.getEncoding()))
+					acquiredPayloads.merge(stored.getContent(), 1, Integer::sum);
+				change.lines.add((delay > 0) ? stored.createRecord(now + delay) : stored.createVisibleRecord());
+			}
+			for (LaneChange change : changes.values())
+				writeBatchFile(change, id, now);
+			// Commit point, the record only appears once complete
+			StringBuilder record = new StringBuilder();
+			for (LaneChange change : changes.values())
+				record.append(change.queue).append('\t').append(change.lane).append('\n');
+			File tempFile = new File(batchDirectory, id + "_temp");
+			FileChannel channel = FileChannel.open(tempFile.toPath(), StandardOpenOption.CREATE,
+					StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+			try {
+				ByteBuffer buffer = ByteBuffer.wrap(record.toString().getBytes(StandardCharsets.UTF_8));
+				while (buffer.hasRemaining())
+					channel.write(buffer);
+				channel.force(false);
+			} finally {
+				channel.close();
+			}
+			commitFile = new File(batchDirectory, id);
+			Files.move(tempFile.toPath(), commitFile.toPath(), StandardCopyOption.ATOMIC_MOVE);
+			committed = true;
+
+			for (LaneChange change : changes.values())
+				applyLaneChange(change, id);
+			commitFile.delete();
+			for (Map.Entry<String, List<Long>> pushed : fingerprints.entrySet()) {
+				DeduplicationState deduplication = getDeduplicationState(pushed.getKey(),
+						getQueueConfig(pushed.getKey()));
+				for (long fingerprint : pushed.getValue())
+					recordFingerprint(pushed.getKey(), deduplication, fingerprint, now);
+			}
+			QueueReplicator replica = replicator;
+			Map<String, Integer> releasedPayloads = new HashMap<String, Integer>();
+			for (LaneChange change : changes.values()) {
+				change.removedBlobs.removeAll(change.keptBlobs);
+				for (String reference : change.removedBlobs) {
+					File blobFile = getBlobFile(change.queue, change.lane, reference);
+					blobFile.delete();
+					if (replica != null)
+						replica.delete(getPath(change.queue, blobFile));
+				}
+				for (Map.Entry<String, Integer> reference : change.releasedPayloads.entrySet())
+					releasedPayloads.merge(reference.getKey(), reference.getValue(), Integer::sum);
+			}
+			releaseSharedPayloads(releasedPayloads);
+			return true;
+		} catch (InterruptedException e) {
+			e.printStackTrace();
+			return false;
+		} catch (IOException e) {
+			e.printStackTrace();
+			// Past the commit point the batch is applied whatever happens, so
+			// the renames are finished before the queues are unlocked
+			if (committed && commitFile.exists())
+				finishBatch(changes.values(), id, commitFile);
+			return committed;
+		} finally {
+			if (!committed) {
+				QueueReplicator replica = replicator;
+				for (LaneChange change : changes.values()) {
+					getBatchFile(change.queue, change.lane, id).delete();
+					// No record refers to the blobs written by the batch
+					for (String reference : change.writtenBlobs) {
+						File blobFile = getBlobFile(change.queue, change.lane, reference);
+						blobFile.delete();
+						if (replica != null)
+							replica.delete(getPath(change.queue, blobFile));
+					}
+				}
+				try {
+					releaseSharedPayloads(acquiredPayloads);
+				} catch (InterruptedException e) {
+					e.printStackTrace();
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+			}
+			for (int i = locks.size() - 1; i >= 0; i--)
+				unlock(locks.get(i));
+			pendingFile.delete();
+		}
+	}
+
+	/**
+	 * Rename the lane file a committed batch wrote over the lane file, unless
+	 * already done, and record the counters of the lane
+	 * 
+	 * @throws IOException
+	 */
+	private void applyLaneChange(LaneChange change, String id) throws IOException {
+		File messageFile = new File(getLaneFilePath(change.queue, change.lane));
+		File batchFile = getBatchFile(change.queue, change.lane, id);
+		if (batchFile.isFile())
+			Files.move(batchFile.toPath(), messageFile.toPath(), StandardCopyOption.REPLACE_EXISTING,
+					StandardCopyOption.ATOMIC_MOVE);
+		writeStats(change.queue, change.lane, change.stats);
+		QueueReplicator replica = replicator;
+		if (replica != null)
+			replica.writeFile(getPath(change.queue, messageFile), Files.readAllBytes(messageFile.toPath()));
+	}
+
+	/**
+	 * Finish the renames of a batch that failed after its commit point. The
+	 * commit record is kept if they fail again, so recoverBatches() finishes
+	 * them after a restart
+	 */
+	private void finishBatch(Collection<LaneChange> changes, String id, File commitFile) {
+		try {
+			for (LaneChange change : changes)
+				applyLaneChange(change, id);
+			commitFile.delete();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Read the records of a lane file into a lane change
+	 * 
+	 * @return false if the lane file does not exist
+	 * @throws IOException
+	 */
+	private boolean readLane(LaneChange change) throws IOException {
+		File messageFile = getMessageFile(change.queue, change.lane);
+		if (messageFile == null)
+			return false;
+		BufferedReader br = new BufferedReader(new FileReader(messageFile));
+		try {
+			String line;
+			while ((line = br.readLine()) != null)
+				change.lines.add(line);
+		} finally {
+			br.close();
+		}
+		change.kept = change.lines.size();
+		return true;
+	}
+
+	/**
+	 * Write the new records of a lane next to its lane file and sync them,
+	 * counting them for the lane counters and collecting the blobs they
+	 * refer to on the way
+	 * 
+	 * @throws IOException
+	 */
+	private void writeBatchFile(LaneChange change, String id, long now) throws IOException {
+		StringBuilder lines = new StringBuilder();
+		for (String line : change.lines) {
+			Message record = Message.createMessageFromRecord(line.trim(), change.lane, now);
+			countRecord(change.stats, record, now);
+			if (PayloadCodec.isBlob(record.getEncoding()))
+				change.keptBlobs.add(record.getContent());
+			lines.append(line).append(System.getProperty("line.separator"));
+		}
+		FileChannel channel = FileChannel.open(getBatchFile(change.queue, change.lane, id).toPath(),
+				StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+		try {
+			ByteBuffer buffer = ByteBuffer.wrap(lines.toString().getBytes(Charset.defaultCharset()));
+			while (buffer.hasRemaining())
+				channel.write(buffer);
+			channel.force(false);
+		} finally {
+			channel.close();
+		}
+	}
+
+	private File getBatchFile(String queue, int lane, String id) {
+		return new File(getLaneFilePath(queue, lane) + "_" + id);
+	}
+
+	private String getLaneFilePath(String queue, int lane) {
+		return directory + "/" + queue + "/" + MESSAGE_FILE + "_" + lane;
+	}
+
+	// --------------------------------------------------------------------------------------
+	// Lock related method
+
+	/**
+	 * Get the lock of a queue directory
+	 * 
+	 * @param queue
+	 *            the queue directory name
+	 * @return the lock file
+	 */
+	private File getQueueLock(String queue) {
+		File lock = new File(directory + "/" + queue + "/" + LOCK_FILE);
+		return lock;
+	}
+
+	/**
+	 * Lock a queue directory
+	 * 
+	 * @param lock
+	 *            the lock file
+	 * @throws InterruptedException
+	 */
+	private void lock(File lock) throws InterruptedException {
+		while (!lock.mkdir()) {
+			Thread.sleep(50);
+		}
+	}
+
+	/**
+	 * Unlock a queue directory
+	 * 
+	 * @param lock
+	 *            the lock file
+	 */
+	private void unlock(File lock) {
+		lock.delete();
+	}
+
+	/**
+	 * Pushes and deletions over several queues committed as one, built with
+	 * newBatch(). A deletion removes a single record of the message that is in
+	 * the queue when the batch is committed, the one pulled if it is still in
+	 * flight, and fails the whole batch if there is none, so a message pulled
+	 * by two consumers is only handed on by one of them. Pushes follow the
+	 * settings of their queue like push(). Not thread safe
+	 */
+	public class Batch {
+		private final List<BatchOperation> operations = new ArrayList<BatchOperation>();
+
+		private Batch() {
+		}
+
+		/**
+		 * Add a push to the batch
+		 * 
+		 * @param queue
+		 *            the queue name
+		 * @param message
+		 *            the message
+		 * @return this batch
+		 */
+		public Batch push(String queue, Message message) {
+			operations.add(new BatchOperation(queue, message, false));
+			return this;
+		}
+
+		/**
+		 * Add a deletion to the batch
+		 * 
+		 * @param queue
+		 *            the queue name
+		 * @param message
+		 *            the message
+		 * @return this batch
+		 */
+		public Batch delete(String queue, Message message) {
+			operations.add(new BatchOperation(queue, message, true));
+			return this;
+		}
+
+		/**
+		 * Apply every operation of the batch, or none of them
+		 * 
+		 * @return true if committed, false if a queue does not exist, a
+		 *         deleted message is not in its queue or writing failed
+		 */
+		public boolean commit() {
+			return operations.isEmpty() || FileQueueService.this.commit(operations);
+		}
+	}
+
+	private static class BatchOperation {
+		private final String queue;
+		private final Message message;
+		private final boolean delete;
+
+		private BatchOperation(String queue, Message message, boolean delete) {
+			this.queue = queue;
+			this.message = message;
+			this.delete = delete;
+		}
+	}
+
+	/**
+	 * New content of a single lane file changed by a batch
+	 */
+	private static class LaneChange {
+		private final String queue;
+		private final int lane;
+		// Records of the lane file, followed by the pushed records
+		private final List<String> lines = new ArrayList<String>();
+		// Number of leading records that were in the lane file
+		private int kept;
+		private final long[] stats = new long[STATS_PER_LANE];
+		private final Set<String> removedBlobs = new HashSet<String>();
+		// Blobs still referred to by a record of the new lane file, as the
+		// same content in a lane shares its blob
+		private final Set<String> keptBlobs = new HashSet<String>();
+		// Blob files the pushes of the batch created
+		private final Set<String> writtenBlobs = new HashSet<String>();
+		private final Map<String, Integer> releasedPayloads = new HashMap<String, Integer>();
+
+		private LaneChange(String queue, int lane) {
+			this.queue = queue;
+			this.lane = lane;
+		}
+	}
+
+	/**
+	 * Records claimed by a single pull, handed out until the claim expires
+	 */
+	private static class LeaseBlock {
+		private final Deque<Message> messages;
+		// Visibility timeout of every record of the block
+		private final long deadline;
+
+		private LeaseBlock(List<Message> messages, long deadline) {
+			this.messages = new ConcurrentLinkedDeque<Message>(messages);
+			this.deadline = deadline;
+		}
+	}
+
+	/**
+	 * Local copy of the deduplication fingerprints of a queue
+	 */
+	private static class DeduplicationState {
+		private final DeduplicationWindow window;
+		// Bytes of each bucket file already replayed into the window
+		private final Map<Long, Long> offsets = new HashMap<Long, Long>();
+		// Newest bucket replayed so far, older buckets do not grow anymore
+		private long syncedBucket = Long.MIN_VALUE;
+
+		private DeduplicationState(DeduplicationWindow window) {
+			this.window = window;
+		}
 	}
 }
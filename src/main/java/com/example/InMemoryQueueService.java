@@ -1,13 +1,24 @@
 package com.example;
 
+import java.time.Clock;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.Deque;
-import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.LinkedBlockingDeque;
 
 /**
- * In memory implementation of message queue service. Using timer schedule to
- * keep in track the visibility period of a message
+ * In memory implementation of message queue service. Visibility timeouts and
+ * delivery delays are deadlines kept in the DeliveryIndex of each queue, which
+ * are evaluated against the service clock whenever the queue is pulled, so no
+ * timer thread is involved. With a QueueJournal set, every change is also
+ * recorded in the journal so the queues survive a restart, while reads are
+ * still served from memory only
  * 
  * @author Rudi Purnomo
  *
@@ -16,7 +27,21 @@ public class InMemoryQueueService implements QueueService {
 	// Default queue
 	private static Deque<Message> DEFAULT_QUEUE = new LinkedBlockingDeque<Message>();
 	// Map of queue (name as key)
-	private static Map<String, Deque<Message>> QUEUE_MAP = new HashMap<String, Deque<Message>>();
+	private static Map<String, Deque<Message>> QUEUE_MAP = new ConcurrentHashMap<String, Deque<Message>>();
+	// Visible messages of the default queue, split per priority
+	private static PriorityLanes DEFAULT_LANES = new PriorityLanes();
+	// Deliverable messages of each queue, split per priority or per message
+	// group for FIFO queue (name as key)
+	private static Map<String, DeliveryIndex> LANE_MAP = new ConcurrentHashMap<String, DeliveryIndex>();
+	// Delivery delay in seconds of each queue, empty string for default queue
+	private static Map<String, Integer> DELAY_MAP = new ConcurrentHashMap<String, Integer>();
+	// Deduplication window of each queue, empty string for default queue
+	private static Map<String, DeduplicationWindow> DEDUPLICATION_MAP = new ConcurrentHashMap<String, DeduplicationWindow>();
+	// Attribute index of each queue that has one, empty string for default
+	// queue
+	private static Map<String, AttributeIndex> INDEX_MAP = new ConcurrentHashMap<String, AttributeIndex>();
+	// Subscriber queues of each topic with their filter (name as key)
+	private static Map<String, Map<String, MessageFilter>> TOPIC_MAP = new ConcurrentHashMap<String, Map<String, MessageFilter>>();
 	// Time given before pulled message that is not deleted becomes visible
 	// again in the queue
 	private static final long DEFAULT_VISIBILITY_TIMEOUT = 3000;
@@ -25,21 +50,97 @@ public class InMemoryQueueService implements QueueService {
 	// All messages that have been received but not deleted, mapped to its
 	// respective queue
 	private Map<Message, String> receivedMessages;
+	// Source of current time for visibility timeout and delivery delay
+	private final Clock clock;
+	// Journal recording every change, null if not durable
+	private volatile QueueJournal journal;
 
 	// --------------------------------------------------------------------------------------
 	// Method
 
 	public InMemoryQueueService() {
-		receivedMessages = new HashMap<Message, String>();
+		this(Clock.systemUTC());
 	}
 
+	/**
+	 * Create the service with specific clock, mainly used to control time in
+	 * testing
+	 * 
+	 * @param clock
+	 *            the clock
+	 */
+	public InMemoryQueueService(Clock clock) {
+		receivedMessages = new ConcurrentHashMap<Message, String>();
+		this.clock = clock;
+	}
+
+	/**
+	 * @return the current time of the service clock in milliseconds
+	 */
+	long currentTimeMillis() {
+		return clock.millis();
+	}
+
+	/**
+	 * Push a message to the tail of its priority lane. Message with delivery
+	 * delay, either its own or the delay of the queue, is kept invisible until
+	 * the delay is over. On a queue with deduplication window, a duplicate
+	 * push is dropped but still reported as successful, as the message is
+	 * already in the queue. A message pushed before, for instance one pulled
+	 * from another queue, is pushed as a copy, so the queue it was pulled from
+	 * keeps its lease, and pull returns the copy
+	 */
 	@Override
 	public boolean push(String queue, Message message) {
-		if (!queue.isEmpty()) {
-			Deque<Message> queueD = getQueue(queue);
-			return (queueD != null) ? queueD.add(message) : false;
-		} else
-			return DEFAULT_QUEUE.add(message);
+		Deque<Message> queueD = getQueue(queue);
+		DeliveryIndex lanes = getLanes(queue);
+		if (queueD == null || lanes == null)
+			return false;
+		// Pushed before, it may still be in this queue or another one
+		message = message.toPush();
+		DeduplicationWindow window = DEDUPLICATION_MAP.get(queue);
+		long fingerprint = (window != null) ? window.fingerprint(message) : 0;
+		long now = clock.millis();
+		long delay = message.getEffectiveDelay(getQueueDelay(queue));
+		// Not deliverable until pushed and durable, see activate() below
+		message.resetState(Long.MAX_VALUE);
+		if (fingerprint != 0) {
+			// Check and record together, so concurrent retries of the same
+			// message cannot both get in
+			synchronized (window) {
+				if (window.contains(fingerprint, now))
+					return true;
+				message.setEnqueueTime(now);
+				if (!queueD.add(message))
+					return false;
+				window.add(fingerprint, now);
+			}
+		} else {
+			message.setEnqueueTime(now);
+			if (!queueD.add(message))
+				return false;
+		}
+		QueueJournal journal = this.journal;
+		// Only made deliverable once durable
+		if (journal != null && !journal.push(queue, message, (delay > 0) ? now + delay : 0)) {
+			queueD.remove(message);
+			return false;
+		}
+		AttributeIndex index = INDEX_MAP.get(queue);
+		if (index != null)
+			index.add(message);
+		if (!message.activate((delay > 0) ? now + delay : 0)) {
+			// Deleted while being pushed
+			if (index != null)
+				index.remove(message);
+			return true;
+		}
+		if (delay > 0) {
+			message.setInvisible();
+			lanes.delay(message, now + delay);
+		} else if (message.getVisiblility())
+			lanes.offer(message);
+		return true;
 	}
 
 	/**
@@ -53,29 +154,87 @@ public class InMemoryQueueService implements QueueService {
 		return push("", message);
 	}
 
+	/**
+	 * Pull the next visible message. Visible messages are kept in per priority
+	 * lanes, so the message is taken from the head of the lane chosen by the
+	 * weighted scheduler without scanning over invisible messages. Expired
+	 * leases and finished delays are moved back into the lanes first. The
+	 * message is claimed with a single compare and set on its state, so
+	 * concurrent pulls never block each other
+	 */
 	@Override
 	public Message pull(String queue) {
+		DeliveryIndex lanes = getLanes(queue);
+		if (lanes == null)
+			return null;
+		long now = clock.millis();
+		Message message;
+		while ((message = lanes.poll(now)) != null) {
+			// Skip message that has been deleted or pulled concurrently
+			if (claim(queue, lanes, message, now))
+				return message;
+		}
+		return null;
+	}
+
+	/**
+	 * Pull the first visible message accepted by a selector, leaving the
+	 * others in place so consumers interested in different messages share a
+	 * queue without cycling through each other's messages. On a queue indexed
+	 * on an attribute the selector looks at, only the messages holding the
+	 * selected values are walked, otherwise the queue is scanned in push
+	 * order. Candidates are taken in push order regardless of their priority,
+	 * and a FIFO queue only hands out the head of a group
+	 * 
+	 * @param queue
+	 *            the queue name, empty string for default queue
+	 * @param selector
+	 *            the selector, null to pull like pull(queue)
+	 * @return the message, null if no visible message is accepted
+	 */
+	public Message pull(String queue, MessageFilter selector) {
+		if (selector == null || selector.isEmpty())
+			return pull(queue);
 		Deque<Message> queueD = getQueue(queue);
-		if (queueD == null)
+		DeliveryIndex lanes = getLanes(queue);
+		if (queueD == null || lanes == null)
 			return null;
-		for (Message message : queueD) {
-			synchronized (message) {
-				if (message.getVisiblility()) {
-					message.setInvisible();
-					receivedMessages.put(message, queue);
-					new java.util.Timer().schedule(new java.util.TimerTask() {
-						@Override
-						public void run() {
-							sendBack(message);
-						}
-					}, DEFAULT_VISIBILITY_TIMEOUT);
-					return message;
-				}
+		long now = clock.millis();
+		lanes.release(now);
+		AttributeIndex index = INDEX_MAP.get(queue);
+		Iterable<Message> candidates = (index != null) ? index.getCandidates(selector) : null;
+		for (Message message : (candidates != null) ? candidates : queueD) {
+			if (message.isAvailable(now) && selector.test(message) && lanes.canDeliver(message)
+					&& claim(queue, lanes, message, now)) {
+				lanes.take(message);
+				return message;
 			}
 		}
 		return null;
 	}
 
+	/**
+	 * Lease a message taken from the delivery index of a queue
+	 * 
+	 * @return true if leased, false if deleted or pulled concurrently
+	 */
+	private boolean claim(String queue, DeliveryIndex lanes, Message message, long now) {
+		if (!message.lease(now, now + DEFAULT_VISIBILITY_TIMEOUT))
+			return false;
+		message.markReceived(now);
+		message.setInvisible();
+		receivedMessages.put(message, queue);
+		lanes.lease(message, now + DEFAULT_VISIBILITY_TIMEOUT);
+		// Deleted before it was recorded as received
+		if (message.isDeleted()) {
+			receivedMessages.remove(message);
+			lanes.cancel(message);
+		}
+		if (journal != null)
+			journal.lease(queue, message, now + DEFAULT_VISIBILITY_TIMEOUT);
+		return true;
+	}
+
 	/**
 	 * Pull method on default queue
 	 * 
@@ -86,25 +245,25 @@ public class InMemoryQueueService implements QueueService {
 		return pull("");
 	}
 
+	/**
+	 * Delete a message of the queue. Once marked deleted, a pending lease or
+	 * delay can no longer make the message available again
+	 */
 	@Override
 	public boolean delete(String queue, Message message) {
 		Deque<Message> queueD = getQueue(queue);
-		if (queueD == null)
+		DeliveryIndex lanes = getLanes(queue);
+		if (queueD == null || lanes == null || !queueD.remove(message))
 			return false;
-		if (!queue.isEmpty())
-			queueD = QUEUE_MAP.get(queue);
-		else
-			queueD = DEFAULT_QUEUE;
-		for (Message curMessage : queueD) {
-			synchronized (curMessage) {
-				if (message.equals(curMessage)) {
-					queueD.remove(message);
-					receivedMessages.remove(message);
-					return true;
-				}
-			}
-		}
-		return false;
+		message.markDeleted();
+		lanes.remove(message);
+		AttributeIndex index = INDEX_MAP.get(queue);
+		if (index != null)
+			index.remove(message);
+		receivedMessages.remove(message);
+		if (journal != null)
+			journal.delete(queue, message);
+		return true;
 	}
 
 	/**
@@ -119,23 +278,85 @@ public class InMemoryQueueService implements QueueService {
 	}
 
 	/**
-	 * Will be executed after certain time window. Convert the pulled message to
-	 * be visible at the head of the queue if it has not been deleted yet Not
-	 * synchronized, as no other thread supposes to get a hold of the message
-	 * TODO: Fix this, this method access modifier should be private, but it is
-	 * required in the testing to be public
+	 * Get the attributes of a queue from the sizes of its delivery index, which
+	 * are maintained on every operation. Leases and delays that are due are
+	 * released first so the counts reflect the current time. Messages are kept
+	 * in push order, so the oldest one is simply the head of the queue
+	 */
+	@Override
+	public QueueAttributes getQueueAttributes(String queue) {
+		Deque<Message> queueD = getQueue(queue);
+		DeliveryIndex lanes = getLanes(queue);
+		if (queueD == null || lanes == null)
+			return null;
+		long now = clock.millis();
+		lanes.release(now);
+		Message oldest = queueD.peekFirst();
+		long age = 0;
+		if (oldest != null)
+			age = (oldest.getEnqueueTime() != 0) ? now - oldest.getEnqueueTime() : QueueAttributes.UNKNOWN_AGE;
+		return new QueueAttributes(lanes.visibleSize(), lanes.leasedSize(), lanes.delayedSize(), age);
+	}
+
+	/**
+	 * Attributes of default queue
+	 * 
+	 * @return the attributes
+	 */
+	public QueueAttributes getQueueAttributes() {
+		return getQueueAttributes("");
+	}
+
+	/**
+	 * Convert the pulled message to be visible at the head of the queue if it
+	 * has not been deleted yet, without waiting for its visibility timeout.
+	 * Expired leases are normally handled by pull() itself, a message whose
+	 * lease has expired is already visible and left to it
 	 * 
 	 * @return true if message is successfully set to visible, false otherwise
 	 */
 	public boolean sendBack(Message message) {
-		synchronized (message) {
-			if (receivedMessages.containsKey(message) && !message.getVisiblility()) {
-				message.setVisible();
-				return true;
-			} else {
-				return false;
-			}
-		}
+		String queue = receivedMessages.get(message);
+		if (queue == null)
+			return false;
+		DeliveryIndex lanes = getLanes(queue);
+		if (lanes == null || !message.renewLease(clock.millis(), 0))
+			return !message.isDeleted() && lanes != null;
+		message.setVisible();
+		lanes.cancel(message);
+		lanes.offerFirst(message);
+		if (journal != null)
+			journal.lease(queue, message, 0);
+		return true;
+	}
+
+	/**
+	 * Change the visibility timeout of a received message, counted from now.
+	 * A timeout of zero sends the message back like sendBack(). Message whose
+	 * lease has already expired is left as it is
+	 * 
+	 * @param queue
+	 *            the queue name
+	 * @param message
+	 *            the received message
+	 * @param visibilityTimeout
+	 *            the new visibility timeout in seconds
+	 * @return true if the message was in flight, false otherwise
+	 */
+	public boolean changeVisibility(String queue, Message message, int visibilityTimeout) {
+		DeliveryIndex lanes = getLanes(queue);
+		if (lanes == null)
+			return false;
+		if (visibilityTimeout <= 0)
+			return queue.equals(receivedMessages.get(message)) && sendBack(message);
+		long now = clock.millis();
+		if (!queue.equals(receivedMessages.get(message)) || !message.renewLease(now, now + visibilityTimeout * 1000L))
+			return false;
+		// Replaces the pending lease
+		lanes.lease(message, now + visibilityTimeout * 1000L);
+		if (journal != null)
+			journal.lease(queue, message, now + visibilityTimeout * 1000L);
+		return true;
 	}
 
 	// --------------------------------------------------------------------------------------
@@ -152,6 +373,9 @@ public class InMemoryQueueService implements QueueService {
 			return null;
 		Deque<Message> newQueue = new LinkedBlockingDeque<Message>();
 		QUEUE_MAP.put(queueName, newQueue);
+		LANE_MAP.put(queueName, new PriorityLanes());
+		if (journal != null)
+			journal.createQueue(queueName, false);
 		return newQueue;
 	}
 
@@ -164,10 +388,50 @@ public class InMemoryQueueService implements QueueService {
 	 * @return the new queue
 	 */
 	public Deque<Message> createQueue(String queueName, int capacity) {
+		return createQueue(queueName, capacity, new LaneScheduler());
+	}
+
+	/**
+	 * Create a new queue with specific capacity and priority lane weights
+	 * 
+	 * @param capacity
+	 *            the capacity of new queue
+	 * @param laneWeights
+	 *            the weight of each priority lane
+	 * @return the new queue
+	 */
+	public Deque<Message> createQueue(String queueName, int capacity, int... laneWeights) {
+		return createQueue(queueName, capacity, new LaneScheduler(laneWeights));
+	}
+
+	private Deque<Message> createQueue(String queueName, int capacity, LaneScheduler scheduler) {
 		if (queueName.isEmpty())
 			return null;
 		Deque<Message> newQueue = new LinkedBlockingDeque<Message>(capacity);
 		QUEUE_MAP.put(queueName, newQueue);
+		LANE_MAP.put(queueName, new PriorityLanes(scheduler));
+		if (journal != null)
+			journal.createQueue(queueName, false);
+		return newQueue;
+	}
+
+	/**
+	 * Create a new FIFO queue, putting it in the map. Messages of the same
+	 * message group are delivered strictly in push order with at most one of
+	 * them in flight, while different groups are delivered in parallel
+	 * 
+	 * @param queueName
+	 *            the queue name
+	 * @return the new queue
+	 */
+	public Deque<Message> createFifoQueue(String queueName) {
+		if (queueName.isEmpty())
+			return null;
+		Deque<Message> newQueue = new LinkedBlockingDeque<Message>();
+		QUEUE_MAP.put(queueName, newQueue);
+		LANE_MAP.put(queueName, new MessageGroups());
+		if (journal != null)
+			journal.createQueue(queueName, true);
 		return newQueue;
 	}
 
@@ -179,7 +443,15 @@ public class InMemoryQueueService implements QueueService {
 	 * @return true if queue is found and removed from the map
 	 */
 	public boolean removeQueue(String queue) {
-		return QUEUE_MAP.remove(queue) != null;
+		LANE_MAP.remove(queue);
+		DELAY_MAP.remove(queue);
+		DEDUPLICATION_MAP.remove(queue);
+		INDEX_MAP.remove(queue);
+		if (QUEUE_MAP.remove(queue) == null)
+			return false;
+		if (journal != null)
+			journal.removeQueue(queue);
+		return true;
 	}
 
 	/**
@@ -196,6 +468,192 @@ public class InMemoryQueueService implements QueueService {
 		return QUEUE_MAP.get(queue);
 	}
 
+	/**
+	 * Set the delivery delay of a queue, applied to every pushed message that
+	 * does not have its own delay
+	 * 
+	 * @param queue
+	 *            the queue name, empty string for default queue
+	 * @param delaySeconds
+	 *            the delay in seconds
+	 */
+	public void setQueueDelay(String queue, int delaySeconds) {
+		DELAY_MAP.put(queue, Math.max(delaySeconds, 0));
+	}
+
+	/**
+	 * Get the delivery delay of a queue
+	 * 
+	 * @param queue
+	 *            the queue name, empty string for default queue
+	 * @return the delay in seconds, 0 if not set
+	 */
+	public int getQueueDelay(String queue) {
+		Integer delay = DELAY_MAP.get(queue);
+		return (delay != null) ? delay : 0;
+	}
+
+	/**
+	 * Enable the deduplication window of a queue, dropping any push whose
+	 * deduplication id, or content if content based, was already pushed
+	 * within the window. Changing the window forgets previous pushes
+	 * 
+	 * @param queue
+	 *            the queue name, empty string for default queue
+	 * @param windowSeconds
+	 *            the window in seconds, 0 to disable deduplication
+	 * @param contentBased
+	 *            true to identify message without deduplication id by its
+	 *            content
+	 */
+	public void setDeduplicationWindow(String queue, int windowSeconds, boolean contentBased) {
+		if (windowSeconds <= 0)
+			DEDUPLICATION_MAP.remove(queue);
+		else
+			DEDUPLICATION_MAP.put(queue, new DeduplicationWindow(windowSeconds * 1000L, contentBased));
+	}
+
+	/**
+	 * Index the messages of a queue on some of their attributes, so a pull
+	 * with a selector on one of them only walks the messages holding the
+	 * selected values. Messages already in the queue are indexed right away.
+	 * Attributes of a message should not change once it is pushed
+	 * 
+	 * @param queue
+	 *            the queue name, empty string for default queue
+	 * @param names
+	 *            the attribute names, none to drop the index
+	 * @return true if set, false if the queue does not exist
+	 */
+	public boolean setIndexedAttributes(String queue, String... names) {
+		Deque<Message> queueD = getQueue(queue);
+		if (queueD == null)
+			return false;
+		if (names.length == 0) {
+			INDEX_MAP.remove(queue);
+			return true;
+		}
+		AttributeIndex index = new AttributeIndex(Arrays.asList(names));
+		// Published first so no push is missed, a message pushed meanwhile
+		// may be walked twice by a selective pull
+		INDEX_MAP.put(queue, index);
+		for (Message message : queueD)
+			index.add(message);
+		return true;
+	}
+
+	/**
+	 * Create a topic, publishing to it pushes the message to each of its
+	 * subscriber queues
+	 * 
+	 * @param topic
+	 *            the topic name
+	 * @return true if created, false if it already exists
+	 */
+	public boolean createTopic(String topic) {
+		return TOPIC_MAP.putIfAbsent(topic, new ConcurrentHashMap<String, MessageFilter>()) == null;
+	}
+
+	/**
+	 * Remove a topic and its subscriptions, messages already published stay in
+	 * the subscriber queues
+	 * 
+	 * @param topic
+	 *            the topic name
+	 * @return true if the topic existed
+	 */
+	public boolean removeTopic(String topic) {
+		return TOPIC_MAP.remove(topic) != null;
+	}
+
+	/**
+	 * Subscribe a queue to a topic, replacing its filter if it is already
+	 * subscribed
+	 * 
+	 * @param topic
+	 *            the topic name
+	 * @param queue
+	 *            the subscriber queue name, empty string for default queue
+	 * @param filter
+	 *            the filter of the published messages, null to receive every
+	 *            message
+	 * @return true if subscribed, false if the topic or queue does not exist
+	 */
+	public boolean subscribe(String topic, String queue, MessageFilter filter) {
+		Map<String, MessageFilter> subscriptions = TOPIC_MAP.get(topic);
+		if (subscriptions == null || getQueue(queue) == null)
+			return false;
+		subscriptions.put(queue, (filter != null) ? filter : MessageFilter.ALL);
+		return true;
+	}
+
+	/**
+	 * Unsubscribe a queue from a topic
+	 * 
+	 * @param topic
+	 *            the topic name
+	 * @param queue
+	 *            the subscriber queue name
+	 * @return true if the queue was subscribed
+	 */
+	public boolean unsubscribe(String topic, String queue) {
+		Map<String, MessageFilter> subscriptions = TOPIC_MAP.get(topic);
+		return subscriptions != null && subscriptions.remove(queue) != null;
+	}
+
+	/**
+	 * Get the subscriber queues of a topic
+	 * 
+	 * @param topic
+	 *            the topic name
+	 * @return the filter of each subscriber queue, null if the topic does not
+	 *         exist
+	 */
+	public Map<String, MessageFilter> getSubscriptions(String topic) {
+		Map<String, MessageFilter> subscriptions = TOPIC_MAP.get(topic);
+		return (subscriptions != null) ? Collections.unmodifiableMap(subscriptions) : null;
+	}
+
+	/**
+	 * Publish a message to every subscriber queue of a topic whose filter
+	 * accepts it. Each queue gets its own copy of the message, with its own
+	 * delivery state, but every copy shares the content of the published
+	 * message, which the garbage collector frees after the last copy is
+	 * deleted
+	 * 
+	 * @param topic
+	 *            the topic name
+	 * @param message
+	 *            the message
+	 * @return the number of subscriber queues the message was pushed to, -1
+	 *         if the topic does not exist
+	 */
+	public int publish(String topic, Message message) {
+		Map<String, MessageFilter> subscriptions = TOPIC_MAP.get(topic);
+		if (subscriptions == null)
+			return -1;
+		int published = 0;
+		for (Map.Entry<String, MessageFilter> subscription : subscriptions.entrySet())
+			if (subscription.getValue().test(message)
+					&& push(subscription.getKey(), message.copyShared(message.getSharedReference())))
+				published++;
+		return published;
+	}
+
+	/**
+	 * Get the delivery index of a queue, empty string will return priority
+	 * lanes of default queue
+	 * 
+	 * @param queue
+	 *            the queue name
+	 * @return the lanes, null if queue does not exist
+	 */
+	private DeliveryIndex getLanes(String queue) {
+		if (queue.isEmpty())
+			return DEFAULT_LANES;
+		return LANE_MAP.get(queue);
+	}
+
 	/**
 	 * @return the default queue
 	 */
@@ -218,9 +676,17 @@ public class InMemoryQueueService implements QueueService {
 	 * @param queue
 	 */
 	public void clearQueue(String queue) {
-		if (queue.isEmpty())
+		if (queue.isEmpty()) {
 			clearDefaultQueue();
+			return;
+		}
 		QUEUE_MAP.get(queue).clear();
+		LANE_MAP.get(queue).clear();
+		AttributeIndex index = INDEX_MAP.get(queue);
+		if (index != null)
+			index.clear();
+		if (journal != null)
+			journal.clearQueue(queue);
 	}
 
 	/**
@@ -228,18 +694,105 @@ public class InMemoryQueueService implements QueueService {
 	 */
 	public void clearDefaultQueue() {
 		DEFAULT_QUEUE.clear();
+		DEFAULT_LANES.clear();
+		DELAY_MAP.remove("");
+		DEDUPLICATION_MAP.remove("");
+		INDEX_MAP.remove("");
+		if (journal != null)
+			journal.clearQueue("");
 	}
 
 	/**
-	 * Remove all queue from the map
+	 * Remove all queue from the map, along with every topic subscribed to them
 	 */
 	public void clearQueueMap() {
+		if (journal != null)
+			for (String queue : QUEUE_MAP.keySet())
+				journal.removeQueue(queue);
 		QUEUE_MAP.clear();
+		LANE_MAP.clear();
+		DELAY_MAP.keySet().retainAll(Collections.singleton(""));
+		DEDUPLICATION_MAP.keySet().retainAll(Collections.singleton(""));
+		INDEX_MAP.keySet().retainAll(Collections.singleton(""));
+		TOPIC_MAP.clear();
 	}
 
 	// --------------------------------------------------------------------------------------
 	// Other function
 
+	/**
+	 * Make the service durable with a journal. The queues recovered by the
+	 * journal are rebuilt first: messages still leased keep their receive
+	 * count and become visible again when their lease was due to expire,
+	 * delayed messages when their delay was due to end. A recovered queue
+	 * created again beforehand keeps its configuration, and queues only
+	 * existing in memory are recorded in the journal, together with the
+	 * messages pushed before the journal was set. Must be called before the
+	 * service is used
+	 * 
+	 * @param journal
+	 *            the journal, freshly opened
+	 */
+	public void setJournal(QueueJournal journal) {
+		long now = clock.millis();
+		Set<String> recoveredQueues = new HashSet<String>();
+		for (QueueJournal.JournalQueue recovered : journal.takeRecoveredQueues()) {
+			recoveredQueues.add(recovered.name);
+			Deque<Message> queueD = getQueue(recovered.name);
+			if (queueD == null)
+				queueD = recovered.fifo ? createFifoQueue(recovered.name) : createQueue(recovered.name);
+			DeliveryIndex lanes = getLanes(recovered.name);
+			AttributeIndex index = INDEX_MAP.get(recovered.name);
+			for (QueueJournal.JournalEntry entry : recovered.messages.values()) {
+				Message message = entry.message;
+				message.setReceiptHandle(0);
+				message.setReceiveCount(entry.receiveCount);
+				message.resetState((entry.deadline > now) ? entry.deadline : 0);
+				queueD.add(message);
+				if (index != null)
+					index.add(message);
+				if (entry.deadline > now && entry.receiveCount > 0) {
+					message.setInvisible();
+					receivedMessages.put(message, recovered.name);
+					lanes.offerLeased(message, entry.deadline);
+				} else if (entry.deadline > now) {
+					message.setInvisible();
+					lanes.delay(message, entry.deadline);
+				} else
+					lanes.offer(message);
+			}
+		}
+		List<String> queues = new ArrayList<String>(QUEUE_MAP.keySet());
+		// Default queue is never created in the journal
+		queues.add("");
+		for (String queue : queues) {
+			Deque<Message> queueD = getQueue(queue);
+			if (queueD == null)
+				continue;
+			if (!queue.isEmpty() && !recoveredQueues.contains(queue))
+				journal.createQueue(queue, getLanes(queue) instanceof MessageGroups);
+			// Recovered messages already have their journal id
+			for (Message message : queueD) {
+				if (message.getJournalId() != 0 || message.isDeleted())
+					continue;
+				boolean leased = message.isLeased(now);
+				long deadline = message.getLeaseDeadline();
+				journal.recordPush(queue, message, (!leased && deadline > now) ? deadline : 0);
+				if (message.getReceiveCount() > 0)
+					journal.lease(queue, message, leased ? deadline : 0);
+			}
+		}
+		journal.flush();
+		this.journal = journal;
+	}
+
+	/**
+	 * @return the journal of the service, null if not durable
+	 */
+	public QueueJournal getJournal() {
+		return journal;
+	}
+
 	/**
 	 * @return the map of received messages
 	 */
@@ -0,0 +1,78 @@
+package com.example;
+
+/**
+ * Smooth weighted round robin over the priority lanes of a queue. Every call
+ * to next() credits each eligible lane with its weight and serves the lane with
+ * the highest credit, which is then charged the total eligible weight. With the
+ * default weights a flooded low priority lane still gets one out of seven
+ * pulls, while the high priority lane keeps four out of seven. The cost of a
+ * decision only depends on the fixed number of lanes, not on the queue depth
+ */
+public class LaneScheduler {
+	// Default weight of each lane, indexed by Message priority
+	public static final int[] DEFAULT_WEIGHTS = { 4, 2, 1 };
+
+	private final int[] weights;
+	private final int[] credits;
+
+	public LaneScheduler() {
+		this(DEFAULT_WEIGHTS);
+	}
+
+	/**
+	 * Create scheduler with specific lane weights
+	 * 
+	 * @param weights
+	 *            the weight of each lane, must have Message.PRIORITY_LANES
+	 *            positive entries
+	 */
+	public LaneScheduler(int... weights) {
+		if (weights.length != Message.PRIORITY_LANES)
+			throw new IllegalArgumentException("Expected " + Message.PRIORITY_LANES + " lane weights");
+		for (int weight : weights)
+			if (weight <= 0)
+				throw new IllegalArgumentException("Lane weight has to be positive");
+		this.weights = weights.clone();
+		this.credits = new int[weights.length];
+	}
+
+	/**
+	 * Pick the next lane to be served
+	 * 
+	 * @param eligible
+	 *            flag for each lane, true if the lane currently has something
+	 *            to serve
+	 * @return the lane index, -1 if no lane is eligible
+	 */
+	public int next(boolean[] eligible) {
+		int lanes = 0;
+		for (int lane = 0; lane < eligible.length; lane++)
+			if (eligible[lane])
+				lanes |= 1 << lane;
+		return next(lanes);
+	}
+
+	/**
+	 * Pick the next lane to be served, without allocating
+	 * 
+	 * @param eligible
+	 *            bit set of the lanes that currently have something to serve,
+	 *            lane n being bit n
+	 * @return the lane index, -1 if no lane is eligible
+	 */
+	public synchronized int next(int eligible) {
+		int total = 0;
+		int chosen = -1;
+		for (int lane = 0; lane < weights.length; lane++) {
+			if ((eligible & (1 << lane)) == 0)
+				continue;
+			credits[lane] += weights[lane];
+			total += weights[lane];
+			if (chosen < 0 || credits[lane] > credits[chosen])
+				chosen = lane;
+		}
+		if (chosen >= 0)
+			credits[chosen] -= total;
+		return chosen;
+	}
+}
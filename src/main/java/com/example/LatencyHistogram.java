@@ -0,0 +1,185 @@
+package com.example;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Histogram of latencies with a fixed relative precision. Values below 64
+ * have a bucket of their own, larger values fall in one of 32 buckets per
+ * power of two, so any percentile is reported within about 3% of the true
+ * value with a couple of thousand counters whatever the range. Recording is
+ * lock free and safe from any thread
+ */
+public class LatencyHistogram {
+	// Values counted exactly
+	private static final int LINEAR_BUCKETS = 64;
+	// Buckets per power of two above the linear range, as a power of two
+	private static final int SUB_BUCKET_BITS = 5;
+	private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+	// Lowest power of two above the linear range
+	private static final int FIRST_EXPONENT = 6;
+	private static final int BUCKETS = LINEAR_BUCKETS + (63 - FIRST_EXPONENT) * SUB_BUCKETS;
+
+	private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+	private final AtomicLong count = new AtomicLong();
+	private final AtomicLong sum = new AtomicLong();
+	private final AtomicLong max = new AtomicLong();
+
+	/**
+	 * Record a value, a negative value being counted as 0
+	 * 
+	 * @param value
+	 *            the value, usually in microseconds
+	 */
+	public void record(long value) {
+		value = Math.max(value, 0);
+		counts.incrementAndGet(getBucket(value));
+		count.incrementAndGet();
+		sum.addAndGet(value);
+		long current;
+		while (value > (current = max.get()) && !max.compareAndSet(current, value))
+			;
+	}
+
+	/**
+	 * Add every value recorded by another histogram
+	 * 
+	 * @param other
+	 *            the other histogram
+	 */
+	public void add(LatencyHistogram other) {
+		for (int i = 0; i < BUCKETS; i++) {
+			long bucketCount = other.counts.get(i);
+			if (bucketCount != 0)
+				counts.addAndGet(i, bucketCount);
+		}
+		count.addAndGet(other.count.get());
+		sum.addAndGet(other.sum.get());
+		long current;
+		long otherMax = other.max.get();
+		while (otherMax > (current = max.get()) && !max.compareAndSet(current, otherMax))
+			;
+	}
+
+	/**
+	 * Move the values recorded so far to a new histogram, so that this one
+	 * starts a new interval. A value recorded concurrently goes to either one
+	 * 
+	 * @return the values recorded since the previous call
+	 */
+	public LatencyHistogram drain() {
+		LatencyHistogram interval = new LatencyHistogram();
+		long drained = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			long bucketCount = counts.getAndSet(i, 0);
+			if (bucketCount != 0) {
+				interval.counts.set(i, bucketCount);
+				drained += bucketCount;
+			}
+		}
+		count.addAndGet(-drained);
+		interval.count.set(drained);
+		interval.sum.set(sum.getAndSet(0));
+		interval.max.set(max.getAndSet(0));
+		return interval;
+	}
+
+	/**
+	 * @return the number of recorded values
+	 */
+	public long getCount() {
+		return count.get();
+	}
+
+	/**
+	 * @return the largest recorded value, 0 if none
+	 */
+	public long getMax() {
+		return max.get();
+	}
+
+	/**
+	 * @return the mean of the recorded values, 0 if none
+	 */
+	public double getMean() {
+		long total = count.get();
+		return (total > 0) ? (double) sum.get() / total : 0;
+	}
+
+	/**
+	 * Get the value below which a percentage of the recorded values fall
+	 * 
+	 * @param percentile
+	 *            the percentage, between 0 and 100
+	 * @return the highest value of the bucket holding the percentile, never
+	 *         above the largest recorded value, 0 if nothing is recorded
+	 */
+	public long getValueAtPercentile(double percentile) {
+		long total = 0;
+		for (int i = 0; i < BUCKETS; i++)
+			total += counts.get(i);
+		if (total == 0)
+			return 0;
+		long rank = Math.max((long) Math.ceil(percentile / 100 * total), 1);
+		long seen = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			seen += counts.get(i);
+			if (seen >= rank)
+				return Math.min(getHighestValue(i), max.get());
+		}
+		return max.get();
+	}
+
+	/**
+	 * Encode the recorded values as text, to be passed between processes
+	 * 
+	 * @return the non empty buckets followed by the sum and maximum
+	 */
+	public String encode() {
+		StringBuilder encoded = new StringBuilder();
+		encoded.append(sum.get()).append(',').append(max.get());
+		for (int i = 0; i < BUCKETS; i++) {
+			long bucketCount = counts.get(i);
+			if (bucketCount != 0)
+				encoded.append(',').append(i).append(':').append(bucketCount);
+		}
+		return encoded.toString();
+	}
+
+	/**
+	 * Decode a histogram encoded by encode()
+	 * 
+	 * @param encoded
+	 *            the encoded histogram
+	 * @return the histogram
+	 */
+	public static LatencyHistogram decode(String encoded) {
+		LatencyHistogram histogram = new LatencyHistogram();
+		String[] fields = encoded.split(",");
+		histogram.sum.set(Long.parseLong(fields[0]));
+		histogram.max.set(Long.parseLong(fields[1]));
+		for (int i = 2; i < fields.length; i++) {
+			int separator = fields[i].indexOf(':');
+			long bucketCount = Long.parseLong(fields[i].substring(separator + 1));
+			histogram.counts.set(Integer.parseInt(fields[i].substring(0, separator)), bucketCount);
+			histogram.count.addAndGet(bucketCount);
+		}
+		return histogram;
+	}
+
+	private static int getBucket(long value) {
+		if (value < LINEAR_BUCKETS)
+			return (int) value;
+		int exponent = 63 - Long.numberOfLeadingZeros(value);
+		int subBucket = (int) (value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+		return LINEAR_BUCKETS + (exponent - FIRST_EXPONENT) * SUB_BUCKETS + subBucket;
+	}
+
+	private static long getHighestValue(int bucket) {
+		if (bucket < LINEAR_BUCKETS)
+			return bucket;
+		int exponent = (bucket - LINEAR_BUCKETS) / SUB_BUCKETS + FIRST_EXPONENT;
+		long subBucket = (bucket - LINEAR_BUCKETS) % SUB_BUCKETS;
+		return ((SUB_BUCKETS + subBucket + 1) << (exponent - SUB_BUCKET_BITS)) - 1;
+	}
+}
@@ -1,5 +1,15 @@
 package com.example;
 
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
+
 /**
  * Message class for message queue
  * 
@@ -7,13 +17,87 @@ package com.example;
  *
  */
 public class Message {
-	// Content of the message
-	private String content;
-	// Current visibility of this message
-	private boolean visibility;
+	// Content of the message, decoded from payload on first use for message
+	// created from bytes
+	private volatile String content;
+	// Content of the message as bytes, encoded from content on first use for
+	// message created from string. Never modified, only read-only views of it
+	// are handed out
+	private volatile ByteBuffer payload;
+	// Whether the message was created from bytes rather than string
+	private boolean binary;
+	// Current visibility of this message as last set by its service, the
+	// in-memory service keeps the actual delivery state in state
+	private volatile boolean visibility;
+	// Priority lane of this message, lower value is served more often
+	private int priority;
+	// Delivery delay in seconds, QUEUE_DELAY to use the delay of the queue
+	private int delaySeconds = QUEUE_DELAY;
+	// Message group in FIFO queue, null if the message has no group
+	private String groupId;
+	// Id used to drop duplicate push within the deduplication window
+	private String deduplicationId;
+	// Typed attributes in the order they were set, replaced rather than
+	// modified so copies can share it, null if none
+	private Map<String, Object> attributes;
+	// How the content is stored in a record, null if stored as it is
+	private String encoding;
+	// Time the message was pushed in milliseconds, 0 if not pushed yet
+	private long enqueueTime;
+	// Time the message was first pulled in milliseconds, 0 if never pulled
+	private volatile long firstReceiveTime;
+	// Delivery state, the deleted flag followed by the time until which the
+	// message is leased or delayed and the number of times it has been
+	// pulled, only ever changed by compare and set. Lease expiry needs no
+	// update, a deadline in the past simply leaves the message available
+	private volatile long state;
+	// Time until which the record this message was read from is invisible
+	private long invisibleUntil;
+	// Partition this message was pulled from, -1 if not partitioned
+	private int partition = -1;
+	// Handle identifying a received message on a queue server, 0 if none
+	private volatile long receiptHandle;
+	// Id of the message in the journal of its queue service, 0 if none
+	private long journalId;
+	// Topic payload this message shares with the other subscribers it was
+	// published to, null if the message holds its own content on disk
+	private String sharedReference;
 
 	// Starting index for the content in record
 	private static final int RECORD_CONTENT_START_INDEX = 6;
+	// Separator between fields in record
+	private static final String RECORD_FIELD_SEPARATOR = " },";
+	// Record field keys
+	private static final char CONTENT_FIELD = 'C';
+	private static final char GROUP_FIELD = 'G';
+	private static final char ENCODING_FIELD = 'E';
+	private static final char ENQUEUE_TIME_FIELD = 'T';
+	private static final char RECEIVE_COUNT_FIELD = 'N';
+	private static final char FIRST_RECEIVE_TIME_FIELD = 'R';
+	private static final char ATTRIBUTES_FIELD = 'A';
+	// Type of each attribute in the attributes field
+	private static final char STRING_ATTRIBUTE = 'S';
+	private static final char LONG_ATTRIBUTE = 'L';
+	private static final char DOUBLE_ATTRIBUTE = 'D';
+	private static final char BOOLEAN_ATTRIBUTE = 'B';
+
+	// Priority lanes, every queue has exactly PRIORITY_LANES lanes
+	public static final int HIGH_PRIORITY = 0;
+	public static final int NORMAL_PRIORITY = 1;
+	public static final int LOW_PRIORITY = 2;
+	public static final int PRIORITY_LANES = 3;
+
+	// Delay value of a message that follows the delay configured on its queue
+	public static final int QUEUE_DELAY = -1;
+
+	// Layout of the state, a deadline of 43 bits lasts until year 2248 and
+	// the receive count saturates at about a million
+	private static final int RECEIVE_COUNT_BITS = 20;
+	private static final long RECEIVE_COUNT_MASK = (1L << RECEIVE_COUNT_BITS) - 1;
+	private static final long DEADLINE_MASK = (1L << 43) - 1;
+	private static final long DELETED = Long.MIN_VALUE;
+	private static final AtomicLongFieldUpdater<Message> STATE = AtomicLongFieldUpdater.newUpdater(Message.class,
+			"state");
 
 	/**
 	 * Create new message with specific input content By default message is
@@ -23,22 +107,109 @@ public class Message {
 	 *            the input content
 	 */
 	public Message(String content) {
-		this.content = content;
-		this.visibility = true;
+		this(content, true, NORMAL_PRIORITY);
 	}
 
 	public Message(String content, boolean visibility) {
+		this(content, visibility, NORMAL_PRIORITY);
+	}
+
+	/**
+	 * Create new visible message with specific priority
+	 * 
+	 * @param content
+	 *            the input content
+	 * @param priority
+	 *            the priority lane, out of range value is clamped to the
+	 *            nearest lane
+	 */
+	public Message(String content, int priority) {
+		this(content, true, priority);
+	}
+
+	public Message(String content, boolean visibility, int priority) {
 		this.content = content;
 		this.visibility = visibility;
+		this.priority = Math.min(Math.max(priority, HIGH_PRIORITY), PRIORITY_LANES - 1);
+	}
+
+	/**
+	 * Create new visible message with binary content. The buffer is not copied,
+	 * the message keeps a read-only view of its remaining bytes, so the caller
+	 * must not modify them afterwards
+	 * 
+	 * @param payload
+	 *            the content bytes
+	 */
+	public Message(ByteBuffer payload) {
+		this(payload, NORMAL_PRIORITY);
+	}
+
+	/**
+	 * Create new visible message with binary content and specific priority
+	 * 
+	 * @param payload
+	 *            the content bytes, not copied
+	 * @param priority
+	 *            the priority lane
+	 */
+	public Message(ByteBuffer payload, int priority) {
+		this((String) null, true, priority);
+		this.payload = payload.slice().asReadOnlyBuffer();
+		this.binary = true;
 	}
 
 	/**
-	 * Get the content of this message
+	 * Create new visible message with binary content, the array is wrapped and
+	 * not copied
+	 * 
+	 * @param payload
+	 *            the content bytes
+	 */
+	public Message(byte[] payload) {
+		this(ByteBuffer.wrap(payload));
+	}
+
+	/**
+	 * Get the content of this message. Message created from bytes decodes them
+	 * as UTF-8 on the first call only
 	 * 
 	 * @return the content
 	 */
 	public String getContent() {
-		return content;
+		String decoded = content;
+		if (decoded == null) {
+			decoded = StandardCharsets.UTF_8.decode(payload.duplicate()).toString();
+			content = decoded;
+		}
+		return decoded;
+	}
+
+	/**
+	 * Get the content of this message as bytes. The returned buffer is a new
+	 * read-only view sharing the bytes of the message, so it can be consumed
+	 * freely without copying. Message created from string encodes it as UTF-8
+	 * on the first call only
+	 * 
+	 * @return read-only view of the content bytes
+	 */
+	public ByteBuffer getPayload() {
+		ByteBuffer encoded = payload;
+		if (encoded == null) {
+			encoded = ByteBuffer.wrap(content.getBytes(StandardCharsets.UTF_8)).asReadOnlyBuffer();
+			payload = encoded;
+		}
+		return encoded.duplicate();
+	}
+
+	/**
+	 * Check if this message was created from bytes rather than string, binary
+	 * content may not be valid UTF-8 text
+	 * 
+	 * @return true if created from bytes
+	 */
+	public boolean isBinary() {
+		return binary;
 	}
 
 	/**
@@ -50,6 +221,557 @@ public class Message {
 		return visibility;
 	}
 
+	/**
+	 * Get the priority lane of this message
+	 * 
+	 * @return the priority lane
+	 */
+	public int getPriority() {
+		return priority;
+	}
+
+	/**
+	 * Get the delivery delay of this message
+	 * 
+	 * @return the delay in seconds, QUEUE_DELAY if the queue delay applies
+	 */
+	public int getDelaySeconds() {
+		return delaySeconds;
+	}
+
+	/**
+	 * Set the delivery delay of this message, the message will only become
+	 * visible after this delay once pushed. Explicit delay overrides the delay
+	 * configured on the queue, 0 included
+	 * 
+	 * @param delaySeconds
+	 *            the delay in seconds, QUEUE_DELAY to use the queue delay
+	 */
+	public void setDelaySeconds(int delaySeconds) {
+		this.delaySeconds = Math.max(delaySeconds, QUEUE_DELAY);
+	}
+
+	/**
+	 * Resolve the delay of this message against the delay of a queue
+	 * 
+	 * @param queueDelaySeconds
+	 *            the delay configured on the queue
+	 * @return the delay in milliseconds
+	 */
+	public long getEffectiveDelay(int queueDelaySeconds) {
+		int seconds = (delaySeconds == QUEUE_DELAY) ? queueDelaySeconds : delaySeconds;
+		return Math.max(seconds, 0) * 1000L;
+	}
+
+	/**
+	 * Get the message group of this message
+	 * 
+	 * @return the group id, null if the message has no group
+	 */
+	public String getGroupId() {
+		return groupId;
+	}
+
+	/**
+	 * Set the message group of this message. Messages of the same group in a
+	 * FIFO queue are delivered strictly in order, one at a time
+	 * 
+	 * @param groupId
+	 *            the group id
+	 */
+	public void setGroupId(String groupId) {
+		this.groupId = groupId;
+	}
+
+	/**
+	 * Set a text attribute, replacing any attribute of the same name
+	 * 
+	 * @param name
+	 *            the attribute name
+	 * @param value
+	 *            the value, null to remove the attribute
+	 */
+	public void setAttribute(String name, String value) {
+		putAttribute(name, value);
+	}
+
+	/**
+	 * Set an integer attribute, replacing any attribute of the same name
+	 * 
+	 * @param name
+	 *            the attribute name
+	 * @param value
+	 *            the value
+	 */
+	public void setAttribute(String name, long value) {
+		putAttribute(name, value);
+	}
+
+	/**
+	 * Set a decimal attribute, replacing any attribute of the same name
+	 * 
+	 * @param name
+	 *            the attribute name
+	 * @param value
+	 *            the value
+	 */
+	public void setAttribute(String name, double value) {
+		putAttribute(name, value);
+	}
+
+	/**
+	 * Set a boolean attribute, replacing any attribute of the same name
+	 * 
+	 * @param name
+	 *            the attribute name
+	 * @param value
+	 *            the value
+	 */
+	public void setAttribute(String name, boolean value) {
+		putAttribute(name, value);
+	}
+
+	private void putAttribute(String name, Object value) {
+		Map<String, Object> updated = (attributes != null) ? new LinkedHashMap<String, Object>(attributes)
+				: new LinkedHashMap<String, Object>();
+		if (value != null)
+			updated.put(name, value);
+		else
+			updated.remove(name);
+		attributes = updated.isEmpty() ? null : updated;
+	}
+
+	/**
+	 * Get an attribute of this message
+	 * 
+	 * @param name
+	 *            the attribute name
+	 * @return the value as String, Long, Double or Boolean, null if not set
+	 */
+	public Object getAttribute(String name) {
+		Map<String, Object> current = attributes;
+		return (current != null) ? current.get(name) : null;
+	}
+
+	/**
+	 * @return every attribute of this message in the order they were set,
+	 *         read-only
+	 */
+	public Map<String, Object> getAttributes() {
+		Map<String, Object> current = attributes;
+		return (current != null) ? Collections.unmodifiableMap(current) : Collections.<String, Object> emptyMap();
+	}
+
+	/**
+	 * Get the text form of an attribute, which selectors and attribute indexes
+	 * match against. Decimal without fraction is written as an integer, so 5
+	 * and 5.0 match the same selector
+	 * 
+	 * @param name
+	 *            the attribute name
+	 * @return the text, null if not set
+	 */
+	String getAttributeText(String name) {
+		Object value = getAttribute(name);
+		if (value instanceof Double) {
+			double number = (Double) value;
+			if (number == Math.rint(number) && Math.abs(number) < 1L << 53)
+				return Long.toString((long) number);
+		}
+		return (value != null) ? value.toString() : null;
+	}
+
+	/**
+	 * Get the deduplication id of this message
+	 * 
+	 * @return the deduplication id, null if not set
+	 */
+	public String getDeduplicationId() {
+		return deduplicationId;
+	}
+
+	/**
+	 * Set the deduplication id of this message. On a queue with deduplication
+	 * window, a push with an id already pushed within the window is dropped
+	 * 
+	 * @param deduplicationId
+	 *            the deduplication id
+	 */
+	public void setDeduplicationId(String deduplicationId) {
+		this.deduplicationId = deduplicationId;
+	}
+
+	/**
+	 * Get the time this message was pushed
+	 * 
+	 * @return the time in milliseconds since epoch, 0 if not pushed yet or
+	 *         read from a record written before enqueue time was recorded
+	 */
+	public long getEnqueueTime() {
+		return enqueueTime;
+	}
+
+	void setEnqueueTime(long enqueueTime) {
+		this.enqueueTime = enqueueTime;
+	}
+
+	/**
+	 * Get the time this message was pulled for the first time, so that the
+	 * time it waited in its queue before its first delivery is known even
+	 * after it has been delivered again
+	 * 
+	 * @return the time in milliseconds since epoch, 0 if never pulled or read
+	 *         from a record written before first receive time was recorded
+	 */
+	public long getFirstReceiveTime() {
+		return firstReceiveTime;
+	}
+
+	void setFirstReceiveTime(long firstReceiveTime) {
+		this.firstReceiveTime = firstReceiveTime;
+	}
+
+	/**
+	 * Record a pull of this message, keeping the time of the first one. Only
+	 * called by the service that claimed the message, so no other pull races
+	 * with it
+	 * 
+	 * @param now
+	 *            the current time in milliseconds
+	 */
+	void markReceived(long now) {
+		if (firstReceiveTime == 0)
+			firstReceiveTime = now;
+	}
+
+	/**
+	 * Get the number of times this message has been pulled
+	 * 
+	 * @return the receive count, 0 if never pulled
+	 */
+	public int getReceiveCount() {
+		return getReceiveCount(state);
+	}
+
+	void incrementReceiveCount() {
+		long current;
+		do {
+			current = state;
+		} while (!STATE.compareAndSet(this, current, withReceiveCount(current, getReceiveCount(current) + 1)));
+	}
+
+	void setReceiveCount(int receiveCount) {
+		long current;
+		do {
+			current = state;
+		} while (!STATE.compareAndSet(this, current, withReceiveCount(current, receiveCount)));
+	}
+
+	/**
+	 * Reset the delivery state of a message being pushed to an in-memory
+	 * queue, keeping its receive count
+	 * 
+	 * @param deadline
+	 *            the end of its delivery delay, 0 if none
+	 */
+	void resetState(long deadline) {
+		long current;
+		do {
+			current = state;
+		} while (!STATE.compareAndSet(this, current, pack(deadline, getReceiveCount(current))));
+	}
+
+	/**
+	 * Make a message being pushed to an in-memory queue deliverable, unless it
+	 * has been deleted while it was kept pending by resetState()
+	 * 
+	 * @param deadline
+	 *            the end of its delivery delay, 0 if none
+	 * @return true if deliverable, false if deleted
+	 */
+	boolean activate(long deadline) {
+		long current;
+		do {
+			current = state;
+			if (current < 0)
+				return false;
+		} while (!STATE.compareAndSet(this, current, pack(deadline, getReceiveCount(current))));
+		return true;
+	}
+
+	/**
+	 * Check whether a message of an in-memory queue can be leased, that is
+	 * neither deleted nor leased or delayed beyond the given time
+	 * 
+	 * @param now
+	 *            the current time in milliseconds
+	 * @return true if available
+	 */
+	boolean isAvailable(long now) {
+		long current = state;
+		return current >= 0 && getDeadline(current) <= now;
+	}
+
+	/**
+	 * Check whether a message of an in-memory queue has been pulled and is
+	 * leased beyond the given time
+	 * 
+	 * @param now
+	 *            the current time in milliseconds
+	 * @return true if in flight
+	 */
+	boolean isLeased(long now) {
+		long current = state;
+		return current >= 0 && getDeadline(current) > now && getReceiveCount(current) > 0;
+	}
+
+	boolean isDeleted() {
+		return state < 0;
+	}
+
+	/**
+	 * Get the end of the lease or delay of a message of an in-memory queue
+	 * 
+	 * @return the time in milliseconds, in the past or 0 if available
+	 */
+	long getLeaseDeadline() {
+		return getDeadline(state);
+	}
+
+	/**
+	 * Claim an available message until a deadline and count the receive. A
+	 * single compare and set, failing only if another thread claimed or
+	 * deleted the message first
+	 * 
+	 * @param now
+	 *            the current time in milliseconds
+	 * @param deadline
+	 *            the time in milliseconds at which the lease expires
+	 * @return true if claimed, false if not available
+	 */
+	boolean lease(long now, long deadline) {
+		long current = state;
+		return current >= 0 && getDeadline(current) <= now
+				&& STATE.compareAndSet(this, current, pack(deadline, getReceiveCount(current) + 1));
+	}
+
+	/**
+	 * Move the deadline of a message leased beyond the given time
+	 * 
+	 * @param now
+	 *            the current time in milliseconds
+	 * @param deadline
+	 *            the new deadline, at or before now to make it available
+	 * @return true if the message was leased, false otherwise
+	 */
+	boolean renewLease(long now, long deadline) {
+		long current;
+		do {
+			current = state;
+			if (current < 0 || getDeadline(current) <= now || getReceiveCount(current) == 0)
+				return false;
+		} while (!STATE.compareAndSet(this, current, pack(deadline, getReceiveCount(current))));
+		return true;
+	}
+
+	/**
+	 * Mark a message deleted, after which it can neither be leased nor made
+	 * available again
+	 * 
+	 * @return true if it was not deleted yet
+	 */
+	boolean markDeleted() {
+		long current;
+		do {
+			current = state;
+			if (current < 0)
+				return false;
+		} while (!STATE.compareAndSet(this, current, current | DELETED));
+		return true;
+	}
+
+	private static long pack(long deadline, int receiveCount) {
+		return (Math.max(deadline, 0) & DEADLINE_MASK) << RECEIVE_COUNT_BITS
+				| Math.min(Math.max(receiveCount, 0), RECEIVE_COUNT_MASK);
+	}
+
+	private static long withReceiveCount(long state, int receiveCount) {
+		return (state & DELETED) | pack(getDeadline(state), receiveCount);
+	}
+
+	private static long getDeadline(long state) {
+		return (state >>> RECEIVE_COUNT_BITS) & DEADLINE_MASK;
+	}
+
+	private static int getReceiveCount(long state) {
+		return (int) (state & RECEIVE_COUNT_MASK);
+	}
+
+	/**
+	 * Get the time until which the record this message was read from is
+	 * invisible
+	 * 
+	 * @return the time in milliseconds since epoch, 0 for visible record or
+	 *         message not read from a record
+	 */
+	long getInvisibleUntil() {
+		return invisibleUntil;
+	}
+
+	/**
+	 * Get the partition this message was pulled from
+	 * 
+	 * @return the partition index, -1 if not pulled from a partitioned queue
+	 */
+	int getPartition() {
+		return partition;
+	}
+
+	void setPartition(int partition) {
+		this.partition = partition;
+	}
+
+	/**
+	 * Get the handle a queue server gave to this message when it was
+	 * received, used to delete it remotely
+	 * 
+	 * @return the handle, 0 if not received through a queue server
+	 */
+	long getReceiptHandle() {
+		return receiptHandle;
+	}
+
+	void setReceiptHandle(long receiptHandle) {
+		this.receiptHandle = receiptHandle;
+	}
+
+	/**
+	 * Get the id QueueJournal gave to this message when it was pushed, used
+	 * to match its later leases and deletion
+	 * 
+	 * @return the id, 0 if not pushed to a journaled queue
+	 */
+	long getJournalId() {
+		return journalId;
+	}
+
+	void setJournalId(long journalId) {
+		this.journalId = journalId;
+	}
+
+	/**
+	 * Get the topic payload file this message shares, as the topic name and
+	 * the payload reference separated by '/'. Set on the copy a file topic
+	 * publishes and on message pulled from a record pointing to the payload
+	 * 
+	 * @return the reference, null if the content is not shared on disk
+	 */
+	String getSharedReference() {
+		return sharedReference;
+	}
+
+	void setSharedReference(String sharedReference) {
+		this.sharedReference = sharedReference;
+	}
+
+	/**
+	 * Create a copy of this message for one subscriber queue of a topic. The
+	 * copy has its own delivery state but shares the content and the bytes of
+	 * this message, nothing is copied
+	 * 
+	 * @param sharedReference
+	 *            the topic payload file holding the content, null if the
+	 *            content is only shared in memory
+	 * @return the copy
+	 */
+	Message copyShared(String sharedReference) {
+		Message copy = new Message(content, visibility, priority);
+		copy.payload = payload;
+		copy.binary = binary;
+		copyAttributes(copy);
+		copy.sharedReference = sharedReference;
+		return copy;
+	}
+
+	/**
+	 * Get the message a service pushes in place of this one. A message pushed
+	 * or received before may still be in a queue, so it is pushed as a copy
+	 * sharing its content and attributes but with its own delivery state,
+	 * visible and never received
+	 * 
+	 * @return this message if never pushed, its copy otherwise
+	 */
+	Message toPush() {
+		if (enqueueTime == 0 && getReceiveCount() == 0)
+			return this;
+		Message copy = copyShared(sharedReference);
+		copy.visibility = true;
+		copy.partition = -1;
+		copy.firstReceiveTime = 0;
+		copy.state = 0;
+		return copy;
+	}
+
+	/**
+	 * Get the storage encoding of the content, only set on message read from
+	 * or about to be written to a record with encoded content
+	 * 
+	 * @return the encoding, null if content is stored as it is
+	 */
+	String getEncoding() {
+		return encoding;
+	}
+
+	/**
+	 * Create a copy of this message with a different content, keeping every
+	 * other attribute. Used to switch between the original content and its
+	 * stored form
+	 * 
+	 * @param content
+	 *            the new content
+	 * @param encoding
+	 *            the storage encoding of the new content, null if none
+	 * @return the copy
+	 */
+	Message copyWithContent(String content, String encoding) {
+		Message copy = new Message(content, visibility, priority);
+		copyAttributes(copy);
+		copy.encoding = encoding;
+		return copy;
+	}
+
+	/**
+	 * Create a copy of this message with a different content given as bytes,
+	 * keeping every other attribute. The buffer is not copied
+	 * 
+	 * @param payload
+	 *            the new content bytes
+	 * @param binary
+	 *            true if the content originally came from bytes, false if the
+	 *            bytes are UTF-8 text
+	 * @return the copy
+	 */
+	Message copyWithPayload(ByteBuffer payload, boolean binary) {
+		Message copy = new Message(payload, priority);
+		copy.visibility = visibility;
+		copy.binary = binary;
+		copyAttributes(copy);
+		return copy;
+	}
+
+	private void copyAttributes(Message copy) {
+		copy.delaySeconds = delaySeconds;
+		copy.groupId = groupId;
+		copy.deduplicationId = deduplicationId;
+		copy.enqueueTime = enqueueTime;
+		copy.firstReceiveTime = firstReceiveTime;
+		copy.state = pack(0, getReceiveCount());
+		copy.invisibleUntil = invisibleUntil;
+		copy.partition = partition;
+		copy.sharedReference = sharedReference;
+		copy.attributes = attributes;
+	}
+
 	/**
 	 * Set this message to be visible
 	 */
@@ -70,7 +792,7 @@ public class Message {
 	 * @return the record string
 	 */
 	public String createVisibleRecord() {
-		return "{ V : " + Long.toString(0) + " },{ C : " + content + " }";
+		return createRecord(0);
 	}
 
 	/**
@@ -81,8 +803,96 @@ public class Message {
 	 * @return the record string
 	 */
 	public String createInvisibleRecord(long invisDuration) {
-		long timeLimit = System.currentTimeMillis() + invisDuration;
-		return "{ V : " + Long.toString(timeLimit) + " },{ C : " + content + " }";
+		return createRecord(System.currentTimeMillis() + invisDuration);
+	}
+
+	/**
+	 * Create a text record that will be invisible until an absolute time, used
+	 * both for visibility timeout and delayed delivery
+	 * 
+	 * @param timeLimit
+	 *            the time in milliseconds since epoch until which the message
+	 *            is invisible, 0 for visible record
+	 * @return the record string
+	 */
+	public String createRecord(long timeLimit) {
+		StringBuilder record = new StringBuilder("{ V : ").append(timeLimit).append(RECORD_FIELD_SEPARATOR);
+		if (groupId != null)
+			appendField(record, GROUP_FIELD, groupId);
+		if (encoding != null)
+			appendField(record, ENCODING_FIELD, encoding);
+		if (enqueueTime != 0)
+			appendField(record, ENQUEUE_TIME_FIELD, Long.toString(enqueueTime));
+		int receiveCount = getReceiveCount();
+		if (receiveCount != 0)
+			appendField(record, RECEIVE_COUNT_FIELD, Integer.toString(receiveCount));
+		if (firstReceiveTime != 0)
+			appendField(record, FIRST_RECEIVE_TIME_FIELD, Long.toString(firstReceiveTime));
+		if (attributes != null)
+			appendField(record, ATTRIBUTES_FIELD, encodeAttributes());
+		// Content is always the last field, so it can contain anything
+		return record.append("{ C : ").append(getContent()).append(" }").toString();
+	}
+
+	/**
+	 * Write the attributes as text for the attributes field, each attribute
+	 * being its URL encoded name, '=', its type and its URL encoded value,
+	 * separated by '&'
+	 */
+	private String encodeAttributes() {
+		StringBuilder encoded = new StringBuilder();
+		try {
+			for (Map.Entry<String, Object> attribute : attributes.entrySet()) {
+				Object value = attribute.getValue();
+				char type = (value instanceof Long) ? LONG_ATTRIBUTE
+						: (value instanceof Double) ? DOUBLE_ATTRIBUTE
+								: (value instanceof Boolean) ? BOOLEAN_ATTRIBUTE : STRING_ATTRIBUTE;
+				if (encoded.length() > 0)
+					encoded.append('&');
+				encoded.append(URLEncoder.encode(attribute.getKey(), "UTF-8")).append('=').append(type)
+						.append(URLEncoder.encode(value.toString(), "UTF-8"));
+			}
+		} catch (UnsupportedEncodingException e) {
+			throw new IllegalStateException(e);
+		}
+		return encoded.toString();
+	}
+
+	/**
+	 * Read the attributes written by encodeAttributes()
+	 */
+	private void decodeAttributes(String encoded) throws UnsupportedEncodingException {
+		for (String attribute : encoded.split("&")) {
+			int separator = attribute.indexOf('=');
+			String name = URLDecoder.decode(attribute.substring(0, separator), "UTF-8");
+			String value = URLDecoder.decode(attribute.substring(separator + 2), "UTF-8");
+			switch (attribute.charAt(separator + 1)) {
+			case LONG_ATTRIBUTE:
+				putAttribute(name, Long.parseLong(value));
+				break;
+			case DOUBLE_ATTRIBUTE:
+				putAttribute(name, Double.parseDouble(value));
+				break;
+			case BOOLEAN_ATTRIBUTE:
+				putAttribute(name, Boolean.parseBoolean(value));
+				break;
+			default:
+				putAttribute(name, value);
+			}
+		}
+	}
+
+	/**
+	 * Append an optional field to a record, value is URL encoded so that it
+	 * never contains the field separator
+	 */
+	private static void appendField(StringBuilder record, char key, String value) {
+		try {
+			record.append("{ ").append(key).append(" : ").append(URLEncoder.encode(value, "UTF-8"))
+					.append(RECORD_FIELD_SEPARATOR);
+		} catch (UnsupportedEncodingException e) {
+			throw new IllegalStateException(e);
+		}
 	}
 
 	/**
@@ -97,6 +907,36 @@ public class Message {
 	 * @return
 	 */
 	public static Message createMessageFromRecord(String record) {
+		return createMessageFromRecord(record, NORMAL_PRIORITY);
+	}
+
+	/**
+	 * Create a message object based on certain string record that was read
+	 * from a specific priority lane
+	 * 
+	 * @param record
+	 *            the string record
+	 * @param priority
+	 *            the priority lane the record was read from
+	 * @return the message
+	 */
+	public static Message createMessageFromRecord(String record, int priority) {
+		return createMessageFromRecord(record, priority, System.currentTimeMillis());
+	}
+
+	/**
+	 * Create a message object based on certain string record, visibility is
+	 * evaluated against the given time
+	 * 
+	 * @param record
+	 *            the string record
+	 * @param priority
+	 *            the priority lane the record was read from
+	 * @param now
+	 *            the current time in milliseconds
+	 * @return the message
+	 */
+	public static Message createMessageFromRecord(String record, int priority, long now) {
 		// Split only on the first occurrence of comma, this method is
 		// consistent regardless of the content of the message
 		String[] str = record.split(",", 2);
@@ -107,8 +947,55 @@ public class Message {
 			e.printStackTrace();
 			invisibleTime = 0;
 		}
-		boolean visibility = invisibleTime < System.currentTimeMillis();
-		String content = str[1].substring(RECORD_CONTENT_START_INDEX, str[1].length() - 2);
-		return new Message(content, visibility);
+		boolean visibility = invisibleTime <= now;
+		// Optional fields come before the content
+		String rest = str[1];
+		String groupId = null;
+		String encoding = null;
+		long enqueueTime = 0;
+		int receiveCount = 0;
+		long firstReceiveTime = 0;
+		String attributes = null;
+		while (rest.charAt(2) != CONTENT_FIELD) {
+			int end = rest.indexOf(RECORD_FIELD_SEPARATOR);
+			String value = rest.substring(RECORD_CONTENT_START_INDEX, end);
+			try {
+				if (rest.charAt(2) == GROUP_FIELD)
+					groupId = URLDecoder.decode(value, "UTF-8");
+				else if (rest.charAt(2) == ENCODING_FIELD)
+					encoding = URLDecoder.decode(value, "UTF-8");
+				else if (rest.charAt(2) == ENQUEUE_TIME_FIELD)
+					enqueueTime = Long.parseLong(value);
+				else if (rest.charAt(2) == RECEIVE_COUNT_FIELD)
+					receiveCount = Integer.parseInt(value);
+				else if (rest.charAt(2) == FIRST_RECEIVE_TIME_FIELD)
+					firstReceiveTime = Long.parseLong(value);
+				else if (rest.charAt(2) == ATTRIBUTES_FIELD)
+					attributes = URLDecoder.decode(value, "UTF-8");
+			} catch (UnsupportedEncodingException e) {
+				throw new IllegalStateException(e);
+			} catch (NumberFormatException e) {
+				e.printStackTrace();
+			}
+			rest = rest.substring(end + RECORD_FIELD_SEPARATOR.length());
+		}
+		String content = rest.substring(RECORD_CONTENT_START_INDEX, rest.length() - 2);
+		Message message = new Message(content, visibility, priority);
+		message.setGroupId(groupId);
+		message.encoding = encoding;
+		message.enqueueTime = enqueueTime;
+		message.firstReceiveTime = firstReceiveTime;
+		message.state = pack(0, receiveCount);
+		message.invisibleUntil = invisibleTime;
+		if (attributes != null) {
+			try {
+				message.decodeAttributes(attributes);
+			} catch (UnsupportedEncodingException e) {
+				throw new IllegalStateException(e);
+			} catch (RuntimeException e) {
+				e.printStackTrace();
+			}
+		}
+		return message;
 	}
 }
@@ -0,0 +1,168 @@
+package com.example;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.function.Predicate;
+
+/**
+ * Filter of a topic subscription or selector of a pull, deciding which
+ * messages a consumer gets. A filter is written as text, so a file topic can
+ * keep it in its subscription file: terms separated by '&' that must all
+ * match, each term being a field name, an operator and the accepted values
+ * separated by '|'. Fields are "group" for the message group, "priority" for
+ * the priority lane, "prefix" for the start of the content and "attribute."
+ * followed by a name for a message attribute. The operator is '=' for an
+ * exact value, or '^=' for a value starting with one of the given prefixes,
+ * for instance "group=orders|refunds&attribute.region^=eu-". An empty filter
+ * accepts every message
+ */
+public class MessageFilter implements Predicate<Message> {
+	public static final String GROUP = "group";
+	public static final String PRIORITY = "priority";
+	public static final String PREFIX = "prefix";
+	// Field prefix of a message attribute
+	public static final String ATTRIBUTE = "attribute.";
+
+	// Filter accepting every message
+	public static final MessageFilter ALL = new MessageFilter(Collections.<Term> emptyList());
+
+	private final List<Term> terms;
+
+	private MessageFilter(List<Term> terms) {
+		this.terms = terms;
+	}
+
+	/**
+	 * Parse a filter written as text
+	 * 
+	 * @param filter
+	 *            the filter text, null or empty to accept every message
+	 * @return the filter
+	 * @throws IllegalArgumentException
+	 *             if a term is malformed or names an unknown field
+	 */
+	public static MessageFilter parse(String filter) {
+		if (filter == null || filter.trim().isEmpty())
+			return ALL;
+		List<Term> terms = new ArrayList<Term>();
+		Set<String> fields = new LinkedHashSet<String>();
+		for (String term : filter.split("&")) {
+			int separator = term.indexOf('=');
+			if (separator <= 0)
+				throw new IllegalArgumentException("Malformed filter term: " + term);
+			boolean prefix = term.charAt(separator - 1) == '^';
+			String field = term.substring(0, prefix ? separator - 1 : separator).trim();
+			String attribute = field.startsWith(ATTRIBUTE) ? field.substring(ATTRIBUTE.length()) : null;
+			if (attribute != null ? attribute.isEmpty()
+					: !field.equals(GROUP) && !field.equals(PRIORITY) && !field.equals(PREFIX))
+				throw new IllegalArgumentException("Unknown filter field: " + field);
+			if (prefix && (field.equals(PRIORITY) || field.equals(PREFIX)))
+				throw new IllegalArgumentException("Prefix match not supported on field: " + field);
+			if (!fields.add(field + (prefix ? "^" : "")))
+				throw new IllegalArgumentException("Duplicate filter field: " + field);
+			terms.add(new Term(field, attribute, prefix,
+					new LinkedHashSet<String>(Arrays.asList(term.substring(separator + 1).split("\\|")))));
+		}
+		return new MessageFilter(terms);
+	}
+
+	/**
+	 * Check if a message passes every term of the filter
+	 * 
+	 * @param message
+	 *            the message
+	 * @return true if the consumer should get it
+	 */
+	@Override
+	public boolean test(Message message) {
+		for (Term term : terms)
+			if (!term.test(message))
+				return false;
+		return true;
+	}
+
+	/**
+	 * @return true if this filter accepts every message
+	 */
+	public boolean isEmpty() {
+		return terms.isEmpty();
+	}
+
+	/**
+	 * @return true if a term looks at the content, which then has to be
+	 *         decoded before testing a stored message
+	 */
+	boolean testsContent() {
+		for (Term term : terms)
+			if (term.field.equals(PREFIX))
+				return true;
+		return false;
+	}
+
+	/**
+	 * @return the terms, used by AttributeIndex to pick the candidates of a
+	 *         selector
+	 */
+	List<Term> getTerms() {
+		return terms;
+	}
+
+	/**
+	 * @return the filter as text, as accepted by parse()
+	 */
+	@Override
+	public String toString() {
+		StringBuilder filter = new StringBuilder();
+		for (Term term : terms) {
+			if (filter.length() > 0)
+				filter.append('&');
+			filter.append(term.field).append(term.prefix ? "^=" : "=").append(String.join("|", term.values));
+		}
+		return filter.toString();
+	}
+
+	/**
+	 * Single term of a filter
+	 */
+	static class Term {
+		final String field;
+		// Attribute name, null for the other fields
+		final String attribute;
+		// Whether the values are prefixes rather than exact values
+		final boolean prefix;
+		final Set<String> values;
+
+		private Term(String field, String attribute, boolean prefix, Set<String> values) {
+			this.field = field;
+			this.attribute = attribute;
+			this.prefix = prefix;
+			this.values = values;
+		}
+
+		private boolean test(Message message) {
+			String value;
+			if (attribute != null)
+				value = message.getAttributeText(attribute);
+			else if (field.equals(GROUP))
+				value = message.getGroupId();
+			else if (field.equals(PRIORITY))
+				value = Integer.toString(message.getPriority());
+			else
+				return startsWith(message.getContent());
+			if (value == null)
+				return false;
+			return prefix ? startsWith(value) : values.contains(value);
+		}
+
+		private boolean startsWith(String value) {
+			for (String start : values)
+				if (value.startsWith(start))
+					return true;
+			return false;
+		}
+	}
+}
@@ -0,0 +1,218 @@
+package com.example;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Deliverable messages of a single in-memory FIFO queue. Messages are kept in
+ * order per message group and only the head of a group can be delivered, so
+ * a group has at most one message in flight. Groups whose head is ready are
+ * kept in their own deque, which makes a pull independent of both the number
+ * of groups and the number of messages waiting behind a message in flight.
+ * Priority is ignored in FIFO queue, and delivery delay is applied before the
+ * message joins its group, so only a delay shared by the whole queue keeps
+ * the push order
+ */
+public class MessageGroups implements DeliveryIndex {
+	// Group used for messages pushed without group id
+	public static final String DEFAULT_GROUP = "";
+
+	// Pending messages of each group in push order, head may be in flight
+	private final Map<String, Deque<Message>> groups = new HashMap<String, Deque<Message>>();
+	// Groups whose head message is visible, may contain stale entries which
+	// are skipped on poll
+	private final Deque<String> readyGroups = new ArrayDeque<String>();
+	private final DeadlineQueue<Message> leases = new DeadlineQueue<Message>();
+	private final DeadlineQueue<Message> delays = new DeadlineQueue<Message>();
+	// Number of messages in every group, in flight heads included
+	private int pendingCount;
+
+	@Override
+	public synchronized void offer(Message message) {
+		String group = getGroup(message);
+		Deque<Message> pending = groups.get(group);
+		if (pending == null) {
+			pending = new ArrayDeque<Message>();
+			groups.put(group, pending);
+		}
+		pending.addLast(message);
+		pendingCount++;
+		if (pending.size() == 1)
+			readyGroups.addLast(group);
+	}
+
+	/**
+	 * The message is still the head of its group, so only the group has to be
+	 * marked ready again
+	 */
+	@Override
+	public synchronized void offerFirst(Message message) {
+		String group = getGroup(message);
+		Deque<Message> pending = groups.get(group);
+		if (pending != null && pending.peekFirst() == message)
+			readyGroups.addFirst(group);
+	}
+
+	@Override
+	public void lease(Message message, long deadline) {
+		leases.schedule(message, deadline);
+	}
+
+	/**
+	 * The message joins its group as the head in flight, so the group is not
+	 * ready until the lease expires or the message is deleted
+	 */
+	@Override
+	public void offerLeased(Message message, long deadline) {
+		synchronized (this) {
+			String group = getGroup(message);
+			Deque<Message> pending = groups.get(group);
+			if (pending == null) {
+				pending = new ArrayDeque<Message>();
+				groups.put(group, pending);
+			}
+			pending.addLast(message);
+			pendingCount++;
+		}
+		leases.schedule(message, deadline);
+	}
+
+	@Override
+	public void delay(Message message, long deadline) {
+		delays.schedule(message, deadline);
+	}
+
+	@Override
+	public void cancel(Message message) {
+		leases.cancel(message);
+		delays.cancel(message);
+	}
+
+	/**
+	 * Delays that are due join their group, expired leases make their group
+	 * ready again, unless the message has been deleted or claimed again
+	 * meanwhile
+	 */
+	@Override
+	public void release(long now) {
+		Message message;
+		while ((message = delays.pollDue(now)) != null) {
+			if (message.isAvailable(now)) {
+				message.setVisible();
+				offer(message);
+			}
+		}
+		// Expired leases go back to the head in the order they were leased
+		List<Message> expired = null;
+		while ((message = leases.pollDue(now)) != null) {
+			if (expired == null)
+				expired = new ArrayList<Message>();
+			expired.add(message);
+		}
+		for (int i = (expired != null) ? expired.size() - 1 : -1; i >= 0; i--) {
+			message = expired.get(i);
+			if (message.isAvailable(now)) {
+				message.setVisible();
+				offerFirst(message);
+			}
+		}
+	}
+
+	@Override
+	public Message poll(long now) {
+		release(now);
+		synchronized (this) {
+			String group;
+			while ((group = readyGroups.pollFirst()) != null) {
+				Deque<Message> pending = groups.get(group);
+				if (pending == null || pending.isEmpty())
+					continue;
+				Message head = pending.peekFirst();
+				// Head already in flight from a duplicate ready entry
+				if (!head.isAvailable(now))
+					continue;
+				return head;
+			}
+			return null;
+		}
+	}
+
+	/**
+	 * Only the head of a group can be delivered, so a selector never breaks
+	 * the order of a group
+	 */
+	@Override
+	public synchronized boolean canDeliver(Message message) {
+		Deque<Message> pending = groups.get(getGroup(message));
+		return pending != null && pending.peekFirst() == message;
+	}
+
+	/**
+	 * The head stays in its group while in flight, and the ready entry of
+	 * the group is skipped on poll
+	 */
+	@Override
+	public void take(Message message) {
+	}
+
+	/**
+	 * Remove a deleted message from its group. Deleting the message in flight
+	 * releases the group, so the next message of the group becomes ready
+	 */
+	@Override
+	public boolean remove(Message message) {
+		boolean leased = leases.cancel(message);
+		delays.cancel(message);
+		synchronized (this) {
+			String group = getGroup(message);
+			Deque<Message> pending = groups.get(group);
+			if (pending == null)
+				return false;
+			boolean inFlight = leased && pending.peekFirst() == message;
+			if (!pending.remove(message))
+				return false;
+			pendingCount--;
+			if (pending.isEmpty())
+				groups.remove(group);
+			else if (inFlight)
+				readyGroups.addLast(group);
+			return true;
+		}
+	}
+
+	/**
+	 * Messages waiting behind the head of their group count as visible, as
+	 * they are not held back by a lease or a delay
+	 */
+	@Override
+	public synchronized int visibleSize() {
+		return pendingCount - leases.size();
+	}
+
+	@Override
+	public int leasedSize() {
+		return leases.size();
+	}
+
+	@Override
+	public int delayedSize() {
+		return delays.size();
+	}
+
+	@Override
+	public synchronized void clear() {
+		groups.clear();
+		readyGroups.clear();
+		pendingCount = 0;
+		leases.clear();
+		delays.clear();
+	}
+
+	private String getGroup(Message message) {
+		return (message.getGroupId() != null) ? message.getGroupId() : DEFAULT_GROUP;
+	}
+}
@@ -0,0 +1,255 @@
+package com.example;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Clock;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.google.common.hash.Hashing;
+
+/**
+ * Queue service splitting every queue into partitions, each partition being a
+ * file queue under its own root directory. Placing the root directories on
+ * different disks spreads both the I/O and the queue lock of a queue over the
+ * partitions. Message with a key, its group id or else its deduplication id,
+ * always goes to the same partition, so group ordering and deduplication by
+ * id hold as they do on a single file queue. Message without key is spread
+ * round robin. Content based deduplication only applies within a partition
+ */
+public class PartitionedQueueService implements QueueService {
+	private final FileQueueService[] partitions;
+	// Next partition for message without key
+	private final AtomicInteger pushCursor = new AtomicInteger();
+	// First partition tried by the next pull, so that concurrent consumers
+	// start on different partitions
+	private final AtomicInteger pullCursor = new AtomicInteger();
+
+	/**
+	 * Create the service with one partition per root directory
+	 * 
+	 * @param directories
+	 *            the root directory of each partition
+	 */
+	public PartitionedQueueService(String... directories) {
+		this(Clock.systemUTC(), directories);
+	}
+
+	/**
+	 * Create the service with specific clock and one partition per root
+	 * directory
+	 * 
+	 * @param clock
+	 *            the clock
+	 * @param directories
+	 *            the root directory of each partition
+	 */
+	public PartitionedQueueService(Clock clock, String... directories) {
+		if (directories.length == 0)
+			throw new IllegalArgumentException("At least one partition directory is required");
+		partitions = new FileQueueService[directories.length];
+		for (int i = 0; i < directories.length; i++)
+			partitions[i] = new FileQueueService(clock, directories[i]);
+	}
+
+	/**
+	 * Push a message to the partition of its key, or to the next partition in
+	 * round robin if it has none
+	 */
+	@Override
+	public boolean push(String queue, Message message) {
+		String key = (message.getGroupId() != null) ? message.getGroupId() : message.getDeduplicationId();
+		return push(queue, message, key);
+	}
+
+	/**
+	 * Push a message to the partition of an explicit key
+	 * 
+	 * @param queue
+	 *            the queue name
+	 * @param message
+	 *            the message
+	 * @param key
+	 *            the partition key, null for round robin
+	 * @return true if successfully pushed, false otherwise
+	 */
+	public boolean push(String queue, Message message, String key) {
+		return partitions[getPartition(key)].push(queue, message);
+	}
+
+	/**
+	 * Get the partition of a key. Consistent hashing keeps most keys on their
+	 * partition if the number of partitions changes
+	 * 
+	 * @param key
+	 *            the partition key, null for round robin
+	 * @return the partition index
+	 */
+	public int getPartition(String key) {
+		if (key == null)
+			return Math.floorMod(pushCursor.getAndIncrement(), partitions.length);
+		return Hashing.consistentHash(Hashing.murmur3_32().hashString(key, StandardCharsets.UTF_8),
+				partitions.length);
+	}
+
+	/**
+	 * Pull from the partitions in turn, starting from a different partition
+	 * on every call so that consumers drain the partitions in parallel
+	 */
+	@Override
+	public Message pull(String queue) {
+		int start = Math.floorMod(pullCursor.getAndIncrement(), partitions.length);
+		for (int i = 0; i < partitions.length; i++) {
+			Message message = pull(queue, (start + i) % partitions.length);
+			if (message != null)
+				return message;
+		}
+		return null;
+	}
+
+	/**
+	 * Pull from a single partition, for consumer dedicated to a partition
+	 * 
+	 * @param queue
+	 *            the queue name
+	 * @param partition
+	 *            the partition index
+	 * @return the message, null if the partition has no visible message
+	 */
+	public Message pull(String queue, int partition) {
+		Message message = partitions[partition].pull(queue);
+		if (message != null)
+			message.setPartition(partition);
+		return message;
+	}
+
+	/**
+	 * Delete a message from the partition it was pulled from. Message that was
+	 * not pulled from this service is looked up through its key, and deleted
+	 * from every partition if it has none, succeeding if any partition held it
+	 */
+	@Override
+	public boolean delete(String queue, Message message) {
+		int partition = message.getPartition();
+		if (partition >= 0 && partition < partitions.length)
+			return partitions[partition].delete(queue, message);
+		String key = (message.getGroupId() != null) ? message.getGroupId() : message.getDeduplicationId();
+		if (key != null)
+			return partitions[getPartition(key)].delete(queue, message);
+		boolean deleted = false;
+		for (FileQueueService service : partitions)
+			deleted |= service.delete(queue, message);
+		return deleted;
+	}
+
+	/**
+	 * Sum the attributes of every partition, the oldest message being the
+	 * oldest of all partitions
+	 */
+	@Override
+	public QueueAttributes getQueueAttributes(String queue) {
+		long visible = 0;
+		long inFlight = 0;
+		long delayed = 0;
+		long age = 0;
+		for (FileQueueService service : partitions) {
+			QueueAttributes attributes = service.getQueueAttributes(queue);
+			if (attributes == null)
+				return null;
+			visible += attributes.getVisibleMessages();
+			inFlight += attributes.getInFlightMessages();
+			delayed += attributes.getDelayedMessages();
+			long partitionAge = attributes.getOldestMessageAge();
+			if (partitionAge == QueueAttributes.UNKNOWN_AGE || age == QueueAttributes.UNKNOWN_AGE)
+				age = QueueAttributes.UNKNOWN_AGE;
+			else
+				age = Math.max(age, partitionAge);
+		}
+		return new QueueAttributes(visible, inFlight, delayed, age);
+	}
+
+	/**
+	 * Create a queue in every partition
+	 * 
+	 * @param queue
+	 *            the queue name
+	 * @return true if created in every partition, false otherwise
+	 */
+	public boolean createQueue(String queue) {
+		boolean created = true;
+		for (FileQueueService service : partitions)
+			created &= service.createQueue(queue);
+		return created;
+	}
+
+	/**
+	 * Create a FIFO queue in every partition. Message groups keep their order
+	 * as a group always lives in a single partition
+	 * 
+	 * @param queue
+	 *            the queue name
+	 * @return true if created in every partition, false otherwise
+	 */
+	public boolean createFifoQueue(String queue) {
+		boolean created = true;
+		for (FileQueueService service : partitions)
+			created &= service.createFifoQueue(queue);
+		return created;
+	}
+
+	/**
+	 * Remove a queue from every partition
+	 * 
+	 * @param queue
+	 *            the queue name
+	 * @return true if removed from every partition, false otherwise
+	 */
+	public boolean removeQueue(String queue) {
+		boolean removed = true;
+		for (FileQueueService service : partitions)
+			removed &= service.removeQueue(queue);
+		return removed;
+	}
+
+	/**
+	 * Check if a queue exists in every partition
+	 * 
+	 * @param queue
+	 *            the queue name
+	 * @return true if exist, false otherwise
+	 */
+	public boolean isQueueExist(String queue) {
+		for (FileQueueService service : partitions)
+			if (!service.isQueueExist(queue))
+				return false;
+		return true;
+	}
+
+	/**
+	 * Set the lease block size of every partition, see
+	 * FileQueueService.setLeaseBlockSize()
+	 * 
+	 * @param leaseBlockSize
+	 *            the number of records per block
+	 */
+	public void setLeaseBlockSize(int leaseBlockSize) {
+		for (FileQueueService service : partitions)
+			service.setLeaseBlockSize(leaseBlockSize);
+	}
+
+	/**
+	 * @return the number of partitions
+	 */
+	public int getPartitionCount() {
+		return partitions.length;
+	}
+
+	/**
+	 * Get the file queue service of a partition, to configure its queues
+	 * 
+	 * @param partition
+	 *            the partition index
+	 * @return the service
+	 */
+	public FileQueueService getPartitionService(int partition) {
+		return partitions[partition];
+	}
+}
@@ -0,0 +1,242 @@
+package com.example;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.Base64;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import com.google.common.hash.Hashing;
+
+/**
+ * Storage encoding of message content in file queue records. Content above the
+ * compression threshold is deflated, and content above the offload threshold
+ * is moved to a blob file so the record only keeps a reference. Binary content
+ * is base64 encoded when it stays inline. Encoding is deterministic, the same
+ * content always gives the same stored form, so records can be matched
+ * without decoding them
+ */
+public class PayloadCodec {
+	// Content deflated and base64 encoded inline in the record
+	public static final String DEFLATE = "Z";
+	// Content stored as it is in a blob file
+	public static final String BLOB = "B";
+	// Content deflated in a blob file
+	public static final String DEFLATE_BLOB = "BZ";
+	// Prefix of the encoding of binary content, alone it means base64 inline
+	public static final String BINARY = "R";
+	// Content stored once in the payload file of a topic for every subscriber
+	// queue, the record only keeps the topic and payload reference
+	public static final String SHARED = "S";
+
+	private final int compressionThreshold;
+	private final int offloadThreshold;
+
+	/**
+	 * Create codec with specific thresholds, measured in UTF-8 bytes
+	 * 
+	 * @param compressionThreshold
+	 *            content larger than this is compressed, 0 to never compress
+	 * @param offloadThreshold
+	 *            content larger than this is moved to a blob file, 0 to never
+	 *            offload
+	 */
+	public PayloadCodec(int compressionThreshold, int offloadThreshold) {
+		this.compressionThreshold = Math.max(compressionThreshold, 0);
+		this.offloadThreshold = Math.max(offloadThreshold, 0);
+	}
+
+	/**
+	 * Choose the storage encoding of a content
+	 * 
+	 * @param length
+	 *            the content size in bytes
+	 * @param binary
+	 *            true if the content is binary rather than UTF-8 text
+	 * @return the encoding, null if the content is stored as it is
+	 */
+	public String getEncoding(int length, boolean binary) {
+		boolean compress = compressionThreshold > 0 && length > compressionThreshold;
+		String encoding;
+		if (offloadThreshold > 0 && length > offloadThreshold)
+			encoding = compress ? DEFLATE_BLOB : BLOB;
+		else
+			encoding = compress ? DEFLATE : null;
+		if (binary)
+			return (encoding != null) ? BINARY + encoding : BINARY;
+		return encoding;
+	}
+
+	/**
+	 * @return true if this codec never changes the content
+	 */
+	public boolean isIdentity() {
+		return compressionThreshold == 0 && offloadThreshold == 0;
+	}
+
+	/**
+	 * Check if an encoding keeps the content in a blob file
+	 * 
+	 * @param encoding
+	 *            the encoding
+	 * @return true if the record only holds a blob reference
+	 */
+	public static boolean isBlob(String encoding) {
+		return encoding != null && stripBinary(encoding).startsWith(BLOB);
+	}
+
+	/**
+	 * Check if an encoding points to the shared payload of a topic
+	 * 
+	 * @param encoding
+	 *            the encoding
+	 * @return true if the record only holds a topic payload reference
+	 */
+	public static boolean isShared(String encoding) {
+		return encoding != null && stripBinary(encoding).equals(SHARED);
+	}
+
+	/**
+	 * Check if an encoding deflates the content
+	 * 
+	 * @param encoding
+	 *            the encoding
+	 * @return true if deflated
+	 */
+	public static boolean isDeflated(String encoding) {
+		return encoding != null && encoding.endsWith(DEFLATE);
+	}
+
+	/**
+	 * Check if an encoding holds binary content
+	 * 
+	 * @param encoding
+	 *            the encoding
+	 * @return true if the content is binary rather than UTF-8 text
+	 */
+	public static boolean isBinary(String encoding) {
+		return encoding != null && encoding.startsWith(BINARY);
+	}
+
+	private static String stripBinary(String encoding) {
+		return isBinary(encoding) ? encoding.substring(BINARY.length()) : encoding;
+	}
+
+	/**
+	 * Get the name of the blob holding a content, derived from the content so
+	 * that the same content in the same lane always maps to the same blob
+	 * 
+	 * @param content
+	 *            the content bytes, not consumed
+	 * @return the blob reference
+	 */
+	public static String getBlobReference(ByteBuffer content) {
+		if (content.hasArray())
+			return Hashing.murmur3_128()
+					.hashBytes(content.array(), content.arrayOffset() + content.position(), content.remaining())
+					.toString();
+		return Hashing.murmur3_128().hashBytes(toArray(content)).toString();
+	}
+
+	/**
+	 * Get the name of the blob holding a content in a given format. The
+	 * format is part of the name, so a content stored again after the
+	 * thresholds changed never reuses a blob written in the other format
+	 * 
+	 * @param content
+	 *            the content bytes, not consumed
+	 * @param encoding
+	 *            the blob encoding of the content
+	 * @return the blob reference
+	 */
+	public static String getBlobReference(ByteBuffer content, String encoding) {
+		return getBlobReference(content) + "_" + stripBinary(encoding);
+	}
+
+	/**
+	 * Copy the remaining bytes of a buffer, without consuming them
+	 * 
+	 * @param buffer
+	 *            the buffer
+	 * @return the bytes
+	 */
+	public static byte[] toArray(ByteBuffer buffer) {
+		byte[] bytes = new byte[buffer.remaining()];
+		buffer.duplicate().get(bytes);
+		return bytes;
+	}
+
+	/**
+	 * Deflate bytes
+	 * 
+	 * @param data
+	 *            the bytes
+	 * @return the deflated bytes
+	 */
+	public static byte[] compress(byte[] data) {
+		Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+		deflater.setInput(data);
+		deflater.finish();
+		ByteArrayOutputStream out = new ByteArrayOutputStream(Math.max(data.length / 2, 64));
+		byte[] buffer = new byte[8192];
+		while (!deflater.finished())
+			out.write(buffer, 0, deflater.deflate(buffer));
+		deflater.end();
+		return out.toByteArray();
+	}
+
+	/**
+	 * Inflate bytes produced by compress()
+	 * 
+	 * @param data
+	 *            the deflated bytes
+	 * @return the original bytes
+	 */
+	public static byte[] decompress(byte[] data) {
+		Inflater inflater = new Inflater();
+		inflater.setInput(data);
+		ByteArrayOutputStream out = new ByteArrayOutputStream(data.length * 4);
+		byte[] buffer = new byte[8192];
+		try {
+			while (!inflater.finished()) {
+				int length = inflater.inflate(buffer);
+				if (length == 0 && (inflater.needsInput() || inflater.needsDictionary()))
+					throw new IllegalArgumentException("Truncated compressed content");
+				out.write(buffer, 0, length);
+			}
+		} catch (DataFormatException e) {
+			throw new IllegalArgumentException(e);
+		} finally {
+			inflater.end();
+		}
+		return out.toByteArray();
+	}
+
+	/**
+	 * Encode inline content into text that fits in a single record line
+	 * 
+	 * @param content
+	 *            the content bytes
+	 * @param encoding
+	 *            the inline encoding
+	 * @return the base64 text
+	 */
+	public static String toText(byte[] content, String encoding) {
+		return Base64.getEncoder().encodeToString(isDeflated(encoding) ? compress(content) : content);
+	}
+
+	/**
+	 * Restore inline content encoded by toText()
+	 * 
+	 * @param text
+	 *            the base64 text
+	 * @param encoding
+	 *            the inline encoding
+	 * @return the content bytes
+	 */
+	public static byte[] fromText(String text, String encoding) {
+		byte[] content = Base64.getDecoder().decode(text);
+		return isDeflated(encoding) ? decompress(content) : content;
+	}
+}
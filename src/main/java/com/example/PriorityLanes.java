@@ -0,0 +1,241 @@
+package com.example;
+
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.LinkedBlockingDeque;
+
+/**
+ * Visible messages of a single in-memory queue, split into one FIFO lane per
+ * priority. Only visible messages are kept here so poll() never has to skip
+ * over invisible ones, and the lane to serve is picked by LaneScheduler.
+ * Messages that are leased or delayed wait in a DeadlineQueue and are moved
+ * back into their lane when the owner polls after their deadline
+ */
+public class PriorityLanes implements DeliveryIndex {
+	private final Deque<Message>[] lanes;
+	private final LaneScheduler scheduler;
+	// Leased messages, back at the head of their lane once the lease expires
+	private final DeadlineQueue<Message> leases = new DeadlineQueue<Message>();
+	// Delayed messages, added at the tail of their lane once the delay is over
+	private final DeadlineQueue<Message> delays = new DeadlineQueue<Message>();
+
+	public PriorityLanes() {
+		this(new LaneScheduler());
+	}
+
+	@SuppressWarnings("unchecked")
+	public PriorityLanes(LaneScheduler scheduler) {
+		this.scheduler = scheduler;
+		this.lanes = (Deque<Message>[]) new Deque<?>[Message.PRIORITY_LANES];
+		for (int lane = 0; lane < lanes.length; lane++)
+			lanes[lane] = new LinkedBlockingDeque<Message>();
+	}
+
+	/**
+	 * Add a message at the tail of its priority lane
+	 * 
+	 * @param message
+	 *            the message
+	 */
+	@Override
+	public void offer(Message message) {
+		lanes[message.getPriority()].offerLast(message);
+	}
+
+	/**
+	 * Add a message at the head of its priority lane, used for messages that
+	 * become visible again
+	 * 
+	 * @param message
+	 *            the message
+	 */
+	@Override
+	public void offerFirst(Message message) {
+		lanes[message.getPriority()].offerFirst(message);
+	}
+
+	/**
+	 * Keep a leased message invisible until a deadline, after which it goes
+	 * back to the head of its lane
+	 * 
+	 * @param message
+	 *            the leased message
+	 * @param deadline
+	 *            the time in milliseconds at which the lease expires
+	 */
+	@Override
+	public void lease(Message message, long deadline) {
+		leases.schedule(message, deadline);
+	}
+
+	/**
+	 * Leased message is not in its lane, so only its lease is restored
+	 */
+	@Override
+	public void offerLeased(Message message, long deadline) {
+		lease(message, deadline);
+	}
+
+	/**
+	 * Keep a pushed message invisible until a deadline, after which it is
+	 * added to the tail of its lane
+	 * 
+	 * @param message
+	 *            the delayed message
+	 * @param deadline
+	 *            the time in milliseconds at which the message is delivered
+	 */
+	@Override
+	public void delay(Message message, long deadline) {
+		delays.schedule(message, deadline);
+	}
+
+	/**
+	 * Cancel the pending lease or delay of a message
+	 * 
+	 * @param message
+	 *            the message
+	 */
+	@Override
+	public void cancel(Message message) {
+		leases.cancel(message);
+		delays.cancel(message);
+	}
+
+	/**
+	 * Delays that are due join the tail of their lane, expired leases go back
+	 * to the head of their lane. The message state already makes them
+	 * available, so this only puts them back in line, unless they have been
+	 * deleted or claimed again meanwhile
+	 */
+	@Override
+	public void release(long now) {
+		Message message;
+		while ((message = delays.pollDue(now)) != null) {
+			if (message.isAvailable(now)) {
+				message.setVisible();
+				offer(message);
+			}
+		}
+		// Expired leases go back to the head in the order they were leased
+		List<Message> expired = null;
+		while ((message = leases.pollDue(now)) != null) {
+			if (expired == null)
+				expired = new ArrayList<Message>();
+			expired.add(message);
+		}
+		for (int i = (expired != null) ? expired.size() - 1 : -1; i >= 0; i--) {
+			message = expired.get(i);
+			if (message.isAvailable(now)) {
+				message.setVisible();
+				offerFirst(message);
+			}
+		}
+	}
+
+	/**
+	 * Take the next message according to the lane weights, after moving every
+	 * lease and delay that is due at the given time back into the lanes
+	 * 
+	 * @param now
+	 *            the current time in milliseconds
+	 * @return the message, null if every lane is empty
+	 */
+	@Override
+	public Message poll(long now) {
+		release(now);
+		return poll();
+	}
+
+	/**
+	 * Take the next message according to the lane weights
+	 * 
+	 * @return the message, null if every lane is empty
+	 */
+	public Message poll() {
+		while (true) {
+			int eligible = 0;
+			for (int lane = 0; lane < lanes.length; lane++)
+				if (!lanes[lane].isEmpty())
+					eligible |= 1 << lane;
+			if (eligible == 0)
+				return null;
+			Message message = lanes[scheduler.next(eligible)].pollFirst();
+			// Lane may have been drained by another thread in the meantime
+			if (message != null)
+				return message;
+		}
+	}
+
+	/**
+	 * Any message can skip its turn
+	 */
+	@Override
+	public boolean canDeliver(Message message) {
+		return true;
+	}
+
+	/**
+	 * Remove the leased message from its lane, otherwise it would be in its
+	 * lane twice once its lease expires
+	 */
+	@Override
+	public void take(Message message) {
+		lanes[message.getPriority()].remove(message);
+	}
+
+	/**
+	 * Remove a message from its lane and cancel its pending lease or delay.
+	 * Leased and delayed messages are not in their lane, so the lane is only
+	 * scanned for a message that had neither
+	 * 
+	 * @param message
+	 *            the message
+	 * @return true if the message was in the lane
+	 */
+	@Override
+	public boolean remove(Message message) {
+		boolean scheduled = leases.cancel(message);
+		scheduled |= delays.cancel(message);
+		if (scheduled)
+			return false;
+		return lanes[message.getPriority()].remove(message);
+	}
+
+	/**
+	 * @return number of messages in all lanes
+	 */
+	@Override
+	public int visibleSize() {
+		int size = 0;
+		for (Deque<Message> lane : lanes)
+			size += lane.size();
+		return size;
+	}
+
+	@Override
+	public int leasedSize() {
+		return leases.size();
+	}
+
+	/**
+	 * @return number of messages waiting for their delivery delay
+	 */
+	@Override
+	public int delayedSize() {
+		return delays.size();
+	}
+
+	/**
+	 * Remove every message from all lanes, along with pending leases and
+	 * delays
+	 */
+	@Override
+	public void clear() {
+		for (Deque<Message> lane : lanes)
+			lane.clear();
+		leases.clear();
+		delays.clear();
+	}
+}
@@ -0,0 +1,516 @@
+package com.example;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+
+/**
+ * Archive file holding the messages exported from a queue, used to move a
+ * backlog between queue services or to keep it for analysis. Messages are
+ * encoded like QueueProtocol frames and grouped in checksummed chunks, so the
+ * archive is written and read sequentially with large buffers and only one
+ * chunk per import thread is held in memory. Exported messages are only
+ * deleted from their queue once their chunk is synced, and imported chunks
+ * are recorded in a checkpoint file next to the archive, so both export and
+ * import can be run again after a failure and continue where they stopped.
+ * Either way a message may be delivered twice, which a deduplication window
+ * on the target queue absorbs
+ */
+public class QueueArchive {
+	// First bytes of every archive, "QARC" followed by the format version
+	private static final int MAGIC = 0x51415243;
+	private static final int VERSION = 1;
+	private static final int FILE_HEADER_SIZE = 4 + 4;
+	// Body length, message count and checksum of the body
+	private static final int CHUNK_HEADER_SIZE = 4 + 4 + 4;
+	private static final int DEFAULT_CHUNK_SIZE = 1024 * 1024;
+	private static final int DEFAULT_IMPORT_THREADS = 4;
+	// Size of the buffer the archive is read through
+	private static final int READ_BUFFER_SIZE = 4 * 1024 * 1024;
+	private static final String CHECKPOINT_SUFFIX = ".checkpoint";
+	// Largest number of messages in a single SendMessageBatch
+	private static final int SQS_BATCH_SIZE = 10;
+
+	private final File file;
+	private final int chunkSize;
+	private final int importThreads;
+
+	/**
+	 * Create an archive with default chunk size and import parallelism
+	 * 
+	 * @param file
+	 *            the archive file, created on first export
+	 */
+	public QueueArchive(File file) {
+		this(file, DEFAULT_CHUNK_SIZE, DEFAULT_IMPORT_THREADS);
+	}
+
+	/**
+	 * Create an archive with specific chunk size and import parallelism
+	 * 
+	 * @param file
+	 *            the archive file, created on first export
+	 * @param chunkSize
+	 *            the size in bytes after which a chunk is written, a larger
+	 *            message still going to a chunk of its own
+	 * @param importThreads
+	 *            the number of chunks pushed to the target at once
+	 */
+	public QueueArchive(File file, int chunkSize, int importThreads) {
+		this.file = file;
+		this.chunkSize = chunkSize;
+		this.importThreads = Math.max(importThreads, 1);
+	}
+
+	/**
+	 * Move every visible message of a queue to the end of the archive. A file
+	 * queue is drained in a single pass over its lane files, see
+	 * FileQueueService.drainTo(), other services are pulled and the messages
+	 * of each chunk deleted once it is synced. Messages in flight or delayed
+	 * stay in the queue. Exported messages lose what is left of their delay,
+	 * which they have already waited for
+	 * 
+	 * @param source
+	 *            the queue service
+	 * @param queue
+	 *            the queue name
+	 * @return the number of messages exported
+	 * @throws IOException
+	 */
+	public long exportQueue(QueueService source, String queue) throws IOException {
+		Writer writer = openWriter();
+		try {
+			if (source instanceof FileQueueService) {
+				long exported = ((FileQueueService) source).drainTo(queue, writer);
+				if (exported < 0)
+					throw new IOException("Draining queue " + queue + " failed");
+				return exported;
+			}
+			long exported = 0;
+			List<Message> pending = new ArrayList<Message>();
+			Message message;
+			while ((message = source.pull(queue)) != null) {
+				// The receive of the export itself does not count
+				message.setReceiveCount(message.getReceiveCount() - 1);
+				if (message.getReceiveCount() == 0)
+					message.setFirstReceiveTime(0);
+				pending.add(message);
+				if (writer.append(message)) {
+					writer.sync();
+					exported += delete(source, queue, pending);
+				}
+			}
+			writer.sync();
+			return exported + delete(source, queue, pending);
+		} finally {
+			writer.close();
+		}
+	}
+
+	private static long delete(QueueService source, String queue, List<Message> messages) {
+		long deleted = 0;
+		for (Message message : messages)
+			if (source.delete(queue, message))
+				deleted++;
+		messages.clear();
+		return deleted;
+	}
+
+	/**
+	 * Push the messages of the archive to a queue, several chunks at once.
+	 * Chunks recorded in the checkpoint as imported by a previous run are
+	 * skipped. Chunks are pushed in parallel, so messages of different chunks
+	 * may reach the queue out of order
+	 * 
+	 * @param target
+	 *            the queue service
+	 * @param queue
+	 *            the queue name
+	 * @return the number of messages imported by this run
+	 * @throws IOException
+	 *             if the archive cannot be read or a push fails, the
+	 *             checkpoint only covering the chunks before the failure
+	 */
+	public long importQueue(QueueService target, String queue) throws IOException {
+		Checkpoint checkpoint = new Checkpoint(readCheckpoint());
+		AtomicLong imported = new AtomicLong();
+		ExecutorService pushers = Executors.newFixedThreadPool(importThreads, runnable -> {
+			Thread thread = new Thread(runnable, "queue-archive-import");
+			thread.setDaemon(true);
+			return thread;
+		});
+		// Bounds the chunks read ahead of the pushers
+		Semaphore permits = new Semaphore(importThreads * 2);
+		List<CompletableFuture<Void>> chunks = new ArrayList<CompletableFuture<Void>>();
+		Reader reader = openReader();
+		try {
+			for (long index = 0; index < checkpoint.imported; index++)
+				if (!reader.skipChunk())
+					return 0;
+			long index = checkpoint.imported;
+			List<Message> chunk;
+			while (checkpoint.failure == null && (chunk = readChunk(reader, permits)) != null) {
+				long chunkIndex = index++;
+				List<Message> messages = chunk;
+				chunks.add(CompletableFuture.runAsync(() -> {
+					try {
+						if (checkpoint.failure == null && push(target, queue, messages)) {
+							imported.addAndGet(messages.size());
+							checkpoint.complete(chunkIndex);
+						} else if (checkpoint.failure == null)
+							checkpoint.failure = new IOException("Push to queue " + queue + " failed");
+					} catch (IOException e) {
+						checkpoint.failure = e;
+					} finally {
+						permits.release();
+					}
+				}, pushers));
+			}
+			CompletableFuture.allOf(chunks.toArray(new CompletableFuture<?>[chunks.size()])).join();
+		} finally {
+			reader.close();
+			pushers.shutdown();
+		}
+		if (checkpoint.failure != null)
+			throw checkpoint.failure;
+		return imported.get();
+	}
+
+	private static List<Message> readChunk(Reader reader, Semaphore permits) throws IOException {
+		permits.acquireUninterruptibly();
+		List<Message> chunk = reader.readChunk();
+		if (chunk == null)
+			permits.release();
+		return chunk;
+	}
+
+	/**
+	 * Push a chunk with the batch operation of the service if it has one
+	 */
+	private static boolean push(QueueService target, String queue, List<Message> messages) {
+		if (target instanceof FileQueueService)
+			return ((FileQueueService) target).push(queue, messages);
+		if (target instanceof SqsQueueService) {
+			for (int i = 0; i < messages.size(); i += SQS_BATCH_SIZE)
+				if (!((SqsQueueService) target).push(queue,
+						messages.subList(i, Math.min(i + SQS_BATCH_SIZE, messages.size()))))
+					return false;
+			return true;
+		}
+		if (target instanceof RemoteQueueService) {
+			// Pipelined on the connection instead of one round trip each
+			List<CompletableFuture<Boolean>> pushes = new ArrayList<CompletableFuture<Boolean>>();
+			for (Message message : messages)
+				pushes.add(((RemoteQueueService) target).pushAsync(queue, message));
+			boolean pushed = true;
+			for (CompletableFuture<Boolean> push : pushes)
+				pushed &= push.join();
+			return pushed;
+		}
+		for (Message message : messages)
+			if (!target.push(queue, message))
+				return false;
+		return true;
+	}
+
+	/**
+	 * Move every visible message of a queue to another queue, possibly of
+	 * another service, through the archive. Running it again after a failure
+	 * continues the migration, the archive and its checkpoint being deleted
+	 * once it is complete
+	 * 
+	 * @param source
+	 *            the source queue service
+	 * @param sourceQueue
+	 *            the source queue name
+	 * @param target
+	 *            the target queue service
+	 * @param targetQueue
+	 *            the target queue name
+	 * @return the number of messages imported
+	 * @throws IOException
+	 */
+	public long migrate(QueueService source, String sourceQueue, QueueService target, String targetQueue)
+			throws IOException {
+		exportQueue(source, sourceQueue);
+		long imported = importQueue(target, targetQueue);
+		delete();
+		return imported;
+	}
+
+	/**
+	 * Delete the archive and its checkpoint
+	 */
+	public void delete() {
+		file.delete();
+		getCheckpointFile().delete();
+	}
+
+	/**
+	 * @return the archive file
+	 */
+	public File getFile() {
+		return file;
+	}
+
+	/**
+	 * Open the archive for appending, creating it if needed. A chunk torn by a
+	 * failed export is dropped, its messages still being in their queue
+	 * 
+	 * @return the writer
+	 * @throws IOException
+	 */
+	public Writer openWriter() throws IOException {
+		long validSize = 0;
+		if (file.isFile() && file.length() > 0) {
+			Reader reader = openReader();
+			try {
+				while (reader.skipChunk())
+					;
+				validSize = reader.position;
+			} finally {
+				reader.close();
+			}
+		}
+		FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+		channel.truncate(validSize);
+		channel.position(validSize);
+		if (validSize == 0) {
+			ByteBuffer header = ByteBuffer.allocate(FILE_HEADER_SIZE).putInt(MAGIC).putInt(VERSION);
+			header.flip();
+			while (header.hasRemaining())
+				channel.write(header);
+		}
+		return new Writer(channel, chunkSize);
+	}
+
+	/**
+	 * Open the archive for reading from its first chunk
+	 * 
+	 * @return the reader
+	 * @throws IOException
+	 *             if the file is not an archive
+	 */
+	public Reader openReader() throws IOException {
+		return new Reader(file);
+	}
+
+	private File getCheckpointFile() {
+		return new File(file.getPath() + CHECKPOINT_SUFFIX);
+	}
+
+	private long readCheckpoint() throws IOException {
+		File checkpointFile = getCheckpointFile();
+		if (!checkpointFile.isFile())
+			return 0;
+		return Long.parseLong(new String(Files.readAllBytes(checkpointFile.toPath()), StandardCharsets.UTF_8).trim());
+	}
+
+	/**
+	 * Progress of an import. Chunks complete out of order, so the checkpoint
+	 * only advances over the leading chunks that are all imported
+	 */
+	private class Checkpoint {
+		// Number of leading chunks imported, guarded by this
+		private long imported;
+		// Chunks imported after a chunk that is not, guarded by this
+		private final TreeSet<Long> completed = new TreeSet<Long>();
+		private volatile IOException failure;
+
+		private Checkpoint(long imported) {
+			this.imported = imported;
+		}
+
+		private synchronized void complete(long chunk) throws IOException {
+			completed.add(chunk);
+			if (!completed.remove(imported))
+				return;
+			imported++;
+			while (completed.remove(imported))
+				imported++;
+			// Replaced atomically, so a failure leaves the previous checkpoint
+			File checkpointFile = getCheckpointFile();
+			File tempFile = new File(checkpointFile.getPath() + "_temp");
+			Files.write(tempFile.toPath(), Long.toString(imported).getBytes(StandardCharsets.UTF_8));
+			Files.move(tempFile.toPath(), checkpointFile.toPath(), StandardCopyOption.REPLACE_EXISTING,
+					StandardCopyOption.ATOMIC_MOVE);
+		}
+	}
+
+	/**
+	 * Appends messages to the archive, a chunk at a time. Not thread safe
+	 */
+	public static class Writer implements Closeable {
+		private final FileChannel channel;
+		private final int chunkSize;
+		private ByteBuffer body;
+		private int count;
+
+		private Writer(FileChannel channel, int chunkSize) {
+			this.channel = channel;
+			this.chunkSize = chunkSize;
+			this.body = ByteBuffer.allocate(CHUNK_HEADER_SIZE + chunkSize);
+			body.position(CHUNK_HEADER_SIZE);
+		}
+
+		/**
+		 * Add a message to the current chunk
+		 * 
+		 * @param message
+		 *            the message
+		 * @return true if the chunk is full, sync() should then be called
+		 *         before the message is deleted from its queue
+		 */
+		public boolean append(Message message) {
+			int size = 4 + QueueProtocol.sizeOf(message);
+			if (body.remaining() < size) {
+				ByteBuffer larger = ByteBuffer.allocate(body.position() + size);
+				body.flip();
+				larger.put(body);
+				body = larger;
+			}
+			int delay = message.getDelaySeconds();
+			// Its delay is over, so the message is exported without any
+			message.setDelaySeconds(0);
+			// Length of what was actually written, sizeOf() being an upper bound
+			int start = body.position();
+			body.putInt(0);
+			QueueProtocol.putMessage(body, message);
+			body.putInt(start, body.position() - start - 4);
+			message.setDelaySeconds(delay);
+			count++;
+			return body.position() - CHUNK_HEADER_SIZE >= chunkSize;
+		}
+
+		/**
+		 * Write the current chunk and force the archive to disk
+		 * 
+		 * @throws IOException
+		 */
+		public void sync() throws IOException {
+			if (count == 0)
+				return;
+			CRC32 crc = new CRC32();
+			crc.update(body.array(), CHUNK_HEADER_SIZE, body.position() - CHUNK_HEADER_SIZE);
+			body.putInt(0, body.position() - CHUNK_HEADER_SIZE);
+			body.putInt(4, count);
+			body.putInt(8, (int) crc.getValue());
+			body.flip();
+			while (body.hasRemaining())
+				channel.write(body);
+			channel.force(false);
+			if (body.capacity() > CHUNK_HEADER_SIZE + chunkSize)
+				body = ByteBuffer.allocate(CHUNK_HEADER_SIZE + chunkSize);
+			body.clear();
+			body.position(CHUNK_HEADER_SIZE);
+			count = 0;
+		}
+
+		/**
+		 * Close the archive, dropping messages appended since the last sync
+		 */
+		@Override
+		public void close() throws IOException {
+			channel.close();
+		}
+	}
+
+	/**
+	 * Reads the archive a chunk at a time, stopping at the first chunk torn by
+	 * a failed export. Not thread safe
+	 */
+	public static class Reader implements Closeable {
+		private final DataInputStream in;
+		// Position after the last valid chunk
+		private long position;
+
+		private Reader(File file) throws IOException {
+			in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), READ_BUFFER_SIZE));
+			try {
+				if (in.readInt() != MAGIC || in.readInt() != VERSION)
+					throw new IOException(file + " is not a queue archive");
+			} catch (IOException e) {
+				in.close();
+				throw e;
+			}
+			position = FILE_HEADER_SIZE;
+		}
+
+		/**
+		 * Read the messages of the next chunk
+		 * 
+		 * @return the messages, null at the end of the archive
+		 * @throws IOException
+		 */
+		public List<Message> readChunk() throws IOException {
+			int[] header = new int[3];
+			byte[] body = readBody(header);
+			if (body == null)
+				return null;
+			ByteBuffer buffer = ByteBuffer.wrap(body);
+			List<Message> messages = new ArrayList<Message>(header[1]);
+			for (int i = 0; i < header[1]; i++) {
+				int end = buffer.getInt();
+				end += buffer.position();
+				messages.add(QueueProtocol.getMessage(buffer));
+				buffer.position(end);
+			}
+			return messages;
+		}
+
+		/**
+		 * Skip the next chunk, still checking it is complete
+		 * 
+		 * @return false at the end of the archive
+		 * @throws IOException
+		 */
+		public boolean skipChunk() throws IOException {
+			return readBody(new int[3]) != null;
+		}
+
+		private byte[] readBody(int[] header) throws IOException {
+			byte[] body;
+			try {
+				header[0] = in.readInt();
+				header[1] = in.readInt();
+				header[2] = in.readInt();
+				if (header[0] < 0 || header[1] < 0)
+					return null;
+				body = new byte[header[0]];
+				in.readFully(body);
+			} catch (EOFException e) {
+				return null;
+			}
+			CRC32 crc = new CRC32();
+			crc.update(body);
+			if ((int) crc.getValue() != header[2])
+				return null;
+			position += CHUNK_HEADER_SIZE + body.length;
+			return body;
+		}
+
+		@Override
+		public void close() throws IOException {
+			in.close();
+		}
+	}
+}
@@ -0,0 +1,72 @@
+package com.example;
+
+/**
+ * Snapshot of the approximate state of a queue, as reported by
+ * QueueService.getQueueAttributes(). Counts are kept up to date by the
+ * operations on the queue rather than computed by scanning it, so they may
+ * briefly lag behind concurrent operations
+ */
+public class QueueAttributes {
+	// Age reported when the age of the oldest message is not known
+	public static final long UNKNOWN_AGE = -1;
+
+	private final long visibleMessages;
+	private final long inFlightMessages;
+	private final long delayedMessages;
+	private final long oldestMessageAge;
+
+	/**
+	 * Create attributes snapshot
+	 * 
+	 * @param visibleMessages
+	 *            number of messages available for pull
+	 * @param inFlightMessages
+	 *            number of messages received but not deleted yet
+	 * @param delayedMessages
+	 *            number of messages waiting for their delivery delay
+	 * @param oldestMessageAge
+	 *            age in milliseconds of the oldest message, 0 if the queue is
+	 *            empty, UNKNOWN_AGE if not known
+	 */
+	public QueueAttributes(long visibleMessages, long inFlightMessages, long delayedMessages, long oldestMessageAge) {
+		this.visibleMessages = Math.max(visibleMessages, 0);
+		this.inFlightMessages = Math.max(inFlightMessages, 0);
+		this.delayedMessages = Math.max(delayedMessages, 0);
+		this.oldestMessageAge = oldestMessageAge;
+	}
+
+	/**
+	 * @return number of messages available for pull
+	 */
+	public long getVisibleMessages() {
+		return visibleMessages;
+	}
+
+	/**
+	 * @return number of messages received but not deleted yet
+	 */
+	public long getInFlightMessages() {
+		return inFlightMessages;
+	}
+
+	/**
+	 * @return number of messages waiting for their delivery delay
+	 */
+	public long getDelayedMessages() {
+		return delayedMessages;
+	}
+
+	/**
+	 * @return age in milliseconds of the oldest message in the queue, 0 if the
+	 *         queue is empty, UNKNOWN_AGE if not known
+	 */
+	public long getOldestMessageAge() {
+		return oldestMessageAge;
+	}
+
+	@Override
+	public String toString() {
+		return "QueueAttributes [visible=" + visibleMessages + ", inFlight=" + inFlightMessages + ", delayed="
+				+ delayedMessages + ", oldestAge=" + oldestMessageAge + "]";
+	}
+}
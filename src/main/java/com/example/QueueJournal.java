@@ -0,0 +1,585 @@
+package com.example;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.zip.CRC32;
+
+/**
+ * Write-ahead journal of an InMemoryQueueService. Queue creation and
+ * removal, pushes, leases and deletions are recorded in order and appended
+ * to a journal file by a background thread, which writes whatever has
+ * accumulated as one batch followed by a single fsync, so concurrent
+ * operations share the cost of a sync. Push waits until its record is on
+ * disk, while leases and deletions do not, a lost lease or deletion only
+ * causing a message to be delivered again. The writer also keeps the state
+ * the records lead to, and once the journal exceeds a threshold it writes
+ * that state as a snapshot and starts the journal over, so recovery only
+ * replays the snapshot and the journal tail. Records carry a checksum, so a
+ * record torn by a crash ends the replay. Queue configuration, such as
+ * capacity, lane weights, delay and deduplication window, is not journaled
+ */
+public class QueueJournal implements Closeable {
+	// Record types, END only telling the writer to stop
+	private static final byte END = -1;
+	private static final byte SNAPSHOT = 0;
+	private static final byte CREATE_QUEUE = 1;
+	private static final byte CREATE_FIFO_QUEUE = 2;
+	private static final byte REMOVE_QUEUE = 3;
+	private static final byte CLEAR_QUEUE = 4;
+	private static final byte PUSH = 5;
+	private static final byte LEASE = 6;
+	private static final byte DELETE = 7;
+
+	private static final String JOURNAL_FILE = "journal";
+	private static final String SNAPSHOT_FILE = "snapshot";
+	// Journal size after which a snapshot is written
+	private static final long DEFAULT_SNAPSHOT_THRESHOLD = 64L * 1024 * 1024;
+	// Largest number of records written as one batch
+	private static final int MAX_BATCH = 4096;
+	// Size of the length and checksum in front of every record
+	private static final int RECORD_HEADER_SIZE = 4 + 4;
+
+	private final File directory;
+	private final long snapshotThreshold;
+	// Records not written yet, in sequence order
+	private final BlockingQueue<Record> records = new LinkedBlockingQueue<Record>();
+	private final Thread writer;
+	private FileChannel journal;
+	private long journalSize;
+	// State the written records lead to, only used by the writer once started
+	private final Map<String, JournalQueue> queues = new LinkedHashMap<String, JournalQueue>();
+	// Copy of the recovered state taken before the writer started, handed
+	// over once to the service, guarded by this
+	private Collection<JournalQueue> recovered;
+	// Sequence of the last recorded record, guarded by this
+	private long recorded;
+	// Last message id given, guarded by this
+	private long lastMessageId;
+	// Sequence of the last record on disk, guarded by durableLock
+	private long durable;
+	private final Object durableLock = new Object();
+	private volatile IOException failure;
+	// True once closed, guarded by this
+	private boolean closed;
+
+	/**
+	 * Open the journal of a directory, recovering the state left by a
+	 * previous run
+	 * 
+	 * @param directory
+	 *            the journal directory
+	 * @throws IOException
+	 */
+	public QueueJournal(String directory) throws IOException {
+		this(directory, DEFAULT_SNAPSHOT_THRESHOLD);
+	}
+
+	/**
+	 * Open the journal of a directory with specific snapshot threshold
+	 * 
+	 * @param directory
+	 *            the journal directory
+	 * @param snapshotThreshold
+	 *            the journal size in bytes after which a snapshot is written
+	 * @throws IOException
+	 */
+	public QueueJournal(String directory, long snapshotThreshold) throws IOException {
+		this.directory = new File(directory);
+		this.snapshotThreshold = snapshotThreshold;
+		this.directory.mkdirs();
+		long snapshotSequence = replay(new File(this.directory, SNAPSHOT_FILE), -1);
+		File journalFile = new File(this.directory, JOURNAL_FILE);
+		long validSize = replayJournal(journalFile, snapshotSequence);
+		journal = FileChannel.open(journalFile.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+		// Drop a record torn by a crash
+		journal.truncate(validSize);
+		journal.position(validSize);
+		journalSize = validSize;
+		durable = recorded;
+		recovered = new ArrayList<JournalQueue>();
+		for (JournalQueue queue : queues.values())
+			recovered.add(queue.copy());
+		writer = new Thread(this::writeRecords, "queue-journal");
+		writer.setDaemon(true);
+		writer.start();
+	}
+
+	/**
+	 * Take the queues recovered from the snapshot and journal, in creation
+	 * order, each with its messages in push order. They are a copy the writer
+	 * never touches, handed over once, see InMemoryQueueService.setJournal()
+	 * 
+	 * @return the recovered queues, empty after the first call
+	 */
+	synchronized Collection<JournalQueue> takeRecoveredQueues() {
+		Collection<JournalQueue> taken = recovered;
+		recovered = Collections.emptyList();
+		return taken;
+	}
+
+	public void createQueue(String queue, boolean fifo) {
+		record(new Record(fifo ? CREATE_FIFO_QUEUE : CREATE_QUEUE, queue, 0, 0, 0, null));
+	}
+
+	public void removeQueue(String queue) {
+		record(new Record(REMOVE_QUEUE, queue, 0, 0, 0, null));
+	}
+
+	public void clearQueue(String queue) {
+		record(new Record(CLEAR_QUEUE, queue, 0, 0, 0, null));
+	}
+
+	/**
+	 * Record a push and wait until it is on disk
+	 * 
+	 * @param queue
+	 *            the queue name
+	 * @param message
+	 *            the message, given its journal id
+	 * @param deadline
+	 *            the end of the delivery delay, 0 if none
+	 * @return true if on disk, false if the journal failed
+	 */
+	public boolean push(String queue, Message message, long deadline) {
+		return awaitDurable(recordPush(queue, message, deadline));
+	}
+
+	/**
+	 * Record a push without waiting, flush() then waits until it is on disk
+	 * 
+	 * @param queue
+	 *            the queue name
+	 * @param message
+	 *            the message, given its journal id
+	 * @param deadline
+	 *            the end of the delivery delay, 0 if none
+	 * @return the record sequence, -1 if the journal is closed
+	 */
+	long recordPush(String queue, Message message, long deadline) {
+		return record(new Record(PUSH, queue, 0, deadline, 0, message));
+	}
+
+	/**
+	 * Record a message being leased, or made visible again, without waiting
+	 * 
+	 * @param queue
+	 *            the queue name
+	 * @param message
+	 *            the message
+	 * @param deadline
+	 *            the end of the lease, 0 if visible again
+	 */
+	public void lease(String queue, Message message, long deadline) {
+		record(new Record(LEASE, queue, message.getJournalId(), deadline, message.getReceiveCount(), null));
+	}
+
+	/**
+	 * Record a message being deleted, without waiting
+	 * 
+	 * @param queue
+	 *            the queue name
+	 * @param message
+	 *            the message
+	 */
+	public void delete(String queue, Message message) {
+		record(new Record(DELETE, queue, message.getJournalId(), 0, 0, null));
+	}
+
+	/**
+	 * Wait until every record so far is on disk
+	 * 
+	 * @return true if on disk, false if the journal failed
+	 */
+	public boolean flush() {
+		long sequence;
+		synchronized (this) {
+			sequence = recorded;
+		}
+		return awaitDurable(sequence);
+	}
+
+	/**
+	 * Write every record and close the journal
+	 */
+	@Override
+	public void close() throws IOException {
+		synchronized (this) {
+			if (closed)
+				return;
+			closed = true;
+			records.add(new Record(END, "", 0, 0, 0, null));
+		}
+		try {
+			writer.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		journal.close();
+	}
+
+	/**
+	 * Encode a record and give it the next sequence, and the next message id
+	 * for a push
+	 * 
+	 * @return the record sequence, -1 if the journal is closed
+	 */
+	private long record(Record record) {
+		ByteBuffer encoded = record.encode();
+		synchronized (this) {
+			if (closed)
+				return -1;
+			record.sequence = ++recorded;
+			encoded.putLong(RECORD_HEADER_SIZE, record.sequence);
+			if (record.type == PUSH) {
+				record.id = ++lastMessageId;
+				record.message.setJournalId(record.id);
+				encoded.putLong(RECORD_HEADER_SIZE + 8 + 1, record.id);
+			}
+			records.add(record);
+		}
+		return record.sequence;
+	}
+
+	private boolean awaitDurable(long sequence) {
+		if (sequence < 0)
+			return false;
+		synchronized (durableLock) {
+			while (durable < sequence && failure == null) {
+				try {
+					durableLock.wait();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					return false;
+				}
+			}
+		}
+		return failure == null;
+	}
+
+	private void writeRecords() {
+		List<Record> batch = new ArrayList<Record>();
+		boolean end = false;
+		while (!end) {
+			try {
+				batch.add(records.take());
+			} catch (InterruptedException e) {
+				continue;
+			}
+			records.drainTo(batch, MAX_BATCH - 1);
+			if (batch.get(batch.size() - 1).type == END) {
+				batch.remove(batch.size() - 1);
+				end = true;
+				if (batch.isEmpty())
+					break;
+			}
+			try {
+				ByteBuffer[] buffers = new ByteBuffer[batch.size()];
+				for (int i = 0; i < buffers.length; i++) {
+					buffers[i] = batch.get(i).encoded;
+					seal(buffers[i]);
+				}
+				while (buffers[buffers.length - 1].hasRemaining())
+					journalSize += journal.write(buffers);
+				journal.force(false);
+				for (Record record : batch)
+					apply(record);
+				if (journalSize >= snapshotThreshold)
+					snapshot(batch.get(batch.size() - 1).sequence);
+			} catch (IOException e) {
+				e.printStackTrace();
+				failure = e;
+			}
+			synchronized (durableLock) {
+				durable = batch.get(batch.size() - 1).sequence;
+				durableLock.notifyAll();
+			}
+			batch.clear();
+		}
+	}
+
+	/**
+	 * Write the current state as snapshot and start the journal over. The
+	 * snapshot replaces the previous one atomically, and a journal left
+	 * behind by a crash before it is truncated is skipped on replay as its
+	 * records are not newer than the snapshot
+	 */
+	private void snapshot(long sequence) throws IOException {
+		File snapshotFile = new File(directory, SNAPSHOT_FILE);
+		File tempFile = new File(directory, SNAPSHOT_FILE + "_temp");
+		FileChannel channel = FileChannel.open(tempFile.toPath(), StandardOpenOption.CREATE,
+				StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+		List<ByteBuffer> buffers = new ArrayList<ByteBuffer>();
+		buffers.add(sealed(new Record(SNAPSHOT, "", lastMessageId(), 0, 0, null), sequence));
+		for (JournalQueue queue : queues.values()) {
+			buffers.add(sealed(new Record(queue.fifo ? CREATE_FIFO_QUEUE : CREATE_QUEUE, queue.name, 0, 0, 0, null),
+					sequence));
+			for (JournalEntry entry : queue.messages.values()) {
+				Record record = new Record(PUSH, queue.name, entry.message.getJournalId(), entry.deadline,
+						entry.receiveCount, entry.message);
+				buffers.add(sealed(record, sequence));
+				if (buffers.size() >= MAX_BATCH)
+					write(channel, buffers);
+			}
+		}
+		write(channel, buffers);
+		channel.force(false);
+		channel.close();
+		Files.move(tempFile.toPath(), snapshotFile.toPath(), StandardCopyOption.REPLACE_EXISTING,
+				StandardCopyOption.ATOMIC_MOVE);
+		journal.truncate(0);
+		journal.position(0);
+		journalSize = 0;
+	}
+
+	private synchronized long lastMessageId() {
+		return lastMessageId;
+	}
+
+	private static ByteBuffer sealed(Record record, long sequence) {
+		ByteBuffer encoded = record.encode();
+		encoded.putLong(RECORD_HEADER_SIZE, sequence);
+		encoded.putLong(RECORD_HEADER_SIZE + 8 + 1, record.id);
+		seal(encoded);
+		return encoded;
+	}
+
+	private static void write(FileChannel channel, List<ByteBuffer> buffers) throws IOException {
+		if (buffers.isEmpty())
+			return;
+		ByteBuffer[] array = buffers.toArray(new ByteBuffer[buffers.size()]);
+		while (array[array.length - 1].hasRemaining())
+			channel.write(array);
+		buffers.clear();
+	}
+
+	/**
+	 * Fill in the length and checksum of an encoded record and prepare it for
+	 * writing
+	 */
+	private static void seal(ByteBuffer encoded) {
+		int end = encoded.position();
+		CRC32 crc = new CRC32();
+		crc.update(encoded.array(), RECORD_HEADER_SIZE, end - RECORD_HEADER_SIZE);
+		encoded.putInt(0, end - RECORD_HEADER_SIZE);
+		encoded.putInt(4, (int) crc.getValue());
+		encoded.flip();
+	}
+
+	/**
+	 * Apply a record to the state
+	 */
+	private void apply(Record record) {
+		JournalQueue queue = queues.get(record.queue);
+		switch (record.type) {
+		case SNAPSHOT:
+			lastMessageId = Math.max(lastMessageId, record.id);
+			break;
+		case CREATE_QUEUE:
+		case CREATE_FIFO_QUEUE:
+			queues.put(record.queue, new JournalQueue(record.queue, record.type == CREATE_FIFO_QUEUE));
+			break;
+		case REMOVE_QUEUE:
+			queues.remove(record.queue);
+			break;
+		case CLEAR_QUEUE:
+			if (queue != null)
+				queue.messages.clear();
+			break;
+		case PUSH:
+			if (queue == null) {
+				// Default queue is never created
+				queue = new JournalQueue(record.queue, false);
+				queues.put(record.queue, queue);
+			}
+			queue.messages.put(record.id, new JournalEntry(record.message, record.deadline, record.receiveCount));
+			break;
+		case LEASE:
+			JournalEntry entry = (queue != null) ? queue.messages.get(record.id) : null;
+			if (entry != null) {
+				entry.deadline = record.deadline;
+				entry.receiveCount = record.receiveCount;
+			}
+			break;
+		case DELETE:
+			if (queue != null)
+				queue.messages.remove(record.id);
+			break;
+		}
+	}
+
+	/**
+	 * Replay the journal, skipping records already in the snapshot
+	 * 
+	 * @return the size of the valid part of the journal
+	 */
+	private long replayJournal(File file, long snapshotSequence) throws IOException {
+		if (!file.isFile())
+			return 0;
+		return replay(file, snapshotSequence);
+	}
+
+	/**
+	 * Apply the records of a file newer than a sequence, stopping at the
+	 * first torn record
+	 * 
+	 * @return for the snapshot file the snapshot sequence, for the journal the
+	 *         size of its valid part
+	 */
+	private long replay(File file, long after) throws IOException {
+		boolean snapshot = after < 0;
+		long result = 0;
+		if (!file.isFile())
+			return result;
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 64 * 1024));
+		long position = 0;
+		try {
+			while (true) {
+				int length;
+				int checksum;
+				byte[] body;
+				try {
+					length = in.readInt();
+					checksum = in.readInt();
+					if (length < 8 + 1 || length > QueueProtocol.MAX_FRAME_SIZE)
+						break;
+					body = new byte[length];
+					in.readFully(body);
+				} catch (EOFException e) {
+					break;
+				}
+				CRC32 crc = new CRC32();
+				crc.update(body);
+				if ((int) crc.getValue() != checksum)
+					break;
+				position += RECORD_HEADER_SIZE + length;
+				Record record = Record.decode(ByteBuffer.wrap(body));
+				recorded = Math.max(recorded, record.sequence);
+				if (record.type == PUSH)
+					lastMessageId = Math.max(lastMessageId, record.id);
+				if (snapshot && record.type == SNAPSHOT)
+					result = record.sequence;
+				if (snapshot || record.sequence > after)
+					apply(record);
+			}
+		} finally {
+			in.close();
+		}
+		return snapshot ? result : position;
+	}
+
+	/**
+	 * Queue of the journal state
+	 */
+	static class JournalQueue {
+		final String name;
+		final boolean fifo;
+		// Messages not deleted yet by journal id, in push order
+		final Map<Long, JournalEntry> messages = new LinkedHashMap<Long, JournalEntry>();
+
+		private JournalQueue(String name, boolean fifo) {
+			this.name = name;
+			this.fifo = fifo;
+		}
+
+		private JournalQueue copy() {
+			JournalQueue copy = new JournalQueue(name, fifo);
+			for (Map.Entry<Long, JournalEntry> entry : messages.entrySet())
+				copy.messages.put(entry.getKey(),
+						new JournalEntry(entry.getValue().message, entry.getValue().deadline,
+								entry.getValue().receiveCount));
+			return copy;
+		}
+	}
+
+	/**
+	 * Message of the journal state
+	 */
+	static class JournalEntry {
+		final Message message;
+		// End of the lease or delay, 0 if visible
+		long deadline;
+		// Number of times the message has been leased
+		int receiveCount;
+
+		private JournalEntry(Message message, long deadline, int receiveCount) {
+			this.message = message;
+			this.deadline = deadline;
+			this.receiveCount = receiveCount;
+		}
+	}
+
+	/**
+	 * Single journal record. Encoded as its length and checksum followed by
+	 * the sequence, type, message id, queue name, deadline, receive count and
+	 * for a push the message
+	 */
+	private static class Record {
+		private final byte type;
+		private final String queue;
+		private long id;
+		private final long deadline;
+		private final int receiveCount;
+		private final Message message;
+		private long sequence;
+		private ByteBuffer encoded;
+
+		private Record(byte type, String queue, long id, long deadline, int receiveCount, Message message) {
+			this.type = type;
+			this.queue = queue;
+			this.id = id;
+			this.deadline = deadline;
+			this.receiveCount = receiveCount;
+			this.message = message;
+		}
+
+		/**
+		 * Encode the record with room for its header, the sequence and id
+		 * being filled in later
+		 */
+		private ByteBuffer encode() {
+			int size = RECORD_HEADER_SIZE + 8 + 1 + 8 + QueueProtocol.sizeOf(queue) + 8 + 4
+					+ ((message != null) ? QueueProtocol.sizeOf(message) : 0);
+			encoded = ByteBuffer.allocate(size);
+			encoded.position(RECORD_HEADER_SIZE);
+			encoded.putLong(sequence).put(type).putLong(id);
+			QueueProtocol.putString(encoded, queue);
+			encoded.putLong(deadline).putInt(receiveCount);
+			if (message != null)
+				QueueProtocol.putMessage(encoded, message);
+			return encoded;
+		}
+
+		private static Record decode(ByteBuffer body) {
+			long sequence = body.getLong();
+			byte type = body.get();
+			long id = body.getLong();
+			String queue = QueueProtocol.getString(body);
+			long deadline = body.getLong();
+			int receiveCount = body.getInt();
+			Message message = (type == PUSH) ? QueueProtocol.getMessage(body) : null;
+			if (message != null)
+				message.setJournalId(id);
+			Record record = new Record(type, queue, id, deadline, receiveCount, message);
+			record.sequence = sequence;
+			return record;
+		}
+	}
+}
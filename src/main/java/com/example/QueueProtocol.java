@@ -0,0 +1,200 @@
+package com.example;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+
+/**
+ * Binary protocol between QueueServer and RemoteQueueService. Every request
+ * and response is a frame made of its length as an int followed by the id of
+ * the request as a long, so a client can send any number of requests without
+ * waiting and match the responses by id. A request then holds its operation
+ * code and a response its status, followed by the operation arguments or
+ * result. Strings are written as their UTF-8 length, -1 for null, followed by
+ * their bytes
+ */
+public final class QueueProtocol {
+	// Request operation codes
+	public static final byte PUSH = 1;
+	public static final byte PULL = 2;
+	public static final byte DELETE = 3;
+	public static final byte ATTRIBUTES = 4;
+	public static final byte CREATE_QUEUE = 5;
+	public static final byte CREATE_FIFO_QUEUE = 6;
+
+	// Response status
+	public static final byte OK = 0;
+	public static final byte ERROR = 1;
+
+	// Size of the frame length and request id in front of every frame
+	public static final int HEADER_SIZE = 4 + 8;
+	// Largest frame accepted, a larger frame closes the connection
+	public static final int MAX_FRAME_SIZE = 16 * 1024 * 1024;
+
+	// Flags in the first byte of a message, a message without attributes and
+	// never received is written as before they existed
+	private static final byte BINARY_FLAG = 1;
+	private static final byte ATTRIBUTES_FLAG = 2;
+	private static final byte RECEIVED_FLAG = 4;
+	// Type of each message attribute
+	private static final byte STRING_ATTRIBUTE = 0;
+	private static final byte LONG_ATTRIBUTE = 1;
+	private static final byte DOUBLE_ATTRIBUTE = 2;
+	private static final byte BOOLEAN_ATTRIBUTE = 3;
+
+	private QueueProtocol() {
+	}
+
+	/**
+	 * Start a frame, the length is filled in by endFrame()
+	 * 
+	 * @param buffer
+	 *            the buffer, with room for the whole frame
+	 * @param requestId
+	 *            the request id
+	 * @return the position of the frame in the buffer
+	 */
+	public static int beginFrame(ByteBuffer buffer, long requestId) {
+		int start = buffer.position();
+		buffer.putInt(0).putLong(requestId);
+		return start;
+	}
+
+	/**
+	 * Fill in the length of a frame started by beginFrame()
+	 * 
+	 * @param buffer
+	 *            the buffer, positioned after the end of the frame
+	 * @param start
+	 *            the position of the frame
+	 */
+	public static void endFrame(ByteBuffer buffer, int start) {
+		buffer.putInt(start, buffer.position() - start - 4);
+	}
+
+	public static void putString(ByteBuffer buffer, String value) {
+		if (value == null) {
+			buffer.putInt(-1);
+			return;
+		}
+		byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+		buffer.putInt(bytes.length).put(bytes);
+	}
+
+	public static String getString(ByteBuffer buffer) {
+		int length = buffer.getInt();
+		if (length < 0)
+			return null;
+		byte[] bytes = new byte[length];
+		buffer.get(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * Upper bound of the encoded size of a string, for sizing buffers
+	 */
+	public static int sizeOf(String value) {
+		return 4 + ((value != null) ? value.length() * 3 : 0);
+	}
+
+	/**
+	 * Upper bound of the encoded size of a message
+	 */
+	public static int sizeOf(Message message) {
+		int size = 1 + 4 + 4 + 8 + 4 + 8 + 4 + message.getPayload().remaining() + sizeOf(message.getGroupId())
+				+ sizeOf(message.getDeduplicationId()) + 8;
+		Map<String, Object> attributes = message.getAttributes();
+		if (!attributes.isEmpty())
+			size += 4;
+		for (Map.Entry<String, Object> attribute : attributes.entrySet()) {
+			Object value = attribute.getValue();
+			size += sizeOf(attribute.getKey()) + 1 + ((value instanceof String) ? sizeOf((String) value) : 8);
+		}
+		return size;
+	}
+
+	/**
+	 * Write a message with every attribute that travels with it
+	 * 
+	 * @param buffer
+	 *            the buffer
+	 * @param message
+	 *            the message
+	 */
+	public static void putMessage(ByteBuffer buffer, Message message) {
+		Map<String, Object> attributes = message.getAttributes();
+		long firstReceiveTime = message.getFirstReceiveTime();
+		buffer.put((byte) ((message.isBinary() ? BINARY_FLAG : 0) | (attributes.isEmpty() ? 0 : ATTRIBUTES_FLAG)
+				| ((firstReceiveTime != 0) ? RECEIVED_FLAG : 0)));
+		buffer.putInt(message.getPriority());
+		buffer.putInt(message.getDelaySeconds());
+		buffer.putLong(message.getEnqueueTime());
+		buffer.putInt(message.getReceiveCount());
+		buffer.putLong(message.getReceiptHandle());
+		ByteBuffer payload = message.getPayload();
+		buffer.putInt(payload.remaining()).put(payload);
+		putString(buffer, message.getGroupId());
+		putString(buffer, message.getDeduplicationId());
+		if (firstReceiveTime != 0)
+			buffer.putLong(firstReceiveTime);
+		if (attributes.isEmpty())
+			return;
+		buffer.putInt(attributes.size());
+		for (Map.Entry<String, Object> attribute : attributes.entrySet()) {
+			putString(buffer, attribute.getKey());
+			Object value = attribute.getValue();
+			if (value instanceof Long)
+				buffer.put(LONG_ATTRIBUTE).putLong((Long) value);
+			else if (value instanceof Double)
+				buffer.put(DOUBLE_ATTRIBUTE).putDouble((Double) value);
+			else if (value instanceof Boolean)
+				buffer.put(BOOLEAN_ATTRIBUTE).put((byte) (((Boolean) value) ? 1 : 0));
+			else {
+				buffer.put(STRING_ATTRIBUTE);
+				putString(buffer, (String) value);
+			}
+		}
+	}
+
+	/**
+	 * Read a message written by putMessage()
+	 * 
+	 * @param buffer
+	 *            the buffer
+	 * @return the message
+	 */
+	public static Message getMessage(ByteBuffer buffer) {
+		byte flags = buffer.get();
+		boolean binary = (flags & BINARY_FLAG) != 0;
+		int priority = buffer.getInt();
+		int delaySeconds = buffer.getInt();
+		long enqueueTime = buffer.getLong();
+		int receiveCount = buffer.getInt();
+		long receiptHandle = buffer.getLong();
+		byte[] payload = new byte[buffer.getInt()];
+		buffer.get(payload);
+		Message message = binary ? new Message(ByteBuffer.wrap(payload), priority)
+				: new Message(new String(payload, StandardCharsets.UTF_8), priority);
+		message.setDelaySeconds(delaySeconds);
+		message.setEnqueueTime(enqueueTime);
+		message.setReceiveCount(receiveCount);
+		message.setReceiptHandle(receiptHandle);
+		message.setGroupId(getString(buffer));
+		message.setDeduplicationId(getString(buffer));
+		if ((flags & RECEIVED_FLAG) != 0)
+			message.setFirstReceiveTime(buffer.getLong());
+		for (int i = ((flags & ATTRIBUTES_FLAG) != 0) ? buffer.getInt() : 0; i > 0; i--) {
+			String name = getString(buffer);
+			byte type = buffer.get();
+			if (type == LONG_ATTRIBUTE)
+				message.setAttribute(name, buffer.getLong());
+			else if (type == DOUBLE_ATTRIBUTE)
+				message.setAttribute(name, buffer.getDouble());
+			else if (type == BOOLEAN_ATTRIBUTE)
+				message.setAttribute(name, buffer.get() != 0);
+			else
+				message.setAttribute(name, getString(buffer));
+		}
+		return message;
+	}
+}
@@ -0,0 +1,443 @@
+package com.example;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * Replica of the queue directories of a FileQueueService. Every change the
+ * primary makes to its files is recorded, while the primary still holds the
+ * queue lock, into an ordered change log that a background thread applies to
+ * the replica directory. The applier drains whatever has accumulated as one
+ * batch, and the changes of a batch to the same lane file are applied with a
+ * single rewrite of that file, so a busy primary costs the replica far fewer
+ * file operations than it performs itself. In asynchronous mode recording a
+ * change only appends it to the log in memory, and a batch is kept open for
+ * a short window so that it gathers more changes. In synchronous mode the
+ * primary also waits until its change is applied, changes of concurrent
+ * operations still being applied together. A standby FileQueueService opened
+ * on the replica directory takes over after flush(), it must not operate on
+ * the replica while the primary is running
+ */
+public class QueueReplicator {
+	// Largest number of changes applied as one batch
+	private static final int MAX_BATCH = 4096;
+	// Time an asynchronous batch is left open for more changes, the longer
+	// it is the fewer times a busy lane file is rewritten on the replica
+	private static final long ASYNCHRONOUS_BATCH_WINDOW = 20;
+
+	private final String directory;
+	private final boolean synchronous;
+	// Change log, in the order the primary made the changes
+	private final BlockingQueue<Change> changes = new LinkedBlockingQueue<Change>();
+	private final Thread applier;
+	// Sequence of the last recorded change, guarded by this
+	private long recorded;
+	// Sequence of the last applied change, guarded by appliedLock
+	private long applied;
+	private final Object appliedLock = new Object();
+	// First failure to apply a batch, the replica is out of date from then on
+	private volatile IOException failure;
+	private volatile boolean closed;
+
+	/**
+	 * Create replicator applying changes to a replica directory
+	 * 
+	 * @param directory
+	 *            the root directory of the replica
+	 * @param synchronous
+	 *            true to make every change of the primary wait until it is
+	 *            applied to the replica
+	 */
+	public QueueReplicator(String directory, boolean synchronous) {
+		this.directory = directory;
+		this.synchronous = synchronous;
+		new File(directory).mkdirs();
+		applier = new Thread(this::applyChanges, "queue-replicator");
+		applier.setDaemon(true);
+		applier.start();
+	}
+
+	/**
+	 * @return the root directory of the replica
+	 */
+	public String getDirectory() {
+		return directory;
+	}
+
+	/**
+	 * @return true if the primary waits for its changes to be applied
+	 */
+	public boolean isSynchronous() {
+		return synchronous;
+	}
+
+	/**
+	 * Record a line appended to a file
+	 * 
+	 * @param path
+	 *            the file path relative to the root directory
+	 * @param line
+	 *            the line, without line separator
+	 * @return false if the change could not be applied to a synchronous
+	 *         replica
+	 */
+	public boolean appendLine(String path, String line) {
+		return record(new Change(Change.APPEND_LINE, path, line, null, null, 0));
+	}
+
+	/**
+	 * Record the first occurrence of a line in a file being replaced
+	 * 
+	 * @param path
+	 *            the file path relative to the root directory
+	 * @param line
+	 *            the original line
+	 * @param replacement
+	 *            the new line, null if the line is removed
+	 * @return false if the change could not be applied to a synchronous
+	 *         replica
+	 */
+	public boolean replaceLine(String path, String line, String replacement) {
+		return record(new Change(Change.REPLACE_LINE, path, line, replacement, null, 0));
+	}
+
+	/**
+	 * Record the whole content of a file being replaced
+	 * 
+	 * @param path
+	 *            the file path relative to the root directory
+	 * @param content
+	 *            the new content
+	 * @return false if the change could not be applied to a synchronous
+	 *         replica
+	 */
+	public boolean writeFile(String path, byte[] content) {
+		return record(new Change(Change.WRITE_FILE, path, null, null, content, 0));
+	}
+
+	/**
+	 * Record bytes written at a position of a file
+	 * 
+	 * @param path
+	 *            the file path relative to the root directory
+	 * @param offset
+	 *            the position, -1 to append
+	 * @param content
+	 *            the bytes
+	 * @return false if the change could not be applied to a synchronous
+	 *         replica
+	 */
+	public boolean writeAt(String path, long offset, byte[] content) {
+		return record(new Change(Change.WRITE_AT, path, null, null, content, offset));
+	}
+
+	/**
+	 * Record a file or a whole directory being deleted
+	 * 
+	 * @param path
+	 *            the path relative to the root directory
+	 * @return false if the change could not be applied to a synchronous
+	 *         replica
+	 */
+	public boolean delete(String path) {
+		return record(new Change(Change.DELETE, path, null, null, null, 0));
+	}
+
+	/**
+	 * Record a directory being created
+	 * 
+	 * @param path
+	 *            the path relative to the root directory
+	 * @return false if the change could not be applied to a synchronous
+	 *         replica
+	 */
+	public boolean createDirectory(String path) {
+		return record(new Change(Change.CREATE_DIRECTORY, path, null, null, null, 0));
+	}
+
+	private boolean record(Change change) {
+		long sequence;
+		synchronized (this) {
+			if (closed)
+				return true;
+			sequence = ++recorded;
+			change.sequence = sequence;
+			changes.add(change);
+		}
+		if (synchronous)
+			return awaitApplied(sequence);
+		return true;
+	}
+
+	/**
+	 * Wait until every change recorded so far is applied to the replica
+	 * 
+	 * @return false if any change could not be applied, the replica is then
+	 *         out of date
+	 */
+	public boolean flush() {
+		long sequence;
+		synchronized (this) {
+			sequence = recorded;
+		}
+		return awaitApplied(sequence);
+	}
+
+	/**
+	 * Apply every recorded change and stop replicating
+	 */
+	public void close() {
+		flush();
+		synchronized (this) {
+			closed = true;
+		}
+		applier.interrupt();
+	}
+
+	/**
+	 * @return true if a change could not be applied, the replica being out of
+	 *         date from then on
+	 */
+	public boolean hasFailed() {
+		return failure != null;
+	}
+
+	/**
+	 * @return number of changes recorded but not applied yet
+	 */
+	public long getLag() {
+		long sequence;
+		synchronized (this) {
+			sequence = recorded;
+		}
+		synchronized (appliedLock) {
+			return sequence - applied;
+		}
+	}
+
+	private boolean awaitApplied(long sequence) {
+		synchronized (appliedLock) {
+			while (applied < sequence && failure == null) {
+				try {
+					appliedLock.wait();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					return false;
+				}
+			}
+		}
+		return failure == null;
+	}
+
+	private void applyChanges() {
+		List<Change> batch = new ArrayList<Change>();
+		while (!closed || !changes.isEmpty()) {
+			try {
+				batch.add(changes.take());
+				if (!synchronous && !closed)
+					Thread.sleep(ASYNCHRONOUS_BATCH_WINDOW);
+			} catch (InterruptedException e) {
+				if (batch.isEmpty())
+					continue;
+			}
+			changes.drainTo(batch, MAX_BATCH - 1);
+			try {
+				apply(batch);
+			} catch (IOException e) {
+				e.printStackTrace();
+				failure = e;
+			}
+			synchronized (appliedLock) {
+				applied = batch.get(batch.size() - 1).sequence;
+				appliedLock.notifyAll();
+			}
+			batch.clear();
+		}
+	}
+
+	/**
+	 * Apply a batch of changes. Changes to different files do not depend on
+	 * each other, so the changes of each file are gathered and applied in
+	 * their order with as few writes as possible. Creating or deleting a path
+	 * may affect several files, so it is applied after every change recorded
+	 * before it
+	 */
+	private void apply(List<Change> batch) throws IOException {
+		Map<String, List<Change>> files = new LinkedHashMap<String, List<Change>>();
+		for (Change change : batch) {
+			if (change.type == Change.DELETE || change.type == Change.CREATE_DIRECTORY) {
+				applyFiles(files);
+				files.clear();
+				File file = new File(directory + "/" + change.path);
+				if (change.type == Change.DELETE)
+					deleteRecursively(file);
+				else
+					file.mkdirs();
+				continue;
+			}
+			List<Change> changesOfFile = files.get(change.path);
+			if (changesOfFile == null) {
+				changesOfFile = new ArrayList<Change>();
+				files.put(change.path, changesOfFile);
+			}
+			changesOfFile.add(change);
+		}
+		applyFiles(files);
+	}
+
+	private void applyFiles(Map<String, List<Change>> files) throws IOException {
+		for (Map.Entry<String, List<Change>> entry : files.entrySet()) {
+			File file = new File(directory + "/" + entry.getKey());
+			List<Change> changesOfFile = entry.getValue();
+			int start = 0;
+			while (start < changesOfFile.size()) {
+				Change change = changesOfFile.get(start);
+				int end = start + 1;
+				while (end < changesOfFile.size() && changesOfFile.get(end).isLineChange() == change.isLineChange()
+						&& (change.isLineChange() || changesOfFile.get(end).type == change.type))
+					end++;
+				List<Change> group = changesOfFile.subList(start, end);
+				if (change.isLineChange())
+					applyLines(file, group);
+				else if (change.type == Change.WRITE_FILE)
+					writeFile(file, group.get(group.size() - 1).content);
+				else
+					writeAt(file, group);
+				start = end;
+			}
+		}
+	}
+
+	/**
+	 * Replace the content of a file, only the last of consecutive whole file
+	 * writes matters
+	 */
+	private static void writeFile(File file, byte[] content) throws IOException {
+		File tempFile = new File(file.getPath() + "_temp");
+		FileOutputStream out = new FileOutputStream(tempFile);
+		out.write(content);
+		out.close();
+		file.delete();
+		tempFile.renameTo(file);
+	}
+
+	private static void writeAt(File file, List<Change> group) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		for (Change change : group) {
+			raf.seek((change.offset < 0) ? raf.length() : change.offset);
+			raf.write(change.content);
+		}
+		raf.close();
+	}
+
+	/**
+	 * Apply a group of line changes to a file with a single write. Appended
+	 * lines go after the existing ones, so a replacement recorded after an
+	 * append may apply to the appended line, while a replacement recorded
+	 * before it only applies to the existing lines
+	 */
+	private static void applyLines(File file, List<Change> group) throws IOException {
+		List<Change> pending = new ArrayList<Change>();
+		for (Change change : group)
+			if (change.type == Change.REPLACE_LINE)
+				pending.add(change);
+		if (pending.isEmpty() || !file.isFile()) {
+			BufferedWriter bw = new BufferedWriter(new FileWriter(file, true));
+			for (Change change : group)
+				if (change.type == Change.APPEND_LINE)
+					write(bw, replace(change.line, pending, change.sequence));
+			bw.close();
+			return;
+		}
+		File tempFile = new File(file.getPath() + "_temp");
+		BufferedReader br = new BufferedReader(new FileReader(file));
+		BufferedWriter bw = new BufferedWriter(new FileWriter(tempFile));
+		String line;
+		while ((line = br.readLine()) != null)
+			write(bw, replace(line, pending, 0));
+		for (Change change : group)
+			if (change.type == Change.APPEND_LINE)
+				write(bw, replace(change.line, pending, change.sequence));
+		bw.close();
+		br.close();
+		file.delete();
+		tempFile.renameTo(file);
+	}
+
+	/**
+	 * Apply to a line the pending replacements recorded after a given change,
+	 * in order, a replaced line being subject to the later replacements
+	 * 
+	 * @return the resulting line, null if removed
+	 */
+	private static String replace(String line, List<Change> pending, long after) {
+		for (int i = 0; line != null && i < pending.size(); i++) {
+			Change change = pending.get(i);
+			if (change.sequence > after && change.line.equals(line)) {
+				pending.remove(i);
+				line = change.replacement;
+				after = change.sequence;
+				i = -1;
+			}
+		}
+		return line;
+	}
+
+	private static void write(BufferedWriter bw, String line) throws IOException {
+		if (line != null)
+			bw.write(line + System.getProperty("line.separator"));
+	}
+
+	private static void deleteRecursively(File file) {
+		File[] children = file.listFiles();
+		if (children != null)
+			for (File child : children)
+				deleteRecursively(child);
+		file.delete();
+	}
+
+	/**
+	 * Single change of the log
+	 */
+	private static class Change {
+		private static final int APPEND_LINE = 0;
+		private static final int REPLACE_LINE = 1;
+		private static final int WRITE_FILE = 2;
+		private static final int WRITE_AT = 3;
+		private static final int DELETE = 4;
+		private static final int CREATE_DIRECTORY = 5;
+
+		private final int type;
+		private final String path;
+		private final String line;
+		private final String replacement;
+		private final byte[] content;
+		private final long offset;
+		private long sequence;
+
+		private Change(int type, String path, String line, String replacement, byte[] content, long offset) {
+			this.type = type;
+			this.path = path;
+			this.line = line;
+			this.replacement = replacement;
+			this.content = content;
+			this.offset = offset;
+		}
+
+		private boolean isLineChange() {
+			return type == APPEND_LINE || type == REPLACE_LINE;
+		}
+	}
+}
@@ -0,0 +1,392 @@
+package com.example;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Network server exposing an InMemoryQueueService through QueueProtocol. A
+ * few event loop threads each multiplex many connections on a non-blocking
+ * selector, and requests are executed right on the event loop as the queue
+ * operations never block. Every frame received in a single read is handled
+ * before the responses are written back together, so pipelined requests cost
+ * one read and one write for the whole batch. A connection whose responses
+ * are not read by its client stops being read until they are written, which
+ * keeps the memory of a slow client bounded
+ */
+public class QueueServer implements Closeable {
+	// Initial size of the read and write buffer of a connection, grown for
+	// larger frames, kept small so that many idle connections cost little
+	private static final int INITIAL_BUFFER_SIZE = 1024;
+
+	private final InMemoryQueueService service;
+	private final ServerSocketChannel serverChannel;
+	private final EventLoop[] loops;
+	// Leases given through this server and not deleted yet, by handle. Every
+	// receive issues a new handle, older handles of the message are stale
+	private final Map<Long, Receipt> receipts = new ConcurrentHashMap<Long, Receipt>();
+	// Receipts in the order they were issued, swept once their lease is over
+	private final Queue<Receipt> issued = new ConcurrentLinkedQueue<Receipt>();
+	private final AtomicLong lastReceipt = new AtomicLong();
+	// Event loop given the next accepted connection, only used by the first
+	// event loop
+	private int nextLoop;
+	private volatile boolean running = true;
+
+	/**
+	 * Create the server and start accepting connections
+	 * 
+	 * @param service
+	 *            the queue service to expose
+	 * @param port
+	 *            the port to listen to, 0 for any free port
+	 * @param eventLoops
+	 *            the number of event loop threads
+	 * @throws IOException
+	 */
+	public QueueServer(InMemoryQueueService service, int port, int eventLoops) throws IOException {
+		this.service = service;
+		serverChannel = ServerSocketChannel.open();
+		serverChannel.bind(new InetSocketAddress(port), 1024);
+		serverChannel.configureBlocking(false);
+		loops = new EventLoop[Math.max(eventLoops, 1)];
+		for (int i = 0; i < loops.length; i++)
+			loops[i] = new EventLoop(i);
+		serverChannel.register(loops[0].selector, SelectionKey.OP_ACCEPT);
+		for (EventLoop loop : loops)
+			loop.thread.start();
+	}
+
+	/**
+	 * @return the port the server listens to
+	 */
+	public int getPort() {
+		return serverChannel.socket().getLocalPort();
+	}
+
+	/**
+	 * Stop the event loops and close every connection
+	 */
+	@Override
+	public void close() throws IOException {
+		running = false;
+		for (EventLoop loop : loops)
+			loop.selector.wakeup();
+		for (EventLoop loop : loops) {
+			try {
+				loop.thread.join();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		serverChannel.close();
+	}
+
+	/**
+	 * @return the number of receipt handles still valid or not swept yet
+	 */
+	int getReceiptCount() {
+		return receipts.size();
+	}
+
+	/**
+	 * Drop the receipts issued first whose lease is over, because the message
+	 * was deleted, received again or its visibility timeout expired. Leases
+	 * are mostly issued with the same timeout, so the sweep stops at the
+	 * first receipt still leased
+	 */
+	private void sweepReceipts(long now) {
+		Receipt head;
+		while ((head = issued.peek()) != null && !head.isLeased(now)) {
+			if (issued.remove(head))
+				receipts.remove(head.handle, head);
+		}
+	}
+
+	private void accept() throws IOException {
+		SocketChannel channel;
+		while ((channel = serverChannel.accept()) != null) {
+			channel.configureBlocking(false);
+			channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+			EventLoop loop = loops[nextLoop];
+			nextLoop = (nextLoop + 1) % loops.length;
+			loop.accepted.add(channel);
+			loop.selector.wakeup();
+		}
+	}
+
+	/**
+	 * Event loop thread serving its share of the connections
+	 */
+	private class EventLoop implements Runnable {
+		private final Selector selector;
+		// Connections handed over by the accepting loop, registered by this
+		// loop as a selector can only be changed by its own thread without
+		// blocking
+		private final Queue<SocketChannel> accepted = new ConcurrentLinkedQueue<SocketChannel>();
+		private final Thread thread;
+
+		private EventLoop(int index) throws IOException {
+			selector = Selector.open();
+			thread = new Thread(this, "queue-server-" + index);
+			thread.setDaemon(true);
+		}
+
+		@Override
+		public void run() {
+			while (running) {
+				try {
+					selector.select();
+				} catch (IOException e) {
+					e.printStackTrace();
+					break;
+				}
+				SocketChannel channel;
+				while ((channel = accepted.poll()) != null) {
+					try {
+						Connection connection = new Connection(channel);
+						connection.key = channel.register(selector, SelectionKey.OP_READ, connection);
+					} catch (IOException e) {
+						e.printStackTrace();
+						closeQuietly(channel);
+					}
+				}
+				Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+				while (keys.hasNext()) {
+					SelectionKey key = keys.next();
+					keys.remove();
+					try {
+						if (key.isAcceptable()) {
+							accept();
+							continue;
+						}
+						Connection connection = (Connection) key.attachment();
+						if (key.isReadable())
+							connection.read();
+						if (key.isValid() && key.isWritable())
+							connection.flush();
+					} catch (IOException | RuntimeException e) {
+						key.cancel();
+						closeQuietly(key.channel());
+					}
+				}
+			}
+			for (SelectionKey key : selector.keys())
+				closeQuietly(key.channel());
+			closeQuietly(selector);
+		}
+	}
+
+	private static void closeQuietly(Closeable closeable) {
+		try {
+			closeable.close();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * State of a single client connection, only used by its event loop
+	 */
+	private class Connection {
+		private final SocketChannel channel;
+		private SelectionKey key;
+		// Bytes received and not handled yet, in write mode
+		private ByteBuffer input = ByteBuffer.allocate(INITIAL_BUFFER_SIZE);
+		// Responses not written yet, in write mode
+		private ByteBuffer output = ByteBuffer.allocate(INITIAL_BUFFER_SIZE);
+
+		private Connection(SocketChannel channel) {
+			this.channel = channel;
+		}
+
+		/**
+		 * Handle every complete frame available, then write the responses
+		 */
+		private void read() throws IOException {
+			if (channel.read(input) < 0) {
+				key.cancel();
+				channel.close();
+				return;
+			}
+			input.flip();
+			while (input.remaining() >= 4) {
+				int length = input.getInt(input.position());
+				if (length < 9 || length > QueueProtocol.MAX_FRAME_SIZE)
+					throw new IOException("Invalid frame length " + length);
+				if (input.remaining() < 4 + length)
+					break;
+				int end = input.position() + 4 + length;
+				ByteBuffer frame = input.duplicate();
+				frame.limit(end);
+				frame.position(input.position() + 4);
+				handle(frame.getLong(), frame);
+				input.position(end);
+			}
+			// Grow the buffer for a frame larger than it
+			if (input.remaining() >= 4 && 4 + input.getInt(input.position()) > input.capacity()) {
+				ByteBuffer larger = ByteBuffer.allocate(4 + input.getInt(input.position()));
+				larger.put(input);
+				input = larger;
+			} else
+				input.compact();
+			flush();
+		}
+
+		/**
+		 * Write the pending responses, and stop reading requests until they
+		 * are all written
+		 */
+		private void flush() throws IOException {
+			output.flip();
+			channel.write(output);
+			boolean pending = output.hasRemaining();
+			output.compact();
+			key.interestOps(pending ? SelectionKey.OP_WRITE : SelectionKey.OP_READ);
+		}
+
+		/**
+		 * Execute a request and append its response to the output
+		 */
+		private void handle(long requestId, ByteBuffer request) {
+			byte operation = request.get();
+			try {
+				String queue = QueueProtocol.getString(request);
+				switch (operation) {
+				case QueueProtocol.PUSH:
+					respond(requestId, service.push(queue, QueueProtocol.getMessage(request)));
+					break;
+				case QueueProtocol.PULL:
+					respond(requestId, pull(queue));
+					break;
+				case QueueProtocol.DELETE:
+					respond(requestId, delete(queue, request.getLong()));
+					break;
+				case QueueProtocol.ATTRIBUTES:
+					respond(requestId, service.getQueueAttributes(queue));
+					break;
+				case QueueProtocol.CREATE_QUEUE:
+					respond(requestId, service.getQueue(queue) == null && service.createQueue(queue) != null);
+					break;
+				case QueueProtocol.CREATE_FIFO_QUEUE:
+					respond(requestId, service.getQueue(queue) == null && service.createFifoQueue(queue) != null);
+					break;
+				default:
+					respondError(requestId, "Unknown operation " + operation);
+				}
+			} catch (RuntimeException e) {
+				respondError(requestId, e.toString());
+			}
+		}
+
+		private Message pull(String queue) {
+			sweepReceipts(service.currentTimeMillis());
+			Message message = service.pull(queue);
+			if (message == null)
+				return null;
+			// A new handle for every receive, so a consumer whose lease has
+			// expired cannot delete the message once it is leased again
+			Receipt receipt = new Receipt(lastReceipt.incrementAndGet(), queue, message);
+			message.setReceiptHandle(receipt.handle);
+			receipts.put(receipt.handle, receipt);
+			issued.add(receipt);
+			return message;
+		}
+
+		private boolean delete(String queue, long receiptHandle) {
+			Receipt receipt = receipts.get(receiptHandle);
+			if (receipt == null || !receipt.queue.equals(queue) || !receipt.isLeased(service.currentTimeMillis())
+					|| !service.delete(queue, receipt.message))
+				return false;
+			receipts.remove(receiptHandle, receipt);
+			return true;
+		}
+
+		private void respond(long requestId, boolean result) {
+			int start = beginResponse(requestId, 1, QueueProtocol.OK);
+			output.put((byte) (result ? 1 : 0));
+			QueueProtocol.endFrame(output, start);
+		}
+
+		private void respond(long requestId, Message message) {
+			int start = beginResponse(requestId, 1 + ((message != null) ? QueueProtocol.sizeOf(message) : 0),
+					QueueProtocol.OK);
+			output.put((byte) ((message != null) ? 1 : 0));
+			if (message != null)
+				QueueProtocol.putMessage(output, message);
+			QueueProtocol.endFrame(output, start);
+		}
+
+		private void respond(long requestId, QueueAttributes attributes) {
+			int start = beginResponse(requestId, 1 + 4 * 8, QueueProtocol.OK);
+			output.put((byte) ((attributes != null) ? 1 : 0));
+			if (attributes != null)
+				output.putLong(attributes.getVisibleMessages()).putLong(attributes.getInFlightMessages())
+						.putLong(attributes.getDelayedMessages()).putLong(attributes.getOldestMessageAge());
+			QueueProtocol.endFrame(output, start);
+		}
+
+		private void respondError(long requestId, String error) {
+			int start = beginResponse(requestId, QueueProtocol.sizeOf(error), QueueProtocol.ERROR);
+			QueueProtocol.putString(output, error);
+			QueueProtocol.endFrame(output, start);
+		}
+
+		/**
+		 * Make room for a response and write its header
+		 * 
+		 * @param size
+		 *            upper bound of the response size after the status
+		 * @return the position of the response frame
+		 */
+		private int beginResponse(long requestId, int size, byte status) {
+			int needed = QueueProtocol.HEADER_SIZE + 1 + size;
+			if (output.remaining() < needed) {
+				ByteBuffer larger = ByteBuffer.allocate(Math.max(output.capacity() * 2, output.position() + needed));
+				output.flip();
+				larger.put(output);
+				output = larger;
+			}
+			int start = QueueProtocol.beginFrame(output, requestId);
+			output.put(status);
+			return start;
+		}
+	}
+
+	/**
+	 * Lease of a message given by a single receive
+	 */
+	private static class Receipt {
+		private final long handle;
+		private final String queue;
+		private final Message message;
+		// Receive count of the message when this lease was given
+		private final int receiveCount;
+
+		private Receipt(long handle, String queue, Message message) {
+			this.handle = handle;
+			this.queue = queue;
+			this.message = message;
+			this.receiveCount = message.getReceiveCount();
+		}
+
+		/**
+		 * @return true if the message is still leased by this receive
+		 */
+		private boolean isLeased(long now) {
+			return message.getReceiveCount() == receiveCount && message.isLeased(now);
+		}
+	}
+}
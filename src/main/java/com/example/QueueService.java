@@ -43,4 +43,14 @@ public interface QueueService {
 	 */
 	public boolean delete(String queue, Message message);
 
+	/**
+	 * Get the approximate number of visible, in flight and delayed messages of
+	 * a queue and the age of its oldest message, without scanning the queue
+	 * 
+	 * @param queue
+	 *            the specified queue name
+	 * @return the attributes, null if the queue does not exist
+	 */
+	public QueueAttributes getQueueAttributes(String queue);
+
 }
@@ -0,0 +1,317 @@
+package com.example;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Client of a QueueServer. Every thread of the client shares a single
+ * connection: requests are sent without waiting for the previous responses,
+ * and a reader thread completes each request as its response arrives. A
+ * thread sending a request while another one is writing leaves its frame to
+ * that writer, which writes every waiting frame at once, so concurrent
+ * requests are coalesced into few socket writes. The asynchronous methods
+ * let a single thread keep many requests in flight
+ */
+public class RemoteQueueService implements QueueService, Closeable {
+	// Size of the buffer responses are read into, grown for larger frames
+	private static final int READ_BUFFER_SIZE = 64 * 1024;
+
+	private final SocketChannel channel;
+	private final AtomicLong lastRequestId = new AtomicLong();
+	// Requests waiting for their response, by request id
+	private final Map<Long, CompletableFuture<ByteBuffer>> pending = new ConcurrentHashMap<Long, CompletableFuture<ByteBuffer>>();
+	// Frames waiting to be written, guarded by itself
+	private final Queue<ByteBuffer> outgoing = new ArrayDeque<ByteBuffer>();
+	// True while a thread is writing the outgoing frames, guarded by outgoing
+	private boolean writing;
+	private final Thread reader;
+	// Failure of the connection, every request fails once it is set
+	private volatile IOException failure;
+
+	/**
+	 * Connect to a queue server
+	 * 
+	 * @param host
+	 *            the server host
+	 * @param port
+	 *            the server port
+	 * @throws IOException
+	 */
+	public RemoteQueueService(String host, int port) throws IOException {
+		channel = SocketChannel.open(new InetSocketAddress(host, port));
+		channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+		reader = new Thread(this::readResponses, "remote-queue-reader");
+		reader.setDaemon(true);
+		reader.start();
+	}
+
+	@Override
+	public boolean push(String queue, Message message) {
+		return get(pushAsync(queue, message), false);
+	}
+
+	@Override
+	public Message pull(String queue) {
+		return get(pullAsync(queue), null);
+	}
+
+	@Override
+	public boolean delete(String queue, Message message) {
+		return get(deleteAsync(queue, message), false);
+	}
+
+	@Override
+	public QueueAttributes getQueueAttributes(String queue) {
+		return get(getQueueAttributesAsync(queue), null);
+	}
+
+	/**
+	 * Create a queue on the server
+	 * 
+	 * @param queue
+	 *            the queue name
+	 * @return true if created, false if it already exists or on failure
+	 */
+	public boolean createQueue(String queue) {
+		return get(send(QueueProtocol.CREATE_QUEUE, queue, 0).thenApply(RemoteQueueService::getBoolean), false);
+	}
+
+	/**
+	 * Create a FIFO queue on the server
+	 * 
+	 * @param queue
+	 *            the queue name
+	 * @return true if created, false if it already exists or on failure
+	 */
+	public boolean createFifoQueue(String queue) {
+		return get(send(QueueProtocol.CREATE_FIFO_QUEUE, queue, 0).thenApply(RemoteQueueService::getBoolean),
+				false);
+	}
+
+	/**
+	 * Push a message without waiting for the server
+	 * 
+	 * @param queue
+	 *            the queue name
+	 * @param message
+	 *            the message
+	 * @return future completed with the push result
+	 */
+	public CompletableFuture<Boolean> pushAsync(String queue, Message message) {
+		ByteBuffer frame = ByteBuffer.allocate(frameSize(queue, QueueProtocol.sizeOf(message)));
+		int start = beginRequest(frame, QueueProtocol.PUSH, queue);
+		QueueProtocol.putMessage(frame, message);
+		return send(frame, start).thenApply(RemoteQueueService::getBoolean);
+	}
+
+	/**
+	 * Pull a message without waiting for the server. The message carries the
+	 * receipt handle the server needs to delete it
+	 * 
+	 * @param queue
+	 *            the queue name
+	 * @return future completed with the message, null if none is visible
+	 */
+	public CompletableFuture<Message> pullAsync(String queue) {
+		return send(QueueProtocol.PULL, queue, 0).thenApply(response -> {
+			return (response.get() != 0) ? QueueProtocol.getMessage(response) : null;
+		});
+	}
+
+	/**
+	 * Delete a message pulled through this client without waiting for the
+	 * server
+	 * 
+	 * @param queue
+	 *            the queue name
+	 * @param message
+	 *            the message
+	 * @return future completed with the delete result
+	 */
+	public CompletableFuture<Boolean> deleteAsync(String queue, Message message) {
+		ByteBuffer frame = ByteBuffer.allocate(frameSize(queue, 8));
+		int start = beginRequest(frame, QueueProtocol.DELETE, queue);
+		frame.putLong(message.getReceiptHandle());
+		return send(frame, start).thenApply(RemoteQueueService::getBoolean);
+	}
+
+	/**
+	 * Get the attributes of a queue without waiting for the server
+	 * 
+	 * @param queue
+	 *            the queue name
+	 * @return future completed with the attributes, null if the queue does not
+	 *         exist
+	 */
+	public CompletableFuture<QueueAttributes> getQueueAttributesAsync(String queue) {
+		return send(QueueProtocol.ATTRIBUTES, queue, 0).thenApply(response -> {
+			if (response.get() == 0)
+				return null;
+			return new QueueAttributes(response.getLong(), response.getLong(), response.getLong(),
+					response.getLong());
+		});
+	}
+
+	/**
+	 * Close the connection, requests still waiting for their response fail
+	 */
+	@Override
+	public void close() throws IOException {
+		channel.close();
+		try {
+			reader.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private static <T> T get(CompletableFuture<T> future, T failed) {
+		try {
+			return future.get();
+		} catch (InterruptedException | ExecutionException e) {
+			e.printStackTrace();
+			return failed;
+		}
+	}
+
+	private static boolean getBoolean(ByteBuffer response) {
+		return response.get() != 0;
+	}
+
+	private static int frameSize(String queue, int argumentsSize) {
+		return QueueProtocol.HEADER_SIZE + 1 + QueueProtocol.sizeOf(queue) + argumentsSize;
+	}
+
+	private int beginRequest(ByteBuffer frame, byte operation, String queue) {
+		int start = QueueProtocol.beginFrame(frame, lastRequestId.incrementAndGet());
+		frame.put(operation);
+		QueueProtocol.putString(frame, queue);
+		return start;
+	}
+
+	/**
+	 * Send a request taking only the queue name
+	 */
+	private CompletableFuture<ByteBuffer> send(byte operation, String queue, int argumentsSize) {
+		ByteBuffer frame = ByteBuffer.allocate(frameSize(queue, argumentsSize));
+		return send(frame, beginRequest(frame, operation, queue));
+	}
+
+	/**
+	 * Send a request frame, written by this thread unless another thread is
+	 * already writing
+	 * 
+	 * @return future completed with the response, positioned after its status
+	 */
+	private CompletableFuture<ByteBuffer> send(ByteBuffer frame, int start) {
+		QueueProtocol.endFrame(frame, start);
+		long requestId = frame.getLong(start + 4);
+		frame.flip();
+		CompletableFuture<ByteBuffer> future = new CompletableFuture<ByteBuffer>();
+		pending.put(requestId, future);
+		if (failure != null) {
+			pending.remove(requestId);
+			future.completeExceptionally(failure);
+			return future;
+		}
+		synchronized (outgoing) {
+			outgoing.add(frame);
+			if (writing)
+				return future;
+			writing = true;
+		}
+		try {
+			while (true) {
+				ByteBuffer[] frames;
+				synchronized (outgoing) {
+					if (outgoing.isEmpty()) {
+						writing = false;
+						break;
+					}
+					frames = outgoing.toArray(new ByteBuffer[outgoing.size()]);
+					outgoing.clear();
+				}
+				while (frames[frames.length - 1].hasRemaining())
+					channel.write(frames);
+			}
+		} catch (IOException e) {
+			synchronized (outgoing) {
+				outgoing.clear();
+				writing = false;
+			}
+			fail(e);
+		}
+		return future;
+	}
+
+	private void readResponses() {
+		ByteBuffer buffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+		try {
+			while (true) {
+				if (channel.read(buffer) < 0)
+					throw new IOException("Connection closed by server");
+				buffer.flip();
+				while (buffer.remaining() >= 4) {
+					int length = buffer.getInt(buffer.position());
+					if (length < 9 || length > QueueProtocol.MAX_FRAME_SIZE)
+						throw new IOException("Invalid frame length " + length);
+					if (buffer.remaining() < 4 + length)
+						break;
+					buffer.getInt();
+					long requestId = buffer.getLong();
+					byte status = buffer.get();
+					// Copy the response as the buffer is reused
+					ByteBuffer response = ByteBuffer.allocate(length - 9);
+					int limit = buffer.limit();
+					buffer.limit(buffer.position() + response.capacity());
+					response.put(buffer).flip();
+					buffer.limit(limit);
+					complete(requestId, status, response);
+				}
+				// Grow the buffer for a frame larger than it
+				if (buffer.remaining() >= 4 && 4 + buffer.getInt(buffer.position()) > buffer.capacity()) {
+					ByteBuffer larger = ByteBuffer.allocate(4 + buffer.getInt(buffer.position()));
+					larger.put(buffer);
+					buffer = larger;
+				} else
+					buffer.compact();
+			}
+		} catch (IOException e) {
+			fail(e);
+		}
+	}
+
+	private void complete(long requestId, byte status, ByteBuffer response) {
+		CompletableFuture<ByteBuffer> future = pending.remove(requestId);
+		if (future == null)
+			return;
+		if (status == QueueProtocol.OK)
+			future.complete(response);
+		else
+			future.completeExceptionally(new IOException(QueueProtocol.getString(response)));
+	}
+
+	/**
+	 * Fail every request waiting for its response and every later request
+	 */
+	private void fail(IOException e) {
+		if (failure == null)
+			failure = e;
+		for (Long requestId : pending.keySet()) {
+			CompletableFuture<ByteBuffer> future = pending.remove(requestId);
+			if (future != null)
+				future.completeExceptionally(failure);
+		}
+	}
+}
@@ -0,0 +1,186 @@
+package com.example;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+
+/**
+ * Append-only overflow store of a single queue. Messages are appended to
+ * segment files in push order, encoded like QueueProtocol frames, and read
+ * back in the same order in chunks, so the disk only sees sequential writes
+ * and reads. A segment is deleted once it has been read entirely, and every
+ * file once the store is drained, so disk space is reclaimed as the queue
+ * drains. Writes are buffered, the buffer being written out when it is full
+ * or when the reader catches up with it. Not thread safe, access must be
+ * serialized by the caller
+ */
+public class SpillStore {
+	// Size of the write buffer
+	private static final int BUFFER_SIZE = 64 * 1024;
+	// Size after which appends go to a new segment
+	private static final long SEGMENT_SIZE = 64L * 1024 * 1024;
+	private static final String SEGMENT_PREFIX = "spill_";
+
+	private final File directory;
+	// Segments not entirely read, oldest first, the last one is written to
+	private final Deque<File> segments = new ArrayDeque<File>();
+	private int lastSegment;
+	private FileChannel writeChannel;
+	private long writeSize;
+	private final ByteBuffer writeBuffer = ByteBuffer.allocate(BUFFER_SIZE);
+	private FileChannel readChannel;
+	private long readPosition;
+	// Number of messages appended and not read yet
+	private long size;
+
+	/**
+	 * Create an empty store, segments left in the directory by a previous
+	 * store are deleted
+	 * 
+	 * @param directory
+	 *            the directory of the segment files
+	 */
+	public SpillStore(File directory) {
+		this.directory = directory;
+		directory.mkdirs();
+		File[] files = directory.listFiles();
+		if (files != null)
+			for (File file : files)
+				if (file.getName().startsWith(SEGMENT_PREFIX))
+					file.delete();
+	}
+
+	/**
+	 * @return number of messages appended and not read yet
+	 */
+	public long size() {
+		return size;
+	}
+
+	/**
+	 * Append a message at the end of the store
+	 * 
+	 * @param message
+	 *            the message
+	 * @throws IOException
+	 */
+	public void append(Message message) throws IOException {
+		int needed = 4 + QueueProtocol.sizeOf(message);
+		if (writeChannel == null || writeSize >= SEGMENT_SIZE)
+			startSegment();
+		if (writeBuffer.remaining() < needed)
+			flush();
+		ByteBuffer target = (needed <= writeBuffer.remaining()) ? writeBuffer : ByteBuffer.allocate(needed);
+		int start = target.position();
+		target.putInt(0);
+		QueueProtocol.putMessage(target, message);
+		int length = target.position() - start - 4;
+		target.putInt(start, length);
+		writeSize += 4 + length;
+		if (target != writeBuffer) {
+			target.flip();
+			while (target.hasRemaining())
+				writeChannel.write(target);
+		}
+		size++;
+	}
+
+	/**
+	 * Read the next messages in append order, as many as fit in a chunk
+	 * 
+	 * @param chunkSize
+	 *            the number of bytes to read, a larger message is still read
+	 *            alone
+	 * @return the messages, empty if the store is empty
+	 * @throws IOException
+	 */
+	public List<Message> read(int chunkSize) throws IOException {
+		List<Message> messages = new ArrayList<Message>();
+		while (messages.isEmpty() && size > 0) {
+			if (readChannel == null) {
+				readChannel = FileChannel.open(segments.peekFirst().toPath(), StandardOpenOption.READ);
+				readPosition = 0;
+			}
+			// The reader caught up with the segment being written
+			if (segments.size() == 1)
+				flush();
+			ByteBuffer chunk = ByteBuffer.allocate(chunkSize);
+			readChannel.read(chunk, readPosition);
+			chunk.flip();
+			while (chunk.remaining() >= 4 && chunk.remaining() >= 4 + chunk.getInt(chunk.position())) {
+				int length = chunk.getInt();
+				int end = chunk.position() + length;
+				messages.add(QueueProtocol.getMessage(chunk));
+				chunk.position(end);
+				readPosition += 4 + length;
+				size--;
+			}
+			if (!messages.isEmpty())
+				break;
+			if (chunk.remaining() >= 4) {
+				// Single record larger than the chunk
+				ByteBuffer record = ByteBuffer.allocate(chunk.getInt(chunk.position()));
+				int read = 0;
+				while (record.hasRemaining() && read >= 0)
+					read = readChannel.read(record, readPosition + 4 + record.position());
+				record.flip();
+				messages.add(QueueProtocol.getMessage(record));
+				readPosition += 4 + record.capacity();
+				size--;
+			} else if (segments.size() > 1) {
+				// End of a segment that is not written to anymore
+				readChannel.close();
+				readChannel = null;
+				segments.pollFirst().delete();
+			} else
+				throw new IOException("Spill store " + directory + " is missing " + size + " messages");
+		}
+		if (size == 0)
+			clear();
+		return messages;
+	}
+
+	/**
+	 * Drop every message and delete every segment
+	 * 
+	 * @throws IOException
+	 */
+	public void clear() throws IOException {
+		if (readChannel != null)
+			readChannel.close();
+		if (writeChannel != null)
+			writeChannel.close();
+		readChannel = null;
+		writeChannel = null;
+		writeBuffer.clear();
+		for (File segment : segments)
+			segment.delete();
+		segments.clear();
+		size = 0;
+	}
+
+	private void startSegment() throws IOException {
+		if (writeChannel != null) {
+			flush();
+			writeChannel.close();
+		}
+		File segment = new File(directory, SEGMENT_PREFIX + (++lastSegment));
+		writeChannel = FileChannel.open(segment.toPath(), StandardOpenOption.CREATE,
+				StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+		writeSize = 0;
+		segments.addLast(segment);
+	}
+
+	private void flush() throws IOException {
+		writeBuffer.flip();
+		while (writeBuffer.hasRemaining())
+			writeChannel.write(writeBuffer);
+		writeBuffer.clear();
+	}
+}
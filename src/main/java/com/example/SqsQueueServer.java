@@ -0,0 +1,738 @@
+package com.example;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.google.common.hash.Hashing;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Embedded HTTP endpoint speaking the SQS query API on top of a local queue
+ * service, so an unmodified AWS SDK client, SqsQueueService included, can be
+ * pointed at local queues. Supported actions are CreateQueue, GetQueueUrl,
+ * DeleteQueue, SendMessage, SendMessageBatch, ReceiveMessage,
+ * DeleteMessage, DeleteMessageBatch, ChangeMessageVisibility and
+ * GetQueueAttributes. Requests are served by a small fixed thread pool, and
+ * a ReceiveMessage waiting for messages does not hold a thread: it is parked
+ * until a message is sent to its queue or a periodic check finds one that
+ * became visible, or until its wait time is over. Creating queues and
+ * changing visibility need an InMemoryQueueService or FileQueueService, the
+ * other actions work on any QueueService. Like SQS, every receive issues a
+ * new receipt handle and the handles of earlier receives are no longer
+ * valid, nor is a handle whose visibility timeout is over. Receipt handles
+ * are kept in memory, so messages received before a restart of the endpoint
+ * cannot be deleted through it
+ */
+public class SqsQueueServer implements Closeable {
+	// Account id in the path of every queue url
+	private static final String ACCOUNT_ID = "000000000000";
+	private static final String NAMESPACE = "http://queue.amazonaws.com/doc/2012-11-05/";
+	// Limits of ReceiveMessage, as enforced by SQS
+	private static final int MAX_RECEIVE_MESSAGES = 10;
+	private static final int MAX_WAIT_SECONDS = 20;
+	// Period of the check for parked receives whose queue got visible messages
+	// without a send, or whose wait time is over
+	private static final long LONG_POLL_INTERVAL = 50;
+	// Visibility timeout of a receive without one, the default of the local
+	// queue services
+	private static final long DEFAULT_VISIBILITY_TIMEOUT = 3000;
+
+	private final QueueService service;
+	private final HttpServer server;
+	private final ExecutorService executor;
+	private final ScheduledExecutorService longPollTimer;
+	// Leases given through this endpoint and not deleted yet, by handle
+	private final Map<Long, Receipt> receipts = new ConcurrentHashMap<Long, Receipt>();
+	// Receipts in the order they were issued, swept once their lease is over
+	private final Queue<Receipt> issued = new ConcurrentLinkedQueue<Receipt>();
+	private final AtomicLong lastReceipt = new AtomicLong();
+	private final AtomicLong lastRequestId = new AtomicLong();
+	// Receives waiting for messages, by queue name
+	private final Map<String, Queue<LongPoll>> longPolls = new ConcurrentHashMap<String, Queue<LongPoll>>();
+
+	/**
+	 * Create the endpoint and start serving requests
+	 * 
+	 * @param service
+	 *            the queue service backing the endpoint
+	 * @param port
+	 *            the port to listen to, 0 for any free port
+	 * @param threads
+	 *            the number of threads serving requests
+	 * @throws IOException
+	 */
+	public SqsQueueServer(QueueService service, int port, int threads) throws IOException {
+		this.service = service;
+		server = HttpServer.create(new InetSocketAddress(port), 1024);
+		executor = Executors.newFixedThreadPool(Math.max(threads, 1));
+		server.setExecutor(executor);
+		server.createContext("/", this::handle);
+		longPollTimer = Executors.newSingleThreadScheduledExecutor();
+		longPollTimer.scheduleWithFixedDelay(this::checkLongPolls, LONG_POLL_INTERVAL, LONG_POLL_INTERVAL,
+				TimeUnit.MILLISECONDS);
+		server.start();
+	}
+
+	/**
+	 * @return the port the endpoint listens to
+	 */
+	public int getPort() {
+		return server.getAddress().getPort();
+	}
+
+	/**
+	 * @return the endpoint url to configure an SQS client with
+	 */
+	public String getEndpoint() {
+		return "http://localhost:" + getPort();
+	}
+
+	/**
+	 * Stop serving requests, parked receives are answered with what they have
+	 */
+	@Override
+	public void close() {
+		longPollTimer.shutdownNow();
+		for (Queue<LongPoll> polls : longPolls.values())
+			for (LongPoll poll : polls)
+				poll.complete(true);
+		server.stop(0);
+		executor.shutdownNow();
+	}
+
+	private void handle(HttpExchange exchange) throws IOException {
+		String requestId = new UUID(0, lastRequestId.incrementAndGet()).toString();
+		try {
+			Map<String, String> parameters = getParameters(exchange);
+			String action = parameters.get("Action");
+			if (action == null)
+				throw new SqsError("MissingAction", "Action is required");
+			String response = handle(exchange, action, getQueueName(exchange, parameters), parameters, requestId);
+			if (response != null)
+				respond(exchange, 200, response);
+		} catch (SqsError e) {
+			respond(exchange, 400,
+					"<ErrorResponse xmlns=\"" + NAMESPACE + "\"><Error><Type>Sender</Type><Code>" + e.code
+							+ "</Code><Message>" + escape(e.getMessage()) + "</Message><Detail/></Error><RequestId>"
+							+ requestId + "</RequestId></ErrorResponse>");
+		} catch (RuntimeException e) {
+			e.printStackTrace();
+			respond(exchange, 500,
+					"<ErrorResponse xmlns=\"" + NAMESPACE + "\"><Error><Type>Receiver</Type><Code>InternalError"
+							+ "</Code><Message>" + escape(e.toString()) + "</Message><Detail/></Error><RequestId>"
+							+ requestId + "</RequestId></ErrorResponse>");
+		}
+	}
+
+	/**
+	 * Execute an action
+	 * 
+	 * @return the response body, null if the response is sent later
+	 */
+	private String handle(HttpExchange exchange, String action, String queue, Map<String, String> parameters,
+			String requestId) throws SqsError {
+		StringBuilder result = new StringBuilder();
+		switch (action) {
+		case "CreateQueue":
+			queue = getRequired(parameters, "QueueName");
+			createQueue(queue, "true".equals(getAttributes(parameters).get("FifoQueue")));
+			result.append("<QueueUrl>").append(getQueueUrl(exchange, queue)).append("</QueueUrl>");
+			break;
+		case "GetQueueUrl":
+			queue = getRequired(parameters, "QueueName");
+			checkQueue(queue);
+			result.append("<QueueUrl>").append(getQueueUrl(exchange, queue)).append("</QueueUrl>");
+			break;
+		case "DeleteQueue":
+			checkQueue(queue);
+			deleteQueue(queue);
+			return response(action, null, requestId);
+		case "SendMessage":
+			checkQueue(queue);
+			sendMessage(queue, parameters, "", result);
+			wakeLongPolls(queue, 1);
+			break;
+		case "SendMessageBatch":
+			checkQueue(queue);
+			int sent = 0;
+			for (String prefix : getEntries(parameters, "SendMessageBatchRequestEntry.")) {
+				String id = parameters.get(prefix + "Id");
+				try {
+					result.append("<SendMessageBatchResultEntry><Id>").append(escape(id)).append("</Id>");
+					sendMessage(queue, parameters, prefix, result);
+					result.append("</SendMessageBatchResultEntry>");
+					sent++;
+				} catch (SqsError e) {
+					result.setLength(result.lastIndexOf("<SendMessageBatchResultEntry>"));
+					appendBatchError(result, id, e);
+				}
+			}
+			wakeLongPolls(queue, sent);
+			break;
+		case "ReceiveMessage":
+			checkQueue(queue);
+			LongPoll poll = new LongPoll(exchange, queue, parameters, requestId);
+			if (poll.complete(poll.waitSeconds == 0))
+				return null;
+			Queue<LongPoll> polls = longPolls.get(queue);
+			if (polls == null) {
+				longPolls.putIfAbsent(queue, new ConcurrentLinkedQueue<LongPoll>());
+				polls = longPolls.get(queue);
+			}
+			polls.add(poll);
+			// A message sent before the receive was parked would not wake it
+			poll.complete(false);
+			return null;
+		case "DeleteMessage":
+			checkQueue(queue);
+			deleteMessage(queue, getRequired(parameters, "ReceiptHandle"));
+			break;
+		case "DeleteMessageBatch":
+			checkQueue(queue);
+			for (String prefix : getEntries(parameters, "DeleteMessageBatchRequestEntry.")) {
+				String id = parameters.get(prefix + "Id");
+				try {
+					deleteMessage(queue, getRequired(parameters, prefix + "ReceiptHandle"));
+					result.append("<DeleteMessageBatchResultEntry><Id>").append(escape(id))
+							.append("</Id></DeleteMessageBatchResultEntry>");
+				} catch (SqsError e) {
+					appendBatchError(result, id, e);
+				}
+			}
+			break;
+		case "ChangeMessageVisibility":
+			checkQueue(queue);
+			Receipt receipt = getReceipt(queue, getRequired(parameters, "ReceiptHandle"));
+			int visibilityTimeout = getInt(parameters, "VisibilityTimeout", -1, 0, 43200);
+			long now = currentTimeMillis();
+			if (!changeVisibility(queue, receipt.message, visibilityTimeout))
+				throw new SqsError("MessageNotInflight", "Message is not in flight");
+			receipt.deadline = now + visibilityTimeout * 1000L;
+			return response(action, null, requestId);
+		case "GetQueueAttributes":
+			QueueAttributes attributes = service.getQueueAttributes(queue);
+			if (attributes == null)
+				throw nonExistentQueue();
+			appendAttribute(result, "ApproximateNumberOfMessages", attributes.getVisibleMessages());
+			appendAttribute(result, "ApproximateNumberOfMessagesNotVisible", attributes.getInFlightMessages());
+			appendAttribute(result, "ApproximateNumberOfMessagesDelayed", attributes.getDelayedMessages());
+			break;
+		default:
+			throw new SqsError("InvalidAction", "The action " + action + " is not valid for this endpoint");
+		}
+		return response(action, result, requestId);
+	}
+
+	private static String response(String action, CharSequence result, String requestId) {
+		StringBuilder response = new StringBuilder(256 + ((result != null) ? result.length() : 0));
+		response.append("<").append(action).append("Response xmlns=\"").append(NAMESPACE).append("\">");
+		if (result != null)
+			response.append("<").append(action).append("Result>").append(result).append("</").append(action)
+					.append("Result>");
+		response.append("<ResponseMetadata><RequestId>").append(requestId).append("</RequestId></ResponseMetadata>");
+		return response.append("</").append(action).append("Response>").toString();
+	}
+
+	private void sendMessage(String queue, Map<String, String> parameters, String prefix, StringBuilder result)
+			throws SqsError {
+		String body = getRequired(parameters, prefix + "MessageBody");
+		Message message = new Message(body);
+		int delaySeconds = getInt(parameters, prefix + "DelaySeconds", Message.QUEUE_DELAY, 0, 900);
+		if (delaySeconds != Message.QUEUE_DELAY)
+			message.setDelaySeconds(delaySeconds);
+		message.setGroupId(parameters.get(prefix + "MessageGroupId"));
+		message.setDeduplicationId(parameters.get(prefix + "MessageDeduplicationId"));
+		if (!service.push(queue, message))
+			throw new SqsError("InternalError", "The message could not be sent");
+		result.append("<MessageId>").append(getMessageId(message)).append("</MessageId><MD5OfMessageBody>")
+				.append(md5(body)).append("</MD5OfMessageBody>");
+	}
+
+	/**
+	 * Receive up to the requested number of messages
+	 */
+	private void receiveMessages(String queue, int maxMessages, int visibilityTimeout, StringBuilder result)
+			throws SqsError {
+		for (int i = 0; i < maxMessages; i++) {
+			// Taken before the pull, so the receipt never outlives the lease
+			long now = currentTimeMillis();
+			Message message = service.pull(queue);
+			if (message == null)
+				return;
+			if (visibilityTimeout >= 0)
+				changeVisibility(queue, message, visibilityTimeout);
+			Receipt receipt = new Receipt(lastReceipt.incrementAndGet(), queue, message,
+					now + ((visibilityTimeout >= 0) ? visibilityTimeout * 1000L : DEFAULT_VISIBILITY_TIMEOUT));
+			receipts.put(receipt.handle, receipt);
+			issued.add(receipt);
+			String body = message.isBinary() ? Base64.getEncoder().encodeToString(toBytes(message))
+					: message.getContent();
+			result.append("<Message><MessageId>").append(getMessageId(message)).append("</MessageId><ReceiptHandle>")
+					.append(receipt.handle).append("</ReceiptHandle><MD5OfBody>").append(md5(body))
+					.append("</MD5OfBody><Body>").append(escape(body)).append("</Body>");
+			appendAttribute(result, "ApproximateReceiveCount", message.getReceiveCount());
+			if (message.getEnqueueTime() != 0)
+				appendAttribute(result, "SentTimestamp", message.getEnqueueTime());
+			if (message.getFirstReceiveTime() != 0)
+				appendAttribute(result, "ApproximateFirstReceiveTimestamp", message.getFirstReceiveTime());
+			if (message.getGroupId() != null)
+				appendAttribute(result, "MessageGroupId", message.getGroupId());
+			result.append("</Message>");
+		}
+	}
+
+	private void deleteMessage(String queue, String receiptHandle) throws SqsError {
+		Receipt receipt = getReceipt(queue, receiptHandle);
+		if (service.delete(queue, receipt.message))
+			receipts.remove(receipt.handle, receipt);
+	}
+
+	/**
+	 * Get the lease a receipt handle was issued for, provided it is still the
+	 * latest lease of its message
+	 */
+	private Receipt getReceipt(String queue, String receiptHandle) throws SqsError {
+		Receipt receipt = null;
+		try {
+			receipt = receipts.get(Long.parseLong(receiptHandle));
+		} catch (NumberFormatException e) {
+			// Reported below like any unknown handle
+		}
+		if (receipt == null || !receipt.queue.equals(queue) || !receipt.isLeased(currentTimeMillis()))
+			throw new SqsError("ReceiptHandleIsInvalid", "The receipt handle " + receiptHandle + " is not valid");
+		return receipt;
+	}
+
+	/**
+	 * Drop the receipts issued first whose lease is over, so handles of
+	 * messages that are never deleted, or whose queue is gone, do not pile
+	 * up. The sweep stops at the first receipt still leased
+	 */
+	private void sweepReceipts() {
+		long now = currentTimeMillis();
+		Receipt head;
+		while ((head = issued.peek()) != null && !head.isLeased(now)) {
+			if (issued.remove(head))
+				receipts.remove(head.handle, head);
+		}
+	}
+
+	/**
+	 * @return the number of receipt handles still valid or not swept yet
+	 */
+	int getReceiptCount() {
+		return receipts.size();
+	}
+
+	/**
+	 * @return the current time of the service clock for an in-memory queue,
+	 *         of the system clock otherwise
+	 */
+	private long currentTimeMillis() {
+		if (service instanceof InMemoryQueueService)
+			return ((InMemoryQueueService) service).currentTimeMillis();
+		return System.currentTimeMillis();
+	}
+
+	/**
+	 * Local messages have no id, so it is derived from the push time and the
+	 * body, which both travel with the message
+	 */
+	private static String getMessageId(Message message) {
+		return UUID.nameUUIDFromBytes((message.getEnqueueTime() + ":" + message.getContent())
+				.getBytes(StandardCharsets.UTF_8)).toString();
+	}
+
+	private void createQueue(String queue, boolean fifo) throws SqsError {
+		if (service.getQueueAttributes(queue) != null)
+			return;
+		if (service instanceof InMemoryQueueService) {
+			InMemoryQueueService memoryService = (InMemoryQueueService) service;
+			if (fifo)
+				memoryService.createFifoQueue(queue);
+			else
+				memoryService.createQueue(queue);
+		} else if (service instanceof FileQueueService) {
+			FileQueueService fileService = (FileQueueService) service;
+			boolean created = fifo ? fileService.createFifoQueue(queue) : fileService.createQueue(queue);
+			if (!created)
+				throw new SqsError("InternalError", "The queue " + queue + " could not be created");
+		} else
+			throw unsupported("CreateQueue");
+	}
+
+	private void deleteQueue(String queue) throws SqsError {
+		if (service instanceof InMemoryQueueService)
+			((InMemoryQueueService) service).removeQueue(queue);
+		else if (service instanceof FileQueueService)
+			((FileQueueService) service).removeQueue(queue);
+		else
+			throw unsupported("DeleteQueue");
+	}
+
+	private boolean changeVisibility(String queue, Message message, int visibilityTimeout) throws SqsError {
+		if (service instanceof InMemoryQueueService)
+			return ((InMemoryQueueService) service).changeVisibility(queue, message, visibilityTimeout);
+		if (service instanceof FileQueueService)
+			return ((FileQueueService) service).changeVisibility(queue, message, visibilityTimeout);
+		throw unsupported("ChangeMessageVisibility");
+	}
+
+	private void checkQueue(String queue) throws SqsError {
+		if (queue == null || service.getQueueAttributes(queue) == null)
+			throw nonExistentQueue();
+	}
+
+	private static SqsError nonExistentQueue() {
+		return new SqsError("AWS.SimpleQueueService.NonExistentQueue",
+				"The specified queue does not exist for this wsdl version.");
+	}
+
+	private static SqsError unsupported(String action) {
+		return new SqsError("AWS.SimpleQueueService.UnsupportedOperation",
+				action + " is not supported by this queue service");
+	}
+
+	/**
+	 * Wake parked receives of a queue that messages were sent to, one per
+	 * message
+	 */
+	private void wakeLongPolls(String queue, int count) {
+		Queue<LongPoll> polls = longPolls.get(queue);
+		if (polls == null || polls.isEmpty())
+			return;
+		for (LongPoll poll : polls) {
+			if (count-- <= 0)
+				break;
+			executor.execute(() -> poll.complete(false));
+		}
+	}
+
+	/**
+	 * Retry the parked receives of the queues that have visible messages, and
+	 * answer the receives whose wait time is over
+	 */
+	private void checkLongPolls() {
+		sweepReceipts();
+		long now = System.currentTimeMillis();
+		for (Map.Entry<String, Queue<LongPoll>> entry : longPolls.entrySet()) {
+			if (entry.getValue().isEmpty())
+				continue;
+			QueueAttributes attributes = service.getQueueAttributes(entry.getKey());
+			boolean visible = attributes == null || attributes.getVisibleMessages() > 0;
+			for (LongPoll poll : entry.getValue())
+				if (visible || now >= poll.deadline)
+					poll.complete(now >= poll.deadline);
+		}
+	}
+
+	/**
+	 * Lease of a message given by a single receive
+	 */
+	private class Receipt {
+		private final long handle;
+		private final String queue;
+		private final Message message;
+		// Receive count of the message when this lease was given
+		private final int receiveCount;
+		// End of the lease, moved by ChangeMessageVisibility
+		private volatile long deadline;
+
+		private Receipt(long handle, String queue, Message message, long deadline) {
+			this.handle = handle;
+			this.queue = queue;
+			this.message = message;
+			this.receiveCount = message.getReceiveCount();
+			this.deadline = deadline;
+		}
+
+		/**
+		 * Check whether this receive still holds the message. An in-memory
+		 * queue hands out the same message on every receive, and knows
+		 * exactly whether it is still leased. Other services return a new
+		 * message each time, so their lease is assumed over at its deadline
+		 */
+		private boolean isLeased(long now) {
+			if (service instanceof InMemoryQueueService)
+				return message.getReceiveCount() == receiveCount && message.isLeased(now);
+			return now < deadline;
+		}
+	}
+
+	/**
+	 * Receive request, answered as soon as it gets messages or its wait time
+	 * is over
+	 */
+	private class LongPoll {
+		private final HttpExchange exchange;
+		private final String queue;
+		private final String requestId;
+		private final int maxMessages;
+		private final int visibilityTimeout;
+		private final int waitSeconds;
+		private final long deadline;
+		// True once answered, guarded by this
+		private boolean done;
+
+		private LongPoll(HttpExchange exchange, String queue, Map<String, String> parameters, String requestId)
+				throws SqsError {
+			this.exchange = exchange;
+			this.queue = queue;
+			this.requestId = requestId;
+			maxMessages = getInt(parameters, "MaxNumberOfMessages", 1, 1, MAX_RECEIVE_MESSAGES);
+			visibilityTimeout = getInt(parameters, "VisibilityTimeout", -1, 0, 43200);
+			waitSeconds = getInt(parameters, "WaitTimeSeconds", 0, 0, MAX_WAIT_SECONDS);
+			// Checked before any message is received, as it would not be
+			// delivered otherwise
+			if (visibilityTimeout >= 0 && !(service instanceof InMemoryQueueService)
+					&& !(service instanceof FileQueueService))
+				throw unsupported("VisibilityTimeout");
+			deadline = System.currentTimeMillis() + waitSeconds * 1000L;
+		}
+
+		/**
+		 * Try to receive messages and answer if there are some
+		 * 
+		 * @param force
+		 *            true to answer even without message
+		 * @return true if answered
+		 */
+		private synchronized boolean complete(boolean force) {
+			if (done)
+				return true;
+			StringBuilder result = new StringBuilder();
+			try {
+				receiveMessages(queue, maxMessages, visibilityTimeout, result);
+			} catch (SqsError | RuntimeException e) {
+				e.printStackTrace();
+				force = true;
+			}
+			if (result.length() == 0 && !force)
+				return false;
+			done = true;
+			Queue<LongPoll> polls = longPolls.get(queue);
+			if (polls != null)
+				polls.remove(this);
+			try {
+				respond(exchange, 200, response("ReceiveMessage", result, requestId));
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+			return true;
+		}
+	}
+
+	private static void appendAttribute(StringBuilder result, String name, Object value) {
+		result.append("<Attribute><Name>").append(name).append("</Name><Value>").append(escape(value.toString()))
+				.append("</Value></Attribute>");
+	}
+
+	private static void appendBatchError(StringBuilder result, String id, SqsError e) {
+		result.append("<BatchResultErrorEntry><Id>").append(escape(id)).append("</Id><SenderFault>true</SenderFault>")
+				.append("<Code>").append(e.code).append("</Code><Message>").append(escape(e.getMessage()))
+				.append("</Message></BatchResultErrorEntry>");
+	}
+
+	private static void respond(HttpExchange exchange, int status, String body) throws IOException {
+		byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+		exchange.getResponseHeaders().set("Content-Type", "text/xml");
+		exchange.sendResponseHeaders(status, bytes.length);
+		OutputStream out = exchange.getResponseBody();
+		out.write(bytes);
+		out.close();
+	}
+
+	/**
+	 * Get the parameters of the query string and of a form encoded body
+	 */
+	private static Map<String, String> getParameters(HttpExchange exchange) throws IOException {
+		Map<String, String> parameters = new HashMap<String, String>();
+		parseParameters(exchange.getRequestURI().getRawQuery(), parameters);
+		InputStream in = exchange.getRequestBody();
+		ByteArrayOutputStream body = new ByteArrayOutputStream();
+		byte[] buffer = new byte[8192];
+		int read;
+		while ((read = in.read(buffer)) > 0)
+			body.write(buffer, 0, read);
+		in.close();
+		parseParameters(new String(body.toByteArray(), StandardCharsets.UTF_8), parameters);
+		return parameters;
+	}
+
+	private static void parseParameters(String encoded, Map<String, String> parameters)
+			throws UnsupportedEncodingException {
+		if (encoded == null || encoded.isEmpty())
+			return;
+		for (String pair : encoded.split("&")) {
+			int separator = pair.indexOf('=');
+			if (separator < 0)
+				parameters.put(URLDecoder.decode(pair, "UTF-8"), "");
+			else
+				parameters.put(URLDecoder.decode(pair.substring(0, separator), "UTF-8"),
+						URLDecoder.decode(pair.substring(separator + 1), "UTF-8"));
+		}
+	}
+
+	/**
+	 * Get the queue name from the request path, or from the QueueUrl
+	 * parameter for clients that do not post to the queue url
+	 */
+	private static String getQueueName(HttpExchange exchange, Map<String, String> parameters) {
+		String path = exchange.getRequestURI().getPath();
+		String queueUrl = parameters.get("QueueUrl");
+		if ((path == null || path.length() <= 1) && queueUrl != null)
+			path = queueUrl;
+		if (path == null)
+			return null;
+		String queue = path.substring(path.lastIndexOf('/') + 1);
+		return queue.isEmpty() ? null : queue;
+	}
+
+	private static String getQueueUrl(HttpExchange exchange, String queue) {
+		String host = exchange.getRequestHeaders().getFirst("Host");
+		if (host == null)
+			host = "localhost:" + exchange.getLocalAddress().getPort();
+		return "http://" + host + "/" + ACCOUNT_ID + "/" + escape(queue);
+	}
+
+	/**
+	 * Get the Attribute.N.Name and Attribute.N.Value pairs of a request
+	 */
+	private static Map<String, String> getAttributes(Map<String, String> parameters) {
+		Map<String, String> attributes = new HashMap<String, String>();
+		for (String prefix : getEntries(parameters, "Attribute."))
+			attributes.put(parameters.get(prefix + "Name"), parameters.get(prefix + "Value"));
+		return attributes;
+	}
+
+	/**
+	 * Get the prefixes of the numbered entries of a request, in order
+	 */
+	private static List<String> getEntries(Map<String, String> parameters, String prefix) {
+		List<String> entries = new ArrayList<String>();
+		for (int i = 1; hasEntry(parameters, prefix + i + "."); i++)
+			entries.add(prefix + i + ".");
+		return entries;
+	}
+
+	private static boolean hasEntry(Map<String, String> parameters, String prefix) {
+		for (String name : parameters.keySet())
+			if (name.startsWith(prefix))
+				return true;
+		return false;
+	}
+
+	private static String getRequired(Map<String, String> parameters, String name) throws SqsError {
+		String value = parameters.get(name);
+		if (value == null)
+			throw new SqsError("MissingParameter", "The request must contain the parameter " + name);
+		return value;
+	}
+
+	private static int getInt(Map<String, String> parameters, String name, int defaultValue, int min, int max)
+			throws SqsError {
+		String value = parameters.get(name);
+		if (value == null)
+			return defaultValue;
+		try {
+			int parsed = Integer.parseInt(value);
+			if (parsed >= min && parsed <= max)
+				return parsed;
+		} catch (NumberFormatException e) {
+			// Reported below like any value out of range
+		}
+		throw new SqsError("InvalidParameterValue",
+				"Value " + value + " for parameter " + name + " is invalid, it must be between " + min + " and "
+						+ max);
+	}
+
+	private static byte[] toBytes(Message message) {
+		ByteBuffer payload = message.getPayload();
+		byte[] bytes = new byte[payload.remaining()];
+		payload.get(bytes);
+		return bytes;
+	}
+
+	private static String md5(String body) {
+		return Hashing.md5().hashString(body, StandardCharsets.UTF_8).toString();
+	}
+
+	/**
+	 * Escape text for XML. Carriage returns are escaped as well, as XML
+	 * parsers normalize them away and the body would not match its checksum
+	 */
+	private static String escape(String text) {
+		if (text == null)
+			return "";
+		StringBuilder escaped = null;
+		for (int i = 0; i < text.length(); i++) {
+			char c = text.charAt(i);
+			String replacement;
+			switch (c) {
+			case '&':
+				replacement = "&amp;";
+				break;
+			case '<':
+				replacement = "&lt;";
+				break;
+			case '>':
+				replacement = "&gt;";
+				break;
+			case '"':
+				replacement = "&quot;";
+				break;
+			case '\r':
+				replacement = "&#xD;";
+				break;
+			default:
+				replacement = null;
+			}
+			if (replacement == null && escaped == null)
+				continue;
+			if (escaped == null)
+				escaped = new StringBuilder(text.length() + 16).append(text, 0, i);
+			if (replacement != null)
+				escaped.append(replacement);
+			else
+				escaped.append(c);
+		}
+		return (escaped != null) ? escaped.toString() : text;
+	}
+
+	/**
+	 * Error reported to the client with its SQS error code
+	 */
+	private static class SqsError extends Exception {
+		private static final long serialVersionUID = 1L;
+
+		private final String code;
+
+		private SqsError(String code, String message) {
+			super(message);
+			this.code = code;
+		}
+	}
+}
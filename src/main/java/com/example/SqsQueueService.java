@@ -1,6 +1,18 @@
 package com.example;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.amazonaws.AmazonClientException;
 import com.amazonaws.services.sqs.AmazonSQSClient;
+import com.amazonaws.services.sqs.model.QueueAttributeName;
+import com.amazonaws.services.sqs.model.ReceiveMessageRequest;
+import com.amazonaws.services.sqs.model.SendMessageBatchRequest;
+import com.amazonaws.services.sqs.model.SendMessageBatchRequestEntry;
+import com.amazonaws.services.sqs.model.SendMessageRequest;
 
 public class SqsQueueService implements QueueService {
 	//
@@ -14,24 +26,146 @@ public class SqsQueueService implements QueueService {
 	// production environment.
 	//
 
+	// Message attributes read on receive
+	private static final String RECEIVE_COUNT = "ApproximateReceiveCount";
+	private static final String SENT_TIMESTAMP = "SentTimestamp";
+	private static final String FIRST_RECEIVE_TIMESTAMP = "ApproximateFirstReceiveTimestamp";
+
+	private final AmazonSQSClient sqsClient;
+	// Url of each queue, resolved on first use
+	private final Map<String, String> queueUrls = new ConcurrentHashMap<String, String>();
+	// Receipt handle of every received message, until it is deleted
+	private final Map<Message, String> receiptHandles = new ConcurrentHashMap<Message, String>();
+
 	public SqsQueueService(AmazonSQSClient sqsClient) {
+		this.sqsClient = sqsClient;
 	}
 
+	/**
+	 * Map to SendMessage, the message delay being sent only when the message
+	 * has its own
+	 */
 	@Override
 	public boolean push(String queue, Message message) {
-		// TODO Auto-generated method stub
-		return false;
+		try {
+			SendMessageRequest request = new SendMessageRequest(getQueueUrl(queue), message.getContent());
+			if (message.getDelaySeconds() != Message.QUEUE_DELAY)
+				request.setDelaySeconds(message.getDelaySeconds());
+			sqsClient.sendMessage(request);
+			return true;
+		} catch (AmazonClientException e) {
+			e.printStackTrace();
+			return false;
+		}
 	}
 
+	/**
+	 * Map to SendMessageBatch, which takes at most 10 messages
+	 * 
+	 * @param queue
+	 *            the queue name
+	 * @param messages
+	 *            the messages
+	 * @return true if every message was sent, false otherwise
+	 */
+	public boolean push(String queue, List<Message> messages) {
+		List<SendMessageBatchRequestEntry> entries = new ArrayList<SendMessageBatchRequestEntry>();
+		for (Message message : messages) {
+			SendMessageBatchRequestEntry entry = new SendMessageBatchRequestEntry(Integer.toString(entries.size()),
+					message.getContent());
+			if (message.getDelaySeconds() != Message.QUEUE_DELAY)
+				entry.setDelaySeconds(message.getDelaySeconds());
+			entries.add(entry);
+		}
+		try {
+			return sqsClient.sendMessageBatch(new SendMessageBatchRequest(getQueueUrl(queue), entries)).getFailed()
+					.isEmpty();
+		} catch (AmazonClientException e) {
+			e.printStackTrace();
+			return false;
+		}
+	}
+
+	/**
+	 * Map to ReceiveMessage of a single message, keeping its receipt handle
+	 * for delete()
+	 */
 	@Override
 	public Message pull(String queue) {
-		// TODO Auto-generated method stub
-		return null;
+		try {
+			List<com.amazonaws.services.sqs.model.Message> received = sqsClient
+					.receiveMessage(new ReceiveMessageRequest(getQueueUrl(queue)).withMaxNumberOfMessages(1)
+							.withAttributeNames(RECEIVE_COUNT, SENT_TIMESTAMP, FIRST_RECEIVE_TIMESTAMP))
+					.getMessages();
+			if (received.isEmpty())
+				return null;
+			com.amazonaws.services.sqs.model.Message sqsMessage = received.get(0);
+			Message message = new Message(sqsMessage.getBody());
+			message.setInvisible();
+			String receiveCount = sqsMessage.getAttributes().get(RECEIVE_COUNT);
+			if (receiveCount != null)
+				message.setReceiveCount(Integer.parseInt(receiveCount));
+			String sentTimestamp = sqsMessage.getAttributes().get(SENT_TIMESTAMP);
+			if (sentTimestamp != null)
+				message.setEnqueueTime(Long.parseLong(sentTimestamp));
+			String firstReceiveTimestamp = sqsMessage.getAttributes().get(FIRST_RECEIVE_TIMESTAMP);
+			if (firstReceiveTimestamp != null)
+				message.setFirstReceiveTime(Long.parseLong(firstReceiveTimestamp));
+			receiptHandles.put(message, sqsMessage.getReceiptHandle());
+			return message;
+		} catch (AmazonClientException e) {
+			e.printStackTrace();
+			return null;
+		}
 	}
 
+	/**
+	 * Map to DeleteMessage with the receipt handle of a message received by
+	 * this service
+	 */
 	@Override
 	public boolean delete(String queue, Message message) {
-		// TODO Auto-generated method stub
-		return false;
+		String receiptHandle = receiptHandles.get(message);
+		if (receiptHandle == null)
+			return false;
+		try {
+			sqsClient.deleteMessage(getQueueUrl(queue), receiptHandle);
+			receiptHandles.remove(message);
+			return true;
+		} catch (AmazonClientException e) {
+			e.printStackTrace();
+			return false;
+		}
+	}
+
+	/**
+	 * Map to GetQueueAttributes. SQS only publishes the age of the oldest
+	 * message as a CloudWatch metric, so it is reported unknown
+	 */
+	@Override
+	public QueueAttributes getQueueAttributes(String queue) {
+		Map<String, String> attributes = sqsClient.getQueueAttributes(getQueueUrl(queue),
+				Arrays.asList(QueueAttributeName.ApproximateNumberOfMessages.toString(),
+						QueueAttributeName.ApproximateNumberOfMessagesNotVisible.toString(),
+						QueueAttributeName.ApproximateNumberOfMessagesDelayed.toString()))
+				.getAttributes();
+		return new QueueAttributes(getCount(attributes, QueueAttributeName.ApproximateNumberOfMessages),
+				getCount(attributes, QueueAttributeName.ApproximateNumberOfMessagesNotVisible),
+				getCount(attributes, QueueAttributeName.ApproximateNumberOfMessagesDelayed),
+				QueueAttributes.UNKNOWN_AGE);
+	}
+
+	private String getQueueUrl(String queue) {
+		String queueUrl = queueUrls.get(queue);
+		if (queueUrl == null) {
+			queueUrl = sqsClient.getQueueUrl(queue).getQueueUrl();
+			queueUrls.put(queue, queueUrl);
+		}
+		return queueUrl;
+	}
+
+	private static long getCount(Map<String, String> attributes, QueueAttributeName name) {
+		String value = attributes.get(name.toString());
+		return (value != null) ? Long.parseLong(value) : 0;
 	}
 }
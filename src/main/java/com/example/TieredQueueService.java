@@ -0,0 +1,317 @@
+package com.example;
+
+import java.io.File;
+import java.io.IOException;
+import java.time.Clock;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Queue service keeping the head of every queue in memory and spilling the
+ * tail to disk. Messages go to an InMemoryQueueService as long as the memory
+ * used by the messages of every queue stays within a budget, and to the
+ * append-only SpillStore of their queue beyond it. Once a queue has spilled,
+ * its later messages are spilled too until the spill store is drained, so
+ * messages still reach the memory tier in push order. A background thread
+ * moves spilled messages back in sequential chunks as soon as consumers have
+ * freed half of the budget, and a pull finding the memory tier empty does it
+ * itself. Pull and delete are therefore served from memory, while bursts
+ * larger than the budget are absorbed by the disk. Spilled messages keep
+ * their push time and the remaining part of their delay. Like the memory
+ * tier, spilled messages do not survive a restart
+ */
+public class TieredQueueService implements QueueService {
+	// Estimated memory used by a message besides its content
+	private static final int MESSAGE_OVERHEAD = 128;
+	// Number of bytes read from the spill store at once
+	private static final int PREFETCH_CHUNK_SIZE = 256 * 1024;
+
+	private final InMemoryQueueService memory;
+	private final Clock clock;
+	private final String directory;
+	private final long memoryBudget;
+	// Memory used by the messages of every queue in the memory tier
+	private final AtomicLong memoryUsage = new AtomicLong();
+	private final Map<String, Tier> tiers = new ConcurrentHashMap<String, Tier>();
+	private final ExecutorService prefetcher = Executors.newSingleThreadExecutor(runnable -> {
+		Thread thread = new Thread(runnable, "tiered-queue-prefetch");
+		thread.setDaemon(true);
+		return thread;
+	});
+
+	/**
+	 * Create the service
+	 * 
+	 * @param directory
+	 *            the root directory of the spill stores
+	 * @param memoryBudget
+	 *            the memory in bytes the messages of every queue may use
+	 *            before they are spilled
+	 */
+	public TieredQueueService(String directory, long memoryBudget) {
+		this(Clock.systemUTC(), directory, memoryBudget);
+	}
+
+	/**
+	 * Create the service with specific clock, mainly used to control time in
+	 * testing
+	 * 
+	 * @param clock
+	 *            the clock
+	 * @param directory
+	 *            the root directory of the spill stores
+	 * @param memoryBudget
+	 *            the memory in bytes the messages of every queue may use
+	 *            before they are spilled
+	 */
+	public TieredQueueService(Clock clock, String directory, long memoryBudget) {
+		this.memory = new InMemoryQueueService(clock);
+		this.clock = clock;
+		this.directory = directory;
+		this.memoryBudget = memoryBudget;
+	}
+
+	/**
+	 * Push a message to the memory tier if it fits in the budget and its
+	 * queue has nothing spilled, to the spill store of the queue otherwise
+	 */
+	@Override
+	public boolean push(String queue, Message message) {
+		Tier tier = tiers.get(queue);
+		if (tier == null)
+			return false;
+		synchronized (tier) {
+			if (tier.spilled == 0 && memoryUsage.get() + sizeOf(message) <= memoryBudget)
+				return pushToMemory(queue, tier, message.toPush(), false);
+			try {
+				Message spilled = message.toPush();
+				spilled.setEnqueueTime(clock.millis());
+				tier.store.append(spilled);
+				tier.spilled = tier.store.size();
+			} catch (IOException e) {
+				e.printStackTrace();
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Pull from the memory tier, moving spilled messages back first if it is
+	 * empty
+	 */
+	@Override
+	public Message pull(String queue) {
+		Tier tier = tiers.get(queue);
+		if (tier == null)
+			return null;
+		Message message = memory.pull(queue);
+		if (message == null && tier.spilled > 0) {
+			prefetch(queue, tier);
+			message = memory.pull(queue);
+		}
+		schedulePrefetch(queue, tier);
+		return message;
+	}
+
+	@Override
+	public boolean delete(String queue, Message message) {
+		Tier tier = tiers.get(queue);
+		if (tier == null || !memory.delete(queue, message))
+			return false;
+		memoryUsage.addAndGet(-sizeOf(message));
+		tier.memoryUsage.addAndGet(-sizeOf(message));
+		schedulePrefetch(queue, tier);
+		return true;
+	}
+
+	/**
+	 * Attributes of the memory tier, spilled messages being counted visible.
+	 * The oldest message is in memory unless the memory tier is empty, in
+	 * which case its age is unknown until it is moved back
+	 */
+	@Override
+	public QueueAttributes getQueueAttributes(String queue) {
+		Tier tier = tiers.get(queue);
+		QueueAttributes attributes = memory.getQueueAttributes(queue);
+		if (tier == null || attributes == null)
+			return null;
+		long spilled = tier.spilled;
+		long age = attributes.getOldestMessageAge();
+		if (spilled > 0 && age == 0)
+			age = QueueAttributes.UNKNOWN_AGE;
+		return new QueueAttributes(attributes.getVisibleMessages() + spilled, attributes.getInFlightMessages(),
+				attributes.getDelayedMessages(), age);
+	}
+
+	/**
+	 * Create a queue, an existing queue is left as it is
+	 * 
+	 * @param queue
+	 *            the queue name
+	 * @return true if created, false otherwise
+	 */
+	public boolean createQueue(String queue) {
+		return createQueue(queue, false);
+	}
+
+	/**
+	 * Create a FIFO queue, an existing queue is left as it is
+	 * 
+	 * @param queue
+	 *            the queue name
+	 * @return true if created, false otherwise
+	 */
+	public boolean createFifoQueue(String queue) {
+		return createQueue(queue, true);
+	}
+
+	private synchronized boolean createQueue(String queue, boolean fifo) {
+		if (queue.isEmpty() || tiers.containsKey(queue))
+			return false;
+		if ((fifo ? memory.createFifoQueue(queue) : memory.createQueue(queue)) == null)
+			return false;
+		tiers.put(queue, new Tier(new SpillStore(new File(directory + "/" + queue))));
+		return true;
+	}
+
+	/**
+	 * Remove a queue with its spilled messages
+	 * 
+	 * @param queue
+	 *            the queue name
+	 * @return true if removed, false if it does not exist
+	 */
+	public synchronized boolean removeQueue(String queue) {
+		Tier tier = tiers.remove(queue);
+		if (tier == null)
+			return false;
+		memory.removeQueue(queue);
+		synchronized (tier) {
+			memoryUsage.addAndGet(-tier.memoryUsage.getAndSet(0));
+			try {
+				tier.store.clear();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+			tier.spilled = 0;
+		}
+		new File(directory + "/" + queue).delete();
+		return true;
+	}
+
+	/**
+	 * @return the memory in bytes used by the messages in the memory tier
+	 */
+	public long getMemoryUsage() {
+		return memoryUsage.get();
+	}
+
+	/**
+	 * Get the number of messages of a queue waiting in its spill store
+	 * 
+	 * @param queue
+	 *            the queue name
+	 * @return the number of spilled messages, 0 if the queue does not exist
+	 */
+	public long getSpilledMessages(String queue) {
+		Tier tier = tiers.get(queue);
+		return (tier != null) ? tier.spilled : 0;
+	}
+
+	/**
+	 * Get the memory tier, to configure delay and deduplication of the queues
+	 * 
+	 * @return the in memory service
+	 */
+	public InMemoryQueueService getMemoryTier() {
+		return memory;
+	}
+
+	/**
+	 * Move a chunk of spilled messages back to memory in the background once
+	 * half of the budget is free
+	 */
+	private void schedulePrefetch(String queue, Tier tier) {
+		if (tier.spilled == 0 || memoryUsage.get() > memoryBudget / 2 || !tier.prefetching.compareAndSet(false, true))
+			return;
+		prefetcher.execute(() -> {
+			try {
+				while (tier.spilled > 0 && memoryUsage.get() < memoryBudget && tiers.get(queue) == tier)
+					prefetch(queue, tier);
+			} finally {
+				tier.prefetching.set(false);
+			}
+		});
+	}
+
+	/**
+	 * Move the next chunk of spilled messages back to memory. Their delay is
+	 * reduced by the time they have spent on disk
+	 */
+	private void prefetch(String queue, Tier tier) {
+		synchronized (tier) {
+			try {
+				List<Message> chunk = tier.store.read(PREFETCH_CHUNK_SIZE);
+				tier.spilled = tier.store.size();
+				long now = clock.millis();
+				for (Message message : chunk) {
+					long remaining = message.getEnqueueTime() + message.getEffectiveDelay(memory.getQueueDelay(queue))
+							- now;
+					message.setDelaySeconds((remaining > 0) ? (int) ((remaining + 999) / 1000) : 0);
+					pushToMemory(queue, tier, message, true);
+				}
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+
+	/**
+	 * Push a message to the memory tier and account for its memory, unless
+	 * it is dropped as a duplicate
+	 * 
+	 * @param keepEnqueueTime
+	 *            true to keep the push time of a message coming from disk
+	 */
+	private boolean pushToMemory(String queue, Tier tier, Message message, boolean keepEnqueueTime) {
+		long enqueueTime = message.getEnqueueTime();
+		message.setEnqueueTime(0);
+		if (!memory.push(queue, message))
+			return false;
+		// The memory tier only sets the push time of message it keeps
+		if (message.getEnqueueTime() != 0) {
+			memoryUsage.addAndGet(sizeOf(message));
+			tier.memoryUsage.addAndGet(sizeOf(message));
+			if (keepEnqueueTime)
+				message.setEnqueueTime(enqueueTime);
+		}
+		return true;
+	}
+
+	private static long sizeOf(Message message) {
+		return MESSAGE_OVERHEAD + message.getPayload().remaining();
+	}
+
+	/**
+	 * Spill state of a single queue, the spill store being guarded by this
+	 */
+	private static class Tier {
+		private final SpillStore store;
+		// Number of messages in the spill store
+		private volatile long spilled;
+		// Memory used by the messages of the queue in the memory tier
+		private final AtomicLong memoryUsage = new AtomicLong();
+		// True while the background thread moves messages of the queue back
+		private final AtomicBoolean prefetching = new AtomicBoolean();
+
+		private Tier(SpillStore store) {
+			this.store = store;
+		}
+	}
+}
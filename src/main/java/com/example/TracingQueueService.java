@@ -0,0 +1,182 @@
+package com.example;
+
+import java.time.Clock;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Queue service wrapping another one to trace where messages spend their
+ * time, queue by queue. A sample of the pulls records how long the message
+ * had been in its queue since it was pushed, and the deletion of a sampled
+ * message records how long its consumer took since that pull and how many
+ * times it was delivered in all. Unsampled calls only cost a random draw or
+ * a map lookup, so the tracer can stay on in production. Times come from the
+ * enqueue time every service records on the message, so the wrapped service
+ * and this one should use the same clock, or clocks in sync when the
+ * service is remote
+ */
+public class TracingQueueService implements QueueService {
+	// Largest number of sampled messages waiting for their deletion, beyond
+	// it the one pulled the longest ago is dropped, as its consumer most
+	// likely gave up on it
+	private static final int MAX_TRACED_MESSAGES = 10000;
+
+	private final QueueService service;
+	private final Clock clock;
+	// One pull out of this many is sampled
+	private final int sampleEvery;
+	private final Map<String, QueueTrace> traces = new ConcurrentHashMap<String, QueueTrace>();
+	// Pull time of the sampled messages not deleted yet in pull order, keyed
+	// by identity as Message does not override equals
+	private final Map<Message, Long> received = Collections
+			.synchronizedMap(new LinkedHashMap<Message, Long>(16, 0.75f, false) {
+				private static final long serialVersionUID = 1L;
+
+				@Override
+				protected boolean removeEldestEntry(Map.Entry<Message, Long> eldest) {
+					return size() > MAX_TRACED_MESSAGES;
+				}
+			});
+
+	/**
+	 * Trace a service with the system clock
+	 * 
+	 * @param service
+	 *            the traced service
+	 * @param sampleEvery
+	 *            one pull out of this many is sampled, 1 to trace every
+	 *            message
+	 */
+	public TracingQueueService(QueueService service, int sampleEvery) {
+		this(service, sampleEvery, Clock.systemUTC());
+	}
+
+	/**
+	 * Trace a service with specific clock, mainly used to control time in
+	 * testing
+	 * 
+	 * @param service
+	 *            the traced service
+	 * @param sampleEvery
+	 *            one pull out of this many is sampled, 1 to trace every
+	 *            message
+	 * @param clock
+	 *            the clock, the one of the traced service
+	 */
+	public TracingQueueService(QueueService service, int sampleEvery, Clock clock) {
+		if (sampleEvery <= 0)
+			throw new IllegalArgumentException("Sampling interval must be positive: " + sampleEvery);
+		this.service = service;
+		this.sampleEvery = sampleEvery;
+		this.clock = clock;
+	}
+
+	@Override
+	public boolean push(String queue, Message message) {
+		return service.push(queue, message);
+	}
+
+	/**
+	 * Pull from the traced service, recording the queueing delay of a sampled
+	 * message. A message delivered again counts its whole time in the queue,
+	 * earlier deliveries included
+	 */
+	@Override
+	public Message pull(String queue) {
+		Message message = service.pull(queue);
+		if (message == null || message.getEnqueueTime() == 0
+				|| (sampleEvery > 1 && ThreadLocalRandom.current().nextInt(sampleEvery) != 0))
+			return message;
+		long now = clock.millis();
+		getTrace(queue).queueingDelay.record(now - message.getEnqueueTime());
+		received.put(message, now);
+		return message;
+	}
+
+	/**
+	 * Delete from the traced service, recording the processing time and the
+	 * number of deliveries of a sampled message once it is deleted
+	 */
+	@Override
+	public boolean delete(String queue, Message message) {
+		boolean deleted = service.delete(queue, message);
+		Long receiveTime = received.remove(message);
+		if (deleted && receiveTime != null) {
+			QueueTrace trace = getTrace(queue);
+			trace.processingTime.record(clock.millis() - receiveTime);
+			trace.deliveries.record(message.getReceiveCount());
+		}
+		return deleted;
+	}
+
+	@Override
+	public QueueAttributes getQueueAttributes(String queue) {
+		return service.getQueueAttributes(queue);
+	}
+
+	/**
+	 * @return the names of the queues traced so far
+	 */
+	public Set<String> getTracedQueues() {
+		return Collections.unmodifiableSet(traces.keySet());
+	}
+
+	/**
+	 * Get the time sampled messages of a queue waited since their push until
+	 * they were pulled. The histogram keeps counting, drain() it to report
+	 * interval by interval
+	 * 
+	 * @param queue
+	 *            the queue name
+	 * @return the histogram in milliseconds
+	 */
+	public LatencyHistogram getQueueingDelay(String queue) {
+		return getTrace(queue).queueingDelay;
+	}
+
+	/**
+	 * Get the time consumers took between the pull and the deletion of the
+	 * sampled messages of a queue
+	 * 
+	 * @param queue
+	 *            the queue name
+	 * @return the histogram in milliseconds
+	 */
+	public LatencyHistogram getProcessingTime(String queue) {
+		return getTrace(queue).processingTime;
+	}
+
+	/**
+	 * Get the number of deliveries the sampled messages of a queue needed
+	 * before they were deleted
+	 * 
+	 * @param queue
+	 *            the queue name
+	 * @return the histogram of receive counts
+	 */
+	public LatencyHistogram getDeliveries(String queue) {
+		return getTrace(queue).deliveries;
+	}
+
+	private QueueTrace getTrace(String queue) {
+		QueueTrace trace = traces.get(queue);
+		if (trace == null) {
+			traces.putIfAbsent(queue, new QueueTrace());
+			trace = traces.get(queue);
+		}
+		return trace;
+	}
+
+	/**
+	 * Histograms of a single queue
+	 */
+	private static class QueueTrace {
+		private final LatencyHistogram queueingDelay = new LatencyHistogram();
+		private final LatencyHistogram processingTime = new LatencyHistogram();
+		private final LatencyHistogram deliveries = new LatencyHistogram();
+	}
+}
@@ -2,7 +2,11 @@ package com.example;
 
 import static org.junit.Assert.assertEquals;
 
+import java.io.File;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Paths;
 
 import org.junit.Test;
 
@@ -98,6 +102,648 @@ public class FileQueueTest {
 		System.out.println("  Basic FIFO test passed!");
 	}
 	
+	/**
+	 * Test that a high priority message is pulled before an older low priority
+	 * message
+	 */
+	@Test
+	public void testPriorityLanes() {
+		String priorityQueue = "priorityQueue";
+		fQueue.removeQueue(priorityQueue);
+		assertEquals(fQueue.createQueue(priorityQueue), true);
+		Message low = new Message("low message", Message.LOW_PRIORITY);
+		Message high = new Message("high message", Message.HIGH_PRIORITY);
+		assertEquals(fQueue.push(priorityQueue, low), true);
+		assertEquals(fQueue.push(priorityQueue, high), true);
+		Message received = fQueue.pull(priorityQueue);
+		assertEquals(received.getContent(), high.getContent());
+		// Priority is restored from the lane the record was read from
+		assertEquals(received.getPriority(), Message.HIGH_PRIORITY);
+		assertEquals(fQueue.pull(priorityQueue).getContent(), low.getContent());
+		assertEquals(fQueue.pull(priorityQueue), null);
+		assertEquals(fQueue.delete(priorityQueue, high), true);
+		assertEquals(fQueue.delete(priorityQueue, low), true);
+		assertEquals(fQueue.removeQueue(priorityQueue), true);
+		System.out.println("  Priority lanes test passed!");
+	}
+
+	/**
+	 * Test that a queue written before priority lanes keeps its messages once
+	 * a service is opened on it
+	 */
+	@Test
+	public void testLegacyMessageFile() throws IOException {
+		String legacyQueue = "legacyQueue";
+		fQueue.removeQueue(legacyQueue);
+		assertEquals(new File("file/" + legacyQueue).mkdirs(), true);
+		String separator = System.getProperty("line.separator");
+		Files.write(Paths.get("file/" + legacyQueue + "/message"),
+				("{ V : 0 },{ C : first }" + separator + "{ V : 0 },{ C : second }" + separator).getBytes());
+		FileQueueService opened = new FileQueueService();
+		assertEquals(new File("file/" + legacyQueue + "/message").exists(), false);
+		assertEquals(opened.getQueueAttributes(legacyQueue).getVisibleMessages(), 2);
+		assertEquals(opened.pull(legacyQueue).getContent(), "first");
+		assertEquals(opened.pull(legacyQueue).getContent(), "second");
+		assertEquals(opened.push(legacyQueue, new Message("third", Message.LOW_PRIORITY)), true);
+		assertEquals(opened.pull(legacyQueue).getContent(), "third");
+		assertEquals(opened.removeQueue(legacyQueue), true);
+		opened.close();
+		System.out.println("  Legacy message file test passed!");
+	}
+
+	/**
+	 * Test per message and per queue delivery delay, including a delayed
+	 * message picked up by another service instance as after a restart
+	 */
+	@Test
+	public void testDelayedDelivery() {
+		String delayQueue = "delayQueue";
+		MutableClock clock = new MutableClock(System.currentTimeMillis());
+		FileQueueService service = new FileQueueService(clock);
+		service.removeQueue(delayQueue);
+		assertEquals(service.createQueue(delayQueue), true);
+		Message delayed = new Message("delayed message");
+		delayed.setDelaySeconds(5);
+		assertEquals(service.push(delayQueue, delayed), true);
+		assertEquals(service.pull(delayQueue), null);
+		clock.advance(5000);
+		// A new service instance resumes the delayed message from the file
+		FileQueueService restarted = new FileQueueService(clock);
+		assertEquals(restarted.pull(delayQueue).getContent(), delayed.getContent());
+		assertEquals(restarted.delete(delayQueue, delayed), true);
+
+		// Queue delay is shared through the queue config file
+		assertEquals(service.setQueueDelay(delayQueue, 2), true);
+		assertEquals(restarted.getQueueDelay(delayQueue), 2);
+		Message queueDelayed = new Message("queue delayed message");
+		assertEquals(restarted.push(delayQueue, queueDelayed), true);
+		assertEquals(service.pull(delayQueue), null);
+		clock.advance(2000);
+		assertEquals(service.pull(delayQueue).getContent(), queueDelayed.getContent());
+		assertEquals(service.removeQueue(delayQueue), true);
+		System.out.println("  Delayed delivery test passed!");
+	}
+
+	/**
+	 * Test that FIFO queue keeps message group order across pulls
+	 */
+	@Test
+	public void testFifoQueue() {
+		String fifoQueue = "fifoQueue";
+		fQueue.removeQueue(fifoQueue);
+		assertEquals(fQueue.createFifoQueue(fifoQueue), true);
+		assertEquals(fQueue.isFifoQueue(fifoQueue), true);
+		Message a1 = new Message("a1", Message.LOW_PRIORITY);
+		a1.setGroupId("group A");
+		Message a2 = new Message("a2", Message.HIGH_PRIORITY);
+		a2.setGroupId("group A");
+		Message b1 = new Message("b1");
+		b1.setGroupId("group B");
+		assertEquals(fQueue.push(fifoQueue, a1), true);
+		assertEquals(fQueue.push(fifoQueue, a2), true);
+		assertEquals(fQueue.push(fifoQueue, b1), true);
+		// Priority is ignored, a2 has to wait for a1
+		Message received = fQueue.pull(fifoQueue);
+		assertEquals(received.getContent(), a1.getContent());
+		assertEquals(received.getGroupId(), a1.getGroupId());
+		assertEquals(fQueue.pull(fifoQueue).getContent(), b1.getContent());
+		assertEquals(fQueue.pull(fifoQueue), null);
+		assertEquals(fQueue.delete(fifoQueue, a1), true);
+		assertEquals(fQueue.pull(fifoQueue).getContent(), a2.getContent());
+		assertEquals(fQueue.removeQueue(fifoQueue), true);
+		System.out.println("  FIFO queue test passed!");
+	}
+
+	/**
+	 * Test that a push retried through another service instance is dropped
+	 * within the deduplication window
+	 */
+	@Test
+	public void testDeduplication() {
+		String dedupQueue = "dedupQueue";
+		MutableClock clock = new MutableClock(System.currentTimeMillis());
+		FileQueueService service = new FileQueueService(clock);
+		FileQueueService other = new FileQueueService(clock);
+		service.removeQueue(dedupQueue);
+		assertEquals(service.createQueue(dedupQueue), true);
+		assertEquals(service.setDeduplicationWindow(dedupQueue, 300, true), true);
+		Message message = new Message("dedup message");
+		message.setDeduplicationId("id1");
+		assertEquals(service.push(dedupQueue, message), true);
+		// Fingerprints are shared through the queue directory
+		assertEquals(other.push(dedupQueue, message), true);
+		assertEquals(other.push(dedupQueue, new Message("content message")), true);
+		assertEquals(service.push(dedupQueue, new Message("content message")), true);
+		assertEquals(service.pull(dedupQueue).getContent(), message.getContent());
+		assertEquals(service.pull(dedupQueue).getContent(), "content message");
+		assertEquals(service.pull(dedupQueue), null);
+		// Window is over, the same id is accepted again
+		clock.advance(360000);
+		assertEquals(other.push(dedupQueue, message), true);
+		assertEquals(service.pull(dedupQueue).getContent(), message.getContent());
+		assertEquals(service.removeQueue(dedupQueue), true);
+		System.out.println("  Deduplication test passed!");
+	}
+
+	/**
+	 * Test that compressed and offloaded content is restored on pull and that
+	 * the blob file is removed on delete
+	 */
+	@Test
+	public void testPayloadCompressionAndOffload() {
+		String payloadQueue = "payloadQueue";
+		fQueue.removeQueue(payloadQueue);
+		assertEquals(fQueue.createQueue(payloadQueue), true);
+		assertEquals(fQueue.setPayloadThresholds(payloadQueue, 16, 64), true);
+		StringBuilder large = new StringBuilder();
+		for (int i = 0; i < 100; i++)
+			large.append("large message ").append(i).append(' ');
+		Message small = new Message("small");
+		Message medium = new Message("medium message, compressed inline");
+		Message offloaded = new Message(large.toString());
+		assertEquals(fQueue.push(payloadQueue, small), true);
+		assertEquals(fQueue.push(payloadQueue, medium), true);
+		assertEquals(fQueue.push(payloadQueue, offloaded), true);
+		// Large content is kept out of the lane file
+		File lane = new File("file/" + payloadQueue + "/message_" + Message.NORMAL_PRIORITY);
+		assertEquals(lane.length() < large.length(), true);
+		assertEquals(fQueue.pull(payloadQueue).getContent(), small.getContent());
+		assertEquals(fQueue.pull(payloadQueue).getContent(), medium.getContent());
+		assertEquals(fQueue.pull(payloadQueue).getContent(), offloaded.getContent());
+		assertEquals(fQueue.delete(payloadQueue, medium), true);
+		assertEquals(fQueue.delete(payloadQueue, offloaded), true);
+		assertEquals(new File("file/" + payloadQueue).list((dir, name) -> name.startsWith("blob_")).length, 0);
+		// Same content offloaded again in another format gets its own blob
+		assertEquals(fQueue.push(payloadQueue, offloaded), true);
+		assertEquals(fQueue.setPayloadThresholds(payloadQueue, 0, 64), true);
+		assertEquals(fQueue.push(payloadQueue, offloaded), true);
+		assertEquals(fQueue.pull(payloadQueue).getContent(), offloaded.getContent());
+		assertEquals(fQueue.pull(payloadQueue).getContent(), offloaded.getContent());
+		// A delete removes a single record and only the blob it refers to
+		assertEquals(fQueue.delete(payloadQueue, offloaded), true);
+		assertEquals(new File("file/" + payloadQueue).list((dir, name) -> name.startsWith("blob_")).length, 1);
+		assertEquals(fQueue.delete(payloadQueue, offloaded), true);
+		assertEquals(new File("file/" + payloadQueue).list((dir, name) -> name.startsWith("blob_")).length, 0);
+
+		// Duplicate left behind still reads the blob it shares
+		assertEquals(fQueue.push(payloadQueue, new Message(large.toString())), true);
+		assertEquals(fQueue.push(payloadQueue, new Message(large.toString())), true);
+		Message received = fQueue.pull(payloadQueue);
+		assertEquals(fQueue.delete(payloadQueue, received), true);
+		assertEquals(fQueue.getQueueAttributes(payloadQueue).getVisibleMessages(), 1);
+		assertEquals(fQueue.pull(payloadQueue).getContent(), large.toString());
+		assertEquals(fQueue.delete(payloadQueue, received), true);
+		assertEquals(new File("file/" + payloadQueue).list((dir, name) -> name.startsWith("blob_")).length, 0);
+
+		// Record whose blob is lost stays visible, the next one is pulled
+		assertEquals(fQueue.push(payloadQueue, new Message(large.toString())), true);
+		assertEquals(fQueue.push(payloadQueue, new Message("readable")), true);
+		for (File blob : new File("file/" + payloadQueue).listFiles((dir, name) -> name.startsWith("blob_")))
+			assertEquals(blob.delete(), true);
+		assertEquals(fQueue.pull(payloadQueue).getContent(), "readable");
+		assertEquals(fQueue.getQueueAttributes(payloadQueue).getVisibleMessages(), 1);
+		assertEquals(fQueue.delete(payloadQueue, new Message("readable")), true);
+		assertEquals(fQueue.delete(payloadQueue, new Message(large.toString())), true);
+		assertEquals(fQueue.delete(payloadQueue, small), true);
+		assertEquals(lane.length(), 0);
+		assertEquals(fQueue.removeQueue(payloadQueue), true);
+		System.out.println("  Payload compression and offload test passed!");
+	}
+
+	/**
+	 * Test that a publish writes a large payload once for every subscriber
+	 * queue, and that the payload file goes with the last message pointing to
+	 * it
+	 */
+	@Test
+	public void testTopicFanOut() {
+		String[] subscribers = { "topicQueue1", "topicQueue2", "topicQueue3" };
+		fQueue.removeTopic("fanOutTopic");
+		assertEquals(fQueue.createTopic("fanOutTopic"), true);
+		assertEquals(fQueue.createTopic("fanOutTopic"), false);
+		for (String subscriber : subscribers) {
+			fQueue.removeQueue(subscriber);
+			assertEquals(fQueue.createQueue(subscriber), true);
+			assertEquals(fQueue.subscribe("fanOutTopic", subscriber, null), true);
+		}
+		assertEquals(fQueue.subscribe("fanOutTopic", subscribers[2], MessageFilter.parse("group=orders")), true);
+		StringBuilder large = new StringBuilder();
+		for (int i = 0; i < 100; i++)
+			large.append("published event ").append(i).append(' ');
+		assertEquals(fQueue.publish("fanOutTopic", new Message(large.toString())), 2);
+		assertEquals(fQueue.publish("fanOutTopic", new Message("small")), 2);
+		File topic = new File("file/fanOutTopic");
+		assertEquals(topic.list((dir, name) -> name.startsWith("payload_")).length, 1);
+		File lane = new File("file/" + subscribers[0] + "/message_" + Message.NORMAL_PRIORITY);
+		assertEquals(lane.length() < large.length(), true);
+
+		Message first = fQueue.pull(subscribers[0]);
+		Message second = fQueue.pull(subscribers[1]);
+		assertEquals(first.getContent(), large.toString());
+		assertEquals(second.getContent(), large.toString());
+		assertEquals(fQueue.pull(subscribers[2]), null);
+		assertEquals(fQueue.delete(subscribers[0], first), true);
+		assertEquals(topic.list((dir, name) -> name.startsWith("payload_")).length, 1);
+		// A subscriber queue can be removed with its messages still in it
+		assertEquals(fQueue.removeQueue(subscribers[1]), true);
+		assertEquals(topic.list((dir, name) -> name.startsWith("payload_")).length, 0);
+		assertEquals(fQueue.pull(subscribers[0]).getContent(), "small");
+
+		assertEquals(fQueue.unsubscribe("fanOutTopic", subscribers[1]), true);
+		assertEquals(fQueue.getSubscriptions("fanOutTopic").keySet().size(), 2);
+		assertEquals(fQueue.getSubscriptions("fanOutTopic").get(subscribers[2]).toString(), "group=orders");
+		assertEquals(fQueue.removeTopic("fanOutTopic"), true);
+		assertEquals(topic.exists(), false);
+		assertEquals(fQueue.publish("fanOutTopic", new Message("lost")), -1);
+		fQueue.removeQueue(subscribers[0]);
+		fQueue.removeQueue(subscribers[2]);
+		System.out.println("  Topic fan-out test passed!");
+	}
+
+	/**
+	 * Test that a move hands a message over exactly once, that a batch is
+	 * applied whole or not at all, and that a batch committed by a process
+	 * that died before renaming its lane files is finished on recovery
+	 */
+	@Test
+	public void testBatchMove() throws IOException {
+		String source = "moveSource";
+		String destination = "moveDestination";
+		fQueue.removeQueue(source);
+		fQueue.removeQueue(destination);
+		assertEquals(fQueue.createQueue(source), true);
+		assertEquals(fQueue.createQueue(destination), true);
+		assertEquals(fQueue.push(source, new Message("stage one")), true);
+		Message received = fQueue.pull(source);
+		assertEquals(fQueue.move(source, received, destination), true);
+		// Already handed over, a second consumer cannot move it again
+		assertEquals(fQueue.move(source, received, destination), false);
+		assertEquals(fQueue.getQueueAttributes(source).getVisibleMessages(), 0);
+		assertEquals(fQueue.pull(destination).getContent(), "stage one");
+
+		// A missing message fails the whole batch
+		assertEquals(fQueue.newBatch().push(source, new Message("dropped")).delete(destination, new Message("none"))
+				.commit(), false);
+		assertEquals(fQueue.pull(source), null);
+		assertEquals(fQueue.newBatch().push(source, new Message("first")).push(destination, new Message("second"))
+				.delete(destination, received).commit(), true);
+		assertEquals(fQueue.pull(source).getContent(), "first");
+		assertEquals(fQueue.pull(destination).getContent(), "second");
+
+		// Only the record pulled is handed over, not its duplicate
+		assertEquals(fQueue.push(source, new Message("twice")), true);
+		assertEquals(fQueue.push(source, new Message("twice")), true);
+		received = fQueue.pull(source);
+		assertEquals(fQueue.move(source, received, destination), true);
+		assertEquals(fQueue.getQueueAttributes(source).getVisibleMessages(), 1);
+		assertEquals(fQueue.pull(source).getContent(), "twice");
+		assertEquals(fQueue.pull(destination).getContent(), "twice");
+
+		// Blob written by a failed batch is removed with it
+		assertEquals(fQueue.setPayloadThresholds(source, 16, 64), true);
+		StringBuilder large = new StringBuilder();
+		while (large.length() < 200)
+			large.append("offloaded payload ");
+		assertEquals(fQueue.newBatch().push(source, new Message(large.toString()))
+				.delete(destination, new Message("none")).commit(), false);
+		assertEquals(new File("file/" + source).list((dir, name) -> name.startsWith("blob_")).length, 0);
+		assertEquals(new File("file/" + source + "/.lock").exists(), false);
+
+		// Duplicate left behind still reads the blob it shares
+		assertEquals(fQueue.push(source, new Message(large.toString())), true);
+		assertEquals(fQueue.push(source, new Message(large.toString())), true);
+		received = fQueue.pull(source);
+		assertEquals(fQueue.move(source, received, destination), true);
+		assertEquals(fQueue.pull(source).getContent(), large.toString());
+		assertEquals(fQueue.pull(destination).getContent(), large.toString());
+
+		// Lane file written and commit record synced, then the process died
+		File laneFile = new File("file/" + source + "/message_" + Message.NORMAL_PRIORITY);
+		Files.write(Paths.get(laneFile.getPath() + "_crashed"),
+				(new Message("recovered").createVisibleRecord() + System.getProperty("line.separator")).getBytes());
+		new File("file/.batches").mkdirs();
+		Files.write(Paths.get("file/.batches/crashed"), (source + "\t" + Message.NORMAL_PRIORITY + "\n").getBytes());
+		assertEquals(new File("file/" + source + "/.lock").mkdir(), true);
+		assertEquals(fQueue.recoverBatches(), 1);
+		assertEquals(fQueue.pull(source).getContent(), "recovered");
+
+		// Process died before its commit record, holding the lock and having
+		// written its lane file and a blob
+		Files.write(Paths.get(laneFile.getPath() + "_dead"), "unused".getBytes());
+		Files.write(Paths.get("file/" + source + "/blob_" + Message.NORMAL_PRIORITY + "_dead"), "unused".getBytes());
+		Files.write(Paths.get("file/.batches/dead_pending"), (source + "\n").getBytes());
+		assertEquals(new File("file/" + source + "/.lock").mkdir(), true);
+		assertEquals(fQueue.recoverBatches(), 0);
+		assertEquals(new File("file/" + source + "/.lock").exists(), false);
+		assertEquals(new File("file/" + source).list((dir, name) -> name.endsWith("_dead")).length, 0);
+		assertEquals(new File("file/.batches/dead_pending").exists(), false);
+		assertEquals(fQueue.removeQueue(source), true);
+		assertEquals(fQueue.removeQueue(destination), true);
+		System.out.println("  Batch move test passed!");
+	}
+
+	/**
+	 * Test that cached files follow a queue removed and created again by
+	 * another service, standing for another process
+	 */
+	@Test
+	public void testCachedHandles() {
+		String cachedQueue = "cachedQueue";
+		FileQueueService other = new FileQueueService();
+		fQueue.removeQueue(cachedQueue);
+		assertEquals(fQueue.createQueue(cachedQueue), true);
+		assertEquals(fQueue.push(cachedQueue, new Message("before")), true);
+		assertEquals(fQueue.getQueueDelay(cachedQueue), 0);
+
+		assertEquals(other.removeQueue(cachedQueue), true);
+		assertEquals(other.createFifoQueue(cachedQueue), true);
+		assertEquals(other.setQueueDelay(cachedQueue, 5), true);
+		assertEquals(fQueue.isFifoQueue(cachedQueue), true);
+		assertEquals(fQueue.getQueueDelay(cachedQueue), 5);
+		Message after = new Message("after");
+		after.setDelaySeconds(0);
+		assertEquals(fQueue.push(cachedQueue, after), true);
+		assertEquals(other.pull(cachedQueue).getContent(), "after");
+		assertEquals(other.getQueueAttributes(cachedQueue).getInFlightMessages(), 1);
+		fQueue.close();
+		assertEquals(fQueue.getQueueAttributes(cachedQueue).getInFlightMessages(), 1);
+		assertEquals(fQueue.removeQueue(cachedQueue), true);
+		other.close();
+		System.out.println("  Cached handles test passed!");
+	}
+
+	/**
+	 * Test that typed attributes survive the text records, and that a selector
+	 * pull skips the records it does not accept
+	 */
+	@Test
+	public void testSelectorPull() {
+		String selectQueue = "selectQueue";
+		fQueue.removeQueue(selectQueue);
+		assertEquals(fQueue.createQueue(selectQueue), true);
+		Message plain = new Message("plain");
+		Message tagged = new Message("tagged & escaped");
+		tagged.setAttribute("kind", "a=b&c");
+		tagged.setAttribute("weight", 2.5);
+		tagged.setAttribute("retries", 3);
+		assertEquals(fQueue.push(selectQueue, plain), true);
+		assertEquals(fQueue.push(selectQueue, tagged), true);
+
+		Message received = fQueue.pull(selectQueue, MessageFilter.parse("attribute.retries=3"));
+		assertEquals(received.getContent(), tagged.getContent());
+		assertEquals(received.getAttribute("kind"), "a=b&c");
+		assertEquals(received.getAttribute("weight"), 2.5);
+		assertEquals(received.getAttribute("retries"), 3L);
+		assertEquals(fQueue.pull(selectQueue, MessageFilter.parse("prefix=tagged")), null);
+		assertEquals(fQueue.pull(selectQueue, MessageFilter.parse("prefix=pl")).getContent(), "plain");
+		assertEquals(fQueue.delete(selectQueue, received), true);
+		assertEquals(fQueue.removeQueue(selectQueue), true);
+		System.out.println("  Selector pull test passed!");
+	}
+
+	/**
+	 * Test that the first receive time is set by the first pull and kept in
+	 * the record across redeliveries
+	 */
+	@Test
+	public void testFirstReceiveTime() {
+		String receiveQueue = "receiveQueue";
+		fQueue.removeQueue(receiveQueue);
+		assertEquals(fQueue.createQueue(receiveQueue), true);
+		assertEquals(fQueue.push(receiveQueue, new Message("first")), true);
+
+		Message received = fQueue.pull(receiveQueue);
+		assertEquals(received.getReceiveCount(), 1);
+		assertEquals(received.getFirstReceiveTime() >= received.getEnqueueTime(), true);
+		assertEquals(fQueue.changeVisibility(receiveQueue, received, 0), true);
+		Message again = fQueue.pull(receiveQueue);
+		assertEquals(again.getReceiveCount(), 2);
+		assertEquals(again.getFirstReceiveTime(), received.getFirstReceiveTime());
+		// Pushed again, the new record starts over as never received while
+		// the message pushed is left as it was
+		assertEquals(fQueue.push(receiveQueue, again), true);
+		assertEquals(again.getReceiveCount(), 2);
+		Message pushedAgain = fQueue.pull(receiveQueue);
+		assertEquals(pushedAgain.getReceiveCount(), 1);
+		assertEquals(pushedAgain.getFirstReceiveTime() >= pushedAgain.getEnqueueTime(), true);
+		assertEquals(fQueue.delete(receiveQueue, again), true);
+		assertEquals(fQueue.removeQueue(receiveQueue), true);
+		System.out.println("  First receive time test passed!");
+	}
+
+	/**
+	 * Test that binary content survives the text records, and that offloaded
+	 * content is read straight from its mapped blob file
+	 */
+	@Test
+	public void testBinaryPayload() {
+		String binaryQueue = "binaryQueue";
+		fQueue.removeQueue(binaryQueue);
+		assertEquals(fQueue.createQueue(binaryQueue), true);
+		assertEquals(fQueue.setPayloadThresholds(binaryQueue, 0, 256), true);
+		// Not valid UTF-8 and contains line breaks
+		byte[] small = { (byte) 0xff, '\n', 0, (byte) 0x80 };
+		byte[] large = new byte[1024];
+		for (int i = 0; i < large.length; i++)
+			large[i] = (byte) i;
+		assertEquals(fQueue.push(binaryQueue, new Message(small)), true);
+		assertEquals(fQueue.push(binaryQueue, new Message(large)), true);
+		Message received = fQueue.pull(binaryQueue);
+		assertEquals(received.isBinary(), true);
+		assertEquals(received.getPayload(), ByteBuffer.wrap(small));
+		received = fQueue.pull(binaryQueue);
+		assertEquals(received.getPayload(), ByteBuffer.wrap(large));
+		// Mapped file, not a heap copy
+		assertEquals(received.getPayload().isDirect(), true);
+		assertEquals(fQueue.delete(binaryQueue, new Message(small)), true);
+		assertEquals(fQueue.delete(binaryQueue, received), true);
+		assertEquals(fQueue.pull(binaryQueue), null);
+		assertEquals(fQueue.removeQueue(binaryQueue), true);
+		System.out.println("  Binary payload test passed!");
+	}
+
+	/**
+	 * Test that queue attributes are kept in the stats file, so another
+	 * service instance reads them without scanning the lane files
+	 */
+	@Test
+	public void testQueueAttributes() {
+		String attributeQueue = "attributeQueue";
+		MutableClock clock = new MutableClock(System.currentTimeMillis());
+		FileQueueService service = new FileQueueService(clock);
+		FileQueueService other = new FileQueueService(clock);
+		service.removeQueue(attributeQueue);
+		assertEquals(service.getQueueAttributes(attributeQueue), null);
+		assertEquals(service.createQueue(attributeQueue), true);
+		QueueAttributes attributes = other.getQueueAttributes(attributeQueue);
+		assertEquals(attributes.getVisibleMessages(), 0);
+		assertEquals(attributes.getOldestMessageAge(), 0);
+
+		Message first = new Message("first");
+		// Counters of each lane are kept apart
+		Message high = new Message("high", Message.HIGH_PRIORITY);
+		Message delayed = new Message("delayed");
+		delayed.setDelaySeconds(5);
+		assertEquals(service.push(attributeQueue, first), true);
+		clock.advance(100);
+		assertEquals(service.push(attributeQueue, high), true);
+		assertEquals(service.push(attributeQueue, delayed), true);
+		attributes = other.getQueueAttributes(attributeQueue);
+		assertEquals(attributes.getVisibleMessages(), 2);
+		assertEquals(attributes.getDelayedMessages(), 1);
+		assertEquals(attributes.getOldestMessageAge(), 100);
+
+		Message received = service.pull(attributeQueue);
+		assertEquals(received.getReceiveCount(), 1);
+		attributes = other.getQueueAttributes(attributeQueue);
+		assertEquals(attributes.getVisibleMessages(), 1);
+		assertEquals(attributes.getInFlightMessages(), 1);
+		assertEquals(attributes.getDelayedMessages(), 1);
+		// Lease and delay are over, nothing rewrote the lanes meanwhile
+		clock.advance(5000);
+		attributes = other.getQueueAttributes(attributeQueue);
+		assertEquals(attributes.getVisibleMessages(), 3);
+		assertEquals(attributes.getInFlightMessages(), 0);
+		assertEquals(attributes.getDelayedMessages(), 0);
+		// Receive count survives in the record
+		assertEquals(service.delete(attributeQueue, received), true);
+		received = service.pull(attributeQueue);
+		assertEquals(received.getReceiveCount(), 1);
+		clock.advance(3000);
+		assertEquals(service.pull(attributeQueue).getReceiveCount(), 2);
+		clock.advance(3000);
+
+		assertEquals(service.delete(attributeQueue, first), true);
+		assertEquals(service.delete(attributeQueue, high), true);
+		attributes = other.getQueueAttributes(attributeQueue);
+		assertEquals(attributes.getVisibleMessages(), 1);
+		assertEquals(attributes.getInFlightMessages(), 0);
+		assertEquals(attributes.getOldestMessageAge(), 11000);
+		assertEquals(service.delete(attributeQueue, delayed), true);
+		attributes = other.getQueueAttributes(attributeQueue);
+		assertEquals(attributes.getVisibleMessages(), 0);
+		assertEquals(attributes.getOldestMessageAge(), 0);
+		assertEquals(service.removeQueue(attributeQueue), true);
+		System.out.println("  Queue attributes test passed!");
+	}
+
+	/**
+	 * Test that consumers claim blocks of records and hand them out without
+	 * the queue lock, and that expired or released blocks are reclaimed
+	 */
+	@Test
+	public void testLeaseBlocks() {
+		String blockQueue = "blockQueue";
+		MutableClock clock = new MutableClock(System.currentTimeMillis());
+		FileQueueService consumer = new FileQueueService(clock);
+		FileQueueService other = new FileQueueService(clock);
+		consumer.setLeaseBlockSize(3);
+		other.setLeaseBlockSize(3);
+		consumer.removeQueue(blockQueue);
+		assertEquals(consumer.createQueue(blockQueue), true);
+		for (int i = 0; i < 7; i++)
+			assertEquals(consumer.push(blockQueue, new Message("message " + i)), true);
+		assertEquals(consumer.pull(blockQueue).getContent(), "message 0");
+		assertEquals(other.pull(blockQueue).getContent(), "message 3");
+		// Rest of the block is handed out while another process holds the
+		// queue lock
+		File lock = new File("file/" + blockQueue + "/.lock");
+		assertEquals(lock.mkdir(), true);
+		assertEquals(consumer.pull(blockQueue).getContent(), "message 1");
+		assertEquals(other.pull(blockQueue).getContent(), "message 4");
+		assertEquals(lock.delete(), true);
+		assertEquals(consumer.getQueueAttributes(blockQueue).getInFlightMessages(), 6);
+
+		// Released records are visible again right away
+		assertEquals(other.releaseLeaseBlock(blockQueue), true);
+		assertEquals(consumer.getQueueAttributes(blockQueue).getVisibleMessages(), 2);
+		assertEquals(consumer.pull(blockQueue).getContent(), "message 2");
+		assertEquals(consumer.pull(blockQueue).getContent(), "message 5");
+
+		// Expired block is dropped and its records reclaimed by others
+		clock.advance(3000);
+		assertEquals(other.pull(blockQueue).getContent(), "message 0");
+		assertEquals(consumer.pull(blockQueue).getContent(), "message 3");
+		// Rest of the block is not handed out about to expire
+		clock.advance(1600);
+		assertEquals(consumer.pull(blockQueue).getContent(), "message 6");
+		assertEquals(consumer.releaseLeaseBlock(blockQueue), true);
+		assertEquals(other.releaseLeaseBlock(blockQueue), true);
+		for (int i = 0; i < 7; i++)
+			assertEquals(consumer.delete(blockQueue, new Message("message " + i)), true);
+		assertEquals(consumer.pull(blockQueue), null);
+		assertEquals(consumer.removeQueue(blockQueue), true);
+		System.out.println("  Lease blocks test passed!");
+	}
+
+	/**
+	 * Test that a standby service takes over the queue from the replica with
+	 * the same records, in flight state and offloaded content
+	 */
+	@Test
+	public void testReplication() throws IOException {
+		String replicatedQueue = "replicatedQueue";
+		MutableClock clock = new MutableClock(System.currentTimeMillis());
+		FileQueueService primary = new FileQueueService(clock, "file/primary");
+		primary.removeQueue(replicatedQueue);
+		new FileQueueService(clock, "file/replica").removeQueue(replicatedQueue);
+		QueueReplicator replicator = new QueueReplicator("file/replica", false);
+		primary.setReplicator(replicator);
+		assertEquals(primary.createQueue(replicatedQueue), true);
+		assertEquals(primary.setPayloadThresholds(replicatedQueue, 0, 64), true);
+		StringBuilder large = new StringBuilder();
+		for (int i = 0; i < 100; i++)
+			large.append("large ");
+		for (int i = 0; i < 20; i++)
+			assertEquals(primary.push(replicatedQueue, new Message("message " + i)), true);
+		Message inFlight = primary.pull(replicatedQueue);
+		Message deleted = primary.pull(replicatedQueue);
+		assertEquals(primary.delete(replicatedQueue, deleted), true);
+		assertEquals(primary.push(replicatedQueue, new Message(large.toString(), Message.LOW_PRIORITY)), true);
+		replicator.close();
+
+		for (int lane = 0; lane < Message.PRIORITY_LANES; lane++) {
+			String file = "/" + replicatedQueue + "/message_" + lane;
+			assertEquals(Files.readAllLines(Paths.get("file/replica" + file)),
+					Files.readAllLines(Paths.get("file/primary" + file)));
+		}
+		FileQueueService standby = new FileQueueService(clock, "file/replica");
+		assertEquals(standby.getQueueAttributes(replicatedQueue).getVisibleMessages(), 19);
+		assertEquals(standby.getQueueAttributes(replicatedQueue).getInFlightMessages(), 1);
+		clock.advance(3000);
+		assertEquals(standby.pull(replicatedQueue).getContent(), inFlight.getContent());
+		Message received;
+		while ((received = standby.pull(replicatedQueue)) != null && received.getPriority() != Message.LOW_PRIORITY)
+			assertEquals(received.getContent().equals(deleted.getContent()), false);
+		assertEquals(received.getContent(), large.toString());
+
+		// Synchronous replica is up to date as soon as the operation returns
+		replicator = new QueueReplicator("file/replica", true);
+		primary.setReplicator(replicator);
+		assertEquals(primary.push(replicatedQueue, new Message("synchronous")), true);
+		assertEquals(replicator.getLag(), 0);
+		replicator.close();
+
+		// A change the replica cannot apply is reported apart from the local
+		// result, so the push is not retried and applied twice
+		File blocking = new File("file/replica_broken/" + replicatedQueue);
+		blocking.getParentFile().mkdirs();
+		blocking.createNewFile();
+		replicator = new QueueReplicator("file/replica_broken", true);
+		primary.setReplicator(replicator);
+		assertEquals(primary.hasReplicationFailed(), false);
+		assertEquals(primary.push(replicatedQueue, new Message("not replicated")), true);
+		assertEquals(primary.hasReplicationFailed(), true);
+		assertEquals(replicator.hasFailed(), true);
+		assertEquals(replicator.flush(), false);
+		replicator.close();
+		blocking.delete();
+		primary.setReplicator(null);
+		assertEquals(primary.removeQueue(replicatedQueue), true);
+		assertEquals(standby.removeQueue(replicatedQueue), true);
+		System.out.println("  Replication test passed!");
+	}
+
 	/**
 	 * This is a visibility test that uses thread.sleep()
 	 * Disable the comment to run this test
@@ -1,7 +1,11 @@
 package com.example;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
 
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.util.Deque;
 
 import org.junit.Test;
@@ -181,9 +185,569 @@ public class InMemoryQueueTest {
 		System.out.println("  Basic operation test on custom queue passed!");
 	}
 
+	/**
+	 * Test that higher priority messages overtake the backlog while lower
+	 * priority lanes still get their weighted share
+	 */
+	@Test
+	public void testPriorityLanes() {
+		preTestCleanUp();
+		String priorityQueue = "priorityQueue";
+		imQueue.createQueue(priorityQueue);
+		Message low = new Message("low", Message.LOW_PRIORITY);
+		imQueue.push(priorityQueue, low);
+		Message high = new Message("high", Message.HIGH_PRIORITY);
+		imQueue.push(priorityQueue, high);
+		// High priority message is served first even though it was pushed later
+		assertEquals(imQueue.pull(priorityQueue), high);
+		assertEquals(imQueue.pull(priorityQueue), low);
+		imQueue.delete(priorityQueue, high);
+		imQueue.delete(priorityQueue, low);
+
+		// Flood both lanes, with weight 4 against 1 the low lane must get
+		// exactly one of every five pulls
+		for (int i = 0; i < 10; i++) {
+			imQueue.push(priorityQueue, new Message("low" + i, Message.LOW_PRIORITY));
+			imQueue.push(priorityQueue, new Message("high" + i, Message.HIGH_PRIORITY));
+		}
+		int lowCount = 0;
+		for (int i = 0; i < 10; i++) {
+			if (imQueue.pull(priorityQueue).getPriority() == Message.LOW_PRIORITY)
+				lowCount++;
+		}
+		assertEquals(lowCount, 2);
+		// Messages of the same lane are still FIFO
+		imQueue.clearQueue(priorityQueue);
+		Message first = new Message("first", Message.LOW_PRIORITY);
+		Message second = new Message("second", Message.LOW_PRIORITY);
+		imQueue.push(priorityQueue, first);
+		imQueue.push(priorityQueue, second);
+		assertEquals(imQueue.pull(priorityQueue), first);
+		assertEquals(imQueue.pull(priorityQueue), second);
+
+		System.out.println("  Priority lanes test passed!");
+	}
+
+	/**
+	 * Test that a pulled message becomes visible again once its visibility
+	 * timeout has passed, using a controlled clock instead of sleeping
+	 */
+	@Test
+	public void testVisibilityTimeout() {
+		preTestCleanUp();
+		MutableClock clock = new MutableClock(0);
+		InMemoryQueueService service = new InMemoryQueueService(clock);
+		Message message = new Message("message");
+		service.push(message);
+		assertEquals(service.pull(), message);
+		clock.advance(2999);
+		// Still within the visibility timeout
+		assertEquals(service.pull(), null);
+		clock.advance(1);
+		// Timeout is over, message is back at the head of the queue
+		assertEquals(service.pull(), message);
+		// Deleted message never comes back
+		service.delete(message);
+		clock.advance(3000);
+		assertEquals(service.pull(), null);
+
+		System.out.println("  Visibility timeout test passed!");
+	}
+
+	/**
+	 * Test per message and per queue delivery delay
+	 */
+	@Test
+	public void testDelayedDelivery() {
+		preTestCleanUp();
+		MutableClock clock = new MutableClock(0);
+		InMemoryQueueService service = new InMemoryQueueService(clock);
+		String delayQueue = "delayQueue";
+		service.createQueue(delayQueue);
+		Message delayed = new Message("delayed");
+		delayed.setDelaySeconds(5);
+		Message immediate = new Message("immediate");
+		service.push(delayQueue, delayed);
+		service.push(delayQueue, immediate);
+		// Delayed message is part of the queue but cannot be pulled yet
+		assertEquals(service.getQueue(delayQueue).size(), 2);
+		assertEquals(service.pull(delayQueue), immediate);
+		assertEquals(service.pull(delayQueue), null);
+		service.delete(delayQueue, immediate);
+		clock.advance(5000);
+		assertEquals(service.pull(delayQueue), delayed);
+		service.delete(delayQueue, delayed);
+
+		// Queue delay applies to messages without their own delay
+		service.setQueueDelay(delayQueue, 2);
+		Message queueDelayed = new Message("queue delayed");
+		Message noDelay = new Message("no delay");
+		noDelay.setDelaySeconds(0);
+		service.push(delayQueue, queueDelayed);
+		service.push(delayQueue, noDelay);
+		assertEquals(service.pull(delayQueue), noDelay);
+		assertEquals(service.pull(delayQueue), null);
+		clock.advance(2000);
+		assertEquals(service.pull(delayQueue), queueDelayed);
+		service.delete(delayQueue, noDelay);
+		service.delete(delayQueue, queueDelayed);
+
+		// Deleting a delayed message cancels its delivery
+		Message cancelled = new Message("cancelled");
+		cancelled.setDelaySeconds(1);
+		service.push(delayQueue, cancelled);
+		service.delete(delayQueue, cancelled);
+		clock.advance(1000);
+		assertEquals(service.pull(delayQueue), null);
+
+		System.out.println("  Delayed delivery test passed!");
+	}
+
+	/**
+	 * Test that FIFO queue delivers each message group in order with at most
+	 * one message in flight, while other groups keep being delivered
+	 */
+	@Test
+	public void testFifoQueue() {
+		preTestCleanUp();
+		MutableClock clock = new MutableClock(0);
+		InMemoryQueueService service = new InMemoryQueueService(clock);
+		String fifoQueue = "fifoQueue";
+		service.createFifoQueue(fifoQueue);
+		Message a1 = new Message("a1");
+		a1.setGroupId("A");
+		Message a2 = new Message("a2");
+		a2.setGroupId("A");
+		Message b1 = new Message("b1");
+		b1.setGroupId("B");
+		service.push(fifoQueue, a1);
+		service.push(fifoQueue, a2);
+		service.push(fifoQueue, b1);
+		assertEquals(service.pull(fifoQueue), a1);
+		// a2 waits for a1, group B is delivered in parallel
+		assertEquals(service.pull(fifoQueue), b1);
+		assertEquals(service.pull(fifoQueue), null);
+		// Deleting a1 releases group A
+		service.delete(fifoQueue, a1);
+		assertEquals(service.pull(fifoQueue), a2);
+		// Expired b1 is delivered again before anything else of group B
+		Message b2 = new Message("b2");
+		b2.setGroupId("B");
+		service.push(fifoQueue, b2);
+		assertEquals(service.pull(fifoQueue), null);
+		clock.advance(3000);
+		assertEquals(service.pull(fifoQueue), b1);
+		assertEquals(service.pull(fifoQueue), a2);
+		assertEquals(service.pull(fifoQueue), null);
+		service.delete(fifoQueue, b1);
+		assertEquals(service.pull(fifoQueue), b2);
+
+		System.out.println("  FIFO queue test passed!");
+	}
+
+	/**
+	 * Test that retried push is dropped within the deduplication window, by
+	 * id and by content
+	 */
+	@Test
+	public void testDeduplication() {
+		preTestCleanUp();
+		MutableClock clock = new MutableClock(0);
+		InMemoryQueueService service = new InMemoryQueueService(clock);
+		String dedupQueue = "dedupQueue";
+		service.createQueue(dedupQueue);
+		service.setDeduplicationWindow(dedupQueue, 300, false);
+		Message message = new Message("message");
+		message.setDeduplicationId("id1");
+		Message retry = new Message("message");
+		retry.setDeduplicationId("id1");
+		// Duplicate push is reported as successful but not queued
+		assertEquals(service.push(dedupQueue, message), true);
+		assertEquals(service.push(dedupQueue, retry), true);
+		assertEquals(service.getQueue(dedupQueue).size(), 1);
+		// Same content without id is not a duplicate unless content based
+		assertEquals(service.push(dedupQueue, new Message("message")), true);
+		assertEquals(service.push(dedupQueue, new Message("message")), true);
+		assertEquals(service.getQueue(dedupQueue).size(), 3);
+		// Id is remembered for the whole window, then forgotten
+		clock.advance(299999);
+		service.push(dedupQueue, retry);
+		assertEquals(service.getQueue(dedupQueue).size(), 3);
+		clock.advance(60000);
+		service.push(dedupQueue, retry);
+		assertEquals(service.getQueue(dedupQueue).size(), 4);
+
+		service.clearQueue(dedupQueue);
+		service.setDeduplicationWindow(dedupQueue, 300, true);
+		service.push(dedupQueue, new Message("content"));
+		service.push(dedupQueue, new Message("content"));
+		assertEquals(service.getQueue(dedupQueue).size(), 1);
+
+		System.out.println("  Deduplication test passed!");
+	}
+
+	/**
+	 * Test that binary message is handed out without copying its bytes and
+	 * only decoded to string on demand
+	 */
+	@Test
+	public void testBinaryPayload() {
+		preTestCleanUp();
+		byte[] bytes = "binary message".getBytes(StandardCharsets.UTF_8);
+		Message message = new Message(bytes);
+		imQueue.push(message);
+		Message received = imQueue.pull();
+		assertEquals(received, message);
+		assertEquals(received.isBinary(), true);
+		ByteBuffer payload = received.getPayload();
+		// View is read-only and shares the original array
+		assertEquals(payload.isReadOnly(), true);
+		bytes[0] = 'B';
+		assertEquals(payload.get(0), (byte) 'B');
+		// Consuming a view does not affect the message
+		payload.get(new byte[payload.remaining()]);
+		assertEquals(received.getPayload().remaining(), bytes.length);
+		assertEquals(received.getContent(), "Binary message");
+		imQueue.delete(received);
+		// String message can still be read as bytes
+		assertEquals(new Message("text").getPayload(), ByteBuffer.wrap("text".getBytes(StandardCharsets.UTF_8)));
+
+		System.out.println("  Binary payload test passed!");
+	}
+
+	/**
+	 * Test that queue attributes follow messages through delay, lease and
+	 * deletion without scanning the queue
+	 */
+	@Test
+	public void testQueueAttributes() {
+		preTestCleanUp();
+		MutableClock clock = new MutableClock(1000);
+		InMemoryQueueService service = new InMemoryQueueService(clock);
+		String attributeQueue = "attributeQueue";
+		service.createQueue(attributeQueue);
+		assertEquals(service.getQueueAttributes("missing"), null);
+		Message first = new Message("first");
+		Message second = new Message("second");
+		Message delayed = new Message("delayed");
+		delayed.setDelaySeconds(5);
+		service.push(attributeQueue, first);
+		clock.advance(100);
+		service.push(attributeQueue, second);
+		service.push(attributeQueue, delayed);
+		assertEquals(first.getEnqueueTime(), 1000);
+		QueueAttributes attributes = service.getQueueAttributes(attributeQueue);
+		assertEquals(attributes.getVisibleMessages(), 2);
+		assertEquals(attributes.getInFlightMessages(), 0);
+		assertEquals(attributes.getDelayedMessages(), 1);
+		assertEquals(attributes.getOldestMessageAge(), 100);
+
+		assertEquals(service.pull(attributeQueue), first);
+		assertEquals(first.getReceiveCount(), 1);
+		attributes = service.getQueueAttributes(attributeQueue);
+		assertEquals(attributes.getVisibleMessages(), 1);
+		assertEquals(attributes.getInFlightMessages(), 1);
+		// Expired lease and finished delay are visible without any pull
+		clock.advance(5000);
+		attributes = service.getQueueAttributes(attributeQueue);
+		assertEquals(attributes.getVisibleMessages(), 3);
+		assertEquals(attributes.getInFlightMessages(), 0);
+		assertEquals(attributes.getDelayedMessages(), 0);
+
+		assertEquals(service.pull(attributeQueue), first);
+		assertEquals(first.getReceiveCount(), 2);
+		service.delete(attributeQueue, first);
+		attributes = service.getQueueAttributes(attributeQueue);
+		assertEquals(attributes.getVisibleMessages(), 2);
+		assertEquals(attributes.getOldestMessageAge(), 5000);
+		service.delete(attributeQueue, second);
+		service.delete(attributeQueue, delayed);
+		attributes = service.getQueueAttributes(attributeQueue);
+		assertEquals(attributes.getVisibleMessages(), 0);
+		assertEquals(attributes.getOldestMessageAge(), 0);
+
+		// FIFO queue counts messages waiting behind their group as visible
+		String fifoQueue = "attributeQueue.fifo";
+		service.createFifoQueue(fifoQueue);
+		service.push(fifoQueue, new Message("a"));
+		service.push(fifoQueue, new Message("b"));
+		service.pull(fifoQueue);
+		attributes = service.getQueueAttributes(fifoQueue);
+		assertEquals(attributes.getVisibleMessages(), 1);
+		assertEquals(attributes.getInFlightMessages(), 1);
+
+		System.out.println("  Queue attributes test passed!");
+	}
+
+	/**
+	 * Test that queues are rebuilt from the journal after a restart, leased
+	 * and delayed messages staying invisible until their deadline
+	 */
+	@Test
+	public void testJournalRecovery() throws Exception {
+		String directory = "file/journal";
+		String journalQueue = "journalQueue";
+		File[] files = new File(directory).listFiles();
+		if (files != null)
+			for (File file : files)
+				file.delete();
+		MutableClock clock = new MutableClock(1000);
+		InMemoryQueueService service = new InMemoryQueueService(clock);
+		QueueJournal journal = new QueueJournal(directory);
+		service.setJournal(journal);
+		service.createQueue(journalQueue);
+		Message leased = new Message("leased");
+		Message deleted = new Message("deleted");
+		Message delayed = new Message("delayed");
+		delayed.setDelaySeconds(10);
+		assertEquals(service.push(journalQueue, leased), true);
+		assertEquals(service.push(journalQueue, deleted), true);
+		assertEquals(service.push(journalQueue, delayed), true);
+		assertEquals(service.pull(journalQueue), leased);
+		assertEquals(service.pull(journalQueue), deleted);
+		assertEquals(service.delete(journalQueue, deleted), true);
+		clock.advance(1000);
+		// Restart, the queue maps being shared the old queue is dropped first
+		journal.close();
+		service.removeQueue(journalQueue);
+
+		service = new InMemoryQueueService(clock);
+		journal = new QueueJournal(directory);
+		service.setJournal(journal);
+		QueueAttributes attributes = service.getQueueAttributes(journalQueue);
+		assertEquals(attributes.getVisibleMessages(), 0);
+		assertEquals(attributes.getInFlightMessages(), 1);
+		assertEquals(attributes.getDelayedMessages(), 1);
+		assertEquals(service.pull(journalQueue), null);
+		// The lease ends 3 seconds after the pull, not after the restart
+		clock.advance(2000);
+		Message message = service.pull(journalQueue);
+		assertEquals(message.getContent(), "leased");
+		assertEquals(message.getReceiveCount(), 2);
+		assertEquals(message.getEnqueueTime(), 1000);
+		assertEquals(service.delete(journalQueue, message), true);
+		clock.advance(7000);
+		assertEquals(service.pull(journalQueue).getContent(), "delayed");
+
+		// Every batch written is followed by a snapshot
+		journal.close();
+		service.removeQueue(journalQueue);
+		service = new InMemoryQueueService(clock);
+		journal = new QueueJournal(directory, 1);
+		service.setJournal(journal);
+		assertEquals(service.push(journalQueue, new Message("snapshot")), true);
+		assertTrue(new File(directory, "snapshot").isFile());
+		assertEquals(new File(directory, "journal").length(), 0);
+		journal.close();
+		service.removeQueue(journalQueue);
+
+		service = new InMemoryQueueService(clock);
+		journal = new QueueJournal(directory);
+		service.setJournal(journal);
+		// The delayed message was in flight when the snapshot was taken
+		assertEquals(service.getQueueAttributes(journalQueue).getVisibleMessages(), 1);
+		assertEquals(service.getQueueAttributes(journalQueue).getInFlightMessages(), 1);
+		assertEquals(service.pull(journalQueue).getContent(), "snapshot");
+		journal.close();
+		service.removeQueue(journalQueue);
+
+		// Messages pushed before the journal was set are journaled with it
+		service = new InMemoryQueueService(clock);
+		service.clearDefaultQueue();
+		service.createQueue(journalQueue);
+		assertEquals(service.push(journalQueue, new Message("before journal")), true);
+		assertEquals(service.push(new Message("default before journal")), true);
+		journal = new QueueJournal(directory);
+		service.setJournal(journal);
+		journal.close();
+		service.removeQueue(journalQueue);
+		service = new InMemoryQueueService(clock);
+		service.clearDefaultQueue();
+		journal = new QueueJournal(directory);
+		service.setJournal(journal);
+		assertEquals(service.pull(journalQueue).getContent(), "before journal");
+		assertEquals(service.pull().getContent(), "default before journal");
+		journal.close();
+		service.removeQueue(journalQueue);
+		service.clearDefaultQueue();
+		System.out.println("  Journal recovery test passed!");
+	}
+
 	/**
 	 * Cleaning up the queue and map, called before all tests
 	 */
+	/**
+	 * Test that a publish reaches every subscriber queue whose filter accepts
+	 * it, each with its own delivery state but the same content
+	 */
+	@Test
+	public void testTopicFanOut() {
+		preTestCleanUp();
+		imQueue.createQueue("topicAll");
+		imQueue.createQueue("topicHigh");
+		assertEquals(imQueue.createTopic("events"), true);
+		assertEquals(imQueue.createTopic("events"), false);
+		assertEquals(imQueue.subscribe("events", "topicAll", null), true);
+		assertEquals(imQueue.subscribe("events", "topicHigh", MessageFilter.parse("priority=0")), true);
+		assertEquals(imQueue.subscribe("events", "missingQueue", null), false);
+		assertEquals(imQueue.publish("events", new Message("high", Message.HIGH_PRIORITY)), 2);
+		assertEquals(imQueue.publish("events", new Message("normal")), 1);
+		assertEquals(imQueue.publish("missingTopic", new Message("lost")), -1);
+
+		Message high = imQueue.pull("topicHigh");
+		assertEquals(high.getContent(), "high");
+		assertEquals(imQueue.pull("topicHigh"), null);
+		Message first = imQueue.pull("topicAll");
+		// Shared content, separate delivery state
+		assertTrue(first.getContent() == high.getContent());
+		assertEquals(imQueue.delete("topicHigh", high), true);
+		assertEquals(imQueue.delete("topicAll", first), true);
+		assertEquals(imQueue.pull("topicAll").getContent(), "normal");
+
+		assertEquals(imQueue.unsubscribe("events", "topicAll"), true);
+		assertEquals(imQueue.publish("events", new Message("normal")), 0);
+		assertEquals(imQueue.removeTopic("events"), true);
+		System.out.println("  Topic fan-out test passed!");
+	}
+
+	/**
+	 * Test that a selector pull only hands out matching messages, through the
+	 * attribute index or a scan, and never a message behind its group head
+	 */
+	@Test
+	public void testSelectorPull() {
+		preTestCleanUp();
+		imQueue.createQueue("selectQueue");
+		assertEquals(imQueue.setIndexedAttributes("selectQueue", "region"), true);
+		Message us = new Message("us order");
+		us.setAttribute("region", "us-east");
+		us.setAttribute("amount", 12);
+		Message eu = new Message("eu order");
+		eu.setAttribute("region", "eu-west");
+		eu.setAttribute("express", true);
+		imQueue.push("selectQueue", us);
+		imQueue.push("selectQueue", eu);
+		imQueue.push("selectQueue", new Message("plain"));
+		assertEquals(eu.getAttribute("express"), true);
+		assertEquals(us.getAttribute("amount"), 12L);
+
+		assertEquals(imQueue.pull("selectQueue", MessageFilter.parse("attribute.region^=eu-")), eu);
+		assertEquals(imQueue.pull("selectQueue", MessageFilter.parse("attribute.region^=eu-")), null);
+		// Term on an attribute that is not indexed falls back to a scan
+		assertEquals(imQueue.pull("selectQueue", MessageFilter.parse("attribute.amount=12")), us);
+		assertEquals(imQueue.pull("selectQueue", MessageFilter.parse("attribute.region=us-east")), null);
+		assertEquals(imQueue.delete("selectQueue", eu), true);
+		assertEquals(imQueue.pull("selectQueue").getContent(), "plain");
+
+		imQueue.createFifoQueue("selectFifo");
+		Message a1 = new Message("a1");
+		a1.setGroupId("A");
+		Message a2 = new Message("a2");
+		a2.setGroupId("A");
+		a2.setAttribute("wanted", true);
+		imQueue.push("selectFifo", a1);
+		imQueue.push("selectFifo", a2);
+		assertEquals(imQueue.pull("selectFifo", MessageFilter.parse("attribute.wanted=true")), null);
+		assertEquals(imQueue.pull("selectFifo"), a1);
+		assertEquals(imQueue.delete("selectFifo", a1), true);
+		assertEquals(imQueue.pull("selectFifo", MessageFilter.parse("attribute.wanted=true")), a2);
+
+		// Message claimed ahead of its turn is back in line only once
+		MutableClock clock = new MutableClock(0);
+		InMemoryQueueService service = new InMemoryQueueService(clock);
+		service.createQueue("selectLease");
+		assertEquals(service.setIndexedAttributes("selectLease", "region"), true);
+		Message claimed = new Message("claimed");
+		claimed.setAttribute("region", "us-east");
+		service.push("selectLease", claimed);
+		assertEquals(service.pull("selectLease", MessageFilter.parse("attribute.region=us-east")), claimed);
+		assertEquals(service.getQueueAttributes("selectLease").getVisibleMessages(), 0);
+		clock.advance(3000);
+		assertEquals(service.getQueueAttributes("selectLease").getVisibleMessages(), 1);
+		assertEquals(service.pull("selectLease"), claimed);
+		assertEquals(service.getQueueAttributes("selectLease").getVisibleMessages(), 0);
+		System.out.println("  Selector pull test passed!");
+	}
+
+	/**
+	 * Test that receive times and counts are kept across deliveries, and that
+	 * the tracer records queueing delay, processing time and deliveries
+	 */
+	@Test
+	public void testTracing() {
+		preTestCleanUp();
+		MutableClock clock = new MutableClock(1000);
+		TracingQueueService tracer = new TracingQueueService(new InMemoryQueueService(clock), 1, clock);
+		Message message = new Message("traced");
+		assertEquals(tracer.push("", message), true);
+		assertEquals(message.getFirstReceiveTime(), 0);
+		clock.advance(100);
+		assertEquals(tracer.pull(""), message);
+		assertEquals(message.getFirstReceiveTime(), 1100);
+		// Lease expires, the second delivery keeps the first receive time
+		clock.advance(5000);
+		assertEquals(tracer.pull(""), message);
+		assertEquals(message.getReceiveCount(), 2);
+		assertEquals(message.getFirstReceiveTime(), 1100);
+		clock.advance(40);
+		assertEquals(tracer.delete("", message), true);
+
+		assertEquals(tracer.getTracedQueues().contains(""), true);
+		assertEquals(tracer.getQueueingDelay("").getCount(), 2);
+		assertEquals(tracer.getQueueingDelay("").getMax(), 5100);
+		assertEquals(tracer.getProcessingTime("").getMax(), 40);
+		assertEquals(tracer.getDeliveries("").getMax(), 2);
+
+		// Pushed again, its copy starts over as never received
+		assertEquals(tracer.push("", message), true);
+		assertEquals(message.getReceiveCount(), 2);
+		Message copy = tracer.pull("");
+		assertEquals(copy.getContent(), "traced");
+		assertEquals(copy.getReceiveCount(), 1);
+		assertEquals(copy.getFirstReceiveTime(), clock.millis());
+		assertEquals(tracer.delete("", copy), true);
+
+		// Abandoned pulls make room for new ones rather than stop sampling
+		for (int i = 0; i <= 10000; i++)
+			assertEquals(tracer.push("", new Message("abandoned")), true);
+		Message last = null;
+		for (int i = 0; i <= 10000; i++)
+			last = tracer.pull("");
+		assertEquals(tracer.delete("", last), true);
+		assertEquals(tracer.getDeliveries("").getCount(), 3);
+		System.out.println("  Tracing test passed!");
+	}
+
+	/**
+	 * Test that a message pulled from one queue and pushed to another is
+	 * pushed as a copy, so each queue keeps its own delivery state
+	 */
+	@Test
+	public void testHandOff() {
+		preTestCleanUp();
+		MutableClock clock = new MutableClock(0);
+		InMemoryQueueService service = new InMemoryQueueService(clock);
+		service.createQueue("handOffSource");
+		service.createQueue("handOffDestination");
+		assertEquals(service.push("handOffSource", new Message("handed off")), true);
+		Message received = service.pull("handOffSource");
+		assertEquals(service.push("handOffDestination", received), true);
+		// The lease in the source queue is left as it was
+		assertEquals(received.getReceiveCount(), 1);
+		assertEquals(service.pull("handOffSource"), null);
+		assertEquals(service.delete("handOffSource", received), true);
+
+		assertEquals(service.getQueueAttributes("handOffDestination").getVisibleMessages(), 1);
+		Message handedOff = service.pull("handOffDestination");
+		assertEquals(handedOff.getContent(), "handed off");
+		assertEquals(handedOff.getReceiveCount(), 1);
+		assertEquals(service.delete("handOffDestination", handedOff), true);
+		clock.advance(3000);
+		assertEquals(service.pull("handOffSource"), null);
+		assertEquals(service.pull("handOffDestination"), null);
+		System.out.println("  Hand-off test passed!");
+	}
+
 	private void preTestCleanUp() {
 		imQueue.clearDefaultQueue();
 		imQueue.clearReceivedMessages();
@@ -0,0 +1,46 @@
+package com.example;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+/**
+ * Test for latency histogram
+ */
+public class LatencyHistogramTest {
+
+	/**
+	 * Test that percentiles are reported within the histogram precision and
+	 * survive encoding and merging
+	 */
+	@Test
+	public void testPercentiles() {
+		LatencyHistogram histogram = new LatencyHistogram();
+		for (long value = 1; value <= 100000; value++)
+			histogram.record(value);
+		assertEquals(histogram.getCount(), 100000);
+		assertEquals(histogram.getMax(), 100000);
+		assertEquals(histogram.getValueAtPercentile(0.01), 10);
+		long median = histogram.getValueAtPercentile(50);
+		assertTrue(median >= 50000 && median <= 50000 * 33 / 32);
+		long p99 = histogram.getValueAtPercentile(99);
+		assertTrue(p99 >= 99000 && p99 <= 100000);
+		assertEquals(histogram.getValueAtPercentile(100), 100000);
+
+		LatencyHistogram decoded = LatencyHistogram.decode(histogram.encode());
+		assertEquals(decoded.getCount(), 100000);
+		assertEquals(decoded.getValueAtPercentile(50), median);
+		LatencyHistogram merged = new LatencyHistogram();
+		merged.record(1000000);
+		merged.add(decoded);
+		assertEquals(merged.getCount(), 100001);
+		assertEquals(merged.getMax(), 1000000);
+
+		LatencyHistogram interval = merged.drain();
+		assertEquals(interval.getCount(), 100001);
+		assertEquals(merged.getCount(), 0);
+		assertEquals(merged.getValueAtPercentile(99), 0);
+		System.out.println("  Latency histogram test passed!");
+	}
+}
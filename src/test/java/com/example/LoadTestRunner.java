@@ -0,0 +1,428 @@
+package com.example;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Soak and load test running producers and consumers in separate JVMs against
+ * a file queue, or against an in memory queue served by a QueueServer. Each
+ * producer pushes at a fixed rate, and every latency is measured from the
+ * time the message was due to be pushed by that schedule rather than from
+ * the time it actually was, so a stalled queue delaying the producer shows
+ * up in the percentiles instead of being hidden by the missing pushes.
+ * Consumers record every message they delete in a file of their own, from
+ * which duplicates and losses are counted at the end. Failure is injected by
+ * consumers skipping the delete of some messages, which then come back after
+ * their visibility timeout, and by killing a consumer process at intervals
+ * and starting another one. Every process reports a latency histogram per
+ * second, merged into a report per second and a summary.
+ * 
+ * Usage: LoadTestRunner [--engine file|memory] [--producers 2] [--consumers
+ * 2] [--rate 500] [--duration 30] [--payload 100] [--drop-rate 0]
+ * [--kill-interval 0] [--directory file/load]
+ */
+public class LoadTestRunner {
+	private static final String QUEUE = "loadTestQueue";
+	private static final String PRODUCER = "producer";
+	private static final String CONSUMER = "consumer";
+	// Time given to consumers to receive the last messages
+	private static final long DRAIN_TIMEOUT = 10000;
+
+	private final Map<String, String> options;
+	private final File runDirectory;
+	// Histograms of every second by kind, merged from every process
+	private final Map<Long, Map<String, LatencyHistogram>> intervals = new TreeMap<Long, Map<String, LatencyHistogram>>();
+	// Messages sent by every producer, by producer id
+	private final Map<Integer, Long> sent = new HashMap<Integer, Long>();
+	private final AtomicLong redelivered = new AtomicLong();
+	private final List<Process> consumers = new ArrayList<Process>();
+	private int nextConsumerId;
+
+	public static void main(String[] args) throws Exception {
+		Map<String, String> options = new HashMap<String, String>();
+		options.put("engine", "file");
+		options.put("producers", "2");
+		options.put("consumers", "2");
+		options.put("rate", "500");
+		options.put("duration", "30");
+		options.put("payload", "100");
+		options.put("drop-rate", "0");
+		options.put("kill-interval", "0");
+		options.put("directory", "file/load");
+		String role = null;
+		for (int i = 0; i < args.length; i++) {
+			if (args[i].startsWith("--") && i + 1 < args.length)
+				options.put(args[i].substring(2), args[++i]);
+			else
+				role = args[i];
+		}
+		if (PRODUCER.equals(role))
+			runProducer(options);
+		else if (CONSUMER.equals(role))
+			runConsumer(options);
+		else
+			new LoadTestRunner(options).run();
+	}
+
+	private LoadTestRunner(Map<String, String> options) {
+		this.options = options;
+		this.runDirectory = new File(options.get("directory"), "run");
+	}
+
+	// --------------------------------------------------------------------------------------
+	// Coordinator
+
+	private void run() throws Exception {
+		runDirectory.mkdirs();
+		File[] files = runDirectory.listFiles();
+		for (File file : files)
+			file.delete();
+		QueueServer server = null;
+		if (options.get("engine").equals("memory")) {
+			InMemoryQueueService service = new InMemoryQueueService();
+			service.createQueue(QUEUE);
+			server = new QueueServer(service, 0, 1);
+			options.put("port", Integer.toString(server.getPort()));
+		} else {
+			FileQueueService service = new FileQueueService(options.get("directory"));
+			service.removeQueue(QUEUE);
+			service.createQueue(QUEUE);
+		}
+		int producerCount = Integer.parseInt(options.get("producers"));
+		long duration = Long.parseLong(options.get("duration")) * 1000;
+		// Every producer follows the same schedule from a common start
+		long start = System.currentTimeMillis() + 2000;
+		options.put("start", Long.toString(start));
+		System.out.println("Running " + producerCount + " producers at " + options.get("rate") + " messages/s and "
+				+ options.get("consumers") + " consumers on " + options.get("engine") + " queue for "
+				+ options.get("duration") + "s");
+
+		List<Process> producers = new ArrayList<Process>();
+		for (int i = 0; i < producerCount; i++)
+			producers.add(spawn(PRODUCER, i));
+		for (int i = 0; i < Integer.parseInt(options.get("consumers")); i++)
+			spawnConsumer();
+		long killInterval = Long.parseLong(options.get("kill-interval")) * 1000;
+		long nextKill = start + killInterval;
+		Random random = new Random();
+		for (Process producer : producers) {
+			while (producer.isAlive()) {
+				if (killInterval > 0 && System.currentTimeMillis() >= nextKill) {
+					nextKill += killInterval;
+					killConsumer(random.nextInt(consumers.size()));
+				}
+				producer.waitFor(100, TimeUnit.MILLISECONDS);
+			}
+		}
+		long totalSent;
+		long deadline = System.currentTimeMillis() + DRAIN_TIMEOUT;
+		do {
+			Thread.sleep(200);
+			totalSent = getTotalSent();
+		} while (System.currentTimeMillis() < deadline && countProcessed(false)[0] < totalSent);
+		for (Process consumer : consumers)
+			stop(consumer);
+		if (server != null)
+			server.close();
+		report(start, duration, totalSent);
+	}
+
+	private Process spawn(String role, int id) throws IOException {
+		List<String> command = new ArrayList<String>();
+		command.add(System.getProperty("java.home") + File.separator + "bin" + File.separator + "java");
+		command.add("-cp");
+		command.add(System.getProperty("java.class.path"));
+		command.add(LoadTestRunner.class.getName());
+		command.add(role);
+		for (Map.Entry<String, String> option : options.entrySet()) {
+			command.add("--" + option.getKey());
+			command.add(option.getValue());
+		}
+		command.add("--id");
+		command.add(Integer.toString(id));
+		Process process = new ProcessBuilder(command).redirectError(ProcessBuilder.Redirect.INHERIT).start();
+		Thread reader = new Thread(() -> readReports(process), role + "-" + id + "-reports");
+		reader.setDaemon(true);
+		reader.start();
+		return process;
+	}
+
+	private void spawnConsumer() throws IOException {
+		consumers.add(spawn(CONSUMER, nextConsumerId++));
+	}
+
+	/**
+	 * Kill a consumer without letting it finish what it is doing, and start
+	 * another one in its place
+	 */
+	private void killConsumer(int index) throws IOException {
+		Process consumer = consumers.remove(index);
+		consumer.destroyForcibly();
+		System.out.println("Killed a consumer");
+		spawnConsumer();
+	}
+
+	private static void stop(Process process) throws Exception {
+		process.getOutputStream().close();
+		if (!process.waitFor(5, TimeUnit.SECONDS))
+			process.destroyForcibly();
+	}
+
+	/**
+	 * Collect the lines reported by a process: "interval" followed by the
+	 * second, the histogram kind, the number of redelivered messages and the
+	 * encoded histogram, or "sent" followed by the producer id and count
+	 */
+	private void readReports(Process process) {
+		try {
+			BufferedReader reader = new BufferedReader(new InputStreamReader(process.getInputStream()));
+			String line;
+			while ((line = reader.readLine()) != null) {
+				String[] fields = line.split(" ");
+				synchronized (this) {
+					if (fields[0].equals("interval")) {
+						long second = Long.parseLong(fields[1]);
+						Map<String, LatencyHistogram> kinds = intervals.get(second);
+						if (kinds == null) {
+							kinds = new HashMap<String, LatencyHistogram>();
+							intervals.put(second, kinds);
+						}
+						LatencyHistogram histogram = kinds.get(fields[2]);
+						if (histogram == null) {
+							histogram = new LatencyHistogram();
+							kinds.put(fields[2], histogram);
+						}
+						histogram.add(LatencyHistogram.decode(fields[4]));
+						redelivered.addAndGet(Long.parseLong(fields[3]));
+					} else if (fields[0].equals("sent"))
+						sent.put(Integer.parseInt(fields[1]), Long.parseLong(fields[2]));
+				}
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	private synchronized long getTotalSent() {
+		long total = 0;
+		for (long count : sent.values())
+			total += count;
+		return total;
+	}
+
+	/**
+	 * Count the messages deleted by every consumer so far
+	 * 
+	 * @param report
+	 *            true to print the duplicates and losses
+	 * @return the number of distinct messages and of duplicates
+	 */
+	private long[] countProcessed(boolean report) throws IOException {
+		Map<Integer, BitSet> seen = new HashMap<Integer, BitSet>();
+		long distinct = 0;
+		long duplicates = 0;
+		for (File file : runDirectory.listFiles()) {
+			DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+			try {
+				while (true) {
+					int producer = in.readInt();
+					int sequence = (int) in.readLong();
+					BitSet bits = seen.get(producer);
+					if (bits == null) {
+						bits = new BitSet();
+						seen.put(producer, bits);
+					}
+					if (bits.get(sequence))
+						duplicates++;
+					else {
+						bits.set(sequence);
+						distinct++;
+					}
+				}
+			} catch (EOFException e) {
+				// A record cut by a kill is ignored
+			} finally {
+				in.close();
+			}
+		}
+		if (report) {
+			long lost = 0;
+			synchronized (this) {
+				for (Map.Entry<Integer, Long> producer : sent.entrySet()) {
+					BitSet bits = seen.get(producer.getKey());
+					long received = (bits != null) ? bits.get(0, producer.getValue().intValue()).cardinality() : 0;
+					lost += producer.getValue() - received;
+				}
+			}
+			System.out.println("Duplicates: " + duplicates + ", lost: " + lost);
+		}
+		return new long[] { distinct, duplicates };
+	}
+
+	private synchronized void report(long start, long duration, long totalSent) throws IOException {
+		System.out.println();
+		System.out.println(String.format("%6s %8s %8s %9s %9s %9s %9s %9s", "second", "pushed", "received",
+				"push p99", "e2e p50", "e2e p99", "e2e p99.9", "e2e max"));
+		LatencyHistogram push = new LatencyHistogram();
+		LatencyHistogram endToEnd = new LatencyHistogram();
+		for (Map.Entry<Long, Map<String, LatencyHistogram>> interval : intervals.entrySet()) {
+			LatencyHistogram intervalPush = interval.getValue().get(PRODUCER);
+			LatencyHistogram intervalEndToEnd = interval.getValue().get(CONSUMER);
+			if (intervalPush == null)
+				intervalPush = new LatencyHistogram();
+			if (intervalEndToEnd == null)
+				intervalEndToEnd = new LatencyHistogram();
+			push.add(intervalPush);
+			endToEnd.add(intervalEndToEnd);
+			System.out.println(String.format("%6d %8d %8d %9s %9s %9s %9s %9s", interval.getKey() - start / 1000,
+					intervalPush.getCount(), intervalEndToEnd.getCount(), format(intervalPush, 99),
+					format(intervalEndToEnd, 50), format(intervalEndToEnd, 99), format(intervalEndToEnd, 99.9),
+					format(intervalEndToEnd, 100)));
+		}
+		System.out.println();
+		System.out.println("Sent: " + totalSent + " (" + totalSent * 1000 / Math.max(duration, 1) + " messages/s)");
+		System.out.println("Received: " + endToEnd.getCount() + ", redelivered: " + redelivered.get() + " ("
+				+ String.format("%.2f", 100.0 * redelivered.get() / Math.max(endToEnd.getCount(), 1)) + "%)");
+		countProcessed(true);
+		System.out.println("Push latency: p50 " + format(push, 50) + ", p99 " + format(push, 99) + ", p99.9 "
+				+ format(push, 99.9) + ", max " + format(push, 100));
+		System.out.println("End to end latency: p50 " + format(endToEnd, 50) + ", p99 " + format(endToEnd, 99)
+				+ ", p99.9 " + format(endToEnd, 99.9) + ", max " + format(endToEnd, 100));
+	}
+
+	private static String format(LatencyHistogram histogram, double percentile) {
+		long micros = histogram.getValueAtPercentile(percentile);
+		return (micros < 10000) ? micros + "us" : micros / 1000 + "ms";
+	}
+
+	// --------------------------------------------------------------------------------------
+	// Workers
+
+	private static QueueService connect(Map<String, String> options) throws IOException {
+		if (options.get("engine").equals("memory"))
+			return new RemoteQueueService("localhost", Integer.parseInt(options.get("port")));
+		return new FileQueueService(options.get("directory"));
+	}
+
+	private static long nowMicros() {
+		Instant now = Instant.now();
+		return now.getEpochSecond() * 1000000 + now.getNano() / 1000;
+	}
+
+	/**
+	 * Push messages on a fixed schedule until the end of the test. A push
+	 * that is late, because the previous one took longer than the interval,
+	 * is sent right away and counted from the time it was due
+	 */
+	private static void runProducer(Map<String, String> options) throws Exception {
+		int id = Integer.parseInt(options.get("id"));
+		QueueService service = connect(options);
+		long start = Long.parseLong(options.get("start")) * 1000;
+		long end = start + Long.parseLong(options.get("duration")) * 1000000;
+		long interval = 1000000 / Long.parseLong(options.get("rate"));
+		StringBuilder padding = new StringBuilder();
+		for (int i = 0; i < Integer.parseInt(options.get("payload")); i++)
+			padding.append('x');
+		LatencyHistogram histogram = new LatencyHistogram();
+		long reportedSecond = start / 1000000;
+		long sequence = 0;
+		for (long due = start; due < end; due = start + (++sequence) * interval) {
+			long wait;
+			while ((wait = due - nowMicros()) > 0)
+				LockSupport.parkNanos(wait * 1000);
+			if (!service.push(QUEUE, new Message(id + ":" + sequence + ":" + due + ":" + padding)))
+				System.err.println("Producer " + id + " failed to push message " + sequence);
+			long now = nowMicros();
+			histogram.record(now - due);
+			if (now / 1000000 > reportedSecond) {
+				report(System.out, reportedSecond, PRODUCER, 0, histogram);
+				reportedSecond = now / 1000000;
+			}
+		}
+		report(System.out, reportedSecond, PRODUCER, 0, histogram);
+		System.out.println("sent " + id + " " + sequence);
+		System.out.flush();
+		System.exit(0);
+	}
+
+	/**
+	 * Receive messages until the coordinator closes the standard input. The
+	 * message is recorded before it is deleted, so a kill can cause a
+	 * duplicate but not a loss
+	 */
+	private static void runConsumer(Map<String, String> options) throws Exception {
+		int id = Integer.parseInt(options.get("id"));
+		QueueService service = connect(options);
+		double dropRate = Double.parseDouble(options.get("drop-rate"));
+		File file = new File(new File(options.get("directory"), "run"), "consumer_" + id);
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+		LatencyHistogram histogram = new LatencyHistogram();
+		AtomicLong redelivered = new AtomicLong();
+		Thread stopper = new Thread(() -> {
+			try {
+				while (System.in.read() >= 0)
+					;
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+			report(System.out, nowMicros() / 1000000, CONSUMER, redelivered.getAndSet(0), histogram);
+			System.exit(0);
+		});
+		stopper.setDaemon(true);
+		stopper.start();
+		Random random = new Random();
+		long reportedSecond = nowMicros() / 1000000;
+		while (true) {
+			Message message = service.pull(QUEUE);
+			long now = nowMicros();
+			if (message != null) {
+				String[] fields = message.getContent().split(":", 4);
+				histogram.record(now - Long.parseLong(fields[2]));
+				if (message.getReceiveCount() > 1)
+					redelivered.incrementAndGet();
+				// Dropped as if the consumer failed before deleting it
+				if (random.nextDouble() >= dropRate) {
+					out.writeInt(Integer.parseInt(fields[0]));
+					out.writeLong(Long.parseLong(fields[1]));
+					out.flush();
+					service.delete(QUEUE, message);
+				}
+			} else
+				LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(1));
+			if (now / 1000000 > reportedSecond) {
+				report(System.out, reportedSecond, CONSUMER, redelivered.getAndSet(0), histogram);
+				reportedSecond = now / 1000000;
+			}
+		}
+	}
+
+	private static synchronized void report(PrintStream out, long second, String kind, long redelivered,
+			LatencyHistogram histogram) {
+		LatencyHistogram interval = histogram.drain();
+		if (interval.getCount() == 0 && redelivered == 0)
+			return;
+		out.println("interval " + second + " " + kind + " " + redelivered + " " + interval.encode());
+		out.flush();
+	}
+}
@@ -0,0 +1,48 @@
+package com.example;
+
+import java.time.Clock;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+
+/**
+ * Clock that only moves when told to, used to test visibility timeout and
+ * delivery delay without sleeping
+ */
+public class MutableClock extends Clock {
+	private volatile long millis;
+
+	public MutableClock(long millis) {
+		this.millis = millis;
+	}
+
+	/**
+	 * Move the clock forward
+	 * 
+	 * @param duration
+	 *            the time in milliseconds
+	 */
+	public void advance(long duration) {
+		millis += duration;
+	}
+
+	@Override
+	public long millis() {
+		return millis;
+	}
+
+	@Override
+	public Instant instant() {
+		return Instant.ofEpochMilli(millis);
+	}
+
+	@Override
+	public ZoneId getZone() {
+		return ZoneOffset.UTC;
+	}
+
+	@Override
+	public Clock withZone(ZoneId zone) {
+		return this;
+	}
+}
@@ -0,0 +1,74 @@
+package com.example;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import org.junit.Test;
+
+/**
+ * Test for file queue split into partitions under different root directories
+ */
+public class PartitionedQueueTest {
+	private static final String[] DIRECTORIES = { "file/partition_0", "file/partition_1", "file/partition_2" };
+
+	/**
+	 * Test that messages without key are spread round robin and every one of
+	 * them is drained from the partitions
+	 */
+	@Test
+	public void testRoundRobin() {
+		String queue = "partitionedQueue";
+		PartitionedQueueService service = new PartitionedQueueService(DIRECTORIES);
+		service.removeQueue(queue);
+		assertEquals(service.createQueue(queue), true);
+		for (int i = 0; i < 6; i++)
+			assertEquals(service.push(queue, new Message("message " + i)), true);
+		for (int partition = 0; partition < DIRECTORIES.length; partition++)
+			assertEquals(service.getPartitionService(partition).getQueueAttributes(queue).getVisibleMessages(), 2);
+		assertEquals(service.getQueueAttributes(queue).getVisibleMessages(), 6);
+
+		Set<String> received = new HashSet<String>();
+		Message message;
+		while ((message = service.pull(queue)) != null) {
+			received.add(message.getContent());
+			assertEquals(service.delete(queue, message), true);
+		}
+		assertEquals(received.size(), 6);
+		assertEquals(service.getQueueAttributes(queue).getVisibleMessages(), 0);
+		// Not pulled through the service, so looked up in every partition
+		assertEquals(service.push(queue, new Message("unpulled")), true);
+		assertEquals(service.delete(queue, new Message("unpulled")), true);
+		assertEquals(service.getQueueAttributes(queue).getVisibleMessages(), 0);
+		assertEquals(service.removeQueue(queue), true);
+		System.out.println("  Partition round robin test passed!");
+	}
+
+	/**
+	 * Test that a message group stays in its partition, so FIFO order holds
+	 */
+	@Test
+	public void testKeyedPartition() {
+		String queue = "partitionedFifoQueue";
+		PartitionedQueueService service = new PartitionedQueueService(DIRECTORIES);
+		service.removeQueue(queue);
+		assertEquals(service.createFifoQueue(queue), true);
+		int partition = service.getPartition("group");
+		for (int i = 0; i < 3; i++) {
+			Message message = new Message("grouped " + i);
+			message.setGroupId("group");
+			assertEquals(service.push(queue, message), true);
+		}
+		assertEquals(service.getPartitionService(partition).getQueueAttributes(queue).getVisibleMessages(), 3);
+		for (int i = 0; i < 3; i++) {
+			Message message = service.pull(queue, partition);
+			assertEquals(message.getContent(), "grouped " + i);
+			// Group is blocked while its message is in flight
+			assertEquals(service.pull(queue), null);
+			assertEquals(service.delete(queue, message), true);
+		}
+		assertEquals(service.removeQueue(queue), true);
+		System.out.println("  Keyed partition test passed!");
+	}
+}
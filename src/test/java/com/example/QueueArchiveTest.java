@@ -0,0 +1,125 @@
+package com.example;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.junit.Test;
+
+/**
+ * Test for bulk export and import of queues through an archive
+ */
+public class QueueArchiveTest {
+	private static final String DIRECTORY = "file/archive";
+
+	private static QueueArchive createArchive(String name, int chunkSize) {
+		new File(DIRECTORY).mkdirs();
+		QueueArchive archive = new QueueArchive(new File(DIRECTORY, name), chunkSize, 3);
+		archive.delete();
+		return archive;
+	}
+
+	/**
+	 * Test that a file queue is moved to an in memory queue, messages in
+	 * flight staying in the file queue
+	 */
+	@Test
+	public void testMigrateFileToMemory() throws Exception {
+		String queue = "archiveQueue";
+		FileQueueService fileService = new FileQueueService(DIRECTORY);
+		fileService.removeQueue(queue);
+		assertEquals(fileService.createQueue(queue), true);
+		for (int i = 0; i < 500; i++) {
+			assertEquals(fileService.push(queue, new Message("message " + i, i % 3)), true);
+		}
+		Message inFlight = fileService.pull(queue);
+		assertNotNull(inFlight);
+
+		InMemoryQueueService memoryService = new InMemoryQueueService();
+		memoryService.createQueue(queue);
+		QueueArchive archive = createArchive("migrate", 1024);
+		assertEquals(archive.migrate(fileService, queue, memoryService, queue), 499);
+		assertEquals(archive.getFile().exists(), false);
+		assertEquals(fileService.getQueueAttributes(queue).getVisibleMessages(), 0);
+		assertEquals(fileService.getQueueAttributes(queue).getInFlightMessages(), 1);
+		assertEquals(memoryService.getQueueAttributes(queue).getVisibleMessages(), 499);
+
+		Set<String> contents = new HashSet<String>();
+		Message message;
+		while ((message = memoryService.pull(queue)) != null) {
+			assertEquals(message.getReceiveCount(), 1);
+			contents.add(message.getContent());
+			memoryService.delete(queue, message);
+		}
+		assertEquals(contents.size(), 499);
+		assertEquals(contents.contains(inFlight.getContent()), false);
+		assertEquals(fileService.delete(queue, inFlight), true);
+		assertEquals(fileService.removeQueue(queue), true);
+		memoryService.removeQueue(queue);
+		System.out.println("  Archive migration test passed!");
+	}
+
+	/**
+	 * Test that an export keeps the messages of a torn chunk in the queue and
+	 * an import continues from its checkpoint
+	 */
+	@Test
+	public void testResume() throws Exception {
+		String queue = "archiveResumeQueue";
+		InMemoryQueueService source = new InMemoryQueueService();
+		source.createQueue(queue);
+		for (int i = 0; i < 100; i++)
+			source.push(queue, new Message("message " + i));
+		QueueArchive archive = createArchive("resume", 100);
+		assertEquals(archive.exportQueue(source, queue), 100);
+		assertNull(source.pull(queue));
+
+		// Tear the last chunk, as a crash while writing it would
+		long length = archive.getFile().length();
+		RandomAccessFile raf = new RandomAccessFile(archive.getFile(), "rw");
+		raf.setLength(length - 5);
+		raf.close();
+		QueueArchive.Reader reader = archive.openReader();
+		List<Integer> chunkSizes = new ArrayList<Integer>();
+		for (List<Message> chunk; (chunk = reader.readChunk()) != null;)
+			chunkSizes.add(chunk.size());
+		reader.close();
+		int archived = 0;
+		for (int size : chunkSizes)
+			archived += size;
+		assertEquals(archived < 100, true);
+		source.push(queue, new Message("late"));
+		assertEquals(archive.exportQueue(source, queue), 1);
+		assertEquals(archive.getFile().length() < length, true);
+
+		// The first import stops at a missing queue, the second continues
+		InMemoryQueueService target = new InMemoryQueueService();
+		String targetQueue = "archiveResumeTarget";
+		target.removeQueue(targetQueue);
+		boolean failed = false;
+		try {
+			archive.importQueue(target, targetQueue);
+		} catch (IOException e) {
+			failed = true;
+		}
+		assertEquals(failed, true);
+		target.createQueue(targetQueue);
+		File checkpoint = new File(archive.getFile().getPath() + ".checkpoint");
+		Files.write(checkpoint.toPath(), "2".getBytes());
+		assertEquals(archive.importQueue(target, targetQueue), archived + 1 - chunkSizes.get(0) - chunkSizes.get(1));
+		assertEquals(archive.importQueue(target, targetQueue), 0);
+		archive.delete();
+		source.removeQueue(queue);
+		target.removeQueue(targetQueue);
+		System.out.println("  Archive resume test passed!");
+	}
+}
@@ -0,0 +1,136 @@
+package com.example;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+
+import org.junit.Test;
+
+/**
+ * Test for in memory queue served over the network by QueueServer
+ */
+public class RemoteQueueTest {
+
+	/**
+	 * Test push, pull and delete through the server, the message keeping its
+	 * attributes on the way
+	 */
+	@Test
+	public void testRemoteQueue() throws Exception {
+		String queue = "remoteQueue";
+		QueueServer server = new QueueServer(new InMemoryQueueService(), 0, 2);
+		RemoteQueueService service = new RemoteQueueService("localhost", server.getPort());
+		assertEquals(service.createQueue(queue), true);
+		assertEquals(service.createQueue(queue), false);
+
+		Message message = new Message("remote message", Message.HIGH_PRIORITY);
+		assertEquals(service.push(queue, message), true);
+		Message received = service.pull(queue);
+		assertNotNull(received);
+		assertEquals(received.getContent(), "remote message");
+		assertEquals(received.getPriority(), Message.HIGH_PRIORITY);
+		assertEquals(received.getReceiveCount(), 1);
+		assertNull(service.pull(queue));
+
+		QueueAttributes attributes = service.getQueueAttributes(queue);
+		assertEquals(attributes.getVisibleMessages(), 0);
+		assertEquals(attributes.getInFlightMessages(), 1);
+		assertEquals(service.delete(queue, received), true);
+		assertEquals(service.delete(queue, received), false);
+		assertEquals(service.getQueueAttributes(queue).getInFlightMessages(), 0);
+		assertNull(service.getQueueAttributes("remoteMissingQueue"));
+
+		service.close();
+		server.close();
+		System.out.println("  Remote queue test passed!");
+	}
+
+	/**
+	 * Test that every receive issues a new receipt handle, that a handle whose
+	 * lease is over is rejected, and that the server forgets such handles
+	 */
+	@Test
+	public void testReceiptHandles() throws Exception {
+		String queue = "remoteReceiptQueue";
+		MutableClock clock = new MutableClock(System.currentTimeMillis());
+		QueueServer server = new QueueServer(new InMemoryQueueService(clock), 0, 1);
+		RemoteQueueService service = new RemoteQueueService("localhost", server.getPort());
+		assertEquals(service.createQueue(queue), true);
+		assertEquals(service.push(queue, new Message("leased twice")), true);
+
+		Message first = service.pull(queue);
+		clock.advance(3000);
+		// Lease expired, the message is leased again under another handle
+		Message second = service.pull(queue);
+		assertEquals(second.getReceiveCount(), 2);
+		assertEquals(service.delete(queue, first), false);
+		assertEquals(service.delete(queue, second), true);
+
+		assertEquals(service.push(queue, new Message("abandoned")), true);
+		Message abandoned = service.pull(queue);
+		clock.advance(3000);
+		assertNull(service.pull("remoteMissingQueue"));
+		assertEquals(server.getReceiptCount(), 0);
+		assertEquals(service.delete(queue, abandoned), false);
+
+		service.close();
+		server.close();
+		System.out.println("  Receipt handles test passed!");
+	}
+
+	/**
+	 * Test many requests in flight at once from several threads sharing one
+	 * connection
+	 */
+	@Test
+	public void testPipelining() throws Exception {
+		String queue = "remotePipelinedQueue";
+		QueueServer server = new QueueServer(new InMemoryQueueService(), 0, 2);
+		RemoteQueueService service = new RemoteQueueService("localhost", server.getPort());
+		assertEquals(service.createQueue(queue), true);
+
+		int threads = 4;
+		int perThread = 500;
+		List<Thread> producers = new ArrayList<Thread>();
+		for (int t = 0; t < threads; t++) {
+			int producer = t;
+			Thread thread = new Thread(() -> {
+				List<CompletableFuture<Boolean>> pushes = new ArrayList<CompletableFuture<Boolean>>();
+				for (int i = 0; i < perThread; i++)
+					pushes.add(service.pushAsync(queue, new Message(producer + "-" + i)));
+				for (CompletableFuture<Boolean> push : pushes)
+					assertEquals(push.join(), true);
+			});
+			producers.add(thread);
+			thread.start();
+		}
+		for (Thread thread : producers)
+			thread.join();
+		assertEquals(service.getQueueAttributes(queue).getVisibleMessages(), threads * perThread);
+
+		List<CompletableFuture<Message>> pulls = new ArrayList<CompletableFuture<Message>>();
+		for (int i = 0; i < threads * perThread; i++)
+			pulls.add(service.pullAsync(queue));
+		Set<String> received = new HashSet<String>();
+		List<CompletableFuture<Boolean>> deletes = new ArrayList<CompletableFuture<Boolean>>();
+		for (CompletableFuture<Message> pull : pulls) {
+			Message message = pull.join();
+			received.add(message.getContent());
+			deletes.add(service.deleteAsync(queue, message));
+		}
+		for (CompletableFuture<Boolean> delete : deletes)
+			assertEquals(delete.join(), true);
+		assertEquals(received.size(), threads * perThread);
+		assertEquals(service.getQueueAttributes(queue).getInFlightMessages(), 0);
+
+		service.close();
+		server.close();
+		System.out.println("  Remote pipelining test passed!");
+	}
+}
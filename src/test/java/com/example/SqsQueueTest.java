@@ -0,0 +1,158 @@
+package com.example;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+import org.junit.Test;
+
+import com.amazonaws.auth.BasicAWSCredentials;
+import com.amazonaws.services.sqs.AmazonSQSClient;
+import com.amazonaws.services.sqs.model.DeleteMessageBatchRequestEntry;
+import com.amazonaws.services.sqs.model.QueueDoesNotExistException;
+import com.amazonaws.services.sqs.model.ReceiveMessageRequest;
+import com.amazonaws.services.sqs.model.SendMessageBatchRequestEntry;
+import com.amazonaws.services.sqs.model.SendMessageBatchResult;
+
+/**
+ * Test for SqsQueueService against the SQS endpoint of SqsQueueServer, which
+ * stands in for SQS
+ */
+public class SqsQueueTest {
+
+	private static AmazonSQSClient createClient(SqsQueueServer server) {
+		AmazonSQSClient client = new AmazonSQSClient(new BasicAWSCredentials("access", "secret"));
+		client.setEndpoint(server.getEndpoint());
+		return client;
+	}
+
+	/**
+	 * Test push, pull and delete of SqsQueueService through an in memory queue
+	 */
+	@Test
+	public void testSqsQueueService() throws Exception {
+		String queue = "sqsQueue";
+		MutableClock clock = new MutableClock(System.currentTimeMillis());
+		SqsQueueServer server = new SqsQueueServer(new InMemoryQueueService(clock), 0, 2);
+		AmazonSQSClient client = createClient(server);
+		client.createQueue(queue);
+		SqsQueueService service = new SqsQueueService(client);
+
+		assertEquals(service.push(queue, new Message("sqs message <&>\r\n")), true);
+		assertEquals(service.getQueueAttributes(queue).getVisibleMessages(), 1);
+		Message message = service.pull(queue);
+		assertNotNull(message);
+		assertEquals(message.getContent(), "sqs message <&>\r\n");
+		assertEquals(message.getReceiveCount(), 1);
+		assertNull(service.pull(queue));
+		assertEquals(service.getQueueAttributes(queue).getInFlightMessages(), 1);
+
+		// Redelivered after the visibility timeout
+		clock.advance(5000);
+		Message redelivered = service.pull(queue);
+		assertNotNull(redelivered);
+		assertEquals(redelivered.getReceiveCount(), 2);
+		assertEquals(service.delete(queue, message), false);
+		assertEquals(service.delete(queue, redelivered), true);
+		assertEquals(service.getQueueAttributes(queue).getInFlightMessages(), 0);
+		// The stale receipt is swept by the periodic check
+		for (int i = 0; i < 100 && server.getReceiptCount() > 0; i++)
+			Thread.sleep(10);
+		assertEquals(server.getReceiptCount(), 0);
+		assertEquals(service.push("sqsMissingQueue", new Message("lost")), false);
+
+		server.close();
+		System.out.println("  SQS queue service test passed!");
+	}
+
+	/**
+	 * Test batch actions and visibility change with the SDK on a file queue
+	 */
+	@Test
+	public void testBatchActions() throws Exception {
+		String queue = "sqsBatchQueue";
+		FileQueueService fileService = new FileQueueService("file/sqs");
+		fileService.removeQueue(queue);
+		SqsQueueServer server = new SqsQueueServer(fileService, 0, 2);
+		AmazonSQSClient client = createClient(server);
+		String queueUrl = client.createQueue(queue).getQueueUrl();
+		assertEquals(client.getQueueUrl(queue).getQueueUrl(), queueUrl);
+
+		SendMessageBatchResult sent = client.sendMessageBatch(queueUrl,
+				Arrays.asList(new SendMessageBatchRequestEntry("a", "first"),
+						new SendMessageBatchRequestEntry("b", "second"),
+						new SendMessageBatchRequestEntry("c", "third")));
+		assertEquals(sent.getSuccessful().size(), 3);
+		List<com.amazonaws.services.sqs.model.Message> received = client
+				.receiveMessage(new ReceiveMessageRequest(queueUrl).withMaxNumberOfMessages(10)).getMessages();
+		assertEquals(received.size(), 3);
+
+		// Making one message visible again lets it be received once more
+		client.changeMessageVisibility(queueUrl, received.get(0).getReceiptHandle(), 0);
+		List<com.amazonaws.services.sqs.model.Message> again = client.receiveMessage(queueUrl).getMessages();
+		assertEquals(again.size(), 1);
+		assertEquals(again.get(0).getBody(), received.get(0).getBody());
+
+		// The handle of the first receive is stale once received again
+		assertEquals(client.deleteMessageBatch(queueUrl,
+				Arrays.asList(new DeleteMessageBatchRequestEntry("a", again.get(0).getReceiptHandle()),
+						new DeleteMessageBatchRequestEntry("b", received.get(1).getReceiptHandle()),
+						new DeleteMessageBatchRequestEntry("c", received.get(2).getReceiptHandle()),
+						new DeleteMessageBatchRequestEntry("d", "unknown"),
+						new DeleteMessageBatchRequestEntry("e", received.get(0).getReceiptHandle())))
+				.getFailed().size(), 2);
+		assertEquals(fileService.getQueueAttributes(queue).getVisibleMessages(), 0);
+		assertEquals(fileService.getQueueAttributes(queue).getInFlightMessages(), 0);
+
+		boolean missing = false;
+		try {
+			client.getQueueUrl("sqsMissingQueue");
+		} catch (QueueDoesNotExistException e) {
+			missing = true;
+		}
+		assertEquals(missing, true);
+
+		server.close();
+		assertEquals(fileService.removeQueue(queue), true);
+		System.out.println("  SQS batch actions test passed!");
+	}
+
+	/**
+	 * Test that a receive waiting for messages is answered as soon as a
+	 * message is sent
+	 */
+	@Test
+	public void testLongPolling() throws Exception {
+		String queue = "sqsLongPollQueue";
+		SqsQueueServer server = new SqsQueueServer(new InMemoryQueueService(), 0, 1);
+		AmazonSQSClient client = createClient(server);
+		String queueUrl = client.createQueue(queue).getQueueUrl();
+
+		long start = System.currentTimeMillis();
+		CompletableFuture<List<com.amazonaws.services.sqs.model.Message>> receive = CompletableFuture
+				.supplyAsync(() -> client
+						.receiveMessage(new ReceiveMessageRequest(queueUrl).withWaitTimeSeconds(10)).getMessages());
+		Thread.sleep(200);
+		// A single thread serves the endpoint, so the parked receive does not
+		// hold it
+		client.sendMessage(queueUrl, "awaited");
+		List<com.amazonaws.services.sqs.model.Message> received = receive.get();
+		assertEquals(received.size(), 1);
+		assertEquals(received.get(0).getBody(), "awaited");
+		assertTrue(System.currentTimeMillis() - start < 5000);
+
+		// An empty receive waits for its whole wait time
+		start = System.currentTimeMillis();
+		assertEquals(client.receiveMessage(new ReceiveMessageRequest(queueUrl).withWaitTimeSeconds(1))
+				.getMessages().size(), 0);
+		assertTrue(System.currentTimeMillis() - start >= 1000);
+
+		server.close();
+		System.out.println("  SQS long polling test passed!");
+	}
+}
@@ -0,0 +1,79 @@
+package com.example;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+
+import org.junit.Test;
+
+/**
+ * Test for queue keeping its head in memory and spilling its tail to disk
+ */
+public class TieredQueueTest {
+	private static final String DIRECTORY = "file/tiered";
+
+	/**
+	 * Test that a backlog larger than the memory budget is spilled and
+	 * delivered back in push order
+	 */
+	@Test
+	public void testSpillAndPrefetch() {
+		String queue = "tieredQueue";
+		// Room for about ten small messages
+		TieredQueueService service = new TieredQueueService(DIRECTORY, 1500);
+		assertEquals(service.createQueue(queue), true);
+		for (int i = 0; i < 1000; i++)
+			assertEquals(service.push(queue, new Message("message " + i)), true);
+		assertTrue(service.getMemoryUsage() <= 1500);
+		assertTrue(service.getSpilledMessages(queue) > 900);
+		assertEquals(service.getQueueAttributes(queue).getVisibleMessages(), 1000);
+
+		for (int i = 0; i < 1000; i++) {
+			Message message = service.pull(queue);
+			assertNotNull(message);
+			assertEquals(message.getContent(), "message " + i);
+			assertEquals(service.delete(queue, message), true);
+		}
+		assertNull(service.pull(queue));
+		assertEquals(service.getSpilledMessages(queue), 0);
+		assertEquals(service.getMemoryUsage(), 0);
+		File[] files = new File(DIRECTORY + "/" + queue).listFiles();
+		assertEquals(files.length, 0);
+		assertEquals(service.removeQueue(queue), true);
+		System.out.println("  Tiered spill test passed!");
+	}
+
+	/**
+	 * Test that a spilled message keeps its push time and the rest of its
+	 * delay when it is moved back to memory
+	 */
+	@Test
+	public void testSpilledDelay() {
+		String queue = "tieredDelayQueue";
+		MutableClock clock = new MutableClock(System.currentTimeMillis());
+		long pushTime = clock.millis();
+		// No memory at all, every message is spilled
+		TieredQueueService service = new TieredQueueService(clock, DIRECTORY, 0);
+		assertEquals(service.createQueue(queue), true);
+		Message message = new Message("delayed");
+		message.setDelaySeconds(10);
+		assertEquals(service.push(queue, message), true);
+		assertEquals(service.getSpilledMessages(queue), 1);
+
+		clock.advance(4000);
+		assertNull(service.pull(queue));
+		assertEquals(service.getSpilledMessages(queue), 0);
+		assertEquals(service.getQueueAttributes(queue).getDelayedMessages(), 1);
+		clock.advance(6000);
+		Message received = service.pull(queue);
+		assertNotNull(received);
+		assertEquals(received.getContent(), "delayed");
+		assertEquals(received.getEnqueueTime(), pushTime);
+		assertEquals(service.delete(queue, received), true);
+		assertEquals(service.removeQueue(queue), true);
+		System.out.println("  Tiered delay test passed!");
+	}
+}